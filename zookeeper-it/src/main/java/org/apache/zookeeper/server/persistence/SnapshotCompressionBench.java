@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.DataTree;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+@Fork(3)
+public class SnapshotCompressionBench {
+
+    static final String pathPrefix = "/reasonably/long/path/";
+
+    @State(Scope.Benchmark)
+    public static class SnapshotState {
+
+        @Param({"CHECKED", "GZIP", "SNAPPY", "ZSTD", "LZ4"})
+        public String streamMode;
+
+        @Param({"1", "4"})
+        public int compressionThreads;
+
+        @Param({"100000"})
+        public int nodeCount;
+
+        @Param({"256"})
+        public int dataSize;
+
+        DataTree dataTree;
+        File snapDir;
+        FileSnap fileSnap;
+        File snapshot;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            SnapStream.setStreamMode(SnapStream.StreamMode.valueOf(streamMode));
+            SnapStream.setCompressionThreads(compressionThreads);
+
+            // Node data drawn from a small alphabet, so that it compresses
+            // roughly like the json or text payloads commonly stored.
+            Random random = new Random(42);
+            dataTree = new DataTree();
+            dataTree.createNode("/reasonably", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 1, 1, 1);
+            dataTree.createNode("/reasonably/long", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 1, 2, 2);
+            dataTree.createNode("/reasonably/long/path", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 1, 3, 3);
+            for (int i = 0; i < nodeCount; i++) {
+                byte[] data = new byte[dataSize];
+                for (int j = 0; j < data.length; j++) {
+                    data[j] = (byte) ('a' + random.nextInt(16));
+                }
+                dataTree.createNode(pathPrefix + i, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 1, i + 4, i + 4);
+            }
+
+            snapDir = Files.createTempDirectory("snapbench").toFile();
+            fileSnap = new FileSnap(snapDir);
+            snapshot = new File(snapDir, "snapshot.1" + SnapStream.getStreamMode().getFileExtension());
+            fileSnap.serialize(dataTree, new HashMap<>(), snapshot, false);
+            System.out.println("Snapshot size with " + streamMode + ": " + snapshot.length());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            FileUtils.deleteDirectory(snapDir);
+        }
+    }
+
+    /**
+     * Test the time used to write a snapshot of the tree with the stream
+     * mode and compression threads under test.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public void testSerialize(SnapshotState state) throws Exception {
+        state.fileSnap.serialize(state.dataTree, new HashMap<>(), state.snapshot, false);
+    }
+
+    /**
+     * Test the time used to load the snapshot written by the setup.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public DataTree testDeserialize(SnapshotState state) throws Exception {
+        DataTree dataTree = new DataTree();
+        state.fileSnap.deserialize(dataTree, new ConcurrentHashMap<>());
+        return dataTree;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
+import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
+import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates the learner handlers of a leader acking a window of outstanding
+ * proposals concurrently, each in zxid order, and the leader committing them
+ * in zxid order, either recording every ack under the lock of the leader as
+ * it used to, or under the lock of the proposal as Leader.processAck does.
+ */
+@Fork(3)
+public class ProposalAckBench {
+
+    /**
+     * The commit tracking of the leader, without the sending of the commits.
+     */
+    static class Committer {
+
+        final Map<Long, Leader.Proposal> outstandingProposals = new ConcurrentHashMap<>();
+        volatile long lastCommitted;
+
+        synchronized void ackUnderLeaderLock(long sid, long zxid) {
+            Leader.Proposal p = outstandingProposals.get(zxid);
+            if (p == null) {
+                return;
+            }
+            p.addAck(sid);
+            tryToCommit(p, zxid);
+        }
+
+        void ackUnderProposalLock(long sid, long zxid) {
+            Leader.Proposal p = outstandingProposals.get(zxid);
+            if (p != null && p.addAckReachingQuorums(sid)) {
+                commitInOrder(p, zxid);
+            }
+        }
+
+        synchronized void commitInOrder(Leader.Proposal p, long zxid) {
+            if (!outstandingProposals.containsKey(zxid)) {
+                return;
+            }
+            while (p != null && tryToCommit(p, zxid)) {
+                zxid++;
+                p = outstandingProposals.get(zxid);
+            }
+        }
+
+        private boolean tryToCommit(Leader.Proposal p, long zxid) {
+            if (outstandingProposals.containsKey(zxid - 1) || !p.hasAllQuorums()) {
+                return false;
+            }
+            outstandingProposals.remove(zxid);
+            lastCommitted = zxid;
+            return true;
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class AckState {
+
+        @Param({"LEADER", "PROPOSAL"})
+        public String ackLock;
+
+        @Param({"3", "5", "9"})
+        public int learners;
+
+        @Param({"1000"})
+        public int window;
+
+        QuorumVerifier qv;
+        ExecutorService learnerHandlers;
+        long nextZxid = 1;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Map<Long, QuorumServer> voters = new HashMap<>();
+            for (long sid = 1; sid <= learners; sid++) {
+                voters.put(sid, new QuorumServer(sid, new InetSocketAddress("127.0.0.1", 2888)));
+            }
+            qv = new QuorumMaj(voters);
+            learnerHandlers = Executors.newFixedThreadPool(learners);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            learnerHandlers.shutdownNow();
+        }
+    }
+
+    /**
+     * Test the time used to record the acks of all the learners for a window
+     * of proposals, and commit them.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    public long testAckWindow(AckState state) throws Exception {
+        Committer committer = new Committer();
+        long first = state.nextZxid;
+        long last = first + state.window - 1;
+        state.nextZxid = last + 1;
+        committer.lastCommitted = first - 1;
+        for (long zxid = first; zxid <= last; zxid++) {
+            Leader.Proposal p = new Leader.Proposal();
+            p.addQuorumVerifier(state.qv);
+            committer.outstandingProposals.put(zxid, p);
+        }
+
+        boolean underLeaderLock = state.ackLock.equals("LEADER");
+        List<Future<?>> acks = new ArrayList<>(state.learners);
+        for (long sid = 1; sid <= state.learners; sid++) {
+            long learner = sid;
+            acks.add(state.learnerHandlers.submit(() -> {
+                for (long zxid = first; zxid <= last; zxid++) {
+                    if (underLeaderLock) {
+                        committer.ackUnderLeaderLock(learner, zxid);
+                    } else {
+                        committer.ackUnderProposalLock(learner, zxid);
+                    }
+                }
+            }));
+        }
+        for (Future<?> ack : acks) {
+            ack.get();
+        }
+        if (committer.lastCommitted != last) {
+            throw new IllegalStateException("Committed up to " + committer.lastCommitted + " instead of " + last);
+        }
+        return committer.lastCommitted;
+    }
+}
@@ -26,6 +26,7 @@
 
 import org.openjdk.jmh.annotations.*;
 
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 @Fork(3)
@@ -65,7 +66,7 @@ static long getMemoryUse() {
     @State(Scope.Benchmark)
     public static class IterationState {
 
-        @Param({"WatchManager", "WatchManagerOptimized"})
+        @Param({"WatchManager", "WatchManagerOptimized", "ConcurrentWatchManager"})
         public String watchManagerClass;
 
         @Param({"10000"})
@@ -128,7 +129,7 @@ public void testAddConcentrateWatch(IterationState state) throws Exception {
     @State(Scope.Benchmark)
     public static class InvocationState {
 
-        @Param({"WatchManager", "WatchManagerOptimized"})
+        @Param({"WatchManager", "WatchManagerOptimized", "ConcurrentWatchManager"})
         public String watchManagerClass;
 
         @Param({"1", "1000"})
@@ -297,4 +298,54 @@ public void testTriggerSparseWatch(TriggerSparseWatchState state) throws Excepti
             state.watchManager.triggerWatch(path, event, WatchedEvent.NO_ZXID);
         }
     }
+
+    @State(Scope.Benchmark)
+    public static class SharedState {
+
+        @Param({"WatchManager", "WatchManagerOptimized", "ConcurrentWatchManager"})
+        public String watchManagerClass;
+
+        @Param({"10000"})
+        public int pathCount;
+
+        String[] paths;
+
+        IWatchManager watchManager;
+
+        @Setup(Level.Iteration)
+        public void setup() throws Exception {
+            paths = new String[pathCount];
+            for (int i = 0; i < paths.length; i++) {
+                paths[i] = pathPrefix + i;
+            }
+            watchManager = createWatchManager(watchManagerClass);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        Watcher watcher = new DumbWatcher();
+    }
+
+    /**
+     * Test many threads adding and triggering watches on the same watch
+     * manager, each thread watching random paths and triggering the watches
+     * of other random paths, as the connections and the commit processor
+     * would on a busy server.
+     *
+     * The output of this test is the number of watches added and triggered
+     * per millisecond by all the threads.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Measurement(iterations = 3, time = 10, timeUnit = TimeUnit.SECONDS)
+    @Threads(8)
+    public void testConcurrentAddAndTriggerWatch(SharedState state, ThreadState threadState) throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        state.watchManager.addWatch(state.paths[random.nextInt(state.pathCount)], threadState.watcher);
+        state.watchManager.triggerWatch(state.paths[random.nextInt(state.pathCount)], event, WatchedEvent.NO_ZXID);
+    }
 }
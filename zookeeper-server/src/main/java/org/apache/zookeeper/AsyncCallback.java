@@ -203,6 +203,29 @@ interface Children2Callback extends AsyncCallback {
 
     }
 
+    /**
+     * This callback is used to retrieve a page of the children of the node.
+     *
+     * @since 3.10.0
+     */
+    @InterfaceAudience.Public
+    interface ChildrenPageCallback extends AsyncCallback {
+
+        /**
+         * Process the result of the asynchronous call.
+         *
+         * @param rc   The return code or the result of the call.
+         * @param path The path that we passed to asynchronous calls.
+         * @param ctx  Whatever context object that we passed to asynchronous calls.
+         * @param page The page of children of the node on given path, null
+         *             if the call failed.
+         *
+         * @see ZooKeeper#getChildren(String, int, String, AsyncCallback.ChildrenPageCallback, Object)
+         */
+        void processResult(int rc, String path, Object ctx, ChildrenPage page);
+
+    }
+
     /**
      * This callback is used to retrieve the name and stat of the node.
      */
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import java.util.List;
+import org.apache.yetus.audience.InterfaceAudience;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * A page of the children of a node, as returned by
+ * {@link ZooKeeper#getChildren(String, int, String)}.
+ * <p>
+ * The children are in lexicographic order. To get the next page, pass the
+ * cursor of this page to the next call. Each page starts after the cursor
+ * it was requested with, so the children created or deleted while the node
+ * is scanned may or may not be seen, while the others are seen exactly once.
+ */
+@InterfaceAudience.Public
+public class ChildrenPage {
+
+    private final List<String> children;
+    private final String cursor;
+    private final Stat stat;
+
+    public ChildrenPage(List<String> children, String cursor, Stat stat) {
+        this.children = children;
+        this.cursor = cursor;
+        this.stat = stat;
+    }
+
+    /**
+     * @return the children of this page, in lexicographic order
+     */
+    public List<String> getChildren() {
+        return children;
+    }
+
+    /**
+     * @return the cursor to get the next page with, or null if this is the
+     *         last page
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * @return whether there are children after this page
+     */
+    public boolean hasMore() {
+        return cursor != null;
+    }
+
+    /**
+     * @return the stat of the node when this page was read
+     */
+    public Stat getStat() {
+        return stat;
+    }
+
+}
@@ -39,9 +39,13 @@
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.security.auth.login.LoginException;
 import javax.security.sasl.SaslException;
 import org.apache.jute.BinaryInputArchive;
@@ -51,6 +55,7 @@
 import org.apache.zookeeper.AsyncCallback.AllChildrenNumberCallback;
 import org.apache.zookeeper.AsyncCallback.Children2Callback;
 import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.ChildrenPageCallback;
 import org.apache.zookeeper.AsyncCallback.Create2Callback;
 import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.AsyncCallback.EphemeralsCallback;
@@ -78,7 +83,10 @@
 import org.apache.zookeeper.proto.GetACLResponse;
 import org.apache.zookeeper.proto.GetAllChildrenNumberResponse;
 import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetChildrenPageResponse;
+import org.apache.zookeeper.proto.GetChildrenRequest;
 import org.apache.zookeeper.proto.GetChildrenResponse;
+import org.apache.zookeeper.proto.GetDataRequest;
 import org.apache.zookeeper.proto.GetDataResponse;
 import org.apache.zookeeper.proto.GetEphemeralsResponse;
 import org.apache.zookeeper.proto.GetSASLRequest;
@@ -168,6 +176,8 @@ static class AuthData {
 
     private final ZKWatchManager watchManager;
 
+    private final ReadCache readCache;
+
     private long sessionId;
 
     private byte[] sessionPasswd;
@@ -223,6 +233,15 @@ ZKWatchManager getWatcherManager() {
         return watchManager;
     }
 
+    ReadCache getReadCache() {
+        return readCache;
+    }
+
+    // VisibleForTesting
+    Queue<Packet> getPendingQueue() {
+        return pendingQueue;
+    }
+
     public long getSessionId() {
         return sessionId;
     }
@@ -341,6 +360,49 @@ public String toString() {
 
     }
 
+    /**
+     * A multiRead request made of reads queued one after the other, whose
+     * results are handed back to the packets of the reads.
+     */
+    static class ReadBatch extends Packet {
+
+        final List<Packet> reads;
+
+        ReadBatch(List<Packet> reads) {
+            super(new RequestHeader(0, OpCode.multiRead), new ReplyHeader(), null, new MultiResponse(), null);
+            this.reads = reads;
+            MultiOperationRecord ops = new MultiOperationRecord();
+            for (Packet p : reads) {
+                if (p.request instanceof GetDataRequest) {
+                    ops.add(Op.getData(((GetDataRequest) p.request).getPath()));
+                } else {
+                    ops.add(Op.getChildren(((GetChildrenRequest) p.request).getPath()));
+                }
+            }
+            this.request = ops;
+        }
+
+        /**
+         * Whether a packet can be sent as part of a multiRead: a getData or a
+         * getChildren which neither sets nor removes a watch.
+         */
+        static boolean canBatch(Packet p) {
+            if (p.requestHeader == null || p.bb != null
+                || p.watchRegistration != null || p.watchDeregistration != null) {
+                return false;
+            }
+            switch (p.requestHeader.getType()) {
+            case OpCode.getData:
+                return p.request instanceof GetDataRequest && !((GetDataRequest) p.request).getWatch();
+            case OpCode.getChildren:
+                return p.request instanceof GetChildrenRequest && !((GetChildrenRequest) p.request).getWatch();
+            default:
+                return false;
+            }
+        }
+
+    }
+
     /**
      * Creates a connection object. The actual network connect doesn't get
      * established until needed. The start() instance method must be called
@@ -407,6 +469,9 @@ public ClientCnxn(
         this.watchManager = new ZKWatchManager(
                 clientConfig.getBoolean(ZKClientConfig.DISABLE_AUTO_WATCH_RESET),
                 defaultWatcher);
+        this.readCache = new ReadCache(clientConfig.getInt(
+                ZKClientConfig.ZOOKEEPER_READ_CACHE_MAX_ENTRIES,
+                ZKClientConfig.ZOOKEEPER_READ_CACHE_MAX_ENTRIES_DEFAULT));
 
         this.connectTimeout = sessionTimeout / hostProvider.size();
         this.readTimeout = sessionTimeout * 2 / 3;
@@ -416,13 +481,40 @@ public ClientCnxn(
         initRequestTimeout();
     }
 
+    /**
+     * Deliver the watch events and the callbacks on the given executor instead
+     * of the event thread, see {@link EventDispatcher}. Must be called before
+     * {@link #start()}.
+     */
+    void setEventExecutor(Executor executor) {
+        eventDispatcher = executor == null ? null : new EventDispatcher(executor);
+    }
+
     public void start() {
+        int eventThreads = clientConfig.getInt(
+            ZKClientConfig.ZOOKEEPER_EVENT_THREADS,
+            ZKClientConfig.ZOOKEEPER_EVENT_THREADS_DEFAULT);
+        if (eventDispatcher == null && eventThreads > 0) {
+            AtomicInteger threadCount = new AtomicInteger();
+            String threadName = makeThreadName("-EventThread-");
+            ownedEventExecutor = Executors.newFixedThreadPool(eventThreads, r -> {
+                Thread t = new Thread(r, threadName + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            eventDispatcher = new EventDispatcher(ownedEventExecutor);
+        }
         sendThread.start();
         eventThread.start();
     }
 
     private Object eventOfDeath = new Object();
 
+    /** delivers the events on an executor, or null to deliver them from the event thread */
+    private EventDispatcher eventDispatcher;
+    /** the executor of the events created by the client, if any, shut down with it */
+    private ExecutorService ownedEventExecutor;
+
     private static class WatcherSetEventPair {
 
         private final Set<Watcher> watchers;
@@ -526,6 +618,8 @@ public void run() {
                     Object event = waitingEvents.take();
                     if (event == eventOfDeath) {
                         wasKilled = true;
+                    } else if (eventDispatcher != null) {
+                        eventDispatcher.dispatch(pathOf(event), () -> processEvent(event));
                     } else {
                         processEvent(event);
                     }
@@ -541,10 +635,24 @@ public void run() {
             } catch (InterruptedException e) {
                 LOG.error("Event thread exiting due to interruption", e);
             }
+            if (ownedEventExecutor != null) {
+                // Let the threads deliver the events already handed to them
+                ownedEventExecutor.shutdown();
+            }
 
             LOG.info("EventThread shut down for session: 0x{}", Long.toHexString(getSessionId()));
         }
 
+        private String pathOf(Object event) {
+            if (event instanceof WatcherSetEventPair) {
+                return ((WatcherSetEventPair) event).event.getPath();
+            } else if (event instanceof LocalCallback) {
+                return ((LocalCallback) event).path;
+            } else {
+                return ((Packet) event).clientPath;
+            }
+        }
+
         private void processEvent(Object event) {
             try {
                 if (event instanceof WatcherSetEventPair) {
@@ -644,6 +752,14 @@ private void processEvent(Object event) {
                         } else {
                             cb.processResult(rc, clientPath, p.ctx, null, null);
                         }
+                    } else if (p.response instanceof GetChildrenPageResponse) {
+                        ChildrenPageCallback cb = (ChildrenPageCallback) p.cb;
+                        GetChildrenPageResponse rsp = (GetChildrenPageResponse) p.response;
+                        if (rc == Code.OK.intValue()) {
+                            cb.processResult(rc, clientPath, p.ctx, ZooKeeper.toChildrenPage(rsp));
+                        } else {
+                            cb.processResult(rc, clientPath, p.ctx, null);
+                        }
                     } else if (p.response instanceof CreateResponse) {
                         StringCallback cb = (StringCallback) p.cb;
                         CreateResponse rsp = (CreateResponse) p.response;
@@ -778,7 +894,39 @@ private void conLossPacket(Packet p) {
         default:
             p.replyHeader.setErr(KeeperException.Code.CONNECTIONLOSS.intValue());
         }
-        finishPacket(p);
+        if (p instanceof ReadBatch) {
+            finishReadBatch((ReadBatch) p);
+        } else {
+            finishPacket(p);
+        }
+    }
+
+    /**
+     * Finish the reads of a batch with their own results, or with the error
+     * of the whole batch.
+     */
+    private void finishReadBatch(ReadBatch batch) {
+        int batchErr = batch.replyHeader.getErr();
+        Iterator<OpResult> results = ((MultiResponse) batch.response).getResultList().iterator();
+        for (Packet p : batch.reads) {
+            OpResult result = batchErr == 0 && results.hasNext() ? results.next() : null;
+            p.replyHeader.setZxid(batch.replyHeader.getZxid());
+            if (result == null) {
+                // The reply is missing or could not be read
+                p.replyHeader.setErr(batchErr != 0 ? batchErr : KeeperException.Code.CONNECTIONLOSS.intValue());
+            } else if (result instanceof OpResult.GetDataResult) {
+                OpResult.GetDataResult dataResult = (OpResult.GetDataResult) result;
+                GetDataResponse response = (GetDataResponse) p.response;
+                response.setData(dataResult.getData());
+                response.setStat(dataResult.getStat());
+                readCache.put(((GetDataRequest) p.request).getPath(), response.getData(), response.getStat());
+            } else if (result instanceof OpResult.GetChildrenResult) {
+                ((GetChildrenResponse) p.response).setChildren(((OpResult.GetChildrenResult) result).getChildren());
+            } else {
+                p.replyHeader.setErr(((ErrorResult) result).getErr());
+            }
+            finishPacket(p);
+        }
     }
 
     private volatile long lastZxid;
@@ -872,6 +1020,7 @@ void readResponse(ByteBuffer incomingBuffer) throws IOException {
 
                 WatchedEvent we = new WatchedEvent(event, replyHdr.getZxid());
                 LOG.debug("Got {} for session id 0x{}", we, Long.toHexString(sessionId));
+                readCache.invalidate(we);
                 eventThread.queueEvent(we);
                 return;
             default:
@@ -916,11 +1065,19 @@ void readResponse(ByteBuffer incomingBuffer) throws IOException {
                 }
                 if (packet.response != null && replyHdr.getErr() == 0) {
                     packet.response.deserialize(bbia, "response");
+                    if (packet.response instanceof GetDataResponse && packet.request instanceof GetDataRequest) {
+                        GetDataResponse response = (GetDataResponse) packet.response;
+                        readCache.put(((GetDataRequest) packet.request).getPath(), response.getData(), response.getStat());
+                    }
                 }
 
                 LOG.debug("Reading reply session id: 0x{}, packet:: {}", Long.toHexString(sessionId), packet);
             } finally {
-                finishPacket(packet);
+                if (packet instanceof ReadBatch) {
+                    finishReadBatch((ReadBatch) packet);
+                } else {
+                    finishPacket(packet);
+                }
             }
         }
 
@@ -1328,6 +1485,7 @@ private void pingRwServer() throws RWServerFoundException {
 
         private void cleanup() {
             clientCnxnSocket.cleanup();
+            readCache.disconnected(!clientConfig.getBoolean(ZKClientConfig.DISABLE_AUTO_WATCH_RESET));
             synchronized (pendingQueue) {
                 for (Packet p : pendingQueue) {
                     conLossPacket(p);
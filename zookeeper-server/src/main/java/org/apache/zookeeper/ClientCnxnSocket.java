@@ -23,6 +23,9 @@
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicLong;
@@ -72,6 +75,7 @@ abstract class ClientCnxnSocket {
     protected LinkedBlockingDeque<Packet> outgoingQueue;
     protected ZKClientConfig clientConfig;
     private int packetLen = ZKClientConfig.CLIENT_MAX_PACKET_LENGTH_DEFAULT;
+    private int maxReadBatchOps = ZKClientConfig.ZOOKEEPER_READ_BATCH_MAX_OPS_DEFAULT;
 
     /**
      * The sessionId is only available here for Log and Exception messages.
@@ -239,6 +243,49 @@ protected void initProperties() throws IOException {
             LOG.error(msg);
             throw new IOException(msg);
         }
+        maxReadBatchOps = clientConfig.getInt(
+            ZKClientConfig.ZOOKEEPER_READ_BATCH_MAX_OPS,
+            ZKClientConfig.ZOOKEEPER_READ_BATCH_MAX_OPS_DEFAULT);
+    }
+
+    /**
+     * Merge a read about to be sent with the reads queued right behind it into
+     * a single multiRead, up to the configured number of reads. The reads are
+     * only merged with the reads next to them, so that they are still sent in
+     * order with the other requests, and they only queue up while the
+     * connection is busy sending, so batching does not delay any request.
+     *
+     * @param first the read about to be sent, either still at the head of the
+     *              outgoing queue or already taken out of it
+     * @return the batch, which the merged reads have been taken out of the
+     *         outgoing queue for, or the given packet if there is nothing to
+     *         merge it with
+     */
+    Packet batchReads(Packet first) {
+        if (maxReadBatchOps <= 1 || !ClientCnxn.ReadBatch.canBatch(first)) {
+            return first;
+        }
+        List<Packet> reads = null;
+        Iterator<Packet> iter = outgoingQueue.iterator();
+        while (iter.hasNext()) {
+            Packet p = iter.next();
+            if (p == first) {
+                continue;
+            }
+            if (!ClientCnxn.ReadBatch.canBatch(p)) {
+                break;
+            }
+            if (reads == null) {
+                reads = new ArrayList<>();
+                reads.add(first);
+            }
+            reads.add(p);
+            iter.remove();
+            if (reads.size() >= maxReadBatchOps) {
+                break;
+            }
+        }
+        return reads == null ? first : new ClientCnxn.ReadBatch(reads);
     }
 
 }
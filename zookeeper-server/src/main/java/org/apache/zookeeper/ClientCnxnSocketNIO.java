@@ -109,6 +109,12 @@ void doIO(Queue<Packet> pendingQueue, ClientCnxn cnxn) throws InterruptedExcepti
                 updateLastSend();
                 // If we already started writing p, p.bb will already exist
                 if (p.bb == null) {
+                    Packet batch = batchReads(p);
+                    if (batch != p) {
+                        outgoingQueue.removeFirstOccurrence(p);
+                        outgoingQueue.addFirst(batch);
+                        p = batch;
+                    }
                     if ((p.requestHeader != null)
                         && (p.requestHeader.getType() != OpCode.ping)
                         && (p.requestHeader.getType() != OpCode.auth)) {
@@ -354,6 +354,7 @@ private void doWrite(Queue<Packet> pendingQueue, Packet p, ClientCnxn cnxn) thro
         boolean anyPacketsSent = false;
         while (true) {
             if (p != WakeupPacket.getInstance()) {
+                p = batchReads(p);
                 if ((p.requestHeader != null)
                     && (p.requestHeader.getType() != ZooDefs.OpCode.ping)
                     && (p.requestHeader.getType() != ZooDefs.OpCode.auth)) {
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the watch events and the callbacks of a client on an executor:
+ * in parallel for different paths, but one after the other and in the order
+ * they were received for a given path. The session events, and the callbacks
+ * of the requests without a path, are delivered in order as well.
+ */
+class EventDispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventDispatcher.class);
+
+    private final Executor executor;
+
+    /** the paths with events being delivered, guarded by itself */
+    private final Map<String, Lane> lanes = new HashMap<>();
+
+    /**
+     * The events of a path, delivered by a single task of the executor at a
+     * time.
+     */
+    private class Lane implements Runnable {
+
+        final String key;
+        final ArrayDeque<Runnable> events = new ArrayDeque<>();
+
+        Lane(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable event;
+                synchronized (lanes) {
+                    event = events.poll();
+                    if (event == null) {
+                        lanes.remove(key);
+                        return;
+                    }
+                }
+                try {
+                    event.run();
+                } catch (Throwable t) {
+                    LOG.error("Unexpected throwable delivering an event for {}", key, t);
+                }
+            }
+        }
+
+    }
+
+    EventDispatcher(Executor executor) {
+        this.executor = executor;
+    }
+
+    void dispatch(String path, Runnable event) {
+        String key = path == null ? "" : path;
+        Lane lane;
+        synchronized (lanes) {
+            lane = lanes.get(key);
+            if (lane != null) {
+                lane.events.add(event);
+                return;
+            }
+            lane = new Lane(key);
+            lane.events.add(event);
+            lanes.put(key, lane);
+        }
+        try {
+            executor.execute(lane);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Event executor rejected the events for {}, delivering them from the event thread", key);
+            lane.run();
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of the data and stat of the nodes of some subtrees, kept up to
+ * date by a persistent recursive watch on the root of each subtree.
+ * <p>
+ * The cache is filled from the getData responses and invalidated by the
+ * watch notifications as the send thread reads them, so in the order the
+ * server sent them: a response is cached before the notifications of the
+ * later changes to its node, and the notifications of the changes made by
+ * the session itself invalidate the cache before the responses to these
+ * changes are read. The cache is cleared when the connection is lost, as the
+ * notifications of the changes made meanwhile are not sent once the watches
+ * are set again.
+ */
+class ReadCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReadCache.class);
+
+    private static class Entry {
+
+        final byte[] data;
+        final Stat stat;
+
+        Entry(byte[] data, Stat stat) {
+            this.data = data;
+            this.stat = stat;
+        }
+
+    }
+
+    /**
+     * The watcher of the root of a cached subtree. The cache is updated by
+     * the send thread, so the watcher only takes care of the removal of the
+     * watch.
+     */
+    class RootWatcher implements Watcher {
+
+        private final String serverRoot;
+
+        RootWatcher(String serverRoot) {
+            this.serverRoot = serverRoot;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() == Event.EventType.PersistentWatchRemoved) {
+                removeRoot(serverRoot, this);
+            }
+        }
+
+    }
+
+    private final int maxEntries;
+    /** the watchers of the roots of the cached subtrees, by server path */
+    private final Map<String, RootWatcher> roots = new ConcurrentHashMap<>();
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    /** false when the notifications may have been missed */
+    private volatile boolean active = true;
+
+    ReadCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Start caching the subtree of the given root, whose persistent recursive
+     * watch is set by the given watcher.
+     */
+    void addRoot(String serverRoot, RootWatcher watcher) {
+        roots.put(serverRoot, watcher);
+    }
+
+    RootWatcher getRootWatcher(String serverRoot) {
+        return roots.get(serverRoot);
+    }
+
+    void removeRoot(String serverRoot, RootWatcher watcher) {
+        if (roots.remove(serverRoot, watcher)) {
+            entries.keySet().removeIf(path -> !isCached(path));
+        }
+    }
+
+    private boolean isCached(String serverPath) {
+        for (String root : roots.keySet()) {
+            if (serverPath.startsWith(root)
+                && (serverPath.length() == root.length()
+                    || root.length() == 1
+                    || serverPath.charAt(root.length()) == '/')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read a node from the cache.
+     *
+     * @param serverPath the path of the node
+     * @param stat the stat of the node is copied to it on a hit, if not null
+     * @return a copy of the data of the node, or null on a miss
+     */
+    byte[] getData(String serverPath, Stat stat) {
+        if (roots.isEmpty()) {
+            return null;
+        }
+        Entry entry = entries.get(serverPath);
+        if (entry == null) {
+            return null;
+        }
+        if (stat != null) {
+            copyStat(entry.stat, stat);
+        }
+        return entry.data == null ? null : entry.data.clone();
+    }
+
+    /**
+     * Read the stat of a node from the cache.
+     *
+     * @return a copy of the stat of the node, or null on a miss
+     */
+    Stat exists(String serverPath) {
+        if (roots.isEmpty()) {
+            return null;
+        }
+        Entry entry = entries.get(serverPath);
+        if (entry == null) {
+            return null;
+        }
+        Stat stat = new Stat();
+        copyStat(entry.stat, stat);
+        return stat;
+    }
+
+    private static void copyStat(Stat from, Stat to) {
+        to.setAversion(from.getAversion());
+        to.setCtime(from.getCtime());
+        to.setCversion(from.getCversion());
+        to.setCzxid(from.getCzxid());
+        to.setMtime(from.getMtime());
+        to.setMzxid(from.getMzxid());
+        to.setPzxid(from.getPzxid());
+        to.setVersion(from.getVersion());
+        to.setEphemeralOwner(from.getEphemeralOwner());
+        to.setDataLength(from.getDataLength());
+        to.setNumChildren(from.getNumChildren());
+    }
+
+    /**
+     * Cache a getData response, keeping a copy of its data, which the caller
+     * owns. Only called by the send thread.
+     */
+    void put(String serverPath, byte[] data, Stat stat) {
+        if (!active || roots.isEmpty() || !isCached(serverPath)) {
+            return;
+        }
+        if (entries.size() >= maxEntries && !entries.containsKey(serverPath)) {
+            // Make room by evicting any entry, which is good enough for the
+            // small sets of hot nodes this cache is meant for
+            Iterator<String> iter = entries.keySet().iterator();
+            if (iter.hasNext()) {
+                iter.next();
+                iter.remove();
+            }
+        }
+        Stat copy = new Stat();
+        copyStat(stat, copy);
+        entries.put(serverPath, new Entry(data == null ? null : data.clone(), copy));
+    }
+
+    /**
+     * Invalidate the node of a watch notification. Only called by the send
+     * thread.
+     */
+    void invalidate(WatchedEvent event) {
+        String serverPath = event.getPath();
+        if (serverPath != null && !entries.isEmpty()) {
+            entries.remove(serverPath);
+        }
+    }
+
+    /**
+     * Clear the cache as the connection is lost. Only called by the send
+     * thread.
+     *
+     * @param watchesReset whether the watches are set again once connected,
+     *                     so that the cache can be used again
+     */
+    void disconnected(boolean watchesReset) {
+        if (!entries.isEmpty()) {
+            LOG.debug("Clearing the read cache of {} entries after losing the connection", entries.size());
+            entries.clear();
+        }
+        active = watchesReset;
+    }
+
+}
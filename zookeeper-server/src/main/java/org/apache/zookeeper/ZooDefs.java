@@ -95,6 +95,8 @@ public interface OpCode {
 
         int whoAmI = 107;
 
+        int getChildrenPage = 108;
+
         int createSession = -10;
 
         int closeSession = -11;
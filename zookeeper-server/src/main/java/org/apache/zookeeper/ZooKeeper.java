@@ -29,11 +29,13 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import org.apache.jute.Record;
 import org.apache.yetus.audience.InterfaceAudience;
 import org.apache.zookeeper.AsyncCallback.ACLCallback;
 import org.apache.zookeeper.AsyncCallback.Children2Callback;
 import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.ChildrenPageCallback;
 import org.apache.zookeeper.AsyncCallback.Create2Callback;
 import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.AsyncCallback.MultiCallback;
@@ -69,6 +71,8 @@
 import org.apache.zookeeper.proto.GetAllChildrenNumberResponse;
 import org.apache.zookeeper.proto.GetChildren2Request;
 import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetChildrenPageRequest;
+import org.apache.zookeeper.proto.GetChildrenPageResponse;
 import org.apache.zookeeper.proto.GetChildrenRequest;
 import org.apache.zookeeper.proto.GetChildrenResponse;
 import org.apache.zookeeper.proto.GetDataRequest;
@@ -1117,6 +1121,7 @@ public ZooKeeper(ZooKeeperOptions options) throws IOException {
             sessionPasswd,
             canBeReadOnly);
         cnxn.seenRwServerBefore = sessionId != 0; // since user has provided sessionId
+        cnxn.setEventExecutor(options.getEventExecutor());
         cnxn.start();
     }
 
@@ -1900,6 +1905,13 @@ public Stat exists(final String path, Watcher watcher) throws KeeperException, I
 
         final String serverPath = prependChroot(clientPath);
 
+        if (watcher == null) {
+            Stat stat = cnxn.getReadCache().exists(serverPath);
+            if (stat != null) {
+                return stat;
+            }
+        }
+
         RequestHeader h = new RequestHeader();
         h.setType(ZooDefs.OpCode.exists);
         ExistsRequest request = new ExistsRequest();
@@ -2004,6 +2016,13 @@ public byte[] getData(final String path, Watcher watcher, Stat stat) throws Keep
 
         final String serverPath = prependChroot(clientPath);
 
+        if (watcher == null) {
+            byte[] data = cnxn.getReadCache().getData(serverPath, stat);
+            if (data != null) {
+                return data;
+            }
+        }
+
         RequestHeader h = new RequestHeader();
         h.setType(ZooDefs.OpCode.getData);
         GetDataRequest request = new GetDataRequest();
@@ -2600,6 +2619,93 @@ public void getChildren(String path, boolean watch, Children2Callback cb, Object
         getChildren(path, getDefaultWatcher(watch), cb, ctx);
     }
 
+    /**
+     * For the given znode path return a page of its children, in
+     * lexicographic order, and the cursor to get the next page with.
+     * <p>
+     * Unlike the other getChildren methods, the response is bounded by
+     * maxReturned, so the children of a node too many to fit in a response
+     * can be scanned page by page, starting with a null cursor:
+     * <pre>
+     * String cursor = null;
+     * do {
+     *     ChildrenPage page = zk.getChildren(path, 1000, cursor);
+     *     ...
+     *     cursor = page.getCursor();
+     * } while (cursor != null);
+     * </pre>
+     * The pages are not a snapshot of the children: each page is read when
+     * requested, starting after the cursor. No watch can be left on the node.
+     * <p>
+     * A KeeperException with error code KeeperException.NoNode will be thrown
+     * if no node with the given path exists.
+     *
+     * @since 3.10.0
+     *
+     * @param path the node path
+     * @param maxReturned the maximum number of children in the page, must be positive
+     * @param cursor the cursor returned with the previous page, or null for the first page
+     * @return the page of children
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero error code.
+     * @throws IllegalArgumentException if an invalid path or maxReturned is specified
+     */
+    public ChildrenPage getChildren(
+        final String path,
+        int maxReturned,
+        String cursor) throws KeeperException, InterruptedException {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+        validateMaxReturned(maxReturned);
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getChildrenPage);
+        GetChildrenPageRequest request = new GetChildrenPageRequest(serverPath, maxReturned, cursor == null ? "" : cursor);
+        GetChildrenPageResponse response = new GetChildrenPageResponse();
+        ReplyHeader r = cnxn.submitRequest(h, request, response, null);
+        if (r.getErr() != 0) {
+            throw KeeperException.create(KeeperException.Code.get(r.getErr()), clientPath);
+        }
+        return toChildrenPage(response);
+    }
+
+    /**
+     * The asynchronous version of getChildren.
+     *
+     * @since 3.10.0
+     *
+     * @see #getChildren(String, int, String)
+     */
+    public void getChildren(final String path, int maxReturned, String cursor, ChildrenPageCallback cb, Object ctx) {
+        final String clientPath = path;
+        PathUtils.validatePath(clientPath);
+        validateMaxReturned(maxReturned);
+
+        final String serverPath = prependChroot(clientPath);
+
+        RequestHeader h = new RequestHeader();
+        h.setType(ZooDefs.OpCode.getChildrenPage);
+        GetChildrenPageRequest request = new GetChildrenPageRequest(serverPath, maxReturned, cursor == null ? "" : cursor);
+        GetChildrenPageResponse response = new GetChildrenPageResponse();
+        cnxn.queuePacket(h, new ReplyHeader(), request, response, cb, clientPath, serverPath, ctx, null);
+    }
+
+    private static void validateMaxReturned(int maxReturned) {
+        if (maxReturned <= 0) {
+            throw new IllegalArgumentException("maxReturned must be positive, was " + maxReturned);
+        }
+    }
+
+    static ChildrenPage toChildrenPage(GetChildrenPageResponse response) {
+        String cursor = response.getCursor();
+        return new ChildrenPage(
+            response.getChildren(),
+            cursor == null || cursor.isEmpty() ? null : cursor,
+            response.getStat());
+    }
+
     /**
      * Synchronously gets all numbers of children nodes under a specific path
      *
@@ -2708,6 +2814,145 @@ public void getEphemerals(AsyncCallback.EphemeralsCallback cb, Object ctx) {
         getEphemerals("/", cb, ctx);
     }
 
+    /**
+     * The version of create returning a future, completed with the path and
+     * the stat of the created node, or with the {@link KeeperException} of the
+     * failure.
+     *
+     * <p>As for the callbacks, the future is completed by the thread
+     * delivering the events of the client, which the stages chained to it
+     * without an executor run in as well.
+     *
+     * @since 3.10.0
+     * @see #create(String, byte[], List, CreateMode, Create2Callback, Object)
+     */
+    public CompletableFuture<OpResult.CreateResult> createAsync(
+        final String path,
+        byte[] data,
+        List<ACL> acl,
+        CreateMode createMode) {
+        CompletableFuture<OpResult.CreateResult> future = new CompletableFuture<>();
+        create(path, data, acl, createMode, (Create2Callback) (rc, p, ctx, name, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                future.complete(new OpResult.CreateResult(name, stat));
+            } else {
+                future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), p));
+            }
+        }, null);
+        return future;
+    }
+
+    /**
+     * The version of delete returning a future.
+     *
+     * @since 3.10.0
+     * @see #createAsync(String, byte[], List, CreateMode)
+     * @see #delete(String, int, VoidCallback, Object)
+     */
+    public CompletableFuture<Void> deleteAsync(final String path, int version) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        delete(path, version, (rc, p, ctx) -> complete(future, rc, p, null), null);
+        return future;
+    }
+
+    /**
+     * The version of exists returning a future, completed with the stat of
+     * the node, or with null if the node does not exist.
+     *
+     * @since 3.10.0
+     * @see #createAsync(String, byte[], List, CreateMode)
+     * @see #exists(String, Watcher, StatCallback, Object)
+     */
+    public CompletableFuture<Stat> existsAsync(final String path, Watcher watcher) {
+        CompletableFuture<Stat> future = new CompletableFuture<>();
+        exists(path, watcher, (rc, p, ctx, stat) -> {
+            if (rc == KeeperException.Code.NONODE.intValue()) {
+                future.complete(null);
+            } else {
+                complete(future, rc, p, stat);
+            }
+        }, null);
+        return future;
+    }
+
+    /**
+     * The version of getData returning a future, completed with the data and
+     * the stat of the node.
+     *
+     * @since 3.10.0
+     * @see #createAsync(String, byte[], List, CreateMode)
+     * @see #getData(String, Watcher, DataCallback, Object)
+     */
+    public CompletableFuture<OpResult.GetDataResult> getDataAsync(final String path, Watcher watcher) {
+        CompletableFuture<OpResult.GetDataResult> future = new CompletableFuture<>();
+        getData(path, watcher, (rc, p, ctx, data, stat) -> {
+            complete(future, rc, p, rc == KeeperException.Code.OK.intValue() ? new OpResult.GetDataResult(data, stat) : null);
+        }, null);
+        return future;
+    }
+
+    /**
+     * The version of setData returning a future, completed with the stat of
+     * the node.
+     *
+     * @since 3.10.0
+     * @see #createAsync(String, byte[], List, CreateMode)
+     * @see #setData(String, byte[], int, StatCallback, Object)
+     */
+    public CompletableFuture<Stat> setDataAsync(final String path, byte[] data, int version) {
+        CompletableFuture<Stat> future = new CompletableFuture<>();
+        setData(path, data, version, (rc, p, ctx, stat) -> complete(future, rc, p, stat), null);
+        return future;
+    }
+
+    /**
+     * The version of getChildren returning a future, completed with the
+     * children of the node.
+     *
+     * @since 3.10.0
+     * @see #createAsync(String, byte[], List, CreateMode)
+     * @see #getChildren(String, Watcher, ChildrenCallback, Object)
+     */
+    public CompletableFuture<List<String>> getChildrenAsync(final String path, Watcher watcher) {
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        getChildren(path, watcher, (ChildrenCallback) (rc, p, ctx, children) -> complete(future, rc, p, children), null);
+        return future;
+    }
+
+    /**
+     * The version of multi returning a future, completed with the results of
+     * the operations. If the operations fail, the future is completed with
+     * the {@link KeeperException} of the failure, whose
+     * {@link KeeperException#getResults()} are the results of the operations.
+     *
+     * @since 3.10.0
+     * @see #createAsync(String, byte[], List, CreateMode)
+     * @see #multi(Iterable, MultiCallback, Object)
+     */
+    public CompletableFuture<List<OpResult>> multiAsync(Iterable<Op> ops) {
+        CompletableFuture<List<OpResult>> future = new CompletableFuture<>();
+        multi(ops, (rc, p, ctx, results) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                future.complete(results);
+            } else {
+                KeeperException e = KeeperException.create(KeeperException.Code.get(rc), p);
+                if (results != null) {
+                    e.setMultiResults(results);
+                }
+                future.completeExceptionally(e);
+            }
+        }, null);
+        return future;
+    }
+
+    private static <T> void complete(CompletableFuture<T> future, int rc, String path, T result) {
+        if (rc == KeeperException.Code.OK.intValue()) {
+            future.complete(result);
+        } else {
+            future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+        }
+    }
+
     /**
      * Asynchronous sync. Flushes channel between process and leader.
      * @param path
@@ -2924,6 +3169,67 @@ public void addWatch(String basePath, AddWatchMode mode, VoidCallback cb, Object
         addWatch(basePath, getWatchManager().getDefaultWatcher(), mode, cb, ctx);
     }
 
+    /**
+     * Cache the data and stat of the nodes under the given path, included,
+     * in this client, so that {@link #getData(String, Watcher, Stat)} and
+     * {@link #exists(String, Watcher)} without a watcher answer from the cache
+     * when they can, instead of sending a request.
+     * <p>
+     * The cache is kept up to date by a persistent recursive watch on the
+     * path: a node is cached by the first getData of it, until a notification
+     * shows it changed. The reads of the cache see the writes of the session
+     * which completed before them, and they never go back in time, but they
+     * may not see the writes of the other sessions whose notifications have not
+     * been received yet, which is the guarantee of the reads sent to a server.
+     * The cache is cleared when the connection is lost, and it is not used
+     * again if the watches are not set again on reconnection, see
+     * {@link ZKClientConfig#DISABLE_AUTO_WATCH_RESET}. The number of cached
+     * nodes is bounded by {@link ZKClientConfig#ZOOKEEPER_READ_CACHE_MAX_ENTRIES}.
+     * <p>
+     * Removing all the watches of the path, as with
+     * {@link #removeAllWatches(String, WatcherType, boolean)}, stops caching it.
+     *
+     * @since 3.10.0
+     * @param path the root of the subtree to cache
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero error code.
+     * @throws IllegalArgumentException if an invalid path is specified
+     */
+    public void addReadCache(String path) throws KeeperException, InterruptedException {
+        PathUtils.validatePath(path);
+        String serverPath = prependChroot(path);
+        ReadCache readCache = cnxn.getReadCache();
+        if (readCache.getRootWatcher(serverPath) != null) {
+            return;
+        }
+        ReadCache.RootWatcher watcher = readCache.new RootWatcher(serverPath);
+        addWatch(path, watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+        // The responses read from now on were sent once the watch was set
+        readCache.addRoot(serverPath, watcher);
+    }
+
+    /**
+     * Stop caching the nodes under the given path, and remove the watch set
+     * by {@link #addReadCache(String)}.
+     *
+     * @since 3.10.0
+     * @param path the root of the cached subtree
+     * @throws InterruptedException If the server transaction is interrupted.
+     * @throws KeeperException If the server signals an error with a non-zero error code.
+     * @throws IllegalArgumentException if an invalid path is specified
+     */
+    public void removeReadCache(String path) throws KeeperException, InterruptedException {
+        PathUtils.validatePath(path);
+        String serverPath = prependChroot(path);
+        ReadCache readCache = cnxn.getReadCache();
+        ReadCache.RootWatcher watcher = readCache.getRootWatcher(serverPath);
+        if (watcher == null) {
+            return;
+        }
+        readCache.removeRoot(serverPath, watcher);
+        removeWatches(path, watcher, WatcherType.Any, false);
+    }
+
     private void validateWatcher(Watcher watcher) {
         if (watcher == null) {
             throw new IllegalArgumentException("Invalid Watcher, shouldn't be null!");
@@ -64,6 +64,25 @@ public class ZKClientConfig extends ZKConfig {
      * Feature is disabled by default.
      */
     public static final long ZOOKEEPER_REQUEST_TIMEOUT_DEFAULT = 0;
+    /**
+     * The maximum number of nodes kept by the read cache of a client, see
+     * {@link ZooKeeper#addReadCache(String)}.
+     */
+    public static final String ZOOKEEPER_READ_CACHE_MAX_ENTRIES = "zookeeper.readCache.maxEntries";
+    public static final int ZOOKEEPER_READ_CACHE_MAX_ENTRIES_DEFAULT = 10000;
+    /**
+     * The maximum number of reads a client merges into a single multiRead
+     * request. Batching is disabled by default.
+     */
+    public static final String ZOOKEEPER_READ_BATCH_MAX_OPS = "zookeeper.readBatch.maxOps";
+    public static final int ZOOKEEPER_READ_BATCH_MAX_OPS_DEFAULT = 0;
+    /**
+     * The number of threads delivering the watch events and the callbacks of
+     * a client, in parallel for different paths. By default, they are all
+     * delivered by a single event thread.
+     */
+    public static final String ZOOKEEPER_EVENT_THREADS = "zookeeper.eventThreads";
+    public static final int ZOOKEEPER_EVENT_THREADS_DEFAULT = 0;
 
     public ZKClientConfig() {
         super();
@@ -85,6 +104,9 @@ public ZKClientConfig(String configPath) throws ConfigException {
     private void initFromJavaSystemProperties() {
         setProperty(ZOOKEEPER_REQUEST_TIMEOUT, System.getProperty(ZOOKEEPER_REQUEST_TIMEOUT));
         setProperty(ZOOKEEPER_SERVER_PRINCIPAL, System.getProperty(ZOOKEEPER_SERVER_PRINCIPAL));
+        setProperty(ZOOKEEPER_READ_CACHE_MAX_ENTRIES, System.getProperty(ZOOKEEPER_READ_CACHE_MAX_ENTRIES));
+        setProperty(ZOOKEEPER_READ_BATCH_MAX_OPS, System.getProperty(ZOOKEEPER_READ_BATCH_MAX_OPS));
+        setProperty(ZOOKEEPER_EVENT_THREADS, System.getProperty(ZOOKEEPER_EVENT_THREADS));
     }
 
     @Override
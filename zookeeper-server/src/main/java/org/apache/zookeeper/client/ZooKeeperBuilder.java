@@ -22,6 +22,7 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.Collection;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 import org.apache.yetus.audience.InterfaceAudience;
 import org.apache.yetus.audience.InterfaceStability;
@@ -43,6 +44,7 @@ public class ZooKeeperBuilder {
     private long sessionId = 0;
     private byte[] sessionPasswd;
     private ZKClientConfig clientConfig;
+    private Executor eventExecutor;
 
     /**
      * Creates a builder with given connect string and session timeout.
@@ -140,6 +142,26 @@ public ZooKeeperBuilder withClientConfig(ZKClientConfig clientConfig) {
         return this;
     }
 
+    /**
+     * Specifies the executor delivering the watch events and the callbacks,
+     * instead of the single event thread of the client. The events of
+     * different paths are delivered in parallel, but those of a given path
+     * are still delivered one after the other, in order. On Java 21 and
+     * later, this can be an executor running each task in a virtual thread.
+     *
+     * <p>The executor is not shut down along with the client.
+     *
+     * @param eventExecutor
+     *            the executor delivering the events, or null for the event
+     *            thread
+     * @return this
+     * @since 3.10.0
+     */
+    public ZooKeeperBuilder withEventExecutor(Executor eventExecutor) {
+        this.eventExecutor = eventExecutor;
+        return this;
+    }
+
     /**
      * Creates a {@link ZooKeeperOptions} with configured options.
      *
@@ -155,7 +177,8 @@ public ZooKeeperOptions toOptions() {
             canBeReadOnly,
             sessionId,
             sessionPasswd,
-            clientConfig
+            clientConfig,
+            eventExecutor
         );
     }
 
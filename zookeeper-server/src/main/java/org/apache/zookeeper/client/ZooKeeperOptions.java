@@ -21,6 +21,7 @@
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.net.InetSocketAddress;
 import java.util.Collection;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 import org.apache.yetus.audience.InterfaceAudience;
 import org.apache.zookeeper.Watcher;
@@ -38,6 +39,7 @@ public class ZooKeeperOptions {
     private final long sessionId;
     private final byte[] sessionPasswd;
     private final ZKClientConfig clientConfig;
+    private final Executor eventExecutor;
 
     ZooKeeperOptions(String connectString,
                      int sessionTimeout,
@@ -46,7 +48,8 @@ public class ZooKeeperOptions {
                      boolean canBeReadOnly,
                      long sessionId,
                      byte[] sessionPasswd,
-                     ZKClientConfig clientConfig) {
+                     ZKClientConfig clientConfig,
+                     Executor eventExecutor) {
         this.connectString = connectString;
         this.sessionTimeout = sessionTimeout;
         this.hostProvider = hostProvider;
@@ -55,6 +58,7 @@ public class ZooKeeperOptions {
         this.sessionId = sessionId;
         this.sessionPasswd = sessionPasswd;
         this.clientConfig = clientConfig;
+        this.eventExecutor = eventExecutor;
     }
 
     public String getConnectString() {
@@ -89,4 +93,8 @@ public byte[] getSessionPasswd() {
     public ZKClientConfig getClientConfig() {
         return clientConfig;
     }
+
+    public Executor getEventExecutor() {
+        return eventExecutor;
+    }
 }
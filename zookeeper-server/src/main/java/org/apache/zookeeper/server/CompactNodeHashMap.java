@@ -0,0 +1,530 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.util.AdHash;
+
+/**
+ * A NodeHashMap which keeps the nodes in a trie of path segments instead
+ * of keying them by their full path, so every path prefix is stored only
+ * once no matter how many nodes live below it.
+ * <p>
+ * The children of a trie node are kept in a sorted array while they are
+ * few, and in a ConcurrentHashMap once they exceed {@link #ARRAY_CHILDREN_LIMIT}.
+ * Arrays are copied on write, so lookups never take a lock. Mutations are
+ * serialized on the map: the txns of disjoint subtrees may be applied from
+ * several threads by the ParallelTxnApplier, and a copy-on-write array
+ * would lose one of two concurrent inserts without that lock.
+ * <p>
+ * Each trie node keeps its own copy of its path segment, the same string
+ * as the child name held by the parent DataNode; the two are not shared.
+ * <p>
+ * Enable it with -Dzookeeper.nodeHashMapImpl=org.apache.zookeeper.server.CompactNodeHashMap
+ */
+public class CompactNodeHashMap implements NodeHashMap {
+
+    static final int ARRAY_CHILDREN_LIMIT = 64;
+
+    private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+
+    // the root of the trie, which holds the node stored under ""
+    private final TrieNode root = new TrieNode("");
+
+    // the node stored under the "/" alias of the root
+    private volatile DataNode slashNode;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final boolean digestEnabled;
+    private final boolean subtreeDigestEnabled;
+    private final DigestCalculator digestCalculator;
+
+    private final AdHash hash;
+
+    public CompactNodeHashMap(DigestCalculator digestCalculator) {
+        this.digestCalculator = digestCalculator;
+        hash = new AdHash();
+        digestEnabled = ZooKeeperServer.isDigestEnabled();
+        subtreeDigestEnabled = ZooKeeperServer.isSubtreeDigestEnabled();
+    }
+
+    @Override
+    public DataNode put(String path, DataNode node) {
+        DataNode oldNode = putWithoutDigest(path, node);
+        addDigest(path, node);
+        if (oldNode != null) {
+            removeDigest(path, oldNode);
+        }
+        return oldNode;
+    }
+
+    @Override
+    public synchronized DataNode putWithoutDigest(String path, DataNode node) {
+        DataNode oldNode;
+        if ("/".equals(path)) {
+            oldNode = slashNode;
+            slashNode = node;
+        } else {
+            TrieNode trieNode = root;
+            int start = segmentStart(path);
+            while (start <= path.length()) {
+                int end = segmentEnd(path, start);
+                trieNode = trieNode.getOrCreateChild(path.substring(start, end));
+                start = end + 1;
+            }
+            oldNode = trieNode.value;
+            trieNode.value = node;
+        }
+        if (oldNode == null) {
+            size.incrementAndGet();
+        }
+        return oldNode;
+    }
+
+    @Override
+    public DataNode get(String path) {
+        if ("/".equals(path)) {
+            return slashNode;
+        }
+        if (!path.isEmpty() && path.charAt(0) != '/') {
+            return null;
+        }
+        TrieNode trieNode = root;
+        int start = 1;
+        while (trieNode != null && start <= path.length()) {
+            int end = segmentEnd(path, start);
+            trieNode = trieNode.getChild(path, start, end);
+            start = end + 1;
+        }
+        return trieNode == null ? null : trieNode.value;
+    }
+
+    @Override
+    public synchronized DataNode remove(String path) {
+        DataNode oldNode;
+        if ("/".equals(path)) {
+            oldNode = slashNode;
+            slashNode = null;
+        } else {
+            if (!path.isEmpty() && path.charAt(0) != '/') {
+                return null;
+            }
+            List<TrieNode> trail = new ArrayList<>();
+            TrieNode trieNode = root;
+            int start = 1;
+            while (trieNode != null && start <= path.length()) {
+                trail.add(trieNode);
+                int end = segmentEnd(path, start);
+                trieNode = trieNode.getChild(path, start, end);
+                start = end + 1;
+            }
+            if (trieNode == null) {
+                return null;
+            }
+            oldNode = trieNode.value;
+            trieNode.value = null;
+            // drop the trie nodes which no longer lead to any DataNode
+            for (int i = trail.size() - 1; i >= 0 && trieNode.isEmpty(); i--) {
+                TrieNode parent = trail.get(i);
+                parent.removeChild(trieNode.segment);
+                trieNode = parent;
+            }
+        }
+        if (oldNode != null) {
+            size.decrementAndGet();
+            removeDigest(path, oldNode);
+        }
+        return oldNode;
+    }
+
+    @Override
+    public Set<Map.Entry<String, DataNode>> entrySet() {
+        return new AbstractSet<Map.Entry<String, DataNode>>() {
+            @Override
+            public Iterator<Map.Entry<String, DataNode>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size.get();
+            }
+        };
+    }
+
+    @Override
+    public synchronized void clear() {
+        root.value = null;
+        root.children = null;
+        slashNode = null;
+        size.set(0);
+        hash.clear();
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public void preChange(String path, DataNode node) {
+        removeDigest(path, node);
+    }
+
+    @Override
+    public void postChange(String path, DataNode node) {
+        // we just made a change, so make sure the digest is
+        // invalidated
+        node.digestCached = false;
+        addDigest(path, node);
+    }
+
+    private void addDigest(String path, DataNode node) {
+        // Excluding everything under '/zookeeper/' for digest calculation.
+        if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
+            return;
+        }
+        if (digestEnabled) {
+            long digest = digestCalculator.calculateDigest(path, node);
+            hash.addDigest(digest);
+            if (subtreeDigestEnabled) {
+                addToAncestors(path, digest);
+            }
+        }
+    }
+
+    private void removeDigest(String path, DataNode node) {
+        // Excluding everything under '/zookeeper/' for digest calculation.
+        if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
+            return;
+        }
+        if (digestEnabled) {
+            long digest = digestCalculator.calculateDigest(path, node);
+            hash.removeDigest(digest);
+            if (subtreeDigestEnabled) {
+                addToAncestors(path, -digest);
+            }
+        }
+    }
+
+    /**
+     * Add the digest of a node to the digests of the descendants of all its
+     * ancestors, as in NodeHashMapImpl. The ancestors are the values met on
+     * the way down the trie to the node, starting with the root under "".
+     */
+    private void addToAncestors(String path, long digest) {
+        // "" and "/" are both the root, which has no ancestor
+        if (path.length() <= 1) {
+            return;
+        }
+        TrieNode trieNode = root;
+        int start = 1;
+        while (trieNode != null) {
+            DataNode ancestor = trieNode.value;
+            if (ancestor != null) {
+                ancestor.addDescendantsDigest(digest);
+            }
+            int end = segmentEnd(path, start);
+            if (end == path.length()) {
+                break;
+            }
+            trieNode = trieNode.getChild(path, start, end);
+            start = end + 1;
+        }
+    }
+
+    @Override
+    public long getDigest() {
+        return hash.getHash();
+    }
+
+    private static int segmentStart(String path) {
+        if (!path.isEmpty() && path.charAt(0) != '/') {
+            throw new IllegalArgumentException("Invalid path " + path);
+        }
+        return 1;
+    }
+
+    private static int segmentEnd(String path, int start) {
+        int end = path.indexOf('/', start);
+        return end == -1 ? path.length() : end;
+    }
+
+    /**
+     * Compare a segment with the region [start, end) of the path, without
+     * materializing the region as a String.
+     */
+    private static int compareSegment(String segment, String path, int start, int end) {
+        int len = Math.min(segment.length(), end - start);
+        for (int i = 0; i < len; i++) {
+            int diff = segment.charAt(i) - path.charAt(start + i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return segment.length() - (end - start);
+    }
+
+    private static int search(TrieNode[] children, String path, int start, int end) {
+        int low = 0;
+        int high = children.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareSegment(children[mid].segment, path, start, end);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static final class TrieNode {
+
+        final String segment;
+
+        volatile DataNode value;
+
+        // null, a TrieNode[] sorted by segment or a ConcurrentHashMap
+        // from segment to TrieNode, depending on the number of children
+        volatile Object children;
+
+        TrieNode(String segment) {
+            this.segment = segment;
+        }
+
+        boolean isEmpty() {
+            if (value != null) {
+                return false;
+            }
+            Object c = children;
+            if (c instanceof TrieNode[]) {
+                return ((TrieNode[]) c).length == 0;
+            }
+            return c == null || ((Map<?, ?>) c).isEmpty();
+        }
+
+        @SuppressWarnings("unchecked")
+        TrieNode getChild(String path, int start, int end) {
+            Object c = children;
+            if (c == null) {
+                return null;
+            }
+            if (c instanceof TrieNode[]) {
+                TrieNode[] array = (TrieNode[]) c;
+                int index = search(array, path, start, end);
+                return index >= 0 ? array[index] : null;
+            }
+            return ((ConcurrentHashMap<String, TrieNode>) c).get(path.substring(start, end));
+        }
+
+        // must be called while holding the lock of the owning map
+        @SuppressWarnings("unchecked")
+        TrieNode getOrCreateChild(String name) {
+            Object c = children;
+            if (c instanceof ConcurrentHashMap) {
+                return ((ConcurrentHashMap<String, TrieNode>) c).computeIfAbsent(name, TrieNode::new);
+            }
+            TrieNode[] array = c == null ? NO_CHILDREN : (TrieNode[]) c;
+            int index = search(array, name, 0, name.length());
+            if (index >= 0) {
+                return array[index];
+            }
+            TrieNode child = new TrieNode(name);
+            if (array.length >= ARRAY_CHILDREN_LIMIT) {
+                ConcurrentHashMap<String, TrieNode> map = new ConcurrentHashMap<>(array.length * 2);
+                for (TrieNode node : array) {
+                    map.put(node.segment, node);
+                }
+                map.put(name, child);
+                children = map;
+                return child;
+            }
+            int insertAt = -(index + 1);
+            TrieNode[] newArray = new TrieNode[array.length + 1];
+            System.arraycopy(array, 0, newArray, 0, insertAt);
+            newArray[insertAt] = child;
+            System.arraycopy(array, insertAt, newArray, insertAt + 1, array.length - insertAt);
+            children = newArray;
+            return child;
+        }
+
+        // must be called while holding the lock of the owning map
+        @SuppressWarnings("unchecked")
+        void removeChild(String name) {
+            Object c = children;
+            if (c instanceof ConcurrentHashMap) {
+                ((ConcurrentHashMap<String, TrieNode>) c).remove(name);
+                return;
+            }
+            TrieNode[] array = (TrieNode[]) c;
+            int index = search(array, name, 0, name.length());
+            if (index < 0) {
+                return;
+            }
+            if (array.length == 1) {
+                children = null;
+                return;
+            }
+            TrieNode[] newArray = new TrieNode[array.length - 1];
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index + 1, newArray, index, array.length - index - 1);
+            children = newArray;
+        }
+
+        @SuppressWarnings("unchecked")
+        Iterator<TrieNode> childIterator() {
+            Object c = children;
+            if (c == null) {
+                return null;
+            }
+            if (c instanceof TrieNode[]) {
+                TrieNode[] array = (TrieNode[]) c;
+                return array.length == 0 ? null : new ArrayIterator(array);
+            }
+            return ((ConcurrentHashMap<String, TrieNode>) c).values().iterator();
+        }
+
+    }
+
+    private static final class ArrayIterator implements Iterator<TrieNode> {
+
+        private final TrieNode[] array;
+        private int next;
+
+        ArrayIterator(TrieNode[] array) {
+            this.array = array;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < array.length;
+        }
+
+        @Override
+        public TrieNode next() {
+            if (next >= array.length) {
+                throw new NoSuchElementException();
+            }
+            return array[next++];
+        }
+
+    }
+
+    /**
+     * Walks the trie depth first, rebuilding the full paths on the way.
+     * Like the iterators of ConcurrentHashMap it is weakly consistent and
+     * never throws ConcurrentModificationException.
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<String, DataNode>> {
+
+        // the children iterators of the trie nodes on the current path
+        private final Deque<Iterator<TrieNode>> stack = new ArrayDeque<>();
+
+        // the length of the path at each level of the stack
+        private final Deque<Integer> lengths = new ArrayDeque<>();
+
+        private final StringBuilder path = new StringBuilder();
+
+        private Map.Entry<String, DataNode> next;
+
+        private boolean slashVisited;
+
+        EntryIterator() {
+            DataNode rootNode = root.value;
+            if (rootNode != null) {
+                next = new AbstractMap.SimpleImmutableEntry<>("", rootNode);
+            }
+            pushChildren(root);
+            if (next == null) {
+                advance();
+            }
+        }
+
+        private void pushChildren(TrieNode trieNode) {
+            Iterator<TrieNode> it = trieNode.childIterator();
+            if (it != null) {
+                stack.push(it);
+                lengths.push(path.length());
+            }
+        }
+
+        private void advance() {
+            next = null;
+            if (!slashVisited) {
+                slashVisited = true;
+                DataNode node = slashNode;
+                if (node != null) {
+                    next = new AbstractMap.SimpleImmutableEntry<>("/", node);
+                    return;
+                }
+            }
+            while (!stack.isEmpty()) {
+                Iterator<TrieNode> it = stack.peek();
+                if (!it.hasNext()) {
+                    stack.pop();
+                    lengths.pop();
+                    continue;
+                }
+                TrieNode trieNode = it.next();
+                path.setLength(lengths.peek());
+                path.append('/').append(trieNode.segment);
+                DataNode node = trieNode.value;
+                pushChildren(trieNode);
+                if (node != null) {
+                    next = new AbstractMap.SimpleImmutableEntry<>(path.toString(), node);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, DataNode> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, DataNode> result = next;
+            advance();
+            return result;
+        }
+
+    }
+
+}
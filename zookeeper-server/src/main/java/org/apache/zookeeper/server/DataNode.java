@@ -20,9 +20,17 @@
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
@@ -39,6 +47,19 @@
 @SuppressFBWarnings({"EI_EXPOSE_REP", "EI_EXPOSE_REP2"})
 public class DataNode implements Record {
 
+    public static final String COMPACT_CHILDREN = "zookeeper.dataNode.compactChildren";
+
+    public static final String COMPACT_CHILDREN_LIMIT = "zookeeper.dataNode.compactChildrenLimit";
+
+    /**
+     * When enabled, the children of a node are kept in a sorted array until
+     * their number exceeds {@link #compactChildrenLimit}, instead of always
+     * using a HashSet, which costs a map entry per child.
+     */
+    private static final boolean compactChildren = Boolean.getBoolean(COMPACT_CHILDREN);
+
+    private static final int compactChildrenLimit = Integer.getInteger(COMPACT_CHILDREN_LIMIT, 64);
+
     // the digest value of this node, calculated from path, data and stat
     private volatile long digest;
 
@@ -46,6 +67,14 @@ public class DataNode implements Record {
     // optimize the performance.
     volatile boolean digestCached;
 
+    private static final AtomicLongFieldUpdater<DataNode> DESCENDANTS_DIGEST =
+        AtomicLongFieldUpdater.newUpdater(DataNode.class, "descendantsDigest");
+
+    // the sum of the digests of the descendants of this node, when the
+    // subtree digests are enabled, updated atomically as the root is shared
+    // by the txns of different subtrees applied concurrently
+    private volatile long descendantsDigest;
+
     /** the data for this datanode */
     byte[] data;
 
@@ -100,8 +129,17 @@ public DataNode(byte[] data, Long acl, StatPersisted stat) {
      */
     public synchronized boolean addChild(String child) {
         if (children == null) {
-            // let's be conservative on the typical number of children
-            children = new HashSet<>(8);
+            if (compactChildren) {
+                children = new SortedChildSet();
+            } else {
+                // let's be conservative on the typical number of children
+                children = new HashSet<>(8);
+            }
+        } else if (children instanceof SortedChildSet && children.size() >= compactChildrenLimit) {
+            if (children.contains(child)) {
+                return false;
+            }
+            children = new HashSet<>(children);
         }
         return children.add(child);
     }
@@ -142,6 +180,40 @@ public synchronized Set<String> getChildren() {
         return Collections.unmodifiableSet(children);
     }
 
+    /**
+     * Get a page of the children of this node, in lexicographic order.
+     * <p>
+     * The first page turns a hash set of children into a sorted one, which
+     * stays sorted from then on, so that the next pages are read from the
+     * ordered set instead of copying and sorting all the children each time.
+     *
+     * @param after
+     *            the child the page starts after, or null for the first page
+     * @param maxReturned
+     *            the maximum number of children returned
+     * @return the children of the page
+     */
+    public synchronized List<String> getChildrenPage(String after, int maxReturned) {
+        if (children == null || maxReturned <= 0) {
+            return new ArrayList<>(0);
+        }
+        if (children instanceof SortedChildSet) {
+            return ((SortedChildSet) children).page(after, maxReturned);
+        }
+        if (!(children instanceof TreeSet)) {
+            children = new TreeSet<>(children);
+        }
+        TreeSet<String> sorted = (TreeSet<String>) children;
+        List<String> page = new ArrayList<>(Math.min(maxReturned, sorted.size()));
+        for (String child : after == null ? sorted : sorted.tailSet(after, false)) {
+            if (page.size() == maxReturned) {
+                break;
+            }
+            page.add(child);
+        }
+        return page;
+    }
+
     public synchronized void copyStat(Stat to) {
         to.setAversion(stat.getAversion());
         to.setCtime(stat.getCtime());
@@ -204,8 +276,123 @@ public void setDigest(long digest) {
         this.digest = digest;
     }
 
+    public long getDescendantsDigest() {
+        return descendantsDigest;
+    }
+
+    void addDescendantsDigest(long digest) {
+        DESCENDANTS_DIGEST.addAndGet(this, digest);
+    }
+
     public synchronized byte[] getData() {
         return data;
     }
 
+    /**
+     * A set of child names backed by a sorted array which is sized exactly
+     * to its content, used for the common case of nodes with few children.
+     * Like the HashSet it replaces, it is guarded by the owning DataNode.
+     */
+    static final class SortedChildSet extends AbstractSet<String> {
+
+        private static final String[] EMPTY = new String[0];
+
+        private String[] names = EMPTY;
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof String && Arrays.binarySearch(names, o) >= 0;
+        }
+
+        @Override
+        public boolean add(String name) {
+            int index = Arrays.binarySearch(names, name);
+            if (index >= 0) {
+                return false;
+            }
+            int insertAt = -(index + 1);
+            String[] newNames = new String[names.length + 1];
+            System.arraycopy(names, 0, newNames, 0, insertAt);
+            newNames[insertAt] = name;
+            System.arraycopy(names, insertAt, newNames, insertAt + 1, names.length - insertAt);
+            names = newNames;
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof String)) {
+                return false;
+            }
+            int index = Arrays.binarySearch(names, o);
+            if (index < 0) {
+                return false;
+            }
+            if (names.length == 1) {
+                names = EMPTY;
+                return true;
+            }
+            String[] newNames = new String[names.length - 1];
+            System.arraycopy(names, 0, newNames, 0, index);
+            System.arraycopy(names, index + 1, newNames, index, names.length - index - 1);
+            names = newNames;
+            return true;
+        }
+
+        List<String> page(String after, int maxReturned) {
+            int from = 0;
+            if (after != null) {
+                int index = Arrays.binarySearch(names, after);
+                from = index >= 0 ? index + 1 : -(index + 1);
+            }
+            int to = (int) Math.min((long) from + maxReturned, names.length);
+            return new ArrayList<>(Arrays.asList(names).subList(from, to));
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            final String[] snapshot = names;
+            return new Iterator<String>() {
+                private int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return next < snapshot.length;
+                }
+
+                @Override
+                public String next() {
+                    if (next >= snapshot.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return snapshot[next++];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return names.length;
+        }
+
+        @Override
+        public Object[] toArray() {
+            return names.clone();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T[] toArray(T[] a) {
+            if (a.length < names.length) {
+                return (T[]) Arrays.copyOf(names, names.length, a.getClass());
+            }
+            System.arraycopy(names, 0, a, 0, names.length);
+            if (a.length > names.length) {
+                a[names.length] = null;
+            }
+            return a;
+        }
+
+    }
+
 }
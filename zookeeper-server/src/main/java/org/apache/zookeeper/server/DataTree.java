@@ -27,6 +27,7 @@
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -34,6 +35,7 @@
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
@@ -96,6 +98,8 @@ public class DataTree {
 
     private static final Logger LOG = LoggerFactory.getLogger(DataTree.class);
 
+    public static final String NODE_HASH_MAP_IMPL = "zookeeper.nodeHashMapImpl";
+
     private final RateLogger RATE_LOGGER = new RateLogger(LOG, 15 * 60 * 1000);
 
     /**
@@ -282,7 +286,7 @@ public DataTree() {
 
     DataTree(DigestCalculator digestCalculator) {
         this.digestCalculator = digestCalculator;
-        nodes = new NodeHashMapImpl(digestCalculator);
+        nodes = createNodeHashMap(digestCalculator);
 
         // rather than fight it, let root have an alias
         nodes.put("", root);
@@ -307,6 +311,26 @@ public DataTree() {
         }
     }
 
+    /**
+     * Create the NodeHashMap implementation named by the
+     * zookeeper.nodeHashMapImpl option, NodeHashMapImpl by default.
+     */
+    private static NodeHashMap createNodeHashMap(DigestCalculator digestCalculator) {
+        String nodeHashMapImpl = System.getProperty(NODE_HASH_MAP_IMPL);
+        if (nodeHashMapImpl == null || NodeHashMapImpl.class.getName().equals(nodeHashMapImpl)) {
+            return new NodeHashMapImpl(digestCalculator);
+        }
+        try {
+            NodeHashMap nodeHashMap = (NodeHashMap) Class.forName(nodeHashMapImpl)
+                .getConstructor(DigestCalculator.class)
+                .newInstance(digestCalculator);
+            LOG.info("Using {} as node hash map", nodeHashMapImpl);
+            return nodeHashMap;
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Couldn't instantiate " + nodeHashMapImpl, e);
+        }
+    }
+
     /**
      * create a /zookeeper/config node for maintaining the configuration (membership and quorum system) info for
      * zookeeper
@@ -518,8 +542,10 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
             updateQuotaStat(lastPrefix, bytes, 1);
         }
         updateWriteStat(path, bytes);
-        dataWatches.triggerWatch(path, Event.EventType.NodeCreated, zxid);
-        childWatches.triggerWatch(parentName.equals("") ? "/" : parentName, Event.EventType.NodeChildrenChanged, zxid);
+        triggerWatches(() -> {
+            dataWatches.triggerWatch(path, Event.EventType.NodeCreated, zxid);
+            childWatches.triggerWatch(parentName.equals("") ? "/" : parentName, Event.EventType.NodeChildrenChanged, zxid);
+        });
     }
 
     /**
@@ -615,9 +641,11 @@ public void deleteNode(String path, long zxid) throws NoNodeException {
                 "childWatches.triggerWatch " + parentName);
         }
 
-        WatcherOrBitSet processed = dataWatches.triggerWatch(path, EventType.NodeDeleted, zxid);
-        childWatches.triggerWatch(path, EventType.NodeDeleted, zxid, processed);
-        childWatches.triggerWatch("".equals(parentName) ? "/" : parentName, EventType.NodeChildrenChanged, zxid);
+        triggerWatches(() -> {
+            WatcherOrBitSet processed = dataWatches.triggerWatch(path, EventType.NodeDeleted, zxid);
+            childWatches.triggerWatch(path, EventType.NodeDeleted, zxid, processed);
+            childWatches.triggerWatch("".equals(parentName) ? "/" : parentName, EventType.NodeChildrenChanged, zxid);
+        });
     }
 
     public Stat setData(String path, byte[] data, int version, long zxid, long time) throws NoNodeException {
@@ -649,7 +677,7 @@ public Stat setData(String path, byte[] data, int version, long zxid, long time)
         nodeDataSize.addAndGet(getNodeSize(path, data) - getNodeSize(path, lastData));
 
         updateWriteStat(path, dataBytes);
-        dataWatches.triggerWatch(path, EventType.NodeDataChanged, zxid);
+        triggerWatches(() -> dataWatches.triggerWatch(path, EventType.NodeDataChanged, zxid));
         return s;
     }
 
@@ -739,6 +767,38 @@ public List<String> getChildren(String path, Stat stat, Watcher watcher) throws
         return children;
     }
 
+    /**
+     * Get a page of the children of a node, in lexicographic order.
+     *
+     * @param path the path of the node
+     * @param after the child the page starts after, or null for the first page
+     * @param maxReturned the maximum number of children returned
+     * @param stat the stat of the node is copied to it, if not null
+     * @return the children of the page
+     * @throws NoNodeException if the node does not exist
+     */
+    public List<String> getChildrenPage(String path, String after, int maxReturned, Stat stat) throws NoNodeException {
+        DataNode n = nodes.get(path);
+        if (n == null) {
+            throw new NoNodeException();
+        }
+        List<String> children;
+        synchronized (n) {
+            if (stat != null) {
+                n.copyStat(stat);
+            }
+            children = n.getChildrenPage(after, maxReturned);
+        }
+
+        int bytes = 0;
+        for (String child : children) {
+            bytes += child.length();
+        }
+        updateReadStat(path, bytes);
+
+        return children;
+    }
+
     public int getAllChildrenNumber(String path) {
         // cull out these two keys:"", "/"
         if ("/".equals(path)) {
@@ -836,6 +896,12 @@ public int hashCode() {
 
     public volatile long lastProcessedZxid = 0;
 
+    /**
+     * The watches triggered by the txn being applied ahead by the current
+     * thread, or null if the watches are triggered as the txn is applied.
+     */
+    private final ThreadLocal<List<Runnable>> deferredWatches = new ThreadLocal<>();
+
     public ProcessTxnResult processTxn(TxnHeader header, Record txn, TxnDigest digest) {
         ProcessTxnResult result = processTxn(header, txn);
         compareDigest(header, txn, digest);
@@ -847,6 +913,48 @@ public ProcessTxnResult processTxn(TxnHeader header, Record txn) {
     }
 
     public ProcessTxnResult processTxn(TxnHeader header, Record txn, boolean isSubTxn) {
+        ProcessTxnResult rc = applyTxn(header, txn);
+
+        /*
+         * Things we can only update after the whole txn is applied to data
+         * tree.
+         *
+         * If we update the lastProcessedZxid with the first sub txn in multi
+         * and there is a snapshot in progress, it's possible that the zxid
+         * associated with the snapshot only include partial of the multi op.
+         *
+         * When loading snapshot, it will only load the txns after the zxid
+         * associated with snapshot file, which could cause data inconsistency
+         * due to missing sub txns.
+         *
+         * To avoid this, we only update the lastProcessedZxid when the whole
+         * multi-op txn is applied to DataTree.
+         */
+        if (!isSubTxn) {
+            /*
+             * A snapshot might be in progress while we are modifying the data
+             * tree. If we set lastProcessedZxid prior to making corresponding
+             * change to the tree, then the zxid associated with the snapshot
+             * file will be ahead of its contents. Thus, while restoring from
+             * the snapshot, the restore method will not apply the transaction
+             * for zxid associated with the snapshot file, since the restore
+             * method assumes that transaction to be present in the snapshot.
+             *
+             * To avoid this, we first apply the transaction and then modify
+             * lastProcessedZxid.  During restore, we correctly handle the
+             * case where the snapshot contains data ahead of the zxid associated
+             * with the file.
+             */
+            setProcessedZxid(rc.zxid, true);
+        }
+
+        return rc;
+    }
+
+    /**
+     * Apply a txn to the tree, without recording it as processed.
+     */
+    private ProcessTxnResult applyTxn(TxnHeader header, Record txn) {
         ProcessTxnResult rc = new ProcessTxnResult();
 
         try {
@@ -1067,49 +1175,106 @@ public ProcessTxnResult processTxn(TxnHeader header, Record txn, boolean isSubTx
             LOG.debug("Ignoring processTxn failure hdr: {} : error: {}", header.getType(), rc.err);
         }
 
-        /*
-         * Things we can only update after the whole txn is applied to data
-         * tree.
-         *
-         * If we update the lastProcessedZxid with the first sub txn in multi
-         * and there is a snapshot in progress, it's possible that the zxid
-         * associated with the snapshot only include partial of the multi op.
-         *
-         * When loading snapshot, it will only load the txns after the zxid
-         * associated with snapshot file, which could cause data inconsistency
-         * due to missing sub txns.
-         *
-         * To avoid this, we only update the lastProcessedZxid when the whole
-         * multi-op txn is applied to DataTree.
-         */
-        if (!isSubTxn) {
-            /*
-             * A snapshot might be in progress while we are modifying the data
-             * tree. If we set lastProcessedZxid prior to making corresponding
-             * change to the tree, then the zxid associated with the snapshot
-             * file will be ahead of its contents. Thus, while restoring from
-             * the snapshot, the restore method will not apply the transaction
-             * for zxid associated with the snapshot file, since the restore
-             * method assumes that transaction to be present in the snapshot.
-             *
-             * To avoid this, we first apply the transaction and then modify
-             * lastProcessedZxid.  During restore, we correctly handle the
-             * case where the snapshot contains data ahead of the zxid associated
-             * with the file.
-             */
-            if (rc.zxid > lastProcessedZxid) {
-                lastProcessedZxid = rc.zxid;
-            }
+        return rc;
+    }
 
-            if (digestFromLoadedSnapshot != null) {
-                compareSnapshotDigests(rc.zxid);
-            } else {
-                // only start recording digest when we're not in fuzzy state
-                logZxidDigest(rc.zxid, getTreeDigest());
+    /**
+     * Record a txn as processed once it is applied.
+     *
+     * @param zxid the zxid of the txn
+     * @param treeAtZxid whether the tree is exactly at this zxid, and not
+     *                   ahead of it, so that its digest is the one of the txn
+     */
+    private void setProcessedZxid(long zxid, boolean treeAtZxid) {
+        if (zxid > lastProcessedZxid) {
+            lastProcessedZxid = zxid;
+        }
+
+        if (digestFromLoadedSnapshot != null) {
+            if (treeAtZxid) {
+                compareSnapshotDigests(zxid);
+            } else if (zxid >= digestFromLoadedSnapshot.zxid) {
+                LOG.info("Tree ahead of the snapshot digest at 0x{}, skip comparing digest now.", Long.toHexString(zxid));
+                digestFromLoadedSnapshot = null;
             }
+        } else if (treeAtZxid) {
+            // only start recording digest when we're not in fuzzy state
+            logZxidDigest(zxid, getTreeDigest());
         }
+    }
 
-        return rc;
+    private void triggerWatches(Runnable trigger) {
+        List<Runnable> deferred = deferredWatches.get();
+        if (deferred == null) {
+            trigger.run();
+        } else {
+            deferred.add(trigger);
+        }
+    }
+
+    /**
+     * A txn applied to the tree ahead of its turn, concurrently with txns of
+     * other subtrees, which is completed by {@link #completeTxn(AppliedTxn)}
+     * in zxid order.
+     */
+    public static class AppliedTxn {
+
+        private final TxnHeader header;
+        private final Record txn;
+        private final TxnDigest digest;
+        private final ProcessTxnResult result;
+        private final List<Runnable> watches;
+        private final boolean last;
+
+        AppliedTxn(TxnHeader header, Record txn, TxnDigest digest, ProcessTxnResult result, List<Runnable> watches, boolean last) {
+            this.header = header;
+            this.txn = txn;
+            this.digest = digest;
+            this.result = result;
+            this.watches = watches;
+            this.last = last;
+        }
+
+        public ProcessTxnResult getResult() {
+            return result;
+        }
+
+    }
+
+    /**
+     * Apply a txn to the tree ahead of its turn. The txns touching different
+     * subtrees may be applied concurrently, the ones of a subtree must be
+     * applied in zxid order. The watches of the txn are not triggered, nor is
+     * the txn recorded as processed, until it is completed.
+     *
+     * @param last whether the txn is the last one applied ahead before the
+     *             txns are completed, so that the tree is at its zxid once
+     *             it is completed, and its digest can be checked
+     */
+    public AppliedTxn applyTxnAhead(TxnHeader header, Record txn, TxnDigest digest, boolean last) {
+        List<Runnable> watches = new ArrayList<>();
+        deferredWatches.set(watches);
+        try {
+            ProcessTxnResult result = applyTxn(header, txn);
+            return new AppliedTxn(header, txn, digest, result, watches, last);
+        } finally {
+            deferredWatches.remove();
+        }
+    }
+
+    /**
+     * Complete a txn applied ahead, in zxid order: trigger its watches and
+     * record it as processed.
+     */
+    public ProcessTxnResult completeTxn(AppliedTxn applied) {
+        for (Runnable trigger : applied.watches) {
+            trigger.run();
+        }
+        setProcessedZxid(applied.result.zxid, applied.last);
+        if (applied.last) {
+            compareDigest(applied.header, applied.txn, applied.digest);
+        }
+        return applied.result;
     }
 
     void killSession(long session, long zxid) {
@@ -1286,6 +1451,10 @@ private void setupQuota() {
      * @throws IOException
      */
     void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
+        serializeNode(oa, path, null);
+    }
+
+    private void serializeNode(OutputArchive oa, StringBuilder path, LongConsumer nodeOffsets) throws IOException {
         String pathString = path.toString();
         DataNode node = getNode(pathString);
         if (node == null) {
@@ -1301,6 +1470,9 @@ void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
             nodeCopy = new DataNode(node.data, node.acl, statCopy);
             children = node.getChildren().toArray(new String[0]);
         }
+        if (nodeOffsets != null) {
+            nodeOffsets.accept(oa.getDataSize());
+        }
         serializeNodeData(oa, pathString, nodeCopy);
         path.append('/');
         int off = path.length();
@@ -1308,7 +1480,7 @@ void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
             // Since this is single buffer being reused, we need to truncate the previous bytes of string.
             path.delete(off, Integer.MAX_VALUE);
             path.append(child);
-            serializeNode(oa, path);
+            serializeNode(oa, path, nodeOffsets);
         }
     }
 
@@ -1323,7 +1495,20 @@ public void serializeAcls(OutputArchive oa) throws IOException {
     }
 
     public void serializeNodes(OutputArchive oa) throws IOException {
-        serializeNode(oa, new StringBuilder());
+        serializeNodes(oa, null);
+    }
+
+    /**
+     * Serialize the nodes, reporting the archive offset at which each node
+     * record starts to the given consumer, which is used to build the
+     * snapshot index.
+     *
+     * @param oa OutputArchive to write to
+     * @param nodeOffsets the consumer of the node offsets, may be null
+     * @throws IOException
+     */
+    public void serializeNodes(OutputArchive oa, LongConsumer nodeOffsets) throws IOException {
+        serializeNode(oa, new StringBuilder(), nodeOffsets);
         // / marks end of stream
         // we need to check if clear had been called in between the snapshot.
         if (root != null) {
@@ -1337,42 +1522,93 @@ public void serialize(OutputArchive oa, String tag) throws IOException {
     }
 
     public void deserialize(InputArchive ia, String tag) throws IOException {
-        aclCache.deserialize(ia);
-        nodes.clear();
-        pTrie.clear();
-        nodeDataSize.set(0);
+        deserializeAcls(ia);
+        startDeserializingNodes();
         String path = ia.readString("path");
         while (!"/".equals(path)) {
             DataNode node = new DataNode();
             ia.readRecord(node, "node");
-            nodes.put(path, node);
-            synchronized (node) {
-                aclCache.addUsage(node.acl);
+            addDeserializedNode(path, node);
+            path = ia.readString("path");
+        }
+        finishDeserializingNodes();
+    }
+
+    public void deserializeAcls(InputArchive ia) throws IOException {
+        aclCache.deserialize(ia);
+    }
+
+    /**
+     * Clear the nodes before they are read back from a snapshot with
+     * {@link #addDeserializedNode(String, DataNode)}.
+     */
+    public void startDeserializingNodes() {
+        nodes.clear();
+        pTrie.clear();
+        nodeDataSize.set(0);
+    }
+
+    /**
+     * Add a node read from a snapshot. Nodes must be added in the order
+     * they were serialized, so that the parent of a node is always added
+     * before the node itself.
+     *
+     * @param path the path of the node
+     * @param node the node
+     * @throws IOException if the parent of the node is missing
+     */
+    public void addDeserializedNode(String path, DataNode node) throws IOException {
+        nodes.put(path, node);
+        synchronized (node) {
+            aclCache.addUsage(node.acl);
+        }
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash == -1) {
+            root = node;
+        } else {
+            String parentPath = path.substring(0, lastSlash);
+            DataNode parent = nodes.get(parentPath);
+            if (parent == null) {
+                throw new IOException(
+                        "Invalid Datatree, unable to find parent " + parentPath + " of path " + path);
             }
-            int lastSlash = path.lastIndexOf('/');
-            if (lastSlash == -1) {
-                root = node;
-            } else {
-                String parentPath = path.substring(0, lastSlash);
-                DataNode parent = nodes.get(parentPath);
-                if (parent == null) {
-                    throw new IOException(
-                            "Invalid Datatree, unable to find parent " + parentPath + " of path " + path);
-                }
-                parent.addChild(path.substring(lastSlash + 1));
-                long owner = node.stat.getEphemeralOwner();
-                EphemeralType ephemeralType = EphemeralType.get(owner);
-                if (ephemeralType == EphemeralType.CONTAINER) {
-                    containers.add(path);
-                } else if (ephemeralType == EphemeralType.TTL) {
-                    ttls.add(path);
-                } else if (owner != 0) {
-                    HashSet<String> list = ephemerals.computeIfAbsent(owner, k -> new HashSet<>());
-                    list.add(path);
-                }
+            parent.addChild(path.substring(lastSlash + 1));
+            long owner = node.stat.getEphemeralOwner();
+            EphemeralType ephemeralType = EphemeralType.get(owner);
+            if (ephemeralType == EphemeralType.CONTAINER) {
+                containers.add(path);
+            } else if (ephemeralType == EphemeralType.TTL) {
+                ttls.add(path);
+            } else if (owner != 0) {
+                HashSet<String> list = ephemerals.computeIfAbsent(owner, k -> new HashSet<>());
+                list.add(path);
             }
-            path = ia.readString("path");
         }
+    }
+
+    /**
+     * Read a node from a snapshot and compute and cache its digest before it
+     * is added to the tree. This is thread safe, so that snapshot loaders can
+     * decode the nodes off the thread adding them.
+     *
+     * @param ia the input archive to read the node from
+     * @param path the path of the node
+     * @return the node
+     * @throws IOException
+     */
+    public DataNode readDeserializedNode(InputArchive ia, String path) throws IOException {
+        DataNode node = new DataNode();
+        ia.readRecord(node, "node");
+        if (ZooKeeperServer.isDigestEnabled()) {
+            digestCalculator.calculateDigest(path, node);
+        }
+        return node;
+    }
+
+    /**
+     * Complete reading the nodes back from a snapshot.
+     */
+    public void finishDeserializingNodes() {
         // have counted digest for root node with "", ignore here to avoid
         // counting twice for root node
         nodes.putWithoutDigest("/", root);
@@ -1887,6 +2123,70 @@ public List<ZxidDigest> getDigestLog() {
         }
     }
 
+    /**
+     * Return the digest of the subtree of a node, which is the sum of the
+     * digests of the node and of all its descendants, so the subtree digest
+     * of the root is the digest of the tree. Two servers which have applied
+     * the same txns have the same subtree digests, so comparing them from the
+     * root down, descending only into the children whose digests differ,
+     * finds where the trees diverged without walking them.
+     *
+     * @param path the path of the node
+     * @return the digest, or null if the node does not exist or the subtree
+     *         digests are disabled
+     */
+    public Long getSubtreeDigest(String path) {
+        if (!ZooKeeperServer.isSubtreeDigestEnabled()) {
+            return null;
+        }
+        DataNode node = nodes.get(path);
+        if (node == null) {
+            return null;
+        }
+        return subtreeDigest(path, node);
+    }
+
+    /**
+     * Return the subtree digests of the children of a node, see
+     * {@link #getSubtreeDigest(String)}.
+     *
+     * @param path the path of the node
+     * @return the digests by child name, or null if the node does not exist
+     *         or the subtree digests are disabled
+     */
+    public Map<String, Long> getChildrenSubtreeDigests(String path) {
+        if (!ZooKeeperServer.isSubtreeDigestEnabled()) {
+            return null;
+        }
+        DataNode node = nodes.get(path);
+        if (node == null) {
+            return null;
+        }
+        List<String> children;
+        synchronized (node) {
+            children = new ArrayList<>(node.getChildren());
+        }
+        Collections.sort(children);
+        String prefix = path.equals("/") ? "/" : path + "/";
+        Map<String, Long> digests = new LinkedHashMap<>();
+        for (String child : children) {
+            String childPath = prefix + child;
+            DataNode childNode = nodes.get(childPath);
+            if (childNode != null) {
+                digests.put(child, subtreeDigest(childPath, childNode));
+            }
+        }
+        return digests;
+    }
+
+    private long subtreeDigest(String path, DataNode node) {
+        if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
+            // Left out of the digests, as in NodeHashMapImpl
+            return 0;
+        }
+        return digestCalculator.calculateDigest(path, node) + node.getDescendantsDigest();
+    }
+
     /**
      * A helper class to maintain the digest meta associated with specific zxid.
      */
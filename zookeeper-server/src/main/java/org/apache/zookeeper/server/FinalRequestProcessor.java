@@ -63,6 +63,8 @@
 import org.apache.zookeeper.proto.GetAllChildrenNumberResponse;
 import org.apache.zookeeper.proto.GetChildren2Request;
 import org.apache.zookeeper.proto.GetChildren2Response;
+import org.apache.zookeeper.proto.GetChildrenPageRequest;
+import org.apache.zookeeper.proto.GetChildrenPageResponse;
 import org.apache.zookeeper.proto.GetChildrenRequest;
 import org.apache.zookeeper.proto.GetChildrenResponse;
 import org.apache.zookeeper.proto.GetDataRequest;
@@ -516,6 +518,41 @@ public void processRequest(Request request) {
                 requestPathMetricsCollector.registerRequest(request.type, path);
                 break;
             }
+            case OpCode.getChildrenPage: {
+                lastOp = "GETCP";
+                GetChildrenPageRequest getChildrenPageRequest = request.readRequestRecord(GetChildrenPageRequest::new);
+                Stat stat = new Stat();
+                path = getChildrenPageRequest.getPath();
+                int maxReturned = getChildrenPageRequest.getMaxReturned();
+                if (maxReturned <= 0) {
+                    throw new KeeperException.BadArgumentsException(path);
+                }
+                DataNode n = zks.getZKDatabase().getNode(path);
+                if (n == null) {
+                    throw new KeeperException.NoNodeException();
+                }
+                zks.checkACL(
+                    request.cnxn,
+                    zks.getZKDatabase().aclForNode(n),
+                    ZooDefs.Perms.READ,
+                    request.authInfo, path,
+                    null);
+                String cursor = getChildrenPageRequest.getCursor();
+                // Ask for one more child to know whether there are more pages
+                List<String> children = zks.getZKDatabase().getChildrenPage(
+                    path,
+                    cursor == null || cursor.isEmpty() ? null : cursor,
+                    maxReturned == Integer.MAX_VALUE ? maxReturned : maxReturned + 1,
+                    stat);
+                String nextCursor = "";
+                if (children.size() > maxReturned) {
+                    children.remove(maxReturned);
+                    nextCursor = children.get(maxReturned - 1);
+                }
+                rsp = new GetChildrenPageResponse(children, nextCursor, stat);
+                requestPathMetricsCollector.registerRequest(request.type, path);
+                break;
+            }
             case OpCode.checkWatches: {
                 lastOp = "CHKW";
                 CheckWatchesRequest checkWatches = request.readRequestRecord(CheckWatchesRequest::new);
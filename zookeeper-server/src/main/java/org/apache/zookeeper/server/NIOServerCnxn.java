@@ -35,15 +35,12 @@
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.Record;
-import org.apache.zookeeper.ClientCnxn;
 import org.apache.zookeeper.WatchedEvent;
-import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.proto.ConnectRequest;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
-import org.apache.zookeeper.proto.WatcherEvent;
 import org.apache.zookeeper.server.NIOServerCnxnFactory.SelectorThread;
 import org.apache.zookeeper.server.command.CommandExecutor;
 import org.apache.zookeeper.server.command.FourLetterCommands;
@@ -399,6 +396,11 @@ protected void readRequest() throws IOException {
         zkServer.processPacket(this, h, request);
     }
 
+    // VisibleForTesting
+    Queue<ByteBuffer> getOutgoingBuffers() {
+        return outgoingBuffers;
+    }
+
     // returns whether we are interested in writing, which is determined
     // by whether we have any pending buffers on the output queue or not
     private boolean getWriteInterest() {
@@ -687,10 +689,12 @@ public static void closeSock(SocketChannel sock) {
     public int sendResponse(ReplyHeader h, Record r, String tag, String cacheKey, Stat stat, int opCode) {
         int responseSize = 0;
         try {
-            ByteBuffer[] bb = serialize(h, r, tag, cacheKey, stat, opCode);
-            responseSize = bb[0].getInt();
-            bb[0].rewind();
-            sendBuffer(bb);
+            SlabOutputStream out = SlabOutputStream.get();
+            out.startPacket();
+            responseSize = serializeResponse(h, r, cacheKey, stat, opCode, out);
+            // Only the packet sent right away keeps its slab, so that the
+            // packets queued for a slow client do not pin a slab each
+            sendBuffer(out.finishPacket(!outgoingBuffers.isEmpty()));
             decrOutstandingAndCheckThrottle(h);
         } catch (Exception e) {
             LOG.warn("Unexpected exception. Destruction averted.", e);
@@ -705,7 +709,6 @@ public int sendResponse(ReplyHeader h, Record r, String tag, String cacheKey, St
      */
     @Override
     public void process(WatchedEvent event) {
-        ReplyHeader h = new ReplyHeader(ClientCnxn.NOTIFICATION_XID, event.getZxid(), 0);
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(
                 LOG,
@@ -713,14 +716,14 @@ public void process(WatchedEvent event) {
                 "Deliver event " + event + " to 0x" + Long.toHexString(this.sessionId) + " through " + this);
         }
 
-        // Convert WatchedEvent to a type that can be sent over the wire
-        WatcherEvent e = event.getWrapper();
-
-        // The last parameter OpCode here is used to select the response cache.
-        // Passing OpCode.error (with a value of -1) means we don't care, as we don't need
-        // response cache on delivering watcher events.
-        int responseSize = sendResponse(h, e, "notification", null, null, ZooDefs.OpCode.error);
-        ServerMetrics.getMetrics().WATCH_BYTES.add(responseSize);
+        try {
+            // The notifications queued meanwhile are sent in the same write
+            ByteBuffer bb = serializeNotification(event);
+            sendBuffer(bb);
+            ServerMetrics.getMetrics().WATCH_BYTES.add(bb.remaining() - 4);
+        } catch (Exception e) {
+            LOG.warn("Unexpected exception. Destruction averted.", e);
+        }
     }
 
     /*
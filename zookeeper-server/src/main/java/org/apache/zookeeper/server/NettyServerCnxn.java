@@ -38,17 +38,17 @@
 import java.nio.channels.SelectionKey;
 import java.security.cert.Certificate;
 import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.Record;
-import org.apache.zookeeper.ClientCnxn;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.proto.ConnectRequest;
 import org.apache.zookeeper.proto.ReplyHeader;
 import org.apache.zookeeper.proto.RequestHeader;
-import org.apache.zookeeper.proto.WatcherEvent;
 import org.apache.zookeeper.server.command.CommandExecutor;
 import org.apache.zookeeper.server.command.FourLetterCommands;
 import org.apache.zookeeper.server.command.NopCommand;
@@ -69,6 +69,10 @@ public class NettyServerCnxn extends ServerCnxn {
     private Certificate[] clientChain;
     private volatile boolean closingChannel;
 
+    /** the notifications waiting to be written by the event loop */
+    private final Queue<ByteBuf> pendingNotifications = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean notificationsScheduled = new AtomicBoolean(false);
+
     private final NettyServerCnxnFactory factory;
     private boolean initialized;
 
@@ -162,7 +166,6 @@ public int getSessionTimeout() {
 
     @Override
     public void process(WatchedEvent event) {
-        ReplyHeader h = new ReplyHeader(ClientCnxn.NOTIFICATION_XID, event.getZxid(), 0);
         if (LOG.isTraceEnabled()) {
             ZooTrace.logTraceMessage(
                 LOG,
@@ -170,18 +173,36 @@ public void process(WatchedEvent event) {
                 "Deliver event " + event + " to 0x" + Long.toHexString(this.sessionId) + " through " + this);
         }
 
-        // Convert WatchedEvent to a type that can be sent over the wire
-        WatcherEvent e = event.getWrapper();
-
+        if (closingChannel || !channel.isOpen()) {
+            return;
+        }
         try {
-            int responseSize = sendResponse(h, e, "notification");
-            ServerMetrics.getMetrics().WATCH_BYTES.add(responseSize);
+            ByteBuffer bb = serializeNotification(event);
+            ServerMetrics.getMetrics().WATCH_BYTES.add(bb.remaining() - 4);
+            pendingNotifications.add(Unpooled.wrappedBuffer(bb));
+            if (notificationsScheduled.compareAndSet(false, true)) {
+                channel.eventLoop().execute(this::writeNotifications);
+            }
         } catch (IOException e1) {
             LOG.debug("Problem sending to {}", getRemoteSocketAddress(), e1);
             close();
         }
     }
 
+    /**
+     * Write the pending notifications, and flush them at once rather than
+     * one by one. Runs in the event loop of the channel.
+     */
+    private void writeNotifications() {
+        // The notifications added from now on are written by the next run
+        notificationsScheduled.set(false);
+        ByteBuf buf;
+        while ((buf = pendingNotifications.poll()) != null) {
+            channel.write(buf).addListener(onSendBufferDoneListener);
+        }
+        channel.flush();
+    }
+
     @Override
     public int sendResponse(ReplyHeader h, Record r, String tag,
                              String cacheKey, Stat stat, int opCode) throws IOException {
@@ -190,14 +211,65 @@ public int sendResponse(ReplyHeader h, Record r, String tag,
         if (closingChannel || !channel.isOpen()) {
             return 0;
         }
-        ByteBuffer[] bb = serialize(h, r, tag, cacheKey, stat, opCode);
-        int responseSize = bb[0].getInt();
-        bb[0].rewind();
-        sendBuffer(bb);
+        // Serialize in place into a buffer of the allocator of the channel,
+        // which is pooled by default
+        ByteBuf buf = channel.alloc().ioBuffer(ZooKeeperServer.intBufferStartingSizeBytes);
+        ByteBufPacketOutputStream out = ByteBufPacketOutputStream.STREAMS.get();
+        int responseSize;
+        out.buf = buf;
+        try {
+            responseSize = serializeResponse(h, r, cacheKey, stat, opCode, out);
+        } catch (IOException | RuntimeException e) {
+            buf.release();
+            throw e;
+        } finally {
+            out.buf = null;
+        }
+        channel.writeAndFlush(buf).addListener(onSendBufferDoneListener);
         decrOutstandingAndCheckThrottle(h);
         return responseSize;
     }
 
+    /**
+     * Serializes the response packets of a thread into the buffers they are
+     * sent from.
+     */
+    private static class ByteBufPacketOutputStream extends PacketOutputStream {
+
+        static final ThreadLocal<ByteBufPacketOutputStream> STREAMS = ThreadLocal.withInitial(ByteBufPacketOutputStream::new);
+
+        /** the buffer of the current packet, which only holds the packet */
+        ByteBuf buf;
+
+        @Override
+        public void write(int b) {
+            buf.writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buf.writeBytes(b, off, len);
+        }
+
+        @Override
+        int size() {
+            return buf.writerIndex();
+        }
+
+        @Override
+        void setLength(int length) {
+            buf.setInt(0, length);
+        }
+
+        @Override
+        byte[] copyOf(int from) {
+            byte[] bytes = new byte[buf.writerIndex() - from];
+            buf.getBytes(from, bytes);
+            return bytes;
+        }
+
+    }
+
     @Override
     public void setSessionId(long sessionId) {
         this.sessionId = sessionId;
@@ -32,6 +32,7 @@ public class NodeHashMapImpl implements NodeHashMap {
 
     private final ConcurrentHashMap<String, DataNode> nodes;
     private final boolean digestEnabled;
+    private final boolean subtreeDigestEnabled;
     private final DigestCalculator digestCalculator;
 
     private final AdHash hash;
@@ -41,6 +42,7 @@ public NodeHashMapImpl(DigestCalculator digestCalculator) {
         nodes = new ConcurrentHashMap<>();
         hash = new AdHash();
         digestEnabled = ZooKeeperServer.isDigestEnabled();
+        subtreeDigestEnabled = ZooKeeperServer.isSubtreeDigestEnabled();
     }
 
     @Override
@@ -107,7 +109,11 @@ private void addDigest(String path, DataNode node) {
             return;
         }
         if (digestEnabled) {
-            hash.addDigest(digestCalculator.calculateDigest(path, node));
+            long digest = digestCalculator.calculateDigest(path, node);
+            hash.addDigest(digest);
+            if (subtreeDigestEnabled) {
+                addToAncestors(path, digest);
+            }
         }
     }
 
@@ -117,7 +123,34 @@ private void removeDigest(String path, DataNode node) {
             return;
         }
         if (digestEnabled) {
-            hash.removeDigest(digestCalculator.calculateDigest(path, node));
+            long digest = digestCalculator.calculateDigest(path, node);
+            hash.removeDigest(digest);
+            if (subtreeDigestEnabled) {
+                addToAncestors(path, -digest);
+            }
+        }
+    }
+
+    /**
+     * Add the digest of a node to the digests of the descendants of all its
+     * ancestors, which are all in the map already, as a node is always added
+     * after its parent and removed before it.
+     */
+    private void addToAncestors(String path, long digest) {
+        // "" and "/" are both the root, which has no ancestor
+        if (path.length() <= 1) {
+            return;
+        }
+        int end = path.lastIndexOf('/');
+        while (end >= 0) {
+            DataNode ancestor = nodes.get(path.substring(0, end));
+            if (ancestor != null) {
+                ancestor.addDescendantsDigest(digest);
+            }
+            if (end == 0) {
+                break;
+            }
+            end = path.lastIndexOf('/', end - 1);
         }
     }
 
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ClientCnxn;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.proto.ReplyHeader;
+
+/**
+ * A watch event delivered to many connections, which keeps its serialized
+ * notification packet so that it is only serialized once however many
+ * watchers it triggers. The packet does not depend on the connection it is
+ * sent to, so the connections can all send the same bytes.
+ */
+public class NotificationEvent extends WatchedEvent {
+
+    private volatile byte[] packet;
+
+    public NotificationEvent(EventType eventType, KeeperState keeperState, String path, long zxid) {
+        super(eventType, keeperState, path, zxid);
+    }
+
+    /**
+     * The notification packet of this event, including its length prefix.
+     * The connections must not modify it.
+     */
+    byte[] getPacket() throws IOException {
+        byte[] result = packet;
+        if (result == null) {
+            // Concurrent callers may both serialize it, which is harmless
+            result = serialize(this);
+            packet = result;
+        }
+        return result;
+    }
+
+    /**
+     * Serialize the notification packet of a watch event, including its
+     * length prefix.
+     */
+    static byte[] serialize(WatchedEvent event) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(ZooKeeperServer.intBufferStartingSizeBytes);
+        // room for the length
+        baos.write(new byte[4]);
+        BinaryOutputArchive boa = BinaryOutputArchive.getArchive(baos);
+        boa.writeRecord(new ReplyHeader(ClientCnxn.NOTIFICATION_XID, event.getZxid(), 0), null);
+        boa.writeRecord(event.getWrapper(), null);
+        byte[] result = baos.toByteArray();
+        ByteBuffer.wrap(result).putInt(0, result.length - 4);
+        return result;
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.OutputStream;
+import org.apache.jute.BinaryOutputArchive;
+
+/**
+ * A stream the response packets are serialized to in place, in the buffer
+ * they are sent from. The length prefix of a packet is written once the
+ * packet is complete.
+ * <p>
+ * A stream is reused for the packets serialized by a thread, along with its
+ * archive, so that serializing a response does not allocate anything but
+ * the buffer of the packet. It is not thread safe.
+ */
+abstract class PacketOutputStream extends OutputStream {
+
+    private final BinaryOutputArchive archive = BinaryOutputArchive.getArchive(this);
+
+    BinaryOutputArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * The number of bytes of the current packet, including its length
+     * prefix.
+     */
+    abstract int size();
+
+    /**
+     * Set the length prefix of the current packet, which is made of the
+     * first 4 bytes written to it.
+     */
+    abstract void setLength(int length);
+
+    /**
+     * Copy the bytes of the current packet from the given offset, counting
+     * its length prefix.
+     */
+    abstract byte[] copyOf(int from);
+
+}
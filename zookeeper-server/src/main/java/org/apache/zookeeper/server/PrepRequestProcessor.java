@@ -899,6 +899,7 @@ private void pRequestHelper(Request request) {
             case OpCode.getChildren:
             case OpCode.getAllChildrenNumber:
             case OpCode.getChildren2:
+            case OpCode.getChildrenPage:
             case OpCode.ping:
             case OpCode.setWatches:
             case OpCode.setWatches2:
@@ -29,6 +29,7 @@
 import java.util.Set;
 import org.apache.yetus.audience.InterfaceAudience;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.persistence.SnapshotIndex;
 import org.apache.zookeeper.server.persistence.Util;
 import org.apache.zookeeper.util.ServiceUtils;
 import org.slf4j.Logger;
@@ -147,6 +148,12 @@ public boolean accept(File f) {
             files.addAll(Arrays.asList(snapshots));
         }
 
+        // add the indexes of the snapshots being removed
+        File[] snapshotIndexes = txnLog.getSnapDir().listFiles(new MyFileFilter(SnapshotIndex.SNAPSHOT_INDEX_FILE_PREFIX));
+        if (snapshotIndexes != null) {
+            files.addAll(Arrays.asList(snapshotIndexes));
+        }
+
         // remove the old files
         for (File f : files) {
             final String msg = String.format(
@@ -145,6 +145,9 @@ public String requestDigest() {
 
     public long requestThrottleQueueTime;
 
+    /** the time the RequestThrottler admitted the request, -1 if it did not */
+    public long requestThrottleAdmitTime = -1;
+
     private Object owner;
 
     private KeeperException e;
@@ -153,6 +156,8 @@ public String requestDigest() {
 
     private TxnDigest txnDigest;
 
+    private DataTree.AppliedTxn appliedTxn;
+
     private boolean isThrottledFlag = false;
 
     public boolean isThrottled() {
@@ -319,6 +324,7 @@ static boolean isValid(int type) {
         case OpCode.getChildren:
         case OpCode.getAllChildrenNumber:
         case OpCode.getChildren2:
+        case OpCode.getChildrenPage:
         case OpCode.getData:
         case OpCode.getEphemerals:
         case OpCode.multi:
@@ -347,6 +353,7 @@ public boolean isQuorum() {
         case OpCode.getChildren:
         case OpCode.getAllChildrenNumber:
         case OpCode.getChildren2:
+        case OpCode.getChildrenPage:
         case OpCode.getData:
         case OpCode.getEphemerals:
         case OpCode.multiRead:
@@ -432,6 +439,8 @@ public static String op2String(int op) {
                 return "getEphemerals";
             case OpCode.getAllChildrenNumber:
                 return "getAllChildrenNumber";
+            case OpCode.getChildrenPage:
+                return "getChildrenPage";
             case OpCode.createSession:
                 return "createSession";
             case OpCode.closeSession:
@@ -550,6 +559,18 @@ public void setTxnDigest(TxnDigest txnDigest) {
         this.txnDigest = txnDigest;
     }
 
+    /**
+     * The txn of the request if it has been applied to the tree ahead of its
+     * turn, and is only left to be completed, else null.
+     */
+    public DataTree.AppliedTxn getAppliedTxn() {
+        return appliedTxn;
+    }
+
+    public void setAppliedTxn(DataTree.AppliedTxn appliedTxn) {
+        this.appliedTxn = appliedTxn;
+    }
+
     public boolean isFromLearner() {
         return owner instanceof LearnerHandler;
     }
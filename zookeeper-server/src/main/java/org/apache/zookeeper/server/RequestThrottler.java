@@ -20,6 +20,7 @@
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.zookeeper.common.Time;
 import org.apache.zookeeper.util.ServiceUtils;
 import org.slf4j.Logger;
@@ -56,6 +57,14 @@
  * To ensure ordering guarantees, if a request is ever dropped from a connection
  * that connection is closed and flagged as invalid. All subsequent requests
  * inflight from that connection are then dropped as well.
+ *
+ * When a <code>targetLatency</code> is set, the limit is adaptive instead: it
+ * is adjusted every second toward keeping the 99th percentile of the request
+ * latency under the target. The limit is decreased multiplicatively when more
+ * than 1% of the requests took longer than the target, and increased
+ * additively when the requests were throttled without exceeding it. Besides
+ * <code>minRequests</code>, <code>maxRequests</code> is then the upper bound
+ * of the limit, if set.
  */
 public class RequestThrottler extends ZooKeeperCriticalThread {
 
@@ -98,6 +107,38 @@ public class RequestThrottler extends ZooKeeperCriticalThread {
      */
     private static volatile boolean dropStaleRequests = Boolean.parseBoolean(System.getProperty("zookeeper.request_throttle_drop_stale", "true"));
 
+    /**
+     * The 99th percentile of the request latency (in milliseconds) the limit
+     * is adjusted toward.
+     *
+     * When targetLatency = 0, the limit is the fixed maxRequests.
+     */
+    private static volatile int targetLatency = Integer.getInteger("zookeeper.request_throttle_target_latency", 0);
+
+    /**
+     * The lowest limit the adaptive limit may be decreased to.
+     */
+    private static volatile int minRequests = Integer.getInteger("zookeeper.request_throttle_min_requests", 10);
+
+    /** the adaptive limit when maxRequests is not set */
+    private static final int DEFAULT_ADAPTIVE_LIMIT = 1000;
+    private static final long ADJUST_INTERVAL_MS = 1000;
+    /** the number of latencies below which the adjustment waits for more */
+    private static final long MIN_SAMPLES = 100;
+    private static final double DECREASE_RATIO = 0.9;
+    private static final int ADDITIVE_INCREASE = 10;
+
+    private volatile int adaptiveLimit;
+    private final LongAdder latencySamples = new LongAdder();
+    private final LongAdder slowRequests = new LongAdder();
+    /** whether the limit was reached since the last adjustment */
+    // @VisibleForTesting
+    boolean saturated;
+    private long lastAdjustTime = Time.currentElapsedTime();
+
+    /** whether the throttler is waiting for the requests in process to go down */
+    private volatile boolean stalled;
+
     protected boolean shouldThrottleOp(Request request, long elapsedTime) {
         return request.isThrottlable()
                 && ZooKeeperServer.getThrottledOpWaitTime() > 0
@@ -110,6 +151,7 @@ public RequestThrottler(ZooKeeperServer zks) {
         this.zks = zks;
         this.stopping = false;
         this.killed = false;
+        this.adaptiveLimit = maxRequests > 0 ? maxRequests : DEFAULT_ADAPTIVE_LIMIT;
     }
 
     public static int getMaxRequests() {
@@ -128,6 +170,34 @@ public static void setStallTime(int time) {
         stallTime = time;
     }
 
+    public static int getTargetLatency() {
+        return targetLatency;
+    }
+
+    public static void setTargetLatency(int latency) {
+        targetLatency = latency;
+    }
+
+    public static int getMinRequests() {
+        return minRequests;
+    }
+
+    public static void setMinRequests(int requests) {
+        minRequests = requests;
+    }
+
+    private static boolean isAdaptive() {
+        return targetLatency > 0;
+    }
+
+    /**
+     * The number of outstanding requests currently allowed, or 0 when
+     * throttling is disabled.
+     */
+    public int getLimit() {
+        return isAdaptive() ? adaptiveLimit : maxRequests;
+    }
+
     public static boolean getDropStaleRequests() {
         return dropStaleRequests;
     }
@@ -153,8 +223,8 @@ public void run() {
                     continue;
                 }
 
-                // Throttling is disabled when maxRequests = 0
-                if (maxRequests > 0) {
+                // Throttling is disabled when maxRequests = 0, unless the limit is adaptive
+                if (maxRequests > 0 || isAdaptive()) {
                     while (!killed) {
                         if (dropStaleRequests && request.isStale()) {
                             // Note: this will close the connection
@@ -163,9 +233,11 @@ public void run() {
                             request = null;
                             break;
                         }
-                        if (zks.getInProcess() < maxRequests) {
+                        adjustLimit(Time.currentElapsedTime());
+                        if (zks.getInProcess() < getLimit()) {
                             break;
                         }
+                        saturated = true;
                         throttleSleep(stallTime);
                     }
                 }
@@ -185,6 +257,9 @@ public void run() {
                       request.setIsThrottled(true);
                       ServerMetrics.getMetrics().THROTTLED_OPS.add(1);
                     }
+                    // The latency the limit adapts to is counted from here,
+                    // leaving out the time spent waiting for the limit
+                    request.requestThrottleAdmitTime = Time.currentElapsedTime();
                     zks.submitRequestNow(request);
                 }
             }
@@ -196,15 +271,88 @@ public void run() {
     }
 
 
+    /**
+     * Wait until a request in process finishes, for at most the given stall
+     * time.
+     */
     // @VisibleForTesting
     synchronized void throttleSleep(int stallTime) throws InterruptedException {
         ServerMetrics.getMetrics().REQUEST_THROTTLE_WAIT_COUNT.add(1);
-        this.wait(stallTime);
+        stalled = true;
+        try {
+            // A request finishing from now on wakes the throttler up
+            if (zks.getInProcess() >= getLimit()) {
+                this.wait(stallTime);
+            }
+        } finally {
+            stalled = false;
+        }
     }
 
     @SuppressFBWarnings(value = "NN_NAKED_NOTIFY", justification = "state change is in ZooKeeperServer.decInProgress() ")
-    public synchronized void throttleWake() {
-        this.notify();
+    public void throttleWake() {
+        // Only take the lock when the throttler is waiting for it
+        if (stalled) {
+            synchronized (this) {
+                this.notify();
+            }
+        }
+    }
+
+    /**
+     * Record the latency of a finished request, for the adaptive limit. The
+     * latency is counted from the admission of the request by the throttler:
+     * counting its wait in the throttler queue as well would make a longer
+     * queue decrease the limit, which makes the queue longer still.
+     */
+    public void recordLatency(long latency) {
+        int target = targetLatency;
+        if (target <= 0) {
+            return;
+        }
+        latencySamples.increment();
+        if (latency > target) {
+            slowRequests.increment();
+        }
+    }
+
+    /**
+     * Adjust the adaptive limit, AIMD style, once per interval having enough
+     * latencies recorded.
+     *
+     * @param now the current elapsed time, in milliseconds
+     */
+    // @VisibleForTesting
+    void adjustLimit(long now) {
+        if (!isAdaptive()) {
+            return;
+        }
+        if (now - lastAdjustTime < ADJUST_INTERVAL_MS || latencySamples.sum() < MIN_SAMPLES) {
+            return;
+        }
+        long samples = latencySamples.sumThenReset();
+        long slow = slowRequests.sumThenReset();
+        int limit = adaptiveLimit;
+        int newLimit = limit;
+        if (slow * 100 > samples) {
+            newLimit = (int) (limit * DECREASE_RATIO);
+        } else if (saturated) {
+            newLimit = limit + ADDITIVE_INCREASE;
+        }
+        newLimit = Math.max(newLimit, Math.max(minRequests, 1));
+        if (maxRequests > 0) {
+            newLimit = Math.min(newLimit, maxRequests);
+        }
+        if (newLimit < limit) {
+            ServerMetrics.getMetrics().REQUEST_THROTTLE_LIMIT_DECREASED.add(1);
+        } else if (newLimit > limit) {
+            ServerMetrics.getMetrics().REQUEST_THROTTLE_LIMIT_INCREASED.add(1);
+        }
+        LOG.debug("Request throttle limit {} -> {}, {} of {} requests slower than {} ms",
+            limit, newLimit, slow, samples, targetLatency);
+        adaptiveLimit = newLimit;
+        saturated = false;
+        lastAdjustTime = now;
     }
 
     private int drainQueue() {
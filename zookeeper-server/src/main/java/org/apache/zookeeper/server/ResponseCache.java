@@ -18,42 +18,90 @@
 
 package org.apache.zookeeper.server;
 
-import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.metrics.Counter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-@SuppressWarnings("serial")
+/**
+ * A cache of serialized responses, bounded by both its number of entries
+ * and their size in bytes.
+ * <p>
+ * The lookups do not take any lock. When the cache is full, the entries are
+ * evicted in approximate LRU order using the CLOCK algorithm: a hit marks
+ * the entry as referenced, and the eviction goes around the entries, giving
+ * a second chance to the referenced ones and evicting the others.
+ */
 public class ResponseCache {
     private static final Logger LOG = LoggerFactory.getLogger(ResponseCache.class);
 
     // Magic number chosen to be "big enough but not too big"
     public static final int DEFAULT_RESPONSE_CACHE_SIZE = 400;
     private final int cacheSize;
+    private final long maxBytes;
+    private final Supplier<Counter> evictionCounter;
+
     private static class Entry {
-        public Stat stat;
-        public byte[] data;
+        final Stat stat;
+        final byte[] data;
+        final int weight;
+        volatile boolean referenced;
+
+        Entry(String path, byte[] data, Stat stat) {
+            this.stat = stat;
+            this.data = data;
+            this.weight = path.length() + data.length;
+        }
     }
 
-    private final Map<String, Entry> cache;
+    private final ConcurrentHashMap<String, Entry> cache;
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    /** the position of the eviction, only used holding the eviction lock */
+    private Iterator<Map.Entry<String, Entry>> clockHand;
 
     public ResponseCache(int cacheSize, String requestType) {
+        this(cacheSize, 0, requestType, null);
+    }
+
+    /**
+     * @param cacheSize the maximum number of entries
+     * @param maxBytes the maximum size of the entries, their paths included,
+     *                 or 0 for no limit
+     * @param requestType the type of the responses, for logging
+     * @param evictionCounter the metric counting the evicted entries, can be
+     *                        null
+     */
+    public ResponseCache(int cacheSize, long maxBytes, String requestType, Supplier<Counter> evictionCounter) {
         this.cacheSize = cacheSize;
-        cache = Collections.synchronizedMap(new LRUCache<>(cacheSize));
-        LOG.info("{} response cache size is initialized with value {}.", requestType, cacheSize);
+        this.maxBytes = maxBytes;
+        this.evictionCounter = evictionCounter;
+        cache = new ConcurrentHashMap<>(Math.max(16, cacheSize / 4));
+        LOG.info("{} response cache size is initialized with value {} and max bytes {}.", requestType, cacheSize, maxBytes);
     }
 
     public int getCacheSize() {
         return cacheSize;
     }
 
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
     public void put(String path, byte[] data, Stat stat) {
-        Entry entry = new Entry();
-        entry.data = data;
-        entry.stat = stat;
-        cache.put(path, entry);
+        Entry entry = new Entry(path, data, stat);
+        Entry old = cache.put(path, entry);
+        bytes.addAndGet(old == null ? entry.weight : entry.weight - old.weight);
+        if (isFull()) {
+            evict();
+        }
     }
 
     public byte[] get(String key, Stat stat) {
@@ -63,9 +111,13 @@ public byte[] get(String key, Stat stat) {
         }
         if (!stat.equals(entry.stat)) {
             // The node has been modified, invalidate cache.
-            cache.remove(key);
+            remove(key, entry);
             return null;
         } else {
+            // Avoid writing the shared entry when it is already referenced
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
             return entry.data;
         }
     }
@@ -74,19 +126,73 @@ public boolean isEnabled() {
         return cacheSize > 0;
     }
 
-    private static class LRUCache<K, V> extends LinkedHashMap<K, V> {
+    // VisibleForTesting
+    boolean contains(String key) {
+        return cache.containsKey(key);
+    }
 
-        private int cacheSize;
+    // VisibleForTesting
+    int size() {
+        return cache.size();
+    }
 
-        LRUCache(int cacheSize) {
-            super(cacheSize / 4);
-            this.cacheSize = cacheSize;
-        }
+    // VisibleForTesting
+    long getBytes() {
+        return bytes.get();
+    }
 
-        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-            return size() >= cacheSize;
+    private boolean remove(String key, Entry entry) {
+        if (cache.remove(key, entry)) {
+            bytes.addAndGet(-entry.weight);
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * Whether entries have to be evicted after a put, which keeps the entry
+     * count below cacheSize, as the LRU map used to.
+     */
+    private boolean isFull() {
+        return cache.size() >= cacheSize || (maxBytes > 0 && bytes.get() > maxBytes);
+    }
 
+    /**
+     * Evict entries until the cache is within its bounds. The put which
+     * finds another eviction in progress leaves it to that one, which checks
+     * the bounds again once done, so the cache may only briefly exceed them.
+     */
+    private void evict() {
+        boolean empty = false;
+        while (!empty && isFull() && evictionLock.tryLock()) {
+            int evicted = 0;
+            try {
+                // Past one full round, evict even the referenced entries, in
+                // case the hits keep marking them
+                int secondChances = cache.size();
+                while (isFull()) {
+                    if (clockHand == null || !clockHand.hasNext()) {
+                        clockHand = cache.entrySet().iterator();
+                        if (!clockHand.hasNext()) {
+                            empty = true;
+                            break;
+                        }
+                    }
+                    Map.Entry<String, Entry> e = clockHand.next();
+                    Entry entry = e.getValue();
+                    if (entry.referenced && secondChances-- > 0) {
+                        entry.referenced = false;
+                    } else if (remove(e.getKey(), entry)) {
+                        evicted++;
+                    }
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+            if (evicted > 0 && evictionCounter != null) {
+                evictionCounter.get().add(evicted);
+            }
+        }
     }
 
 }
@@ -18,7 +18,6 @@
 
 package org.apache.zookeeper.server;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -186,17 +185,19 @@ public int sendResponse(ReplyHeader h, Record r, String tag) throws IOException
         return sendResponse(h, r, tag, null, null, -1);
     }
 
-    protected byte[] serializeRecord(Record record) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(ZooKeeperServer.intBufferStartingSizeBytes);
-        BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
-        bos.writeRecord(record, null);
-        return baos.toByteArray();
-    }
+    private static final byte[] LENGTH_PLACEHOLDER = new byte[4];
 
-    protected ByteBuffer[] serialize(ReplyHeader h, Record r, String tag,
-                                     String cacheKey, Stat stat, int opCode) throws IOException {
-        byte[] header = serializeRecord(h);
-        byte[] data = null;
+    /**
+     * Serialize a response packet, including its length prefix, in place
+     * into the given stream.
+     *
+     * @return the length of the packet, not counting its length prefix
+     */
+    int serializeResponse(ReplyHeader h, Record r, String cacheKey, Stat stat, int opCode,
+                          PacketOutputStream out) throws IOException {
+        BinaryOutputArchive archive = out.getArchive();
+        out.write(LENGTH_PLACEHOLDER);
+        archive.writeRecord(h, null);
         if (r != null) {
             ResponseCache cache = null;
             Counter cacheHit = null, cacheMiss = null;
@@ -222,37 +223,47 @@ protected ByteBuffer[] serialize(ReplyHeader h, Record r, String tag,
                 //
                 // NB: Tag is ignored both during cache lookup and serialization,
                 // since is is not used in read responses, which are being cached.
-                data = cache.get(cacheKey, stat);
+                byte[] data = cache.get(cacheKey, stat);
                 if (data == null) {
                     // Cache miss, serialize the response and put it in cache.
-                    data = serializeRecord(r);
-                    cache.put(cacheKey, data, stat);
+                    int dataStart = out.size();
+                    archive.writeRecord(r, null);
+                    cache.put(cacheKey, out.copyOf(dataStart), stat);
                     cacheMiss.add(1);
                 } else {
+                    out.write(data);
                     cacheHit.add(1);
                 }
             } else {
-                data = serializeRecord(r);
+                archive.writeRecord(r, null);
             }
         }
-        int dataLength = data == null ? 0 : data.length;
-        int packetLength = header.length + dataLength;
+        int packetLength = out.size() - LENGTH_PLACEHOLDER.length;
+        out.setLength(packetLength);
         ServerStats serverStats = serverStats();
         if (serverStats != null) {
             serverStats.updateClientResponseSize(packetLength);
         }
-        ByteBuffer lengthBuffer = ByteBuffer.allocate(4).putInt(packetLength);
-        lengthBuffer.rewind();
-
-        int bufferLen = data != null ? 3 : 2;
-        ByteBuffer[] buffers = new ByteBuffer[bufferLen];
+        return packetLength;
+    }
 
-        buffers[0] = lengthBuffer;
-        buffers[1] = ByteBuffer.wrap(header);
-        if (data != null) {
-            buffers[2] = ByteBuffer.wrap(data);
+    /**
+     * Serialize the notification of a watch event, including its length
+     * prefix, into a single buffer. The packet of a {@link NotificationEvent}
+     * is shared with the other connections it is delivered to.
+     */
+    protected ByteBuffer serializeNotification(WatchedEvent event) throws IOException {
+        byte[] packet;
+        if (event instanceof NotificationEvent) {
+            packet = ((NotificationEvent) event).getPacket();
+        } else {
+            packet = NotificationEvent.serialize(event);
+        }
+        ServerStats serverStats = serverStats();
+        if (serverStats != null) {
+            serverStats.updateClientResponseSize(packet.length - 4);
         }
-        return buffers;
+        return ByteBuffer.wrap(packet);
     }
 
     /* notify the client the session is closing and close/cleanup socket */
@@ -118,6 +118,8 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         RESPONSE_PACKET_CACHE_MISSING = metricsContext.getCounter("response_packet_cache_misses");
         RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS = metricsContext.getCounter("response_packet_get_children_cache_hits");
         RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING = metricsContext.getCounter("response_packet_get_children_cache_misses");
+        RESPONSE_PACKET_CACHE_EVICTIONS = metricsContext.getCounter("response_packet_cache_evictions");
+        RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS = metricsContext.getCounter("response_packet_get_children_cache_evictions");
 
         ENSEMBLE_AUTH_SUCCESS = metricsContext.getCounter("ensemble_auth_success");
 
@@ -156,6 +158,10 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         READS_AFTER_WRITE_IN_SESSION_QUEUE = metricsContext.getSummary("reads_after_write_in_session_queue", DetailLevel.BASIC);
         READ_ISSUED_FROM_SESSION_QUEUE = metricsContext.getSummary("reads_issued_from_session_queue", DetailLevel.BASIC);
         SESSION_QUEUES_DRAINED = metricsContext.getSummary("session_queues_drained", DetailLevel.BASIC);
+        /*
+         * Number of reads in the queue of a tenant, with fair read queuing.
+         */
+        READS_IN_TENANT_QUEUE = metricsContext.getSummary("reads_in_tenant_queue", DetailLevel.BASIC);
 
         TIME_WAITING_EMPTY_POOL_IN_COMMIT_PROCESSOR_READ = metricsContext.getSummary("time_waiting_empty_pool_in_commit_processor_read_ms", DetailLevel.BASIC);
         WRITE_BATCH_TIME_IN_COMMIT_PROCESSOR = metricsContext.getSummary("write_batch_time_in_commit_processor", DetailLevel.BASIC);
@@ -168,6 +174,10 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         COMMITS_QUEUED = metricsContext.getCounter("request_commit_queued");
         READS_ISSUED_IN_COMMIT_PROC = metricsContext.getSummary("read_commit_proc_issued", DetailLevel.BASIC);
         WRITES_ISSUED_IN_COMMIT_PROC = metricsContext.getSummary("write_commit_proc_issued", DetailLevel.BASIC);
+        /**
+         * Number of txns applied ahead in parallel at a time, with parallel apply.
+         */
+        WRITES_APPLIED_AHEAD_IN_COMMIT_PROC = metricsContext.getSummary("write_commit_proc_applied_ahead", DetailLevel.BASIC);
 
         THROTTLED_OPS = metricsContext.getCounter("throttled_ops");
 
@@ -212,12 +222,17 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         COMMIT_PROPAGATION_LATENCY = metricsContext.getSummary("commit_propagation_latency", DetailLevel.ADVANCED);
         LEARNER_PROPOSAL_RECEIVED_COUNT = metricsContext.getCounter("learner_proposal_received_count");
         LEARNER_COMMIT_RECEIVED_COUNT = metricsContext.getCounter("learner_commit_received_count");
+        LEARNER_RECEIVE_QUEUE_SIZE = metricsContext.getSummary("learner_receive_queue_size", DetailLevel.BASIC);
+        LEARNER_RECEIVE_QUEUE_TIME = metricsContext.getSummary("learner_receive_queue_time_ms", DetailLevel.ADVANCED);
+        LEARNER_RECEIVE_DECODE_TIME = metricsContext.getSummary("learner_receive_decode_time_ms", DetailLevel.ADVANCED);
+        LEARNER_SEND_QUEUE_SIZE = metricsContext.getSummary("learner_send_queue_size", DetailLevel.BASIC);
 
         /**
          * Learner handler quorum packet metrics.
          */
         LEARNER_HANDLER_QP_SIZE = metricsContext.getSummarySet("learner_handler_qp_size", DetailLevel.BASIC);
         LEARNER_HANDLER_QP_TIME = metricsContext.getSummarySet("learner_handler_qp_time_ms", DetailLevel.ADVANCED);
+        PROPOSALS_PER_BATCH = metricsContext.getSummary("learner_handler_proposals_per_batch", DetailLevel.BASIC);
 
         STARTUP_TXNS_LOADED = metricsContext.getSummary("startup_txns_loaded", DetailLevel.BASIC);
         STARTUP_TXNS_LOAD_TIME = metricsContext.getSummary("startup_txns_load_time", DetailLevel.BASIC);
@@ -242,6 +257,8 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         STALE_REPLIES = metricsContext.getCounter("stale_replies");
         REQUEST_THROTTLE_QUEUE_TIME = metricsContext.getSummary("request_throttle_queue_time_ms", DetailLevel.ADVANCED);
         REQUEST_THROTTLE_WAIT_COUNT = metricsContext.getCounter("request_throttle_wait_count");
+        REQUEST_THROTTLE_LIMIT_INCREASED = metricsContext.getCounter("request_throttle_limit_increased");
+        REQUEST_THROTTLE_LIMIT_DECREASED = metricsContext.getCounter("request_throttle_limit_decreased");
         LARGE_REQUESTS_REJECTED = metricsContext.getCounter("large_requests_rejected");
 
         NETTY_QUEUED_BUFFER = metricsContext.getSummary("netty_queued_buffer_capacity", DetailLevel.BASIC);
@@ -378,6 +395,10 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Summary COMMIT_PROPAGATION_LATENCY;
     public final Counter LEARNER_PROPOSAL_RECEIVED_COUNT;
     public final Counter LEARNER_COMMIT_RECEIVED_COUNT;
+    public final Summary LEARNER_RECEIVE_QUEUE_SIZE;
+    public final Summary LEARNER_RECEIVE_QUEUE_TIME;
+    public final Summary LEARNER_RECEIVE_DECODE_TIME;
+    public final Summary LEARNER_SEND_QUEUE_SIZE;
 
     public final Summary STARTUP_TXNS_LOADED;
     public final Summary STARTUP_TXNS_LOAD_TIME;
@@ -420,12 +441,15 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Counter RESPONSE_PACKET_CACHE_MISSING;
     public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_HITS;
     public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_MISSING;
+    public final Counter RESPONSE_PACKET_CACHE_EVICTIONS;
+    public final Counter RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS;
 
     /**
      * Learner handler quorum packet metrics.
      */
     public final SummarySet LEARNER_HANDLER_QP_SIZE;
     public final SummarySet LEARNER_HANDLER_QP_TIME;
+    public final Summary PROPOSALS_PER_BATCH;
 
     /*
      * Number of requests that are in the session queue.
@@ -438,6 +462,10 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Summary READS_AFTER_WRITE_IN_SESSION_QUEUE;
     public final Summary READ_ISSUED_FROM_SESSION_QUEUE;
     public final Summary SESSION_QUEUES_DRAINED;
+    /*
+     * Number of reads in the queue of a tenant, with fair read queuing.
+     */
+    public final Summary READS_IN_TENANT_QUEUE;
 
     public final Summary TIME_WAITING_EMPTY_POOL_IN_COMMIT_PROCESSOR_READ;
     public final Summary WRITE_BATCH_TIME_IN_COMMIT_PROCESSOR;
@@ -450,6 +478,7 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Counter COMMITS_QUEUED;
     public final Summary READS_ISSUED_IN_COMMIT_PROC;
     public final Summary WRITES_ISSUED_IN_COMMIT_PROC;
+    public final Summary WRITES_APPLIED_AHEAD_IN_COMMIT_PROC;
 
     // Request op throttling related
     public final Counter THROTTLED_OPS;
@@ -510,6 +539,8 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Counter STALE_REPLIES;
     public final Summary REQUEST_THROTTLE_QUEUE_TIME;
     public final Counter REQUEST_THROTTLE_WAIT_COUNT;
+    public final Counter REQUEST_THROTTLE_LIMIT_INCREASED;
+    public final Counter REQUEST_THROTTLE_LIMIT_DECREASED;
     public final Counter LARGE_REQUESTS_REJECTED;
 
     public final Summary NETTY_QUEUED_BUFFER;
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Serializes the packets of a thread one after the other into a slab, a
+ * large array each packet gets a slice of, instead of an array of its own.
+ * Once a slab is full, the thread moves on to a new one, and the old slab is
+ * collected once all its packets have been sent.
+ * <p>
+ * A packet queued behind others, for a client slow to read its responses,
+ * is copied out of the slab instead, see {@link #finishPacket(boolean)}, so
+ * that a connection pins about one slab rather than one per queued packet.
+ * <p>
+ * The slabs are on the heap: the NIO connections copy the packets into the
+ * direct buffer of their selector thread to write them anyway.
+ */
+class SlabOutputStream extends PacketOutputStream {
+
+    static final int SLAB_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<SlabOutputStream> STREAMS = ThreadLocal.withInitial(SlabOutputStream::new);
+
+    private byte[] slab = new byte[SLAB_SIZE];
+    /** the offset of the current packet in the slab */
+    private int start;
+    /** the offset of the end of the current packet in the slab */
+    private int end;
+
+    /**
+     * The stream of the current thread.
+     */
+    static SlabOutputStream get() {
+        return STREAMS.get();
+    }
+
+    /**
+     * Start a new packet, discarding the current one if it has not been
+     * finished.
+     */
+    void startPacket() {
+        end = start;
+    }
+
+    /**
+     * Finish the current packet.
+     *
+     * @return the buffer of the packet, which is not written to anymore
+     */
+    ByteBuffer finishPacket() {
+        return finishPacket(false);
+    }
+
+    /**
+     * Finish the current packet.
+     *
+     * @param copy whether to copy the packet into an array of its own, which
+     *             lets the next packet reuse its space in the slab
+     * @return the buffer of the packet, which is not written to anymore
+     */
+    ByteBuffer finishPacket(boolean copy) {
+        if (copy) {
+            ByteBuffer packet = ByteBuffer.wrap(Arrays.copyOfRange(slab, start, end));
+            if (slab.length > SLAB_SIZE) {
+                slab = new byte[SLAB_SIZE];
+                start = 0;
+            }
+            end = start;
+            return packet;
+        }
+        ByteBuffer packet = ByteBuffer.wrap(slab, start, end - start).slice();
+        if (slab.length > SLAB_SIZE) {
+            // Do not keep the slab grown for a large packet
+            slab = new byte[SLAB_SIZE];
+            end = 0;
+        }
+        start = end;
+        return packet;
+    }
+
+    private void ensureCapacity(int len) {
+        if (slab.length - end >= len) {
+            return;
+        }
+        // Move the current packet to a new slab, as the other packets of the
+        // slab may still be being sent
+        int size = end - start;
+        int capacity = Math.max(SLAB_SIZE, (size + len) * 2);
+        slab = Arrays.copyOfRange(slab, start, start + capacity);
+        start = 0;
+        end = size;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        slab[end++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, slab, end, len);
+        end += len;
+    }
+
+    @Override
+    int size() {
+        return end - start;
+    }
+
+    @Override
+    void setLength(int length) {
+        slab[start] = (byte) (length >>> 24);
+        slab[start + 1] = (byte) (length >>> 16);
+        slab[start + 2] = (byte) (length >>> 8);
+        slab[start + 3] = (byte) length;
+    }
+
+    @Override
+    byte[] copyOf(int from) {
+        return Arrays.copyOfRange(slab, start + from, end);
+    }
+
+}
@@ -21,13 +21,18 @@
 import java.io.Flushable;
 import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.zookeeper.common.Time;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +53,11 @@
  *             It never send ack back to the leader, so the nextProcessor will
  *             be null. This change the semantic of txnlog on the observer
  *             since it only contains committed txns.
+ *
+ * With group commit enabled, the log is synced by a separate thread. While a
+ * batch of requests is being synced, this thread keeps appending the next
+ * batch to the log, and every batch is passed to the next RequestProcessor
+ * once its sync completes.
  */
 public class SyncRequestProcessor extends ZooKeeperCriticalThread implements RequestProcessor {
 
@@ -55,6 +65,9 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
 
     private static final Request REQUEST_OF_DEATH = Request.requestOfDeath;
 
+    /** the bound of a group commit batch when maxBatchSize is not set */
+    private static final int DEFAULT_GROUP_COMMIT_BATCH_SIZE = 1000;
+
     /** The number of log entries to log before starting a snapshot */
     private static int snapCount = ZooKeeperServer.getSnapCount();
 
@@ -85,11 +98,18 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
     private final Queue<Request> toFlush;
     private long lastFlushTime;
 
+    /**
+     * Syncs the log in the background when group commit is enabled,
+     * null otherwise.
+     */
+    private final GroupCommitter groupCommitter;
+
     public SyncRequestProcessor(ZooKeeperServer zks, RequestProcessor nextProcessor) {
         super("SyncThread:" + zks.getServerId(), zks.getZooKeeperServerListener());
         this.zks = zks;
         this.nextProcessor = nextProcessor;
         this.toFlush = new ArrayDeque<>(zks.getMaxBatchSize());
+        this.groupCommitter = zks.isGroupCommit() ? new GroupCommitter() : null;
     }
 
     /**
@@ -159,6 +179,9 @@ public void run() {
             // in the ensemble take a snapshot at the same time
             resetSnapshotStats();
             lastFlushTime = Time.currentElapsedTime();
+            if (groupCommitter != null) {
+                groupCommitter.start();
+            }
             while (true) {
                 ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_SIZE.add(queuedRequests.size());
 
@@ -200,7 +223,7 @@ public void run() {
                             }.start();
                         }
                     }
-                } else if (toFlush.isEmpty()) {
+                } else if (toFlush.isEmpty() && (groupCommitter == null || groupCommitter.isIdle())) {
                     // optimization for read heavy workloads
                     // iff this is a read or a throttled request(which doesn't need to be written to the disk),
                     // and there are no pending flushes (writes), then just pass this to the next processor
@@ -212,9 +235,14 @@ public void run() {
                     }
                     continue;
                 }
-                toFlush.add(si);
-                if (shouldFlush()) {
-                    flush();
+                if (groupCommitter != null) {
+                    // released in order with the writes synced before it
+                    groupCommitter.add(si);
+                } else {
+                    toFlush.add(si);
+                    if (shouldFlush()) {
+                        flush();
+                    }
                 }
                 ServerMetrics.getMetrics().SYNC_PROCESS_TIME.add(Time.currentElapsedTime() - startProcessTime);
             }
@@ -235,20 +263,26 @@ private void flush() throws IOException, RequestProcessorException {
         zks.getZKDatabase().commit();
         ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(Time.currentElapsedTime() - flushStartTime);
 
+        release(this.toFlush);
+        this.toFlush.clear();
+        lastFlushTime = Time.currentElapsedTime();
+    }
+
+    /**
+     * Pass the requests whose log has been synced to the next processor.
+     */
+    private void release(Collection<Request> requests) throws IOException, RequestProcessorException {
         if (this.nextProcessor == null) {
-            this.toFlush.clear();
-        } else {
-            while (!this.toFlush.isEmpty()) {
-                final Request i = this.toFlush.remove();
-                long latency = Time.currentElapsedTime() - i.syncQueueStartTime;
-                ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_AND_FLUSH_TIME.add(latency);
-                this.nextProcessor.processRequest(i);
-            }
-            if (this.nextProcessor instanceof Flushable) {
-                ((Flushable) this.nextProcessor).flush();
-            }
+            return;
+        }
+        for (Request i : requests) {
+            long latency = Time.currentElapsedTime() - i.syncQueueStartTime;
+            ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_AND_FLUSH_TIME.add(latency);
+            this.nextProcessor.processRequest(i);
+        }
+        if (this.nextProcessor instanceof Flushable) {
+            ((Flushable) this.nextProcessor).flush();
         }
-        lastFlushTime = Time.currentElapsedTime();
     }
 
     public void shutdown() {
@@ -257,6 +291,10 @@ public void shutdown() {
         try {
             this.join();
             this.flush();
+            if (groupCommitter != null && groupCommitter.isAlive()) {
+                groupCommitter.add(REQUEST_OF_DEATH);
+                groupCommitter.join();
+            }
         } catch (InterruptedException e) {
             LOG.warn("Interrupted while wating for {} to finish", this);
             Thread.currentThread().interrupt();
@@ -278,4 +316,92 @@ public void processRequest(final Request request) {
         ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUED.add(1);
     }
 
+    /**
+     * Syncs the transaction log when group commit is enabled. Each round
+     * takes the requests appended so far, writes out the log and syncs it,
+     * then releases those requests. The requests appended meanwhile form
+     * the next batch, which is bounded by maxBatchSize: when the sync falls
+     * behind, the sync thread blocks instead of appending more.
+     */
+    private class GroupCommitter extends ZooKeeperCriticalThread {
+
+        private final BlockingQueue<Request> appended;
+
+        /** the number of requests added and not released yet */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        GroupCommitter() {
+            super("SyncCommitThread:" + zks.getServerId(), zks.getZooKeeperServerListener());
+            int maxBatchSize = zks.getMaxBatchSize();
+            appended = new ArrayBlockingQueue<>(maxBatchSize > 0 ? maxBatchSize : DEFAULT_GROUP_COMMIT_BATCH_SIZE);
+        }
+
+        /**
+         * Whether every request added so far has been released, so that a
+         * request which needs no sync can be passed on right away without
+         * overtaking any of them.
+         */
+        boolean isIdle() {
+            return pending.get() == 0;
+        }
+
+        void add(Request request) throws IOException, InterruptedException {
+            pending.incrementAndGet();
+            while (!appended.offer(request, 100, TimeUnit.MILLISECONDS)) {
+                if (!isAlive()) {
+                    throw new IOException(getName() + " exited");
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Request> batch = new ArrayList<>();
+            try {
+                boolean stopping = false;
+                while (!stopping) {
+                    batch.add(appended.take());
+                    int maxBatchSize = zks.getMaxBatchSize();
+                    appended.drainTo(batch, maxBatchSize > 0 ? maxBatchSize - 1 : Integer.MAX_VALUE);
+                    if (batch.get(batch.size() - 1) == REQUEST_OF_DEATH) {
+                        batch.remove(batch.size() - 1);
+                        stopping = true;
+                    }
+                    commit(batch);
+                    batch.clear();
+                }
+            } catch (Throwable t) {
+                handleException(this.getName(), t);
+            }
+            LOG.info("SyncCommitThread exited!");
+        }
+
+        private void commit(List<Request> batch) throws IOException, RequestProcessorException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            if (needsSync(batch)) {
+                ServerMetrics.getMetrics().BATCH_SIZE.add(batch.size());
+
+                long flushStartTime = Time.currentElapsedTime();
+                // Appends only wait for the write out of the buffered log,
+                // not for the sync.
+                zks.getZKDatabase().startCommit().complete();
+                ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(Time.currentElapsedTime() - flushStartTime);
+            }
+            release(batch);
+            pending.addAndGet(-batch.size());
+        }
+
+        private boolean needsSync(List<Request> batch) {
+            for (Request request : batch) {
+                if (request.getHdr() != null && !request.isThrottled()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
 }
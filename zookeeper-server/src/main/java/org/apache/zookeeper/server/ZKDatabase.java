@@ -53,6 +53,7 @@
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog.PlayBackListener;
 import org.apache.zookeeper.server.persistence.SnapStream;
+import org.apache.zookeeper.server.persistence.TxnLog;
 import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
 import org.apache.zookeeper.server.quorum.Leader;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
@@ -364,6 +365,14 @@ public long calculateTxnLogSizeLimit() {
         return (long) (snapSize * snapshotSizeFactor);
     }
 
+    /**
+     * @return the most recent valid snapshot file, or null if there is none
+     * @throws IOException
+     */
+    public File findMostRecentSnapshot() throws IOException {
+        return snapLog.findMostRecentSnapshot();
+    }
+
     /**
      * Get proposals from txnlog. Only packet part of proposal is populated.
      *
@@ -484,6 +493,20 @@ public ProcessTxnResult processTxn(TxnHeader hdr, Record txn, TxnDigest digest)
         return dataTree.processTxn(hdr, txn, digest);
     }
 
+    /**
+     * apply the txn on the data ahead of its turn, see {@link DataTree#applyTxnAhead}
+     */
+    public DataTree.AppliedTxn applyTxnAhead(TxnHeader hdr, Record txn, TxnDigest digest, boolean last) {
+        return dataTree.applyTxnAhead(hdr, txn, digest, last);
+    }
+
+    /**
+     * complete a txn applied ahead, see {@link DataTree#completeTxn}
+     */
+    public ProcessTxnResult completeTxn(DataTree.AppliedTxn applied) {
+        return dataTree.completeTxn(applied);
+    }
+
     /**
      * stat the path
      * @param path the path for which stat is to be done
@@ -567,6 +590,19 @@ public List<String> getChildren(String path, Stat stat, Watcher watcher) throws
         return dataTree.getChildren(path, stat, watcher);
     }
 
+    /**
+     * get a page of the children of a node, in lexicographic order
+     * @param path the path of the node
+     * @param after the child the page starts after, or null for the first page
+     * @param maxReturned the maximum number of children returned
+     * @param stat the stat of the node
+     * @return the children of the page
+     * @throws KeeperException.NoNodeException
+     */
+    public List<String> getChildrenPage(String path, String after, int maxReturned, Stat stat) throws KeeperException.NoNodeException {
+        return dataTree.getChildrenPage(path, after, maxReturned, stat);
+    }
+
     /*
      * get all sub-children number of this node
      * */
@@ -632,6 +668,28 @@ public void deserializeSnapshot(InputArchive ia) throws IOException {
      * @throws IOException
      */
     public void deserializeSnapshot(final InputArchive ia, final CheckedInputStream is) throws IOException {
+        deserializeSnapshot(ia, is, 0);
+
+        // compare the digest to find inconsistency
+        final DataTree dataTree = getDataTree();
+        if (dataTree.getDigestFromLoadedSnapshot() != null) {
+            dataTree.compareSnapshotDigests(dataTree.lastProcessedZxid);
+        }
+    }
+
+    /**
+     * Deserialize a snapshot that contains FileHeader from an input archive,
+     * such as a snapshot file sent by the leader. The snapshot may be fuzzy,
+     * so its digest is only compared once the txns which follow it have been
+     * applied up to the zxid of the digest.
+     *
+     * @param ia the input archive to deserialize from
+     * @param is the CheckInputStream to check integrity
+     * @param snapZxid the zxid of the snapshot file
+     *
+     * @throws IOException
+     */
+    public void deserializeSnapshot(final InputArchive ia, final CheckedInputStream is, final long snapZxid) throws IOException {
         clear();
 
         // deserialize data tree
@@ -640,7 +698,7 @@ public void deserializeSnapshot(final InputArchive ia, final CheckedInputStream
         SnapStream.checkSealIntegrity(is, ia);
 
         // deserialize digest and check integrity
-        if (dataTree.deserializeZxidDigest(ia, 0)) {
+        if (dataTree.deserializeZxidDigest(ia, snapZxid)) {
             SnapStream.checkSealIntegrity(is, ia);
         }
 
@@ -649,11 +707,6 @@ public void deserializeSnapshot(final InputArchive ia, final CheckedInputStream
             SnapStream.checkSealIntegrity(is, ia);
         }
 
-        // compare the digest to find inconsistency
-        if (dataTree.getDigestFromLoadedSnapshot() != null) {
-            dataTree.compareSnapshotDigests(dataTree.lastProcessedZxid);
-        }
-
         initialized = true;
     }
 
@@ -697,6 +750,15 @@ public void commit() throws IOException {
         this.snapLog.commit();
     }
 
+    /**
+     * start a commit to the underlying transaction log
+     * @return the commit to complete
+     * @throws IOException
+     */
+    public TxnLog.PendingCommit startCommit() throws IOException {
+        return this.snapLog.startCommit();
+    }
+
     /**
      * close this database. free the resources
      * @throws IOException
@@ -19,7 +19,6 @@
 package org.apache.zookeeper.server;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -40,7 +39,6 @@
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
-import java.util.zip.Adler32;
 import java.util.zip.CheckedInputStream;
 import javax.security.sasl.SaslException;
 import org.apache.jute.BinaryInputArchive;
@@ -84,6 +82,7 @@
 import org.apache.zookeeper.server.auth.ProviderRegistry;
 import org.apache.zookeeper.server.auth.ServerAuthenticationProvider;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.persistence.SnapStream;
 import org.apache.zookeeper.server.quorum.QuorumPeerConfig;
 import org.apache.zookeeper.server.quorum.ReadOnlyZooKeeperServer;
 import org.apache.zookeeper.server.util.JvmPauseMonitor;
@@ -126,6 +125,8 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
     public static final String ALLOW_SASL_FAILED_CLIENTS = "zookeeper.allowSaslFailedClients";
     public static final String ZOOKEEPER_DIGEST_ENABLED = "zookeeper.digest.enabled";
     private static boolean digestEnabled;
+    public static final String ZOOKEEPER_SUBTREE_DIGEST_ENABLED = "zookeeper.digest.subtree.enabled";
+    private static boolean subtreeDigestEnabled;
 
     public static final String ZOOKEEPER_SERIALIZE_LAST_PROCESSED_ZXID_ENABLED = "zookeeper.serializeLastProcessedZxid.enabled";
     private static boolean serializeLastProcessedZxidEnabled;
@@ -161,6 +162,9 @@ public class ZooKeeperServer implements SessionExpirer, ServerStats.Provider {
         digestEnabled = Boolean.parseBoolean(System.getProperty(ZOOKEEPER_DIGEST_ENABLED, "true"));
         LOG.info("{} = {}", ZOOKEEPER_DIGEST_ENABLED, digestEnabled);
 
+        subtreeDigestEnabled = Boolean.getBoolean(ZOOKEEPER_SUBTREE_DIGEST_ENABLED);
+        LOG.info("{} = {}", ZOOKEEPER_SUBTREE_DIGEST_ENABLED, subtreeDigestEnabled);
+
         closeSessionTxnEnabled = Boolean.parseBoolean(
                 System.getProperty(CLOSE_SESSION_TXN_ENABLED, "true"));
         LOG.info("{} = {}", CLOSE_SESSION_TXN_ENABLED, closeSessionTxnEnabled);
@@ -257,6 +261,8 @@ protected enum State {
     private static volatile long maxWriteQueuePollTime;
     private static final String MAX_BATCH_SIZE = "zookeeper.maxBatchSize";
     private static volatile int maxBatchSize;
+    private static final String GROUP_COMMIT = "zookeeper.groupCommit";
+    private static volatile boolean groupCommit;
 
     /**
      * Starting size of read and write ByteArroyOuputBuffers. Default is 32 bytes.
@@ -268,12 +274,15 @@ protected enum State {
 
     public static final String GET_DATA_RESPONSE_CACHE_SIZE = "zookeeper.maxResponseCacheSize";
     public static final String GET_CHILDREN_RESPONSE_CACHE_SIZE = "zookeeper.maxGetChildrenResponseCacheSize";
+    public static final String GET_DATA_RESPONSE_CACHE_BYTES = "zookeeper.maxResponseCacheBytes";
+    public static final String GET_CHILDREN_RESPONSE_CACHE_BYTES = "zookeeper.maxGetChildrenResponseCacheBytes";
 
     static {
         long configuredFlushDelay = Long.getLong(FLUSH_DELAY, 0);
         setFlushDelay(configuredFlushDelay);
         setMaxWriteQueuePollTime(Long.getLong(MAX_WRITE_QUEUE_POLL_SIZE, configuredFlushDelay / 3));
         setMaxBatchSize(Integer.getInteger(MAX_BATCH_SIZE, 1000));
+        setGroupCommit(Boolean.getBoolean(GROUP_COMMIT));
 
         intBufferStartingSizeBytes = Integer.getInteger(INT_BUFFER_STARTING_SIZE_BYTES, DEFAULT_STARTING_BUFFER_SIZE);
 
@@ -370,11 +379,15 @@ public ZooKeeperServer(FileTxnSnapLog txnLogFactory, int tickTime, int minSessio
 
         readResponseCache = new ResponseCache(Integer.getInteger(
             GET_DATA_RESPONSE_CACHE_SIZE,
-            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE), "getData");
+            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE),
+            Long.getLong(GET_DATA_RESPONSE_CACHE_BYTES, 0), "getData",
+            () -> ServerMetrics.getMetrics().RESPONSE_PACKET_CACHE_EVICTIONS);
 
         getChildrenResponseCache = new ResponseCache(Integer.getInteger(
             GET_CHILDREN_RESPONSE_CACHE_SIZE,
-            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE), "getChildren");
+            ResponseCache.DEFAULT_RESPONSE_CACHE_SIZE),
+            Long.getLong(GET_CHILDREN_RESPONSE_CACHE_BYTES, 0), "getChildren",
+            () -> ServerMetrics.getMetrics().RESPONSE_PACKET_GET_CHILDREN_CACHE_EVICTIONS);
 
         this.initialConfig = initialConfig;
 
@@ -611,7 +624,7 @@ public synchronized long restoreFromSnapshot(final InputStream inputStream) thro
 
         // restore to a new zkDatabase
         final ZKDatabase newZKDatabase = new ZKDatabase(this.txnLogFactory);
-        final CheckedInputStream cis = new CheckedInputStream(new BufferedInputStream(inputStream), new Adler32());
+        final CheckedInputStream cis = SnapStream.getCheckedInputStream(inputStream);
         final InputArchive ia = BinaryInputArchive.getArchive(cis);
         newZKDatabase.deserializeSnapshot(ia, cis);
         LOG.info("Restored to a new database. lastProcessedZxid={}, nodeCount={}, sessionCount={}",
@@ -1024,6 +1037,15 @@ public int getInProcess() {
         return requestsInProcess.get();
     }
 
+    /**
+     * The number of outstanding requests currently allowed by the request
+     * throttler, or 0 when it does not throttle.
+     */
+    public int getRequestThrottleLimit() {
+        RequestThrottler throttler = requestThrottler;
+        return throttler == null ? 0 : throttler.getLimit();
+    }
+
     public int getInflight() {
         return requestThrottleInflight();
     }
@@ -1613,6 +1635,15 @@ static void setMaxBatchSize(int size) {
         maxBatchSize = size;
     }
 
+    boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    static void setGroupCommit(boolean enabled) {
+        LOG.info("{} = {}", GROUP_COMMIT, enabled);
+        groupCommit = enabled;
+    }
+
     private void initLargeRequestThrottlingSettings() {
         setLargeRequestMaxBytes(Integer.getInteger("zookeeper.largeRequestMaxBytes", largeRequestMaxBytes));
         setLargeRequestThreshold(Integer.getInteger("zookeeper.largeRequestThreshold", -1));
@@ -1690,6 +1721,9 @@ public void requestFinished(Request request) {
         if (largeRequestLength != -1) {
             currentLargeRequestBytes.addAndGet(-largeRequestLength);
         }
+        if (requestThrottler != null && request.requestThrottleAdmitTime >= 0) {
+            requestThrottler.recordLatency(Time.currentElapsedTime() - request.requestThrottleAdmitTime);
+        }
     }
 
     public void processPacket(ServerCnxn cnxn, RequestHeader h, RequestRecord request) throws IOException {
@@ -1874,7 +1908,10 @@ public ProcessTxnResult processTxn(Request request) {
             return new ProcessTxnResult();
         }
         synchronized (outstandingChanges) {
-            ProcessTxnResult rc = processTxnInDB(hdr, request.getTxn(), request.getTxnDigest());
+            DataTree.AppliedTxn appliedTxn = request.getAppliedTxn();
+            ProcessTxnResult rc = appliedTxn != null
+                ? getZKDatabase().completeTxn(appliedTxn)
+                : processTxnInDB(hdr, request.getTxn(), request.getTxnDigest());
 
             // request.hdr is set for write requests, which are the only ones
             // that add to outstandingChanges.
@@ -1998,6 +2035,7 @@ protected void registerMetrics() {
         rootContext.registerGauge("min_client_response_size", stats.getClientResponseStats()::getMinBufferSize);
 
         rootContext.registerGauge("outstanding_tls_handshake", this::getOutstandingHandshakeNum);
+        rootContext.registerGauge("request_throttle_limit", this::getRequestThrottleLimit);
         rootContext.registerGauge("auth_failed_count", stats::getAuthFailedCount);
         rootContext.registerGauge("non_mtls_remote_conn_count", stats::getNonMTLSRemoteConnCount);
         rootContext.registerGauge("non_mtls_local_conn_count", stats::getNonMTLSLocalConnCount);
@@ -2045,6 +2083,7 @@ protected void unregisterMetrics() {
         rootContext.unregisterGauge("max_client_response_size");
         rootContext.unregisterGauge("min_client_response_size");
 
+        rootContext.unregisterGauge("request_throttle_limit");
         rootContext.unregisterGauge("auth_failed_count");
         rootContext.unregisterGauge("non_mtls_remote_conn_count");
         rootContext.unregisterGauge("non_mtls_local_conn_count");
@@ -2242,6 +2281,19 @@ public static void setDigestEnabled(boolean digestEnabled) {
         ZooKeeperServer.digestEnabled = digestEnabled;
     }
 
+    /**
+     * Whether the digest of every subtree is maintained along with the digest
+     * of the tree, see {@link DataTree#getSubtreeDigest(String)}.
+     */
+    public static boolean isSubtreeDigestEnabled() {
+        return digestEnabled && subtreeDigestEnabled;
+    }
+
+    public static void setSubtreeDigestEnabled(boolean subtreeDigestEnabled) {
+        LOG.info("{} = {}", ZOOKEEPER_SUBTREE_DIGEST_ENABLED, subtreeDigestEnabled);
+        ZooKeeperServer.subtreeDigestEnabled = subtreeDigestEnabled;
+    }
+
     public static boolean isSerializeLastProcessedZxidEnabled() {
         return serializeLastProcessedZxidEnabled;
     }
@@ -369,6 +369,26 @@ public void setRequestThrottleStallTime(int time) {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    public int getRequestThrottleTargetLatency() {
+        return RequestThrottler.getTargetLatency();
+    }
+
+    public void setRequestThrottleTargetLatency(int latency) {
+        RequestThrottler.setTargetLatency(latency);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    public int getRequestThrottleMinRequests() {
+        return RequestThrottler.getMinRequests();
+    }
+
+    public void setRequestThrottleMinRequests(int requests) {
+        RequestThrottler.setMinRequests(requests);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
     public boolean getRequestThrottleDropStale() {
         return RequestThrottler.getDropStaleRequests();
     }
@@ -145,6 +145,12 @@ public interface ZooKeeperServerMXBean {
     int getRequestThrottleStallTime();
     void setRequestThrottleStallTime(int time);
 
+    int getRequestThrottleTargetLatency();
+    void setRequestThrottleTargetLatency(int latency);
+
+    int getRequestThrottleMinRequests();
+    void setRequestThrottleMinRequests(int requests);
+
     boolean getRequestThrottleDropStale();
     void setRequestThrottleDropStale(boolean drop);
 
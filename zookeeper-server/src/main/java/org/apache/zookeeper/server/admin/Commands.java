@@ -277,6 +277,7 @@ public static Command getCommand(String cmdName) {
         registerCommand(new SrvrCommand());
         registerCommand(new StatCommand());
         registerCommand(new StatResetCommand());
+        registerCommand(new SubtreeDigestCommand());
         registerCommand(new SyncedObserverConsCommand());
         registerCommand(new SystemPropertiesCommand());
         registerCommand(new VotingViewCommand());
@@ -895,6 +896,49 @@ public CommandResponse runGet(ZooKeeperServer zkServer, Map<String, String> kwar
 
     }
 
+    /**
+     * The digests of the subtree of a node and of the subtrees of its
+     * children, to find where the trees of two servers diverged by comparing
+     * them from the root down. Optional argument:
+     *   - "path": String, the path of the node, the root by default
+     * Returned map contains:
+     *   - "path": String
+     *   - "zxid": Long, the last zxid applied to the tree
+     *   - "digest": Long
+     *   - "children": Map&lt;String, Long&gt;, the digests by child name
+     */
+    public static class SubtreeDigestCommand extends GetCommand {
+
+        public SubtreeDigestCommand() {
+            super(Arrays.asList("subtree_digest", "sdig"));
+        }
+
+        @Override
+        public CommandResponse runGet(ZooKeeperServer zkServer, Map<String, String> kwargs) {
+            CommandResponse response = initializeResponse();
+            if (!ZooKeeperServer.isSubtreeDigestEnabled()) {
+                response.put("error", "subtree digests are disabled, see " + ZooKeeperServer.ZOOKEEPER_SUBTREE_DIGEST_ENABLED);
+                return response;
+            }
+            String path = kwargs.getOrDefault("path", "/");
+            // Read the zxid first, the digests may include later txns
+            long zxid = zkServer.getZKDatabase().getDataTreeLastProcessedZxid();
+            DataTree dataTree = zkServer.getZKDatabase().getDataTree();
+            Long digest = dataTree.getSubtreeDigest(path);
+            Map<String, Long> children = dataTree.getChildrenSubtreeDigests(path);
+            if (digest == null || children == null) {
+                response.put("error", "no node " + path);
+                return response;
+            }
+            response.put("path", path);
+            response.put("zxid", zxid);
+            response.put("digest", digest);
+            response.put("children", children);
+            return response;
+        }
+
+    }
+
     /**
      * Information on observer connections to server. Returned Map contains:
      *   - "synced_observers": Integer (leader/follower only)
@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An OutputStream which splits its content into fixed size blocks and
+ * compresses every block into a self-contained frame, so that blocks can be
+ * compressed concurrently on a pool of worker threads. The frames are
+ * written in order, and a standard decompressor reading concatenated frames
+ * restores the original content.
+ * <p>
+ * At most {@code maxPending} blocks are in flight at any time, which bounds
+ * the memory used by the stream.
+ */
+class BlockCompressedOutputStream extends OutputStream {
+
+    /**
+     * Compresses a single block into a self-contained frame.
+     */
+    interface BlockCompressor {
+
+        byte[] compress(byte[] block, int length) throws IOException;
+
+    }
+
+    private final OutputStream out;
+    private final BlockCompressor compressor;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int maxPending;
+
+    private final ArrayDeque<PendingBlock> pending = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> freeBlocks = new ArrayDeque<>();
+
+    private byte[] block;
+    private int count;
+    private boolean closed;
+
+    /**
+     * @param out the stream the compressed frames are written to
+     * @param compressor the compressor of a single block
+     * @param executor the pool compressing the blocks, or null to compress
+     *                 them on the calling thread
+     * @param blockSize the size of the uncompressed blocks
+     * @param maxPending the maximum number of blocks being compressed
+     */
+    BlockCompressedOutputStream(
+        OutputStream out,
+        BlockCompressor compressor,
+        ExecutorService executor,
+        int blockSize,
+        int maxPending) {
+        this.out = out;
+        this.compressor = compressor;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.maxPending = Math.max(1, maxPending);
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == blockSize) {
+            submitBlock();
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == blockSize) {
+                submitBlock();
+            }
+            int n = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Compress the buffered content as a (possibly short) block and write
+     * out every pending frame.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeFrame(pending.poll());
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            for (PendingBlock p : pending) {
+                p.future.cancel(false);
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] full = block;
+        final int length = count;
+        block = freeBlocks.isEmpty() ? new byte[blockSize] : freeBlocks.poll();
+        count = 0;
+        if (executor == null) {
+            out.write(compressor.compress(full, length));
+            freeBlocks.add(full);
+            return;
+        }
+        pending.add(new PendingBlock(full, executor.submit(() -> compressor.compress(full, length))));
+        while (pending.size() > maxPending) {
+            writeFrame(pending.poll());
+        }
+    }
+
+    private void writeFrame(PendingBlock p) throws IOException {
+        byte[] frame;
+        try {
+            frame = p.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing a block");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to compress a block", e.getCause());
+        }
+        out.write(frame);
+        freeBlocks.add(p.block);
+    }
+
+    private static class PendingBlock {
+
+        final byte[] block;
+        final Future<byte[]> future;
+
+        PendingBlock(byte[] block, Future<byte[]> future) {
+            this.block = block;
+            this.future = future;
+        }
+
+    }
+
+}
@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.zip.Adler32;
+import java.util.zip.Checksum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The checksum algorithm of the transaction logs and snapshots. The
+ * algorithm of a file is identified by the version of its file header, so
+ * that the files written before the algorithm became configurable, all
+ * using Adler32, stay readable.
+ */
+public enum ChecksumType {
+
+    ADLER32("adler32", 2) {
+        @Override
+        public Checksum newChecksum() {
+            return new Adler32();
+        }
+
+        @Override
+        public long combine(long first, long second, long secondLength) {
+            return adler32Combine(first, second, secondLength);
+        }
+    },
+    CRC32C("crc32c", 3) {
+        @Override
+        public Checksum newChecksum() {
+            return Crc32c.newChecksum();
+        }
+
+        @Override
+        public long combine(long first, long second, long secondLength) {
+            return crc32Combine(CRC32C_POLYNOMIAL, first, second, secondLength);
+        }
+    };
+
+    public static final String CHECKSUM_ALGORITHM = "zookeeper.checksumAlgorithm";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChecksumType.class);
+
+    private static final long ADLER32_BASE = 65521;
+
+    // the reflected polynomial of CRC32C
+    private static final long CRC32C_POLYNOMIAL = 0x82F63B78L;
+
+    private final String name;
+    private final int fileVersion;
+
+    ChecksumType(String name, int fileVersion) {
+        this.name = name;
+        this.fileVersion = fileVersion;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The version written in the header of the files using this algorithm.
+     */
+    public int getFileVersion() {
+        return fileVersion;
+    }
+
+    public abstract Checksum newChecksum();
+
+    /**
+     * The checksum of the concatenation of two byte sequences, computed from
+     * the checksums of both sequences and the length of the second one, so
+     * that sequences checked separately, e.g. by several threads, don't need
+     * to be read again to get the checksum of the whole.
+     *
+     * @param first the checksum of the first sequence
+     * @param second the checksum of the second sequence
+     * @param secondLength the length of the second sequence
+     * @return the checksum of the concatenation
+     */
+    public abstract long combine(long first, long second, long secondLength);
+
+    /**
+     * Whether the files using this algorithm can be checked by this server.
+     */
+    public boolean isAvailable() {
+        return this != CRC32C || Crc32c.isAvailable();
+    }
+
+    /**
+     * The file header versions of the algorithms available on this server,
+     * as a mask with the bit 1 &lt;&lt; version set for each version.
+     */
+    public static int getAvailableFileVersions() {
+        int versions = 0;
+        for (ChecksumType type : values()) {
+            if (type.isAvailable()) {
+                versions |= 1 << type.fileVersion;
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * The algorithm of a file with the given header version.
+     *
+     * @param version the version of the file header
+     * @return the checksum algorithm of the file
+     * @throws IOException if the version is unknown, or its algorithm is not
+     * available on this server
+     */
+    public static ChecksumType fromFileVersion(int version) throws IOException {
+        for (ChecksumType type : values()) {
+            if (type.fileVersion == version) {
+                if (!type.isAvailable()) {
+                    throw new IOException("File version " + version + " uses " + type.name
+                                          + " checksums, which require Java 9 or later");
+                }
+                return type;
+            }
+        }
+        throw new IOException("Unsupported file version " + version);
+    }
+
+    /**
+     * The algorithm configured to write new files, Adler32 unless another
+     * one is both configured and available.
+     */
+    public static ChecksumType getConfigured() {
+        String name = System.getProperty(CHECKSUM_ALGORITHM, ADLER32.name);
+        for (ChecksumType type : values()) {
+            if (type.name.equalsIgnoreCase(name)) {
+                if (!type.isAvailable()) {
+                    LOG.warn("{} = {} requires Java 9 or later, using {}", CHECKSUM_ALGORITHM, name, ADLER32.name);
+                    return ADLER32;
+                }
+                return type;
+            }
+        }
+        LOG.warn("Unknown {} = {}, using {}", CHECKSUM_ALGORITHM, name, ADLER32.name);
+        return ADLER32;
+    }
+
+    // adler32_combine of zlib
+    private static long adler32Combine(long first, long second, long secondLength) {
+        long rem = secondLength % ADLER32_BASE;
+        long sum1 = first & 0xffff;
+        long sum2 = (rem * sum1) % ADLER32_BASE;
+        sum1 += (second & 0xffff) + ADLER32_BASE - 1;
+        sum2 += ((first >> 16) & 0xffff) + ((second >> 16) & 0xffff) + ADLER32_BASE - rem;
+        if (sum1 >= ADLER32_BASE) {
+            sum1 -= ADLER32_BASE;
+        }
+        if (sum1 >= ADLER32_BASE) {
+            sum1 -= ADLER32_BASE;
+        }
+        if (sum2 >= (ADLER32_BASE << 1)) {
+            sum2 -= ADLER32_BASE << 1;
+        }
+        if (sum2 >= ADLER32_BASE) {
+            sum2 -= ADLER32_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    // crc32_combine of zlib: appending secondLength zero bytes to the first
+    // sequence is a linear operator over GF(2), applied by repeated squaring
+    private static long crc32Combine(long polynomial, long first, long second, long secondLength) {
+        if (secondLength <= 0) {
+            return first;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // the operator for one zero bit
+        odd[0] = polynomial;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // two zero bits, then four
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+        long crc = first;
+        long len = secondLength;
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len & 1) != 0) {
+                crc = gf2MatrixTimes(even, crc);
+            }
+            len >>= 1;
+            if (len == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((len & 1) != 0) {
+                crc = gf2MatrixTimes(odd, crc);
+            }
+            len >>= 1;
+        } while (len != 0);
+        return crc ^ second;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+
+    /**
+     * java.util.zip.CRC32C, which is only available from Java 9.
+     */
+    private static class Crc32c {
+
+        private static final MethodHandle CONSTRUCTOR = findConstructor();
+
+        private static MethodHandle findConstructor() {
+            try {
+                Class<?> clazz = Class.forName("java.util.zip.CRC32C");
+                return MethodHandles.publicLookup()
+                    .findConstructor(clazz, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+
+        static boolean isAvailable() {
+            return CONSTRUCTOR != null;
+        }
+
+        static Checksum newChecksum() {
+            if (CONSTRUCTOR == null) {
+                throw new UnsupportedOperationException("CRC32C checksums require Java 9 or later");
+            }
+            try {
+                return (Checksum) CONSTRUCTOR.invokeExact();
+            } catch (Throwable t) {
+                throw new IllegalStateException("Failed to create a CRC32C checksum", t);
+            }
+        }
+
+    }
+
+}
@@ -18,19 +18,30 @@
 
 package org.apache.zookeeper.server.persistence;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
 import javax.annotation.Nonnull;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.server.DataNode;
 import org.apache.zookeeper.server.DataTree;
 import org.apache.zookeeper.server.util.SerializeUtils;
 import org.slf4j.Logger;
@@ -47,13 +58,16 @@ public class FileSnap implements SnapShot {
     File snapDir;
     SnapshotInfo lastSnapshotInfo = null;
     private volatile boolean close = false;
-    private static final int VERSION = 2;
     private static final long dbId = -1;
     private static final Logger LOG = LoggerFactory.getLogger(FileSnap.class);
     public static final int SNAP_MAGIC = ByteBuffer.wrap("ZKSN".getBytes()).getInt();
 
     public static final String SNAPSHOT_FILE_PREFIX = "snapshot";
 
+    public static final String SNAPSHOT_LOAD_THREADS = "zookeeper.snapshot.load.threads";
+
+    private static ForkJoinPool loadPool;
+
     public FileSnap(@Nonnull File snapDir) {
         this.snapDir = snapDir;
     }
@@ -85,26 +99,21 @@ public long deserialize(DataTree dt, Map<Long, Integer> sessions) throws IOExcep
             snap = snapList.get(i);
             LOG.info("Reading snapshot {}", snap);
             snapZxid = Util.getZxidFromName(snap.getName(), SNAPSHOT_FILE_PREFIX);
-            try (CheckedInputStream snapIS = SnapStream.getInputStream(snap)) {
-                InputArchive ia = BinaryInputArchive.getArchive(snapIS);
-                deserialize(dt, sessions, ia);
-                SnapStream.checkSealIntegrity(snapIS, ia);
-
-                // Digest feature was added after the CRC to make it backward
-                // compatible, the older code can still read snapshots which
-                // includes digest.
-                //
-                // To check the intact, after adding digest we added another
-                // CRC check.
-                if (dt.deserializeZxidDigest(ia, snapZxid)) {
-                    SnapStream.checkSealIntegrity(snapIS, ia);
-                }
-
-                // deserialize lastProcessedZxid and check inconsistency
-                if (dt.deserializeLastProcessedZxid(ia)) {
-                    SnapStream.checkSealIntegrity(snapIS, ia);
+            SnapshotIndex index = null;
+            if (getLoadThreads() > 1 && SnapStream.getStreamMode(snap.getName()) == SnapStream.StreamMode.CHECKED) {
+                index = SnapshotIndex.read(SnapshotIndex.makeIndexFile(snapDir, snapZxid));
+            }
+            if (index != null) {
+                try {
+                    deserialize(dt, sessions, snap, snapZxid, index);
+                    foundValid = true;
+                    break;
+                } catch (IOException e) {
+                    LOG.warn("problem reading snap file {} with its index, reading it sequentially", snap, e);
                 }
-
+            }
+            try {
+                deserialize(dt, sessions, snap, snapZxid, null);
                 foundValid = true;
                 break;
             } catch (IOException e) {
@@ -125,6 +134,48 @@ public long deserialize(DataTree dt, Map<Long, Integer> sessions) throws IOExcep
         return dt.lastProcessedZxid;
     }
 
+    private void deserialize(
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        File snap,
+        long snapZxid,
+        SnapshotIndex index) throws IOException {
+        if (index == null) {
+            try (CheckedInputStream snapIS = SnapStream.getInputStream(snap)) {
+                InputArchive ia = BinaryInputArchive.getArchive(snapIS);
+                deserialize(dt, sessions, ia);
+                deserializeSeals(dt, snapIS, ia, snapZxid);
+            }
+        } else {
+            try (CheckedInputStream snapIS = deserialize(dt, sessions, snap, index)) {
+                deserializeSeals(dt, snapIS, BinaryInputArchive.getArchive(snapIS), snapZxid);
+            }
+        }
+    }
+
+    private static void deserializeSeals(
+        DataTree dt,
+        CheckedInputStream snapIS,
+        InputArchive ia,
+        long snapZxid) throws IOException {
+        SnapStream.checkSealIntegrity(snapIS, ia);
+
+        // Digest feature was added after the CRC to make it backward
+        // compatible, the older code can still read snapshots which
+        // includes digest.
+        //
+        // To check the intact, after adding digest we added another
+        // CRC check.
+        if (dt.deserializeZxidDigest(ia, snapZxid)) {
+            SnapStream.checkSealIntegrity(snapIS, ia);
+        }
+
+        // deserialize lastProcessedZxid and check inconsistency
+        if (dt.deserializeLastProcessedZxid(ia)) {
+            SnapStream.checkSealIntegrity(snapIS, ia);
+        }
+    }
+
     /**
      * deserialize the datatree from an inputarchive
      * @param dt the datatree to be serialized into
@@ -133,12 +184,264 @@ public long deserialize(DataTree dt, Map<Long, Integer> sessions) throws IOExcep
      * @throws IOException
      */
     public static void deserialize(DataTree dt, Map<Long, Integer> sessions, InputArchive ia) throws IOException {
+        deserializeHeader(ia);
+        SerializeUtils.deserializeSnapshot(dt, ia, sessions);
+    }
+
+    private static FileHeader deserializeHeader(InputArchive ia) throws IOException {
         FileHeader header = new FileHeader();
         header.deserialize(ia, "fileheader");
         if (header.getMagic() != SNAP_MAGIC) {
             throw new IOException("mismatching magic headers " + header.getMagic() + " !=  " + FileSnap.SNAP_MAGIC);
         }
-        SerializeUtils.deserializeSnapshot(dt, ia, sessions);
+        return header;
+    }
+
+    /**
+     * Deserialize the datatree using the index of the snapshot. The chunks
+     * of nodes listed in the index are decoded and checksummed concurrently
+     * on the load pool, each from its own stream, while this thread adds the
+     * decoded nodes to the tree in snapshot order. The checksums of the
+     * chunks are combined with the one of the sections before them, so that
+     * the node bytes are only read once and the seals of the snapshot still
+     * cover every byte.
+     *
+     * @return the snapshot stream, positioned after the nodes, to read the
+     * seals of the snapshot from
+     */
+    // @VisibleForTesting
+    static CheckedInputStream deserialize(
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        File snap,
+        SnapshotIndex index) throws IOException {
+        ChecksumType checksumType;
+        long checksum;
+        try (CheckedInputStream snapIS = SnapStream.getInputStream(snap)) {
+            InputArchive ia = BinaryInputArchive.getArchive(snapIS);
+            checksumType = ChecksumType.fromFileVersion(deserializeHeader(ia).getVersion());
+            SerializeUtils.deserializeSessions(ia, sessions);
+            dt.deserializeAcls(ia);
+            checksum = snapIS.getChecksum().getValue();
+        }
+        dt.startDeserializingNodes();
+
+        int chunkCount = index.getChunkCount();
+        ForkJoinPool pool = getLoadPool();
+        List<Future<NodeChunk>> chunks = new ArrayList<>(chunkCount);
+        long offset = index.getChunkOffset(0);
+        try {
+            for (int i = 0; i < chunkCount; i++) {
+                long chunkOffset = index.getChunkOffset(i);
+                int nodeCount = index.getChunkNodeCount(i);
+                chunks.add(pool.submit(() -> readNodeChunk(dt, snap, chunkOffset, nodeCount, checksumType)));
+            }
+
+            for (int i = 0; i < chunkCount; i++) {
+                NodeChunk chunk = getNodeChunk(chunks.get(i));
+                chunks.set(i, null);
+                if (i == 0 && !chunk.paths[0].isEmpty()) {
+                    throw new IOException("Snapshot index of " + snap + " doesn't start at the root node");
+                }
+                if (i < chunkCount - 1 && chunk.endOffset != index.getChunkOffset(i + 1)) {
+                    throw new IOException("Snapshot index of " + snap + " has a misaligned chunk " + i);
+                }
+                for (int j = 0; j < chunk.paths.length; j++) {
+                    dt.addDeserializedNode(chunk.paths[j], chunk.nodes[j]);
+                }
+                checksum = checksumType.combine(checksum, chunk.checksum, chunk.endOffset - offset);
+                offset = chunk.endOffset;
+            }
+        } finally {
+            for (Future<NodeChunk> chunk : chunks) {
+                if (chunk != null) {
+                    chunk.cancel(true);
+                }
+            }
+        }
+
+        FileInputStream fis = new FileInputStream(snap);
+        boolean success = false;
+        try {
+            fis.getChannel().position(offset);
+            CheckedInputStream snapIS = new CheckedInputStream(
+                new BufferedInputStream(fis), new ResumedChecksum(checksumType, checksum));
+            InputArchive ia = BinaryInputArchive.getArchive(snapIS);
+            if (!"/".equals(ia.readString("path"))) {
+                throw new IOException("Snapshot index of " + snap + " doesn't end at the end of the nodes");
+            }
+            dt.finishDeserializingNodes();
+            if (snapIS.getChecksum().getValue() != index.getSnapshotChecksum()) {
+                throw new IOException("Snapshot index doesn't match the content of " + snap);
+            }
+            success = true;
+            return snapIS;
+        } finally {
+            if (!success) {
+                fis.close();
+            }
+        }
+    }
+
+    private static NodeChunk readNodeChunk(
+        DataTree dt,
+        File snap,
+        long offset,
+        int nodeCount,
+        ChecksumType checksumType) throws IOException {
+        try (FileInputStream fis = new FileInputStream(snap)) {
+            fis.getChannel().position(offset);
+            PositionInputStream is = new PositionInputStream(new BufferedInputStream(fis), offset);
+            CheckedInputStream chunkIS = new CheckedInputStream(is, checksumType.newChecksum());
+            InputArchive ia = BinaryInputArchive.getArchive(chunkIS);
+            NodeChunk chunk = new NodeChunk(nodeCount);
+            for (int i = 0; i < nodeCount; i++) {
+                String path = ia.readString("path");
+                if (path == null || "/".equals(path)) {
+                    throw new IOException("Unexpected end of nodes in " + snap + " at offset " + is.position);
+                }
+                chunk.paths[i] = path;
+                chunk.nodes[i] = dt.readDeserializedNode(ia, path);
+            }
+            chunk.endOffset = is.position;
+            chunk.checksum = chunkIS.getChecksum().getValue();
+            return chunk;
+        }
+    }
+
+    private static NodeChunk getNodeChunk(Future<NodeChunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading snapshot");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to load snapshot chunk", e.getCause());
+        }
+    }
+
+    /**
+     * The pool decoding the chunks of the indexed snapshots, shared by all
+     * the loads and bounded by zookeeper.snapshot.load.threads. Its workers
+     * exit once they have been idle for a while, so it doesn't keep threads
+     * around after the snapshot is loaded.
+     */
+    private static synchronized ForkJoinPool getLoadPool() {
+        if (loadPool == null) {
+            loadPool = new ForkJoinPool(getLoadThreads(), pool -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("SnapshotLoader-" + t.getPoolIndex());
+                return t;
+            }, null, false);
+        }
+        return loadPool;
+    }
+
+    static int getLoadThreads() {
+        return Integer.getInteger(SNAPSHOT_LOAD_THREADS, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The nodes decoded from one chunk of a snapshot.
+     */
+    private static class NodeChunk {
+
+        final String[] paths;
+        final DataNode[] nodes;
+        long endOffset;
+        long checksum;
+
+        NodeChunk(int nodeCount) {
+            paths = new String[nodeCount];
+            nodes = new DataNode[nodeCount];
+        }
+
+    }
+
+    /**
+     * A checksum resuming from the checksum of the bytes before the ones it
+     * is updated with.
+     */
+    private static class ResumedChecksum implements Checksum {
+
+        private final ChecksumType type;
+        private final Checksum checksum;
+        private long initialValue;
+        private long length;
+
+        ResumedChecksum(ChecksumType type, long initialValue) {
+            this.type = type;
+            this.checksum = type.newChecksum();
+            this.initialValue = initialValue;
+        }
+
+        @Override
+        public void update(int b) {
+            checksum.update(b);
+            length++;
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            checksum.update(b, off, len);
+            length += len;
+        }
+
+        @Override
+        public long getValue() {
+            return type.combine(initialValue, checksum.getValue(), length);
+        }
+
+        @Override
+        public void reset() {
+            checksum.reset();
+            initialValue = checksum.getValue();
+            length = 0;
+        }
+
+    }
+
+    /**
+     * Keeps track of the offset of the next byte to be read from the
+     * snapshot file.
+     */
+    private static class PositionInputStream extends FilterInputStream {
+
+        long position;
+
+        PositionInputStream(InputStream in, long position) {
+            super(in);
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                position++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            position += skipped;
+            return skipped;
+        }
+
     }
 
     /**
@@ -223,13 +526,26 @@ protected void serialize(
         Map<Long, Integer> sessions,
         OutputArchive oa,
         FileHeader header) throws IOException {
+        serialize(dt, sessions, oa, header, null);
+    }
+
+    private void serialize(
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        OutputArchive oa,
+        FileHeader header,
+        SnapshotIndex.Builder indexBuilder) throws IOException {
         // this is really a programmatic error and not something that can
         // happen at runtime
         if (header == null) {
             throw new IllegalStateException("Snapshot's not open for writing: uninitialized header");
         }
         header.serialize(oa, "fileheader");
-        SerializeUtils.serializeSnapshot(dt, oa, sessions);
+        if (indexBuilder == null) {
+            SerializeUtils.serializeSnapshot(dt, oa, sessions);
+        } else {
+            SerializeUtils.serializeSnapshot(dt, oa, sessions, indexBuilder::addNode);
+        }
     }
 
     /**
@@ -245,10 +561,20 @@ public synchronized void serialize(
         File snapShot,
         boolean fsync) throws IOException {
         if (!close) {
-            try (CheckedOutputStream snapOS = SnapStream.getOutputStream(snapShot, fsync)) {
+            // the index relies on the archive offsets being file offsets,
+            // so it is only built for uncompressed snapshots
+            SnapshotIndex.Builder indexBuilder = null;
+            if (SnapshotIndex.isEnabled()
+                && SnapStream.getStreamMode(snapShot.getName()) == SnapStream.StreamMode.CHECKED) {
+                indexBuilder = new SnapshotIndex.Builder();
+            }
+            long snapshotChecksum;
+            ChecksumType checksumType = SnapStream.getChecksumType();
+            try (CheckedOutputStream snapOS = SnapStream.getOutputStream(snapShot, fsync, checksumType)) {
                 OutputArchive oa = BinaryOutputArchive.getArchive(snapOS);
-                FileHeader header = new FileHeader(SNAP_MAGIC, VERSION, dbId);
-                serialize(dt, sessions, oa, header);
+                FileHeader header = new FileHeader(SNAP_MAGIC, checksumType.getFileVersion(), dbId);
+                serialize(dt, sessions, oa, header, indexBuilder);
+                snapshotChecksum = snapOS.getChecksum().getValue();
                 SnapStream.sealStream(snapOS, oa);
 
                 // Digest feature was added after the CRC to make it backward
@@ -270,11 +596,31 @@ public synchronized void serialize(
                     Util.getZxidFromName(snapShot.getName(), SNAPSHOT_FILE_PREFIX),
                     snapShot.lastModified() / 1000);
             }
+            if (indexBuilder != null) {
+                writeIndex(indexBuilder.build(snapshotChecksum),
+                    Util.getZxidFromName(snapShot.getName(), SNAPSHOT_FILE_PREFIX));
+            }
         } else {
             throw new IOException("FileSnap has already been closed");
         }
     }
 
+    /**
+     * Write the index of a snapshot. The index is only an optimization for
+     * loading the snapshot, so failing to write it doesn't fail the snapshot.
+     */
+    private void writeIndex(SnapshotIndex index, long zxid) {
+        File indexFile = SnapshotIndex.makeIndexFile(snapDir, zxid);
+        try {
+            index.write(indexFile);
+        } catch (IOException e) {
+            LOG.warn("Failed to write snapshot index {}", indexFile, e);
+            if (indexFile.exists() && !indexFile.delete()) {
+                LOG.warn("Could not delete incomplete snapshot index {}", indexFile);
+            }
+        }
+    }
+
     /**
      * synchronized close just so that if serialize is in place
      * the close operation will block and will wait till serialize
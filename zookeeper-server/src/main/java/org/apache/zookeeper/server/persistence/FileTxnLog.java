@@ -36,7 +36,6 @@
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.Adler32;
 import java.util.zip.Checksum;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.BinaryOutputArchive;
@@ -64,7 +63,7 @@
  *
  * FileHeader: {
  *     magic 4bytes (ZKLG)
- *     version 4bytes
+ *     version 4bytes (2 for Adler32 checksums, 3 for CRC32C)
  *     dbid 8bytes
  *   }
  *
@@ -74,7 +73,7 @@
  * Txn:
  *     checksum Txnlen TxnHeader Record 0x42
  *
- * checksum: 8bytes Adler32 is currently used
+ * checksum: 8bytes Adler32 or CRC32C, according to the version of the FileHeader
  *   calculated across payload -- Txnlen, TxnHeader, Record and 0x42
  *
  * Txnlen:
@@ -152,13 +151,14 @@ public class FileTxnLog implements TxnLog, Closeable {
     volatile FileOutputStream fos = null;
 
     File logDir;
+    final ChecksumType checksumType = ChecksumType.getConfigured();
     private final boolean forceSync = !System.getProperty("zookeeper.forceSync", "yes").equals("no");
     long dbId;
     private final Queue<FileOutputStream> streamsToFlush = new ArrayDeque<>();
     File logFileWrite = null;
     private FilePadding filePadding = new FilePadding();
 
-    private ServerStats serverStats;
+    private volatile ServerStats serverStats;
 
     private volatile long syncElapsedMS = -1L;
 
@@ -174,6 +174,9 @@ public class FileTxnLog implements TxnLog, Closeable {
 
     private long fileSize = 0;
 
+    /** the index of the records of the logs, or null if not indexed */
+    TxnLogIndex index;
+
     /**
      * constructor for FileTxnLog. Take the directory
      * where the txnlogs are stored
@@ -232,7 +235,7 @@ public synchronized long getTotalLogSize() {
      * @return the checksum used for this txnlog
      */
     protected Checksum makeChecksumAlgorithm() {
-        return new Adler32();
+        return checksumType.newChecksum();
     }
 
     /**
@@ -287,7 +290,7 @@ public synchronized boolean append(Request request) throws IOException {
             fos = new FileOutputStream(logFileWrite);
             logStream = new BufferedOutputStream(fos);
             oa = BinaryOutputArchive.getArchive(logStream);
-            FileHeader fhdr = new FileHeader(TXNLOG_MAGIC, VERSION, dbId);
+            FileHeader fhdr = new FileHeader(TXNLOG_MAGIC, checksumType.getFileVersion(), dbId);
             long dataSize = oa.getDataSize();
             fhdr.serialize(oa, "fileheader");
             // Make sure that the magic number is written before padding.
@@ -305,6 +308,9 @@ public synchronized boolean append(Request request) throws IOException {
         if (buf == null || buf.length == 0) {
             throw new IOException("Faulty serialization for header " + "and txn");
         }
+        if (index != null) {
+            index.add(logFileWrite, hdr.getZxid(), filePosition + unFlushedSize);
+        }
         long dataSize = oa.getDataSize();
         Checksum crc = makeChecksumAlgorithm();
         crc.update(buf, 0, buf.length);
@@ -385,6 +391,16 @@ public long getLastLoggedZxid() {
      * disk
      */
     public synchronized void commit() throws IOException {
+        startCommit().complete();
+    }
+
+    /**
+     * Write the buffered transactions to the log files. The returned commit
+     * syncs the files without holding the lock of the log, so the next
+     * transactions can be appended while it runs.
+     */
+    @Override
+    public synchronized PendingCommit startCommit() throws IOException {
         if (logStream != null) {
             logStream.flush();
             filePosition += unFlushedSize;
@@ -395,36 +411,66 @@ public synchronized void commit() throws IOException {
             }
             unFlushedSize = 0;
         }
-        for (FileOutputStream log : streamsToFlush) {
-            log.flush();
-            if (forceSync) {
-                long startSyncNS = System.nanoTime();
+        final List<FileOutputStream> toSync = new ArrayList<>(streamsToFlush);
+        // Every log but the last one has been rolled over, so it is
+        // complete once it is synced.
+        final List<FileOutputStream> toClose = new ArrayList<>();
+        while (streamsToFlush.size() > 1) {
+            toClose.add(streamsToFlush.poll());
+        }
+        return () -> {
+            for (FileOutputStream log : toSync) {
+                sync(log);
+            }
+            finishCommit(toClose);
+        };
+    }
 
-                FileChannel channel = log.getChannel();
-                channel.force(false);
+    private void sync(FileOutputStream log) throws IOException {
+        log.flush();
+        if (forceSync) {
+            long startSyncNS = System.nanoTime();
 
-                syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
-                if (syncElapsedMS > fsyncWarningThresholdMS) {
-                    if (serverStats != null) {
-                        serverStats.incrementFsyncThresholdExceedCount();
-                    }
+            FileChannel channel = log.getChannel();
+            channel.force(false);
 
-                    LOG.warn(
-                        "fsync-ing the write ahead log in {} took {}ms which will adversely effect operation latency."
-                            + "File size is {} bytes. See the ZooKeeper troubleshooting guide",
-                        Thread.currentThread().getName(),
-                        syncElapsedMS,
-                        channel.size());
-                }
+            syncCompleted(startSyncNS, channel.size());
+        }
+    }
 
-                ServerMetrics.getMetrics().FSYNC_TIME.add(syncElapsedMS);
+    /**
+     * Record the time taken by a sync of the log started at startSyncNS.
+     */
+    void syncCompleted(long startSyncNS, long fileSize) {
+        syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
+        if (syncElapsedMS > fsyncWarningThresholdMS) {
+            ServerStats stats = serverStats;
+            if (stats != null) {
+                stats.incrementFsyncThresholdExceedCount();
             }
+
+            LOG.warn(
+                "fsync-ing the write ahead log in {} took {}ms which will adversely effect operation latency."
+                    + "File size is {} bytes. See the ZooKeeper troubleshooting guide",
+                Thread.currentThread().getName(),
+                syncElapsedMS,
+                fileSize);
         }
-        while (streamsToFlush.size() > 1) {
-            streamsToFlush.poll().close();
+
+        ServerMetrics.getMetrics().FSYNC_TIME.add(syncElapsedMS);
+    }
+
+    private synchronized void finishCommit(List<FileOutputStream> toClose) throws IOException {
+        for (FileOutputStream log : toClose) {
+            log.close();
         }
+        rollLogIfTooLarge();
+    }
 
-        // Roll the log file if we exceed the size limit
+    /**
+     * Roll the log file if it exceeds the size limit.
+     */
+    synchronized void rollLogIfTooLarge() throws IOException {
         if (txnLogSizeLimit > 0) {
             long logSize = getCurrentLogSize();
 
@@ -463,7 +509,16 @@ public TxnIterator read(long zxid) throws IOException {
      * @return returns an iterator to iterate through the transaction logs
      */
     public TxnIterator read(long zxid, boolean fastForward) throws IOException {
-        return new FileTxnIterator(logDir, zxid, fastForward);
+        return new FileTxnIterator(logDir, zxid, fastForward, index);
+    }
+
+    /**
+     * set the index the records of the logs are added to as they are
+     * written, and looked up to read the logs from a given zxid
+     * @param index the index, or null to not index the logs
+     */
+    void setIndex(TxnLogIndex index) {
+        this.index = index;
     }
 
     /**
@@ -623,6 +678,8 @@ public static class FileTxnIterator implements TxnLog.TxnIterator {
         TxnDigest digest;
         File logFile;
         InputArchive ia;
+        ChecksumType checksumType = ChecksumType.ADLER32;
+        TxnLogIndex index;
         static final String CRC_ERROR = "CRC check failed";
 
         PositionInputStream inputStream = null;
@@ -641,8 +698,26 @@ public static class FileTxnIterator implements TxnLog.TxnIterator {
          * @throws IOException
          */
         public FileTxnIterator(File logDir, long zxid, boolean fastForward) throws IOException {
+            this(logDir, zxid, fastForward, null);
+        }
+
+        /**
+         * create an iterator over a transaction database directory, which
+         * starts reading the log containing the given zxid from the closest
+         * record before it in the index
+         * @param logDir the transaction database directory
+         * @param zxid the zxid to start reading from
+         * @param fastForward   true if the iterator should be fast forwarded to
+         *        point to the txn of a given zxid, else the iterator will
+         *        point to a txn of the txnlog containing the given zxid
+         *        which is not after it
+         * @param index the index of the records of the logs, or null
+         * @throws IOException
+         */
+        FileTxnIterator(File logDir, long zxid, boolean fastForward, TxnLogIndex index) throws IOException {
             this.logDir = logDir;
             this.zxid = zxid;
+            this.index = index;
             init();
 
             if (fastForward && hdr != null) {
@@ -684,10 +759,31 @@ void init() throws IOException {
                     break;
                 }
             }
+            if (index != null) {
+                index.retain(files);
+            }
             goToNextLog();
+            skipToIndexedRecord();
             next();
         }
 
+        /**
+         * skip the records of the first log which are before the closest
+         * indexed record to the zxid to start reading from
+         * @throws IOException
+         */
+        private void skipToIndexedRecord() throws IOException {
+            if (index == null || inputStream == null) {
+                return;
+            }
+            long offset = index.floorOffset(logFile, zxid);
+            while (inputStream.getPosition() < offset) {
+                if (inputStream.skip(offset - inputStream.getPosition()) <= 0) {
+                    throw new EOFException("Failed to skip to offset " + offset + " of " + logFile);
+                }
+            }
+        }
+
         /**
          * Return total storage size of txnlog that will return by this iterator.
          */
@@ -728,6 +824,17 @@ protected void inStreamCreated(InputArchive ia, InputStream is) throws IOExcepti
                                       + " has invalid magic number "
                                       + header.getMagic() + " != " + FileTxnLog.TXNLOG_MAGIC);
             }
+            checksumType = ChecksumType.fromFileVersion(header.getVersion());
+        }
+
+        /**
+         * open the stream the given log file is read from
+         * @param logFile the file to read.
+         * @return the stream of the file content
+         * @throws IOException
+         */
+        protected InputStream openLogFile(File logFile) throws IOException {
+            return new BufferedInputStream(new FileInputStream(logFile));
         }
 
         /**
@@ -737,7 +844,7 @@ protected void inStreamCreated(InputArchive ia, InputStream is) throws IOExcepti
          **/
         protected InputArchive createInputArchive(File logFile) throws IOException {
             if (inputStream == null) {
-                inputStream = new PositionInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+                inputStream = new PositionInputStream(openLogFile(logFile));
                 LOG.debug("Created new input stream: {}", logFile);
                 ia = BinaryInputArchive.getArchive(inputStream);
                 inStreamCreated(ia, inputStream);
@@ -751,7 +858,7 @@ protected InputArchive createInputArchive(File logFile) throws IOException {
          * @return the checksum algorithm
          */
         protected Checksum makeChecksumAlgorithm() {
-            return new Adler32();
+            return checksumType.newChecksum();
         }
 
         /**
@@ -764,6 +871,7 @@ public boolean next() throws IOException {
                 return false;
             }
             try {
+                long offset = inputStream.getPosition();
                 long crcValue = ia.readLong("crcvalue");
                 byte[] bytes = Util.readTxnBytes(ia);
                 // Since we preallocate, we define EOF to be an
@@ -781,6 +889,9 @@ public boolean next() throws IOException {
                 hdr = logEntry.getHeader();
                 record = logEntry.getTxn();
                 digest = logEntry.getDigest();
+                if (index != null) {
+                    index.add(logFile, hdr.getZxid(), offset);
+                }
             } catch (EOFException e) {
                 LOG.debug("EOF exception", e);
                 inputStream.close();
@@ -59,6 +59,9 @@ public class FileTxnSnapLog {
     final File snapDir;
     TxnLog txnLog;
     SnapShot snapLog;
+    //the index of the records of the transaction logs,
+    //shared by all the readers of the logs
+    private final TxnLogIndex txnLogIndex = TxnLogIndex.isEnabled() ? new TxnLogIndex() : null;
     private final boolean autoCreateDB;
     private final boolean trustEmptySnapshot;
     public static final int VERSION = 2;
@@ -166,7 +169,7 @@ public FileTxnSnapLog(File dataDir, File snapDir) throws IOException {
             checkSnapDir();
         }
 
-        txnLog = new FileTxnLog(this.dataDir);
+        txnLog = makeTxnLog();
         snapLog = new FileSnap(this.snapDir);
 
         autoCreateDB = Boolean.parseBoolean(
@@ -253,7 +256,7 @@ public long restore(DataTree dt, Map<Long, Integer> sessions, PlayBackListener l
         long snapLoadingStartTime = Time.currentElapsedTime();
         long deserializeResult = snapLog.deserialize(dt, sessions);
         ServerMetrics.getMetrics().STARTUP_SNAP_LOAD_TIME.add(Time.currentElapsedTime() - snapLoadingStartTime);
-        FileTxnLog txnLog = new FileTxnLog(dataDir);
+        FileTxnLog txnLog = makeTxnLog();
         boolean trustEmptyDB;
         File initFile = new File(dataDir.getParent(), "initialize");
         if (Files.deleteIfExists(initFile.toPath())) {
@@ -398,7 +401,7 @@ public TxnIterator readTxnLog(long zxid) throws IOException {
      * @throws IOException
      */
     public TxnIterator readTxnLog(long zxid, boolean fastForward) throws IOException {
-        FileTxnLog txnLog = new FileTxnLog(dataDir);
+        FileTxnLog txnLog = makeTxnLog();
         return txnLog.read(zxid, fastForward);
     }
 
@@ -453,12 +456,23 @@ public void processTransaction(
         }
     }
 
+    /**
+     * create the transaction log of the data dir, memory-mapped if
+     * enabled by {@link MappedFileTxnLog#TXN_LOG_MMAP}
+     * @return the transaction log
+     */
+    private FileTxnLog makeTxnLog() {
+        FileTxnLog txnLog = MappedFileTxnLog.isEnabled() ? new MappedFileTxnLog(dataDir) : new FileTxnLog(dataDir);
+        txnLog.setIndex(txnLogIndex);
+        return txnLog;
+    }
+
     /**
      * the last logged zxid on the transaction logs
      * @return the last logged zxid
      */
     public long getLastLoggedZxid() {
-        FileTxnLog txnLog = new FileTxnLog(dataDir);
+        FileTxnLog txnLog = makeTxnLog();
         return txnLog.getLastLoggedZxid();
     }
 
@@ -516,14 +530,14 @@ public boolean truncateLog(long zxid) {
             close();
 
             // truncate it
-            try (FileTxnLog truncLog = new FileTxnLog(dataDir)) {
+            try (FileTxnLog truncLog = makeTxnLog()) {
                 boolean truncated = truncLog.truncate(zxid);
 
                 // re-open the txnLog and snapLog
                 // I'd rather just close/reopen this object itself, however that
                 // would have a big impact outside ZKDatabase as there are other
                 // objects holding a reference to this object.
-                txnLog = new FileTxnLog(dataDir);
+                txnLog = makeTxnLog();
                 snapLog = new FileSnap(snapDir);
 
                 return truncated;
@@ -600,6 +614,15 @@ public void commit() throws IOException {
         txnLog.commit();
     }
 
+    /**
+     * start the commit of the transaction of logs
+     * @return the commit to complete
+     * @throws IOException
+     */
+    public TxnLog.PendingCommit startCommit() throws IOException {
+        return txnLog.startCommit();
+    }
+
     /**
      *
      * @return elapsed sync time of transaction log commit in milliseconds
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Releases file mappings as soon as they are no longer used, instead of
+ * when their buffer gets collected, which keeps the mapped files open on
+ * some platforms and stops them from being deleted on Windows.
+ * <p>
+ * There is no public API to unmap a buffer: Unsafe.invokeCleaner is used
+ * from Java 9, and the cleaner of the buffer before. When neither is
+ * accessible, the mappings are left to the garbage collector.
+ */
+final class MappedBuffers {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedBuffers.class);
+
+    private interface Unmapper {
+
+        void unmap(ByteBuffer buffer) throws ReflectiveOperationException;
+
+    }
+
+    private static final Unmapper UNMAPPER = createUnmapper();
+
+    private MappedBuffers() {
+    }
+
+    private static Unmapper createUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Unsafe.invokeCleaner is not available", e);
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                Object bufferCleaner = cleaner.invoke(buffer);
+                if (bufferCleaner != null) {
+                    clean.invoke(bufferCleaner);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.info("Mapped buffers cannot be unmapped explicitly, leaving them to the garbage collector", e);
+        }
+        return null;
+    }
+
+    /**
+     * Release the mapping of the buffer, which must not be accessed anymore
+     * afterwards, including through its duplicates and slices.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null || UNMAPPER == null) {
+            return;
+        }
+        try {
+            UNMAPPER.unmap(buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.warn("Failed to unmap a buffer, leaving it to the garbage collector", e);
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An InputStream reading a file through read-only mappings of consecutive
+ * segments of the file. Each segment is unmapped once it has been read.
+ */
+class MappedFileInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private final long size;
+    private final int segmentSize;
+
+    private MappedByteBuffer segment;
+    private long segmentStart;
+
+    MappedFileInputStream(File file, int segmentSize) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            this.size = channel.size();
+            this.segmentSize = segmentSize;
+            mapSegment(0);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void mapSegment(long start) throws IOException {
+        MappedBuffers.unmap(segment);
+        segment = null;
+        segment = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, size - start));
+        segmentStart = start;
+    }
+
+    /**
+     * Move to the next segment if the current one has been read.
+     *
+     * @return false at the end of the file
+     */
+    private boolean ensureRemaining() throws IOException {
+        if (segment == null) {
+            throw new IOException("Stream closed");
+        }
+        if (segment.hasRemaining()) {
+            return true;
+        }
+        long next = segmentStart + segment.capacity();
+        if (next >= size) {
+            return false;
+        }
+        mapSegment(next);
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureRemaining()) {
+            return -1;
+        }
+        return segment.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureRemaining()) {
+            return -1;
+        }
+        int n = Math.min(len, segment.remaining());
+        segment.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && ensureRemaining()) {
+            int step = (int) Math.min(n - skipped, segment.remaining());
+            segment.position(segment.position() + step);
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        if (segment == null) {
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size - segmentStart - segment.position());
+    }
+
+    @Override
+    public void close() throws IOException {
+        MappedBuffers.unmap(segment);
+        segment = null;
+        channel.close();
+    }
+
+}
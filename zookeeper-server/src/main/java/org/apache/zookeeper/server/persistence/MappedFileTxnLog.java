@@ -0,0 +1,373 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Checksum;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A transaction log which writes the records straight into memory-mapped
+ * segments of the log file, instead of going through a buffered stream.
+ * <p>
+ * The file is extended one segment of the preallocation size at a time,
+ * so the files have the same layout as the ones of {@link FileTxnLog},
+ * including the zero padding at their end, and either implementation can
+ * read the logs of the other. A commit only syncs the range of the
+ * segments written since the previous commit. Before Java 13, a mapping can
+ * only be synced as a whole, so every commit syncs the whole segment being
+ * written. A segment is unmapped once it is full, or its log rolled, and it
+ * has been synced. The logs are read through read-only mappings of the
+ * files as well.
+ */
+public class MappedFileTxnLog extends FileTxnLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFileTxnLog.class);
+
+    public static final String TXN_LOG_MMAP = "zookeeper.txnLogMmap";
+
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final byte[] END_OF_RECORD = {0x42}; // 'B'
+
+    /**
+     * MappedByteBuffer.force(int, int), which syncs only part of the
+     * mapping. It is only available from Java 13, before which the whole
+     * segment is synced.
+     */
+    private static final MethodHandle FORCE_RANGE = findForceRange();
+
+    private static MethodHandle findForceRange() {
+        try {
+            return MethodHandles.publicLookup()
+                .findVirtual(MappedByteBuffer.class, "force",
+                    MethodType.methodType(MappedByteBuffer.class, int.class, int.class))
+                .asType(MethodType.methodType(void.class, MappedByteBuffer.class, int.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    /** the offset of the current segment from which it has not been synced */
+    private int dirtyFrom;
+
+    /** the segments written since the last commit, which need to be synced */
+    private final List<DirtyRange> dirtyRanges = new ArrayList<>();
+    /** the rolled over logs, to be closed once synced */
+    private final List<FileChannel> channelsToClose = new ArrayList<>();
+    /** the commits started and not finished, which may still use the segments */
+    private int commitsInProgress;
+
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(12);
+
+    public MappedFileTxnLog(File logDir) {
+        super(logDir);
+        if (FORCE_RANGE == null) {
+            LOG.warn("Syncing part of a memory-mapped log requires Java 13 or later, "
+                     + "every commit will sync the whole {} bytes segment", getSegmentSize());
+        }
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(TXN_LOG_MMAP);
+    }
+
+    static int getSegmentSize() {
+        long size = FilePadding.getPreAllocSize();
+        if (size <= 0) {
+            return DEFAULT_SEGMENT_SIZE;
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized boolean append(Request request) throws IOException {
+        TxnHeader hdr = request.getHdr();
+        if (hdr == null) {
+            return false;
+        }
+        if (hdr.getZxid() <= lastZxidSeen) {
+            LOG.warn(
+                "Current zxid {} is <= {} for {}",
+                hdr.getZxid(),
+                lastZxidSeen,
+                Request.op2String(hdr.getType()));
+        } else {
+            lastZxidSeen = hdr.getZxid();
+        }
+        if (channel == null) {
+            openLog(hdr.getZxid());
+        }
+        byte[] buf = request.getSerializeData();
+        if (buf == null || buf.length == 0) {
+            throw new IOException("Faulty serialization for header " + "and txn");
+        }
+        if (index != null) {
+            index.add(logFileWrite, hdr.getZxid(), segmentStart + segment.position());
+        }
+        Checksum crc = makeChecksumAlgorithm();
+        crc.update(buf, 0, buf.length);
+        recordHeader.clear();
+        recordHeader.putLong(crc.getValue());
+        recordHeader.putInt(buf.length);
+        write(recordHeader.array(), 0, recordHeader.capacity());
+        write(buf, 0, buf.length);
+        write(END_OF_RECORD, 0, END_OF_RECORD.length);
+        return true;
+    }
+
+    private void openLog(long zxid) throws IOException {
+        LOG.info("Creating new memory-mapped log file: {}", Util.makeLogName(zxid));
+
+        logFileWrite = new File(logDir, Util.makeLogName(zxid));
+        channel = FileChannel.open(logFileWrite.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        mapSegment(0);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        new FileHeader(TXNLOG_MAGIC, checksumType.getFileVersion(), dbId).serialize(BinaryOutputArchive.getArchive(header), "fileheader");
+        write(header.toByteArray(), 0, header.size());
+    }
+
+    /**
+     * Map the segment of the log file starting at the given offset, which
+     * extends the file if needed.
+     */
+    private void mapSegment(long start) throws IOException {
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, start, getSegmentSize());
+        segmentStart = start;
+        dirtyFrom = 0;
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!segment.hasRemaining()) {
+                dirtyRanges.add(new DirtyRange(segment, dirtyFrom, segment.position(), true));
+                mapSegment(segmentStart + segment.capacity());
+            }
+            int n = Math.min(len, segment.remaining());
+            segment.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public synchronized void rollLog() throws IOException {
+        if (channel != null) {
+            dirtyRanges.add(new DirtyRange(segment, dirtyFrom, segment.position(), true));
+            channelsToClose.add(channel);
+            // Roll over the current log file into the running total
+            setTotalLogSize(getTotalLogSize());
+            channel = null;
+            segment = null;
+        }
+    }
+
+    /**
+     * The size of the transactions written to the current log file, which
+     * unlike {@link FileTxnLog} does not include the preallocated padding.
+     */
+    @Override
+    public synchronized long getCurrentLogSize() {
+        if (segment != null) {
+            return segmentStart + segment.position();
+        }
+        return 0;
+    }
+
+    @Override
+    public synchronized PendingCommit startCommit() throws IOException {
+        final List<DirtyRange> toSync = new ArrayList<>(dirtyRanges);
+        dirtyRanges.clear();
+        if (segment != null) {
+            toSync.add(new DirtyRange(segment, dirtyFrom, segment.position(), false));
+            dirtyFrom = segment.position();
+        }
+        final List<FileChannel> toClose = new ArrayList<>(channelsToClose);
+        channelsToClose.clear();
+        commitsInProgress++;
+        return () -> {
+            boolean synced = false;
+            try {
+                if (isForceSync()) {
+                    long startSyncNS = System.nanoTime();
+                    long syncedBytes = 0;
+                    for (DirtyRange range : toSync) {
+                        range.force();
+                        syncedBytes += range.to - range.from;
+                    }
+                    syncCompleted(startSyncNS, syncedBytes);
+                }
+                synced = true;
+            } finally {
+                finishCommit(toSync, toClose, synced);
+            }
+        };
+    }
+
+    private synchronized void finishCommit(List<DirtyRange> synced, List<FileChannel> toClose, boolean succeeded) throws IOException {
+        try {
+            for (DirtyRange range : synced) {
+                if (range.complete) {
+                    MappedBuffers.unmap(range.buffer);
+                }
+            }
+            for (FileChannel log : toClose) {
+                log.close();
+            }
+        } finally {
+            commitsInProgress--;
+            notifyAll();
+        }
+        if (succeeded) {
+            rollLogIfTooLarge();
+        }
+    }
+
+    /**
+     * Sync the segments written since the last commit, then unmap them and
+     * close the logs. The commits in progress are waited for first, as they
+     * may still be syncing the current segment.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        boolean interrupted = false;
+        while (commitsInProgress > 0 && !interrupted) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                interrupted = true;
+            }
+        }
+        if (segment != null) {
+            dirtyRanges.add(new DirtyRange(segment, dirtyFrom, segment.position(), true));
+        }
+        try {
+            if (isForceSync()) {
+                for (DirtyRange range : dirtyRanges) {
+                    range.force();
+                }
+            }
+        } finally {
+            // A segment still used by a commit must not be unmapped
+            if (!interrupted) {
+                for (DirtyRange range : dirtyRanges) {
+                    if (range.complete) {
+                        MappedBuffers.unmap(range.buffer);
+                    }
+                }
+            }
+            dirtyRanges.clear();
+            for (FileChannel log : channelsToClose) {
+                log.close();
+            }
+            channelsToClose.clear();
+            if (channel != null) {
+                channel.close();
+                channel = null;
+                segment = null;
+            }
+        }
+    }
+
+    @Override
+    public TxnIterator read(long zxid, boolean fastForward) throws IOException {
+        return new MappedFileTxnIterator(logDir, zxid, fastForward, index);
+    }
+
+    /**
+     * A part of a segment which has been written but not synced yet.
+     */
+    private static class DirtyRange {
+
+        final MappedByteBuffer buffer;
+        final int from;
+        final int to;
+        /** whether this is the last range of the segment to be written */
+        final boolean complete;
+
+        DirtyRange(MappedByteBuffer buffer, int from, int to, boolean complete) {
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+            this.complete = complete;
+        }
+
+        void force() throws IOException {
+            if (to <= from) {
+                return;
+            }
+            if (FORCE_RANGE == null) {
+                buffer.force();
+                return;
+            }
+            try {
+                FORCE_RANGE.invokeExact(buffer, from, to - from);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IOException("Failed to sync the transaction log", t);
+            }
+        }
+
+    }
+
+    /**
+     * Reads the transaction logs through read-only mappings of the files.
+     */
+    public static class MappedFileTxnIterator extends FileTxnIterator {
+
+        public MappedFileTxnIterator(File logDir, long zxid, boolean fastForward) throws IOException {
+            super(logDir, zxid, fastForward);
+        }
+
+        MappedFileTxnIterator(File logDir, long zxid, boolean fastForward, TxnLogIndex index) throws IOException {
+            super(logDir, zxid, fastForward, index);
+        }
+
+        @Override
+        protected InputStream openLogFile(File logFile) throws IOException {
+            return new MappedFileInputStream(logFile, getSegmentSize());
+        }
+
+    }
+
+}
@@ -18,8 +18,11 @@
 
 package org.apache.zookeeper.server.persistence;
 
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -30,11 +33,15 @@
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.zip.Adler32;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.CheckedOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.zookeeper.common.AtomicFileOutputStream;
@@ -53,17 +60,39 @@ public class SnapStream {
 
     public static final String ZOOKEEPER_SHAPSHOT_STREAM_MODE = "zookeeper.snapshot.compression.method";
 
-    private static StreamMode streamMode = StreamMode.fromString(
+    public static final String ZOOKEEPER_SNAPSHOT_COMPRESSION_THREADS = "zookeeper.snapshot.compression.threads";
+
+    /**
+     * The size of the blocks which are compressed independently of each
+     * other by the zstd and lz4 modes, and by gzip with more than one thread.
+     */
+    static final int COMPRESSION_BLOCK_SIZE = 1024 * 1024;
+
+    private static final byte[] ZSTD_MAGIC = {(byte) 0x28, (byte) 0xB5, (byte) 0x2F, (byte) 0xFD};
+
+    private static final byte[] LZ4_BLOCK_MAGIC = {'L', 'Z', '4', 'B', 'l', 'o', 'c', 'k'};
+
+    private static volatile int compressionThreads = Integer.getInteger(ZOOKEEPER_SNAPSHOT_COMPRESSION_THREADS, 1);
+
+    private static ExecutorService compressionExecutor;
+
+    private static ChecksumType checksumType = ChecksumType.getConfigured();
+
+    private static StreamMode streamMode = getWritableStreamMode(StreamMode.fromString(
         System.getProperty(ZOOKEEPER_SHAPSHOT_STREAM_MODE,
-                           StreamMode.DEFAULT_MODE.getName()));
+                           StreamMode.DEFAULT_MODE.getName())));
 
     static {
         LOG.info("{} = {}", ZOOKEEPER_SHAPSHOT_STREAM_MODE, streamMode);
+        LOG.info("{} = {}", ZOOKEEPER_SNAPSHOT_COMPRESSION_THREADS, compressionThreads);
+        LOG.info("{} = {}", ChecksumType.CHECKSUM_ALGORITHM, checksumType.getName());
     }
 
     public enum StreamMode {
         GZIP("gz"),
         SNAPPY("snappy"),
+        ZSTD("zst"),
+        LZ4("lz4"),
         CHECKED("");
 
         public static final StreamMode DEFAULT_MODE = CHECKED;
@@ -101,26 +130,72 @@ public static StreamMode fromString(String name) {
      */
     public static CheckedInputStream getInputStream(File file) throws IOException {
         FileInputStream fis = new FileInputStream(file);
-        InputStream is;
         try {
-            switch (getStreamMode(file.getName())) {
-                case GZIP:
-                    is = new GZIPInputStream(fis);
-                    break;
-                case SNAPPY:
-                    is = new SnappyInputStream(fis);
-                    break;
-                case CHECKED:
-                default:
-                    is = new BufferedInputStream(fis);
-            }
-            return new CheckedInputStream(is, new Adler32());
+            return getInputStream(fis, getStreamMode(file.getName()));
         } catch (IOException e) {
             fis.close();
             throw e;
         }
     }
 
+    /**
+     * Return the CheckedInputStream reading a snapshot of the given stream
+     * mode from a stream, such as a snapshot file sent by the leader.
+     *
+     * @param in the stream of the snapshot content
+     * @param mode the stream mode the snapshot was written with
+     * @return the specific InputStream
+     * @throws IOException
+     */
+    public static CheckedInputStream getInputStream(InputStream in, StreamMode mode) throws IOException {
+        InputStream is;
+        switch (mode) {
+            case GZIP:
+                is = new GZIPInputStream(in);
+                break;
+            case SNAPPY:
+                is = new SnappyInputStream(in);
+                break;
+            case ZSTD:
+                is = ZstdCodec.newInputStream(in);
+                break;
+            case LZ4:
+                is = Lz4Codec.newInputStream(in);
+                break;
+            case CHECKED:
+            default:
+                is = new BufferedInputStream(in);
+        }
+        return getCheckedInputStream(is);
+    }
+
+
+    /**
+     * Return the CheckedInputStream of an uncompressed snapshot content,
+     * using the checksum algorithm given by the version of its file header.
+     *
+     * @param is the snapshot content, starting with its file header
+     * @return the CheckedInputStream reading the snapshot content
+     * @throws IOException
+     */
+    public static CheckedInputStream getCheckedInputStream(InputStream is) throws IOException {
+        InputStream in = is.markSupported() ? is : new BufferedInputStream(is);
+        // peek the magic and version of the header
+        byte[] header = new byte[8];
+        in.mark(header.length);
+        int readlen = 0;
+        int l;
+        while (readlen < header.length && (l = in.read(header, readlen, header.length - readlen)) >= 0) {
+            readlen += l;
+        }
+        in.reset();
+        // a stream too short for a header fails once it is read
+        ChecksumType checksumType = readlen == header.length
+            ? ChecksumType.fromFileVersion(ByteBuffer.wrap(header).getInt(4))
+            : ChecksumType.ADLER32;
+        return new CheckedInputStream(in, checksumType.newChecksum());
+    }
+
     /**
      * Return the OutputStream based on predefined stream mode.
      *
@@ -130,10 +205,32 @@ public static CheckedInputStream getInputStream(File file) throws IOException {
      * @throws IOException
      */
     public static CheckedOutputStream getOutputStream(File file, boolean fsync) throws IOException {
+        return getOutputStream(file, fsync, checksumType);
+    }
+
+    /**
+     * Return the OutputStream based on predefined stream mode.
+     *
+     * @param file the file the OutputStream writes to
+     * @param fsync sync the file immediately after write
+     * @param checksumType the checksum algorithm, which must match the
+     *                     version of the file header written to the stream
+     * @return the specific OutputStream
+     * @throws IOException
+     */
+    public static CheckedOutputStream getOutputStream(
+        File file,
+        boolean fsync,
+        ChecksumType checksumType) throws IOException {
         OutputStream fos = fsync ? new AtomicFileOutputStream(file) : new FileOutputStream(file);
         OutputStream os;
         switch (streamMode) {
         case GZIP:
+            if (compressionThreads > 1) {
+                // GZIPInputStream reads the concatenated members back.
+                os = newBlockCompressedStream(fos, SnapStream::compressGZipBlock);
+                break;
+            }
             try {
                 os = new GZIPOutputStream(fos);
             } catch (IOException e) {
@@ -146,11 +243,52 @@ public static CheckedOutputStream getOutputStream(File file, boolean fsync) thro
             // constructor cannot throw an IOException.
             os = new SnappyOutputStream(fos);
             break;
+        case ZSTD:
+            os = newBlockCompressedStream(fos, ZstdCodec::compressBlock);
+            break;
+        case LZ4:
+            os = newBlockCompressedStream(fos, Lz4Codec::compressBlock);
+            break;
         case CHECKED:
         default:
             os = new BufferedOutputStream(fos);
         }
-        return new CheckedOutputStream(os, new Adler32());
+        return new CheckedOutputStream(os, checksumType.newChecksum());
+    }
+
+    private static OutputStream newBlockCompressedStream(
+        OutputStream fos,
+        BlockCompressedOutputStream.BlockCompressor compressor) {
+        ExecutorService executor = getCompressionExecutor();
+        return new BlockCompressedOutputStream(fos, compressor, executor,
+            COMPRESSION_BLOCK_SIZE, 2 * compressionThreads);
+    }
+
+    /**
+     * The pool compressing the snapshot blocks, or null if they are
+     * compressed on the thread writing the snapshot.
+     */
+    private static synchronized ExecutorService getCompressionExecutor() {
+        if (compressionThreads <= 1) {
+            return null;
+        }
+        if (compressionExecutor == null) {
+            AtomicInteger threadId = new AtomicInteger();
+            compressionExecutor = Executors.newFixedThreadPool(compressionThreads, r -> {
+                Thread t = new Thread(r, "SnapshotCompressor-" + threadId.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return compressionExecutor;
+    }
+
+    private static byte[] compressGZipBlock(byte[] block, int length) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(length / 2);
+        try (GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+            gos.write(block, 0, length);
+        }
+        return bos.toByteArray();
     }
 
     /**
@@ -203,6 +341,12 @@ public static boolean isValidSnapshot(File file) throws IOException {
         case SNAPPY:
             isValid = isValidSnappyStream(file);
             break;
+        case ZSTD:
+            isValid = hasMagicHeader(file, ZSTD_MAGIC);
+            break;
+        case LZ4:
+            isValid = hasMagicHeader(file, LZ4_BLOCK_MAGIC);
+            break;
         case CHECKED:
         default:
             isValid = isValidCheckedStream(file);
@@ -211,13 +355,111 @@ public static boolean isValidSnapshot(File file) throws IOException {
     }
 
     public static void setStreamMode(StreamMode mode) {
-        streamMode = mode;
+        streamMode = getWritableStreamMode(mode);
+    }
+
+    /**
+     * The stream mode to write the snapshots with: the given mode, unless
+     * its optional library is missing, in which case the snapshots are
+     * written uncompressed rather than failing.
+     */
+    private static StreamMode getWritableStreamMode(StreamMode mode) {
+        if (!isReadable(mode)) {
+            LOG.warn("The library of {} snapshots is missing, using {}", mode, StreamMode.DEFAULT_MODE);
+            return StreamMode.DEFAULT_MODE;
+        }
+        return mode;
     }
 
     public static StreamMode getStreamMode() {
         return streamMode;
     }
 
+    public static void setChecksumType(ChecksumType type) {
+        checksumType = type;
+    }
+
+    public static ChecksumType getChecksumType() {
+        return checksumType;
+    }
+
+    public static synchronized void setCompressionThreads(int threads) {
+        compressionThreads = threads;
+        if (compressionExecutor != null) {
+            compressionExecutor.shutdown();
+            compressionExecutor = null;
+        }
+    }
+
+    public static int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    /**
+     * Whether the snapshots of the given stream mode can be read by this
+     * server, which is not the case of the zstd and lz4 modes when their
+     * optional library is missing.
+     */
+    public static boolean isReadable(StreamMode mode) {
+        String codecClass;
+        switch (mode) {
+            case SNAPPY:
+                codecClass = "org.xerial.snappy.SnappyInputStream";
+                break;
+            case ZSTD:
+                codecClass = "com.github.luben.zstd.ZstdInputStream";
+                break;
+            case LZ4:
+                codecClass = "net.jpountz.lz4.LZ4BlockInputStream";
+                break;
+            default:
+                return true;
+        }
+        try {
+            Class.forName(codecClass, false, SnapStream.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * The stream modes of the snapshots this server can read, as a mask with
+     * the bit 1 &lt;&lt; ordinal set for each mode.
+     */
+    public static int getReadableStreamModes() {
+        int modes = 0;
+        for (StreamMode mode : StreamMode.values()) {
+            if (isReadable(mode)) {
+                modes |= 1 << mode.ordinal();
+            }
+        }
+        return modes;
+    }
+
+    /**
+     * Read the version of the file header of a snapshot, which tells its
+     * checksum algorithm, see {@link ChecksumType#fromFileVersion(int)}.
+     *
+     * @param file the snapshot file
+     * @return the version of its file header
+     * @throws IOException if the header cannot be read
+     */
+    public static int getFileHeaderVersion(File file) throws IOException {
+        try (CheckedInputStream is = getInputStream(file)) {
+            byte[] header = new byte[8];
+            int readlen = 0;
+            int l;
+            while (readlen < header.length && (l = is.read(header, readlen, header.length - readlen)) >= 0) {
+                readlen += l;
+            }
+            if (readlen < header.length) {
+                throw new IOException("Snapshot " + file + " has no file header");
+            }
+            return ByteBuffer.wrap(header).getInt(4);
+        }
+    }
+
     /**
      * Detect the stream mode from file name extension
      *
@@ -287,6 +529,34 @@ private static boolean isValidSnappyStream(File f) throws IOException {
         }
     }
 
+    /**
+     * Certify the zstd or lz4 stream integrity by checking the header
+     * of its first frame for the magic string
+     *
+     * @param f file to verify
+     * @param magic the expected magic string
+     * @return true if it has the correct magic string
+     * @throws IOException
+     */
+    private static boolean hasMagicHeader(File f, byte[] magic) throws IOException {
+        byte[] magicHeader = new byte[magic.length];
+        try (FileInputStream fis = new FileInputStream(f)) {
+            int readlen = 0;
+            int l;
+            while (readlen < magic.length && (l = fis.read(magicHeader, readlen, magic.length - readlen)) >= 0) {
+                readlen += l;
+            }
+            if (readlen != magic.length) {
+                LOG.error("Read incorrect number of bytes from {}", f.getName());
+                return false;
+            }
+            return Arrays.equals(magicHeader, magic);
+        } catch (FileNotFoundException e) {
+            LOG.error("Unable to open file {}", f.getName(), e);
+            return false;
+        }
+    }
+
     /**
      * Certify the Checked stream integrity by checking the header
      * length and format
@@ -326,4 +596,49 @@ private static boolean isValidCheckedStream(File f) throws IOException {
         return true;
     }
 
+    /**
+     * The zstd codec, kept apart so that the optional zstd-jni library is
+     * only loaded when a zstd snapshot is read or written.
+     */
+    private static class ZstdCodec {
+
+        static InputStream newInputStream(InputStream in) throws IOException {
+            // The archive reads a few bytes at a time, buffer them rather
+            // than crossing into the native decoder for each.
+            return new BufferedInputStream(new ZstdInputStream(new BufferedInputStream(in)));
+        }
+
+        static byte[] compressBlock(byte[] block, int length) throws IOException {
+            byte[] frame = new byte[(int) Zstd.compressBound(length)];
+            long size = Zstd.compressByteArray(frame, 0, frame.length, block, 0, length,
+                Zstd.defaultCompressionLevel());
+            if (Zstd.isError(size)) {
+                throw new IOException("Failed to compress a snapshot block: " + Zstd.getErrorName(size));
+            }
+            return Arrays.copyOf(frame, (int) size);
+        }
+
+    }
+
+    /**
+     * The lz4 codec, kept apart so that the optional lz4-java library is
+     * only loaded when an lz4 snapshot is read or written.
+     */
+    private static class Lz4Codec {
+
+        static InputStream newInputStream(InputStream in) {
+            // Keep reading past the end mark of every block frame.
+            return new LZ4BlockInputStream(new BufferedInputStream(in), false);
+        }
+
+        static byte[] compressBlock(byte[] block, int length) throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(length / 2);
+            try (LZ4BlockOutputStream los = new LZ4BlockOutputStream(bos, COMPRESSION_BLOCK_SIZE)) {
+                los.write(block, 0, length);
+            }
+            return bos.toByteArray();
+        }
+
+    }
+
 }
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A sidecar index of an uncompressed snapshot, which splits the node
+ * section of the snapshot into chunks of a fixed number of nodes that can
+ * be decoded independently of each other.
+ * <p>
+ * The index records the offset at which every chunk starts and the
+ * checksum of the snapshot content, so that it is only used with the exact
+ * snapshot it was built for. Snapshots without a valid index are loaded
+ * sequentially, as before.
+ */
+public class SnapshotIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SnapshotIndex.class);
+
+    public static final String SNAPSHOT_INDEX_ENABLED = "zookeeper.snapshot.index.enabled";
+
+    public static final String SNAPSHOT_INDEX_CHUNK_SIZE = "zookeeper.snapshot.index.chunkSize";
+
+    public static final String SNAPSHOT_INDEX_FILE_PREFIX = "snapshotIndex";
+
+    public static final int INDEX_MAGIC = ByteBuffer.wrap("ZKSI".getBytes()).getInt();
+
+    private static final int VERSION = 1;
+
+    private final long snapshotChecksum;
+    private final long nodeCount;
+    private final int chunkSize;
+    private final long[] chunkOffsets;
+
+    SnapshotIndex(long snapshotChecksum, long nodeCount, int chunkSize, long[] chunkOffsets) {
+        this.snapshotChecksum = snapshotChecksum;
+        this.nodeCount = nodeCount;
+        this.chunkSize = chunkSize;
+        this.chunkOffsets = chunkOffsets;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(SNAPSHOT_INDEX_ENABLED);
+    }
+
+    /**
+     * The checksum of the snapshot content up to its first seal.
+     */
+    public long getSnapshotChecksum() {
+        return snapshotChecksum;
+    }
+
+    public int getChunkCount() {
+        return chunkOffsets.length;
+    }
+
+    public long getChunkOffset(int chunk) {
+        return chunkOffsets[chunk];
+    }
+
+    /**
+     * The number of nodes in the given chunk.
+     */
+    public int getChunkNodeCount(int chunk) {
+        if (chunk < chunkOffsets.length - 1) {
+            return chunkSize;
+        }
+        return (int) (nodeCount - (long) chunkSize * (chunkOffsets.length - 1));
+    }
+
+    public static File makeIndexFile(File snapDir, long zxid) {
+        return new File(snapDir, SNAPSHOT_INDEX_FILE_PREFIX + "." + Long.toHexString(zxid));
+    }
+
+    void write(File file) throws IOException {
+        try (CheckedOutputStream os = new CheckedOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file)), new Adler32())) {
+            OutputArchive oa = BinaryOutputArchive.getArchive(os);
+            new FileHeader(INDEX_MAGIC, VERSION, -1).serialize(oa, "fileheader");
+            oa.writeLong(snapshotChecksum, "snapshotChecksum");
+            oa.writeLong(nodeCount, "nodeCount");
+            oa.writeInt(chunkSize, "chunkSize");
+            oa.writeInt(chunkOffsets.length, "chunkCount");
+            for (long offset : chunkOffsets) {
+                oa.writeLong(offset, "offset");
+            }
+            SnapStream.sealStream(os, oa);
+            os.flush();
+        }
+    }
+
+    /**
+     * Read the index of a snapshot.
+     *
+     * @param file the index file
+     * @return the index, or null if it doesn't exist or is not valid
+     */
+    public static SnapshotIndex read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (CheckedInputStream is = new CheckedInputStream(
+            new BufferedInputStream(new FileInputStream(file)), new Adler32())) {
+            InputArchive ia = BinaryInputArchive.getArchive(is);
+            FileHeader header = new FileHeader();
+            header.deserialize(ia, "fileheader");
+            if (header.getMagic() != INDEX_MAGIC || header.getVersion() != VERSION) {
+                LOG.warn("Ignoring snapshot index {} with unknown magic or version", file);
+                return null;
+            }
+            long snapshotChecksum = ia.readLong("snapshotChecksum");
+            long nodeCount = ia.readLong("nodeCount");
+            int chunkSize = ia.readInt("chunkSize");
+            int chunkCount = ia.readInt("chunkCount");
+            if (chunkSize <= 0 || chunkCount <= 0 || nodeCount <= (long) chunkSize * (chunkCount - 1)
+                || nodeCount > (long) chunkSize * chunkCount) {
+                LOG.warn("Ignoring snapshot index {} with inconsistent chunks", file);
+                return null;
+            }
+            long[] chunkOffsets = new long[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                chunkOffsets[i] = ia.readLong("offset");
+                if (i > 0 && chunkOffsets[i] <= chunkOffsets[i - 1]) {
+                    LOG.warn("Ignoring snapshot index {} with unordered chunks", file);
+                    return null;
+                }
+            }
+            SnapStream.checkSealIntegrity(is, ia);
+            return new SnapshotIndex(snapshotChecksum, nodeCount, chunkSize, chunkOffsets);
+        } catch (IOException e) {
+            LOG.warn("Ignoring unreadable snapshot index {}", file, e);
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotIndex{nodeCount=" + nodeCount + ", chunkSize=" + chunkSize
+               + ", chunkOffsets=" + Arrays.toString(chunkOffsets) + "}";
+    }
+
+    /**
+     * Collects the chunk offsets while a snapshot is being written.
+     */
+    static class Builder {
+
+        private final int chunkSize;
+        private long[] chunkOffsets = new long[16];
+        private int chunkCount;
+        private long nodeCount;
+
+        Builder() {
+            this(Integer.getInteger(SNAPSHOT_INDEX_CHUNK_SIZE, 100000));
+        }
+
+        Builder(int chunkSize) {
+            this.chunkSize = Math.max(1, chunkSize);
+        }
+
+        void addNode(long offset) {
+            if (nodeCount % chunkSize == 0) {
+                if (chunkCount == chunkOffsets.length) {
+                    chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+                }
+                chunkOffsets[chunkCount++] = offset;
+            }
+            nodeCount++;
+        }
+
+        SnapshotIndex build(long snapshotChecksum) {
+            return new SnapshotIndex(snapshotChecksum, nodeCount, chunkSize, Arrays.copyOf(chunkOffsets, chunkCount));
+        }
+
+    }
+
+}
@@ -92,6 +92,19 @@ public interface TxnLog extends Closeable {
      */
     void commit() throws IOException;
 
+    /**
+     * Write the appended transactions to the log and return a handle which
+     * makes them durable. Unlike {@link #commit()}, the returned commit may
+     * be completed without blocking appends, so that the next transactions
+     * are written while the previous ones are being synced.
+     * @return the commit of the transactions appended so far
+     * @throws IOException
+     */
+    default PendingCommit startCommit() throws IOException {
+        commit();
+        return () -> { };
+    }
+
     /**
      *
      * @return transaction log's elapsed sync time in milliseconds
@@ -113,6 +126,19 @@ public interface TxnLog extends Closeable {
      */
     long getTotalLogSize();
 
+    /**
+     * A commit started by {@link #startCommit()}.
+     */
+    interface PendingCommit {
+
+        /**
+         * sync the transactions of this commit to disk.
+         * @throws IOException
+         */
+        void complete() throws IOException;
+
+    }
+
     /**
      * an iterating interface for reading
      * transaction logs.
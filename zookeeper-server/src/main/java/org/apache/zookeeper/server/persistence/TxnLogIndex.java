@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A sparse index from zxids to the offsets of their records in the
+ * transaction log files, so that a log can be read from a given zxid without
+ * scanning the records before it.
+ * <p>
+ * A file gets an entry every {@link #TXN_LOG_INDEX_INTERVAL} bytes of
+ * records, added as the records are either written or read. Since the logs
+ * are only appended to, the entries of a file are added in order of both
+ * zxid and offset.
+ */
+class TxnLogIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TxnLogIndex.class);
+
+    public static final String TXN_LOG_INDEX_INTERVAL = "zookeeper.txnLogIndexInterval";
+
+    private static final long DEFAULT_INTERVAL = 0;
+
+    private static final long configuredInterval;
+
+    static {
+        configuredInterval = Long.getLong(TXN_LOG_INDEX_INTERVAL, DEFAULT_INTERVAL);
+        LOG.info("{} = {}", TXN_LOG_INDEX_INTERVAL, configuredInterval);
+    }
+
+    private final ConcurrentHashMap<File, FileIndex> files = new ConcurrentHashMap<>();
+
+    private final long interval;
+
+    TxnLogIndex() {
+        this(configuredInterval);
+    }
+
+    /**
+     * @param interval the minimum number of bytes between the entries of a
+     *                 file
+     */
+    TxnLogIndex(long interval) {
+        this.interval = interval;
+    }
+
+    static boolean isEnabled() {
+        return configuredInterval > 0;
+    }
+
+    /**
+     * Add the record of the given zxid, at the given offset of the log file,
+     * if it is far enough from the last entry of the file.
+     */
+    void add(File logFile, long zxid, long offset) {
+        files.computeIfAbsent(logFile, f -> new FileIndex()).add(zxid, offset);
+    }
+
+    /**
+     * The offset of the last indexed record of the log file with a zxid not
+     * greater than the given one.
+     *
+     * @return the offset, or -1 if there is none
+     */
+    long floorOffset(File logFile, long zxid) {
+        FileIndex index = files.get(logFile);
+        return index == null ? -1 : index.floorOffset(zxid);
+    }
+
+    /**
+     * Drop the entries of the log files which are not in the given ones,
+     * such as the purged logs.
+     */
+    void retain(Collection<File> logFiles) {
+        files.keySet().retainAll(logFiles);
+    }
+
+    private class FileIndex {
+
+        private long[] zxids = new long[16];
+        private long[] offsets = new long[16];
+        private int size;
+
+        synchronized void add(long zxid, long offset) {
+            if (size > 0 && (zxid <= zxids[size - 1] || offset < offsets[size - 1] + interval)) {
+                return;
+            }
+            if (size == zxids.length) {
+                zxids = Arrays.copyOf(zxids, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            zxids[size] = zxid;
+            offsets[size] = offset;
+            size++;
+        }
+
+        synchronized long floorOffset(long zxid) {
+            int i = Arrays.binarySearch(zxids, 0, size, zxid);
+            if (i < 0) {
+                // the entry before the insertion point
+                i = -i - 2;
+            }
+            return i < 0 ? -1 : offsets[i];
+        }
+
+    }
+
+}
@@ -36,7 +36,6 @@
 import java.util.Date;
 import java.util.List;
 import java.util.Scanner;
-import java.util.zip.Adler32;
 import java.util.zip.Checksum;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -188,6 +187,7 @@ public void dump(Scanner scanner) throws Exception {
         }
         System.out.println("ZooKeeper Transactional Log File with dbid " + fhdr.getDbid()
                            + " txnlog format version " + fhdr.getVersion());
+        ChecksumType checksumType = ChecksumType.fromFileVersion(fhdr.getVersion());
 
         if (recoveryMode) {
             fhdr.serialize(recoveryOa, "fileheader");
@@ -212,7 +212,7 @@ public void dump(Scanner scanner) throws Exception {
                 System.out.println("EOF reached after " + count + " txns.");
                 return;
             }
-            Checksum crc = new Adler32();
+            Checksum crc = checksumType.newChecksum();
             crc.update(bytes, 0, bytes.length);
             if (crcValue != crc.getValue()) {
                 if (recoveryMode) {
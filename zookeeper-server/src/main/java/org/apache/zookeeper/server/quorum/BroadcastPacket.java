@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.data.Id;
+
+/**
+ * A packet sent to many learners, such as a proposal or a commit, which is
+ * serialized once, by the first learner handler sending it, and whose bytes
+ * are then written as is by the other handlers.
+ * <p>
+ * The packet must not be modified once it is queued to a learner handler.
+ */
+class BroadcastPacket extends QuorumPacket {
+
+    /** the serialized packet, shared by the learner handlers */
+    private volatile byte[] bytes;
+
+    BroadcastPacket(int type, long zxid, byte[] data, List<Id> authinfo) {
+        super(type, zxid, data, authinfo);
+    }
+
+    /**
+     * The packet serialized as by {@link BinaryOutputArchive#writeRecord},
+     * not to be modified. Concurrent callers may both serialize the packet
+     * the first time, to the same bytes.
+     */
+    byte[] getBytes() throws IOException {
+        byte[] serialized = bytes;
+        if (serialized == null) {
+            // type, zxid, data length and data, authinfo count
+            byte[] data = getData();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(4 + 8 + 4 + (data == null ? 0 : data.length) + 4);
+            BinaryOutputArchive.getArchive(out).writeRecord(this, "packet");
+            serialized = out.toByteArray();
+            bytes = serialized;
+        }
+        return serialized;
+    }
+
+}
@@ -20,9 +20,12 @@
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -34,6 +37,7 @@
 import org.apache.zookeeper.server.RequestProcessor;
 import org.apache.zookeeper.server.ServerMetrics;
 import org.apache.zookeeper.server.WorkerService;
+import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.ZooKeeperCriticalThread;
 import org.apache.zookeeper.server.ZooKeeperServerListener;
 import org.apache.zookeeper.util.ServiceUtils;
@@ -86,6 +90,18 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements RequestP
     public static final String ZOOKEEPER_COMMIT_PROC_MAX_READ_BATCH_SIZE = "zookeeper.commitProcessor.maxReadBatchSize";
     /** Default max commit batch size: 1 */
     public static final String ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE = "zookeeper.commitProcessor.maxCommitBatchSize";
+    /** Default fair read queuing: none, can be session or identity */
+    public static final String ZOOKEEPER_COMMIT_PROC_FAIR_READ_QUEUING = "zookeeper.commitProcessor.fairReadQueuing";
+    /** Default fair read weights: none, all the identities have a weight of 1 */
+    public static final String ZOOKEEPER_COMMIT_PROC_FAIR_READ_WEIGHTS = "zookeeper.commitProcessor.fairReadWeights";
+    /** Default max fair reads in process: 2 * numWorkerThreads */
+    public static final String ZOOKEEPER_COMMIT_PROC_MAX_FAIR_READS_IN_PROCESS = "zookeeper.commitProcessor.maxFairReadsInProcess";
+    /** Default apply threads: 0 to apply the committed txns one at a time */
+    public static final String ZOOKEEPER_COMMIT_PROC_APPLY_THREADS = "zookeeper.commitProcessor.applyThreads";
+
+    static final String TENANT_READ_QUEUE_DEPTH = "commit_processor_tenant_read_queue_depth";
+    /** The number of tenants whose queue depth is reported */
+    private static final int TENANT_READ_QUEUE_DEPTH_LIMIT = 20;
 
     /**
      * Incoming requests.
@@ -122,6 +138,27 @@ public class CommitProcessor extends ZooKeeperCriticalThread implements RequestP
     /** The number of requests currently being processed */
     protected final AtomicInteger numRequestsProcessing = new AtomicInteger(0);
 
+    /**
+     * Reads queued per tenant until there is room for them in the worker
+     * pool, or null if the reads are handed to the pool as they come.
+     */
+    private FairReadQueue fairReads;
+
+    /**
+     * The number of requests in process past which the reads queued per
+     * tenant wait. It keeps the backlog in the fair queues rather than in the
+     * FIFO queues of the workers.
+     */
+    private int maxFairReadsInProcess;
+
+    /**
+     * The database the txns of a commit batch are applied to ahead of their
+     * turn, in parallel for different subtrees, and the applier doing so, or
+     * null if the txns are applied one at a time.
+     */
+    private ZKDatabase zkDb;
+    private ParallelTxnApplier txnApplier;
+
     RequestProcessor nextProcessor;
 
     /** For testing purposes, we use a separated stopping condition for the
@@ -215,9 +252,9 @@ public void run() {
                 synchronized (this) {
                     commitIsWaiting = !committedRequests.isEmpty();
                     requestsToProcess = queuedRequests.size();
-                    if (requestsToProcess == 0 && !commitIsWaiting) {
+                    if (requestsToProcess == 0 && !commitIsWaiting && !fairReadsReady()) {
                         // Waiting for requests to process
-                        while (!stopped && requestsToProcess == 0 && !commitIsWaiting) {
+                        while (!stopped && requestsToProcess == 0 && !commitIsWaiting && !fairReadsReady()) {
                             wait();
                             commitIsWaiting = !committedRequests.isEmpty();
                             requestsToProcess = queuedRequests.size();
@@ -248,14 +285,19 @@ public void run() {
                        && (request = queuedRequests.poll()) != null) {
                     requestsToProcess--;
                     if (needCommit(request) || pendingRequests.containsKey(request.sessionId)) {
+                        if (fairReads != null) {
+                            // The earlier reads of the session go first
+                            fairReads.drainSession(request.sessionId, this::sendReadToNextProcessor);
+                        }
                         // Add request to pending
                         Deque<Request> requests = pendingRequests.computeIfAbsent(request.sessionId, sid -> new ArrayDeque<>());
                         requests.addLast(request);
                         ServerMetrics.getMetrics().REQUESTS_IN_SESSION_QUEUE.add(requests.size());
+                    } else if (fairReads != null) {
+                        fairReads.add(request);
                     } else {
                         readsProcessed++;
-                        numReadQueuedRequests.decrementAndGet();
-                        sendToNextProcessor(request);
+                        sendReadToNextProcessor(request);
                     }
                     /*
                      * Stop feeding the pool if there is a local pending update
@@ -277,6 +319,12 @@ public void run() {
                         break;
                     }
                 }
+                if (fairReads != null) {
+                    while (!stopped && fairReadsReady()) {
+                        readsProcessed++;
+                        sendReadToNextProcessor(fairReads.poll());
+                    }
+                }
                 ServerMetrics.getMetrics().READS_ISSUED_IN_COMMIT_PROC.add(readsProcessed);
 
                 if (!commitIsWaiting) {
@@ -302,6 +350,7 @@ public void run() {
                      * Loop through all the commits, and try to drain them.
                      */
                     Set<Long> queuesToDrain = new HashSet<>();
+                    List<Request> writes = new ArrayList<>();
                     long startWriteTime = Time.currentElapsedTime();
                     int commitsProcessed = 0;
                     while (commitIsWaiting && !stopped && commitsToProcess > 0) {
@@ -375,11 +424,19 @@ public void run() {
                         commitsToProcess--;
                         commitsProcessed++;
 
-                        // Process the write inline.
-                        processWrite(request);
+                        // Process the write inline, or with the batch if
+                        // its txn may be applied ahead.
+                        if (txnApplier == null) {
+                            processWrite(request);
+                        } else {
+                            writes.add(request);
+                        }
 
                         commitIsWaiting = !committedRequests.isEmpty();
                     }
+                    if (txnApplier != null) {
+                        processWrites(writes);
+                    }
                     ServerMetrics.getMetrics().WRITE_BATCH_TIME_IN_COMMIT_PROCESSOR
                         .add(Time.currentElapsedTime() - startWriteTime);
                     ServerMetrics.getMetrics().WRITES_ISSUED_IN_COMMIT_PROC.add(commitsProcessed);
@@ -393,8 +450,7 @@ public void run() {
                         Deque<Request> sessionQueue = pendingRequests.get(sessionId);
                         int readsAfterWrite = 0;
                         while (!stopped && !sessionQueue.isEmpty() && !needCommit(sessionQueue.peek())) {
-                            numReadQueuedRequests.decrementAndGet();
-                            sendToNextProcessor(sessionQueue.poll());
+                            sendReadToNextProcessor(sessionQueue.poll());
                             readsAfterWrite++;
                         }
                         ServerMetrics.getMetrics().READS_AFTER_WRITE_IN_SESSION_QUEUE.add(readsAfterWrite);
@@ -446,6 +502,8 @@ public void start() {
         workerShutdownTimeoutMS = Long.getLong(ZOOKEEPER_COMMIT_PROC_SHUTDOWN_TIMEOUT, 5000);
 
         initBatchSizes();
+        initFairReads(numWorkerThreads);
+        initTxnApplier();
 
         LOG.info(
             "Configuring CommitProcessor with {} worker threads.",
@@ -458,6 +516,15 @@ public void start() {
         super.start();
     }
 
+    private boolean fairReadsReady() {
+        return fairReads != null && !fairReads.isEmpty() && numRequestsProcessing.get() < maxFairReadsInProcess;
+    }
+
+    private void sendReadToNextProcessor(Request request) {
+        numReadQueuedRequests.decrementAndGet();
+        sendToNextProcessor(request);
+    }
+
     /**
      * Schedule final request processing; if a worker thread pool is not being
      * used, processing is done directly by this thread.
@@ -476,6 +543,85 @@ private void processWrite(Request request) throws RequestProcessorException {
         ServerMetrics.getMetrics().WRITE_FINAL_PROC_TIME.add(Time.currentElapsedTime() - timeBeforeFinalProc);
     }
 
+    /**
+     * Process a batch of writes in order, applying the txns of each run of
+     * writes confined to a subtree ahead of their turn first, in parallel.
+     * The writes are then processed as usual, and complete their txns.
+     */
+    private void processWrites(List<Request> writes) throws RequestProcessorException, InterruptedException {
+        List<String> subtrees = new ArrayList<>(writes.size());
+        for (Request request : writes) {
+            subtrees.add(ParallelTxnApplier.subtreeOf(request));
+        }
+        int start = 0;
+        while (start < writes.size()) {
+            int end = start;
+            while (end < writes.size() && subtrees.get(end) != null) {
+                end++;
+            }
+            if (end - start > 1) {
+                txnApplier.applyAhead(zkDb, writes.subList(start, end), subtrees.subList(start, end));
+                ServerMetrics.getMetrics().WRITES_APPLIED_AHEAD_IN_COMMIT_PROC.add(end - start);
+            }
+            // The write ending the run, if any, is applied in its turn
+            end = Math.max(end, start + 1);
+            for (int i = start; i < end; i++) {
+                processWrite(writes.get(i));
+            }
+            start = end;
+        }
+    }
+
+    private void initFairReads(int numWorkerThreads) {
+        String mode = System.getProperty(ZOOKEEPER_COMMIT_PROC_FAIR_READ_QUEUING, "none");
+        if ("none".equalsIgnoreCase(mode)) {
+            return;
+        }
+        FairReadQueue.Mode fairMode;
+        try {
+            fairMode = FairReadQueue.Mode.valueOf(mode.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            String errorMsg = ZOOKEEPER_COMMIT_PROC_FAIR_READ_QUEUING + " must be none, session or identity, was " + mode;
+            throw new IllegalArgumentException(errorMsg);
+        }
+        maxFairReadsInProcess = Integer.getInteger(ZOOKEEPER_COMMIT_PROC_MAX_FAIR_READS_IN_PROCESS, 2 * Math.max(1, numWorkerThreads));
+        if (maxFairReadsInProcess <= 0) {
+            String errorMsg = "maxFairReadsInProcess must be positive, was " + maxFairReadsInProcess;
+            throw new IllegalArgumentException(errorMsg);
+        }
+        fairReads = new FairReadQueue(
+            fairMode,
+            FairReadQueue.parseWeights(System.getProperty(ZOOKEEPER_COMMIT_PROC_FAIR_READ_WEIGHTS)));
+        FairReadQueue queue = fairReads;
+        ServerMetrics.getMetrics().getMetricsProvider().getRootContext()
+            .registerGaugeSet(TENANT_READ_QUEUE_DEPTH, () -> queue.depths(TENANT_READ_QUEUE_DEPTH_LIMIT));
+
+        LOG.info(
+            "Configuring CommitProcessor with fair read queuing per {} and maxFairReadsInProcess {}",
+            mode,
+            maxFairReadsInProcess);
+    }
+
+    /**
+     * Set the database the committed txns are applied to, so that they may
+     * be applied in parallel, see {@link #ZOOKEEPER_COMMIT_PROC_APPLY_THREADS}.
+     */
+    public void setZKDatabase(ZKDatabase zkDb) {
+        this.zkDb = zkDb;
+    }
+
+    private void initTxnApplier() {
+        int applyThreads = Integer.getInteger(ZOOKEEPER_COMMIT_PROC_APPLY_THREADS, 0);
+        if (applyThreads <= 0 || zkDb == null) {
+            return;
+        }
+        txnApplier = new ParallelTxnApplier(applyThreads);
+        LOG.info("Configuring CommitProcessor with {} apply threads", applyThreads);
+        if (maxCommitBatchSize == 1) {
+            LOG.warn("The txns are applied in parallel within a commit batch, {} should be above 1", ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE);
+        }
+    }
+
     private static void initBatchSizes() {
         maxReadBatchSize = Integer.getInteger(ZOOKEEPER_COMMIT_PROC_MAX_READ_BATCH_SIZE, -1);
         maxCommitBatchSize = Integer.getInteger(ZOOKEEPER_COMMIT_PROC_MAX_COMMIT_BATCH_SIZE, 1);
@@ -567,9 +713,14 @@ public void doWork() throws RequestProcessorException {
 
             } finally {
 
-                if (numRequestsProcessing.decrementAndGet() == 0) {
+                int numRequestsInProcess = numRequestsProcessing.decrementAndGet();
+                if (numRequestsInProcess == 0) {
                     wakeupOnEmpty();
                 }
+                // The main thread may be waiting for room for the fair reads
+                if (fairReads != null && numRequestsInProcess == maxFairReadsInProcess - 1 && !fairReads.isEmpty()) {
+                    wakeup();
+                }
             }
         }
 
@@ -631,10 +782,18 @@ public void shutdown() {
 
         halt();
 
+        if (fairReads != null) {
+            ServerMetrics.getMetrics().getMetricsProvider().getRootContext().unregisterGaugeSet(TENANT_READ_QUEUE_DEPTH);
+        }
+
         if (workerPool != null) {
             workerPool.join(workerShutdownTimeoutMS);
         }
 
+        if (txnApplier != null) {
+            txnApplier.shutdown();
+        }
+
         if (nextProcessor != null) {
             nextProcessor.shutdown();
         }
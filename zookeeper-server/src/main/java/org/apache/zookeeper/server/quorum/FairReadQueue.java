@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The reads of the CommitProcessor waiting to be handed to its workers,
+ * queued per tenant and dispatched in weighted round robin, so that a client
+ * pipelining many reads only delays its own reads instead of everybody's.
+ * <p>
+ * A tenant is either a session, or the identity of a client: its first
+ * authenticated id which is not an ip one, else its ip address. All the
+ * queued reads of a session belong to the same tenant, even if the session
+ * authenticates in the meantime, so they are dispatched in order.
+ * <p>
+ * The queue is only used by the CommitProcessor main thread, but for
+ * {@link #size()} and {@link #depths(int)}.
+ */
+class FairReadQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FairReadQueue.class);
+
+    enum Mode {
+        SESSION,
+        IDENTITY
+    }
+
+    private static class Tenant {
+
+        final Object key;
+        final int weight;
+        final ArrayDeque<Request> reads = new ArrayDeque<>();
+        /** the number of reads dispatched in a row in the current round */
+        int served;
+        /** the number of queued reads, read by the metrics */
+        volatile int depth;
+
+        Tenant(Object key, int weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+
+    }
+
+    private static class SessionReads {
+
+        final Tenant tenant;
+        int count;
+
+        SessionReads(Tenant tenant) {
+            this.tenant = tenant;
+        }
+
+    }
+
+    private final Mode mode;
+    private final Map<String, Integer> weights;
+
+    private final Map<Object, Tenant> tenants = new ConcurrentHashMap<>();
+    /** the tenants with queued reads, in round robin order */
+    private final ArrayDeque<Tenant> rotation = new ArrayDeque<>();
+    private final Map<Long, SessionReads> sessions = new HashMap<>();
+    private int count;
+    /** the number of queued reads, read by the other threads */
+    private volatile int size;
+
+    FairReadQueue(Mode mode, Map<String, Integer> weights) {
+        this.mode = mode;
+        this.weights = weights;
+    }
+
+    /**
+     * Parse the weights of the identities, given as a comma separated list
+     * of scheme:id=weight, e.g. "sasl:batch=1,sasl:web=4". The identities
+     * which are not listed have a weight of 1.
+     */
+    static Map<String, Integer> parseWeights(String spec) {
+        Map<String, Integer> weights = new HashMap<>();
+        if (spec == null) {
+            return weights;
+        }
+        for (String item : spec.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int index = item.lastIndexOf('=');
+            try {
+                int weight = Integer.parseInt(item.substring(index + 1).trim());
+                if (index <= 0 || weight <= 0) {
+                    throw new NumberFormatException();
+                }
+                weights.put(item.substring(0, index).trim(), weight);
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring invalid fair read weight {}, expecting scheme:id=weight with a positive weight", item);
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * The number of queued reads.
+     */
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void add(Request request) {
+        SessionReads sessionReads = sessions.get(request.sessionId);
+        if (sessionReads == null) {
+            Object key = tenantOf(request);
+            Tenant tenant = tenants.get(key);
+            if (tenant == null) {
+                tenant = new Tenant(key, weightOf(key));
+                tenants.put(key, tenant);
+            }
+            sessionReads = new SessionReads(tenant);
+            sessions.put(request.sessionId, sessionReads);
+        }
+        Tenant tenant = sessionReads.tenant;
+        if (tenant.reads.isEmpty()) {
+            rotation.addLast(tenant);
+        }
+        tenant.reads.addLast(request);
+        tenant.depth = tenant.reads.size();
+        sessionReads.count++;
+        size = ++count;
+        ServerMetrics.getMetrics().READS_IN_TENANT_QUEUE.add(tenant.depth);
+    }
+
+    /**
+     * The next read to dispatch: the tenant at the head of the rotation gets
+     * as many reads in a row as its weight, then goes to the tail.
+     */
+    Request poll() {
+        Tenant tenant = rotation.peekFirst();
+        if (tenant == null) {
+            return null;
+        }
+        Request request = tenant.reads.pollFirst();
+        if (tenant.reads.isEmpty()) {
+            rotation.pollFirst();
+            tenant.served = 0;
+        } else if (++tenant.served >= tenant.weight) {
+            rotation.addLast(rotation.pollFirst());
+            tenant.served = 0;
+        }
+        removed(tenant, request.sessionId);
+        return request;
+    }
+
+    /**
+     * Take out the queued reads of a session, in order, e.g. before one of its
+     * writes, which must not get ahead of them.
+     */
+    void drainSession(long sessionId, Consumer<Request> consumer) {
+        SessionReads sessionReads = sessions.get(sessionId);
+        if (sessionReads == null) {
+            return;
+        }
+        Tenant tenant = sessionReads.tenant;
+        List<Request> drained = new ArrayList<>(sessionReads.count);
+        Iterator<Request> iter = tenant.reads.iterator();
+        while (iter.hasNext()) {
+            Request request = iter.next();
+            if (request.sessionId == sessionId) {
+                iter.remove();
+                drained.add(request);
+            }
+        }
+        if (tenant.reads.isEmpty()) {
+            rotation.remove(tenant);
+            tenant.served = 0;
+        }
+        for (Request request : drained) {
+            removed(tenant, sessionId);
+            consumer.accept(request);
+        }
+    }
+
+    private void removed(Tenant tenant, long sessionId) {
+        size = --count;
+        tenant.depth = tenant.reads.size();
+        if (tenant.depth == 0) {
+            tenants.remove(tenant.key);
+        }
+        SessionReads sessionReads = sessions.get(sessionId);
+        if (--sessionReads.count == 0) {
+            sessions.remove(sessionId);
+        }
+    }
+
+    /**
+     * The number of queued reads of the deepest tenants, for the metrics.
+     */
+    Map<String, Number> depths(int limit) {
+        // Snapshot the depths, which keep changing, before sorting them
+        List<Map.Entry<String, Integer>> queued = new ArrayList<>();
+        for (Tenant tenant : tenants.values()) {
+            int depth = tenant.depth;
+            if (depth > 0) {
+                queued.add(new AbstractMap.SimpleImmutableEntry<>(label(tenant.key), depth));
+            }
+        }
+        if (queued.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        queued.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        Map<String, Number> depths = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : queued.subList(0, Math.min(limit, queued.size()))) {
+            depths.put(entry.getKey(), entry.getValue());
+        }
+        return depths;
+    }
+
+    private Object tenantOf(Request request) {
+        if (mode == Mode.SESSION) {
+            return request.sessionId;
+        }
+        if (request.authInfo != null) {
+            for (Id id : request.authInfo) {
+                if (!"ip".equals(id.getScheme())) {
+                    return id.getScheme() + ":" + id.getId();
+                }
+            }
+        }
+        ServerCnxn cnxn = request.cnxn;
+        if (cnxn != null && cnxn.getRemoteSocketAddress() != null) {
+            return "ip:" + cnxn.getHostAddress();
+        }
+        return request.sessionId;
+    }
+
+    private int weightOf(Object key) {
+        if (key instanceof String) {
+            return weights.getOrDefault(key, 1);
+        }
+        return 1;
+    }
+
+    private static String label(Object key) {
+        if (key instanceof Long) {
+            return "0x" + Long.toHexString((Long) key);
+        }
+        return key.toString();
+    }
+
+}
@@ -121,8 +121,7 @@ void followLeader() throws InterruptedException {
                 // create a reusable packet to reduce gc impact
                 QuorumPacket qp = new QuorumPacket();
                 while (this.isRunning()) {
-                    readPacket(qp);
-                    processPacket(qp);
+                    processPacket(receivePacket(qp));
                 }
             } catch (Exception e) {
                 LOG.warn("Exception when following the leader", e);
@@ -132,6 +131,7 @@ void followLeader() throws InterruptedException {
                 pendingRevalidations.clear();
             }
         } finally {
+            stopReceivingThread();
             if (om != null) {
                 om.stop();
             }
@@ -161,7 +161,9 @@ protected void processPacket(QuorumPacket qp) throws Exception {
             break;
         case Leader.PROPOSAL:
             ServerMetrics.getMetrics().LEARNER_PROPOSAL_RECEIVED_COUNT.add(1);
-            TxnLogEntry logEntry = SerializeUtils.deserializeTxn(qp.getData());
+            TxnLogEntry logEntry = qp instanceof LearnerReceiver.DecodedProposal
+                ? ((LearnerReceiver.DecodedProposal) qp).logEntry
+                : SerializeUtils.deserializeTxn(qp.getData());
             TxnHeader hdr = logEntry.getHeader();
             Record txn = logEntry.getTxn();
             TxnDigest digest = logEntry.getDigest();
@@ -198,14 +200,20 @@ protected void processPacket(QuorumPacket qp) throws Exception {
                 ServerMetrics.getMetrics().OM_PROPOSAL_PROCESS_TIME.add(Time.currentElapsedTime() - startTime);
             }
             break;
+        case Leader.PROPOSALS:
+            for (QuorumPacket proposal : Leader.splitProposalsPacket(qp)) {
+                processPacket(proposal);
+            }
+            break;
         case Leader.COMMIT:
             ServerMetrics.getMetrics().LEARNER_COMMIT_RECEIVED_COUNT.add(1);
-            fzk.commit(qp.getZxid());
-            if (om != null) {
-                final long startTime = Time.currentElapsedTime();
-                om.proposalCommitted(qp.getZxid());
-                ServerMetrics.getMetrics().OM_COMMIT_PROCESS_TIME.add(Time.currentElapsedTime() - startTime);
+            if (isBatching()) {
+                // Commit the pending txns up to the zxid
+                while (!fzk.pendingTxns.isEmpty() && fzk.pendingTxns.element().zxid < qp.getZxid()) {
+                    commit(fzk.pendingTxns.element().zxid);
+                }
             }
+            commit(qp.getZxid());
             break;
 
         case Leader.COMMITANDACTIVATE:
@@ -246,6 +254,15 @@ protected void processPacket(QuorumPacket qp) throws Exception {
         }
     }
 
+    private void commit(long zxid) {
+        fzk.commit(zxid);
+        if (om != null) {
+            final long startTime = Time.currentElapsedTime();
+            om.proposalCommitted(zxid);
+            ServerMetrics.getMetrics().OM_COMMIT_PROCESS_TIME.add(Time.currentElapsedTime() - startTime);
+        }
+    }
+
     /**
      * The zxid of the last operation seen
      * @return zxid
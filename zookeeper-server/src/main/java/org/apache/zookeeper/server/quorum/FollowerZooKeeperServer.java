@@ -21,9 +21,7 @@
 import java.io.IOException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-import javax.management.JMException;
 import org.apache.jute.Record;
-import org.apache.zookeeper.jmx.MBeanRegistry;
 import org.apache.zookeeper.metrics.MetricsContext;
 import org.apache.zookeeper.server.ExitCode;
 import org.apache.zookeeper.server.FinalRequestProcessor;
@@ -70,6 +68,7 @@ public Follower getFollower() {
     protected void setupRequestProcessors() {
         RequestProcessor finalProcessor = new FinalRequestProcessor(this);
         commitProcessor = new CommitProcessor(finalProcessor, Long.toString(getServerId()), true, getZooKeeperServerListener());
+        commitProcessor.setZKDatabase(getZKDatabase());
         commitProcessor.start();
         firstProcessor = new FollowerRequestProcessor(this, commitProcessor);
         ((FollowerRequestProcessor) firstProcessor).start();
@@ -148,20 +147,11 @@ public Learner getLearner() {
      *
      * @param request received from external Learner
      */
+    @Override
     void processObserverRequest(Request request) {
         ((FollowerRequestProcessor) firstProcessor).processRequest(request, false);
     }
 
-    boolean registerJMX(LearnerHandlerBean handlerBean) {
-        try {
-            MBeanRegistry.getInstance().register(handlerBean, jmxServerBean);
-            return true;
-        } catch (JMException e) {
-            LOG.warn("Could not register connection", e);
-        }
-        return false;
-    }
-
     @Override
     protected void registerMetrics() {
         super.registerMetrics();
@@ -32,7 +32,6 @@
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -44,7 +43,8 @@
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -91,6 +91,65 @@ public static class Proposal extends SyncedLearnerTracker {
         public QuorumPacket packet;
         public Request request;
 
+        /** whether a quorum of all the configurations acked the proposal */
+        private boolean quorumAcked;
+
+        /*
+         * The acks of an outstanding proposal are recorded holding the lock
+         * of the proposal rather than the one of the leader, so that the
+         * learner handlers do not contend on the leader for every ack.
+         */
+
+        @Override
+        public synchronized boolean addAck(Long sid) {
+            return super.addAck(sid);
+        }
+
+        @Override
+        public synchronized boolean hasAllQuorums() {
+            return super.hasAllQuorums();
+        }
+
+        @Override
+        public synchronized String ackSetsToString() {
+            return super.ackSetsToString();
+        }
+
+        /**
+         * Record the ack of a learner. The acks following the one getting
+         * the proposal acked by a quorum are recorded as well, as long as the
+         * proposal is outstanding: the leader designated by a reconfiguration
+         * is the learner which acked the most of the proposals following it.
+         *
+         * @return true if this ack is the one getting the proposal acked by a
+         *         quorum of all its configurations, false otherwise, in
+         *         particular for the acks following it
+         */
+        synchronized boolean addAckReachingQuorums(long sid) {
+            super.addAck(sid);
+            if (quorumAcked) {
+                return false;
+            }
+            quorumAcked = super.hasAllQuorums();
+            return quorumAcked;
+        }
+
+        /** the commit of a committed proposal, shared by the learners synced with it */
+        private volatile BroadcastPacket commitPacket;
+
+        /**
+         * The commit of the proposal, created the first time it is asked
+         * for. Concurrent callers may both create it.
+         */
+        BroadcastPacket getCommitPacket() {
+            BroadcastPacket commit = commitPacket;
+            if (commit == null) {
+                commit = new BroadcastPacket(Leader.COMMIT, packet.getZxid(), null, null);
+                commitPacket = commit;
+            }
+            return commit;
+        }
+
         @Override
         public String toString() {
             return packet.getType() + ", " + packet.getZxid() + ", " + request;
@@ -115,6 +174,45 @@ public static int getAckLoggingFrequency() {
         return ackLoggingFrequency;
     }
 
+    // send up to zabBatchSize queued proposals to a learner as one message, and commit and ack
+    // up to a zxid at once, with the learners batching as well. If <=1, disable batching.
+    public static final String ZAB_BATCH_SIZE = "zookeeper.zab.batchSize";
+    private static int zabBatchSize;
+
+    static {
+        zabBatchSize = Integer.getInteger(ZAB_BATCH_SIZE, 0);
+        LOG.info("{} = {}", ZAB_BATCH_SIZE, zabBatchSize);
+    }
+
+    public static void setZabBatchSize(int batchSize) {
+        zabBatchSize = batchSize;
+    }
+
+    public static int getZabBatchSize() {
+        return zabBatchSize;
+    }
+
+    /**
+     * The protocol version of the peers batching the Zab messages, which the
+     * learners and the leader only advertise with batching enabled.
+     */
+    static final int BATCHING_PROTOCOL_VERSION = 0x10001;
+
+    /**
+     * The version of the snapshot file sync, see
+     * {@link LearnerHandler#SNAPSHOT_FILE_SYNC}. The learners supporting it
+     * append it to their LearnerInfo, with the snapshot stream modes and
+     * checksum versions they can read; the older leaders ignore it.
+     */
+    static final int SNAPSHOT_FILE_SYNC_VERSION = 1;
+
+    /**
+     * The protocol version advertised to the other peers.
+     */
+    static int getProtocolVersion() {
+        return zabBatchSize > 1 ? BATCHING_PROTOCOL_VERSION : 0x10000;
+    }
+
     final LeaderZooKeeperServer zk;
 
     final QuorumPeer self;
@@ -433,7 +531,13 @@ Optional<ServerSocket> createServerSocket(InetSocketAddress address, boolean por
      */
     static final int INFORMANDACTIVATE = 19;
 
-    final ConcurrentMap<Long, Proposal> outstandingProposals = new ConcurrentHashMap<>();
+    /**
+     * This message type is sent by a leader to propose consecutive mutations
+     * at once, to a learner batching the Zab messages.
+     */
+    static final int PROPOSALS = 20;
+
+    final ConcurrentNavigableMap<Long, Proposal> outstandingProposals = new ConcurrentSkipListMap<>();
 
     private final ConcurrentLinkedQueue<Proposal> toBeApplied = new ConcurrentLinkedQueue<>();
 
@@ -563,7 +667,7 @@ private void acceptConnections() throws IOException {
 
     // when a reconfig occurs where the leader is removed or becomes an observer,
     // it does not commit ops after committing the reconfig
-    boolean allowedToCommit = true;
+    volatile boolean allowedToCommit = true;
 
     /**
      * Timestamp when this leader started serving request (Quorum is running)
@@ -880,7 +984,10 @@ private long getDesignatedLeader(Proposal reconfigProposal, long zxid) {
         // start with an initial set of candidates that are voters from new config that
         // acknowledged the reconfig op (there must be a quorum). Choose one of them as
         // current leader candidate
-        HashSet<Long> candidates = new HashSet<>(newQVAcksetPair.getAckset());
+        HashSet<Long> candidates;
+        synchronized (reconfigProposal) {
+            candidates = new HashSet<>(newQVAcksetPair.getAckset());
+        }
         candidates.remove(self.getMyId()); // if we're here, I shouldn't be the leader
         long curCandidate = candidates.iterator().next();
 
@@ -893,7 +1000,9 @@ private long getDesignatedLeader(Proposal reconfigProposal, long zxid) {
         while (p != null && !candidates.isEmpty()) {
             for (Proposal.QuorumVerifierAcksetPair qvAckset : p.qvAcksetPairs) {
                 //reduce the set of candidates to those that acknowledged p
-                candidates.retainAll(qvAckset.getAckset());
+                synchronized (p) {
+                    candidates.retainAll(qvAckset.getAckset());
+                }
                 //no candidate acked p, return the best candidate found so far
                 if (candidates.isEmpty()) {
                     return curCandidate;
@@ -989,16 +1098,38 @@ public synchronized boolean tryToCommit(Proposal p, long zxid, SocketAddress fol
         return true;
     }
 
+    /**
+     * Process the ack of a learner batching the Zab messages, which acks all
+     * the proposals up to the zxid at once, as it logs them in order.
+     */
+    @Override
+    public void processAcksUpTo(long sid, long zxid, SocketAddress followerAddr) {
+        // The outstanding proposals of the epoch before the zxid, in zxid
+        // order. A proposal is outstanding before it is sent, so the ones
+        // acked by the learner are all there, unless already committed.
+        long from = ZxidUtils.makeZxid(ZxidUtils.getEpochFromZxid(zxid), 1);
+        for (Long ackZxid : outstandingProposals.subMap(from, true, zxid, false).keySet()) {
+            if (!allowedToCommit) {
+                break;
+            }
+            processAck(sid, ackZxid, followerAddr);
+        }
+        processAck(sid, zxid, followerAddr);
+    }
+
     /**
      * Keep a count of acks that are received by the leader for a particular
-     * proposal
+     * proposal. The ack is recorded without holding the lock of the leader,
+     * which is only taken by the ack getting the proposal acked by a quorum,
+     * to commit it and the proposals following it which are acked by a quorum
+     * as well, in zxid order.
      *
      * @param sid is the id of the server that sent the ack
      * @param zxid is the zxid of the proposal sent out
      * @param followerAddr
      */
     @Override
-    public synchronized void processAck(long sid, long zxid, SocketAddress followerAddr) {
+    public void processAck(long sid, long zxid, SocketAddress followerAddr) {
         if (!allowedToCommit) {
             return; // last op committed was a leader change - from now on
         }
@@ -1035,6 +1166,10 @@ public synchronized void processAck(long sid, long zxid, SocketAddress followerA
         }
         Proposal p = outstandingProposals.get(zxid);
         if (p == null) {
+            if (lastCommitted >= zxid) {
+                // Committed since, by the ack of another learner
+                return;
+            }
             LOG.warn("Trying to commit future proposal: zxid 0x{} from {}", Long.toHexString(zxid), followerAddr);
             return;
         }
@@ -1043,28 +1178,34 @@ public synchronized void processAck(long sid, long zxid, SocketAddress followerA
             p.request.logLatency(ServerMetrics.getMetrics().ACK_LATENCY, Long.toString(sid));
         }
 
-        p.addAck(sid);
+        if (p.addAckReachingQuorums(sid)) {
+            commitInOrder(p, zxid, followerAddr);
+        }
+    }
 
+    /**
+     * Commit a proposal acked by a quorum, unless the previous one is still
+     * outstanding, and then the following proposals already acked by a quorum.
+     */
+    private synchronized void commitInOrder(Proposal p, long zxid, SocketAddress followerAddr) {
+        // A proposal acked by a quorum before the previous one waits for the
+        // commit of the previous one, which is done by the ack getting it
+        // acked by a quorum. With a reconfiguration, the operations wait for
+        // different sets of acks, so that multiple operations may be ready
+        // to be committed once the reconfiguration is.
+        if (!allowedToCommit || !outstandingProposals.containsKey(zxid)) {
+            // Committed meanwhile along with a previous proposal
+            return;
+        }
         boolean hasCommitted = tryToCommit(p, zxid, followerAddr);
-
-        // If p is a reconfiguration, multiple other operations may be ready to be committed,
-        // since operations wait for different sets of acks.
-        // Currently we only permit one outstanding reconfiguration at a time
-        // such that the reconfiguration and subsequent outstanding ops proposed while the reconfig is
-        // pending all wait for a quorum of old and new config, so its not possible to get enough acks
-        // for an operation without getting enough acks for preceding ops. But in the future if multiple
-        // concurrent reconfigs are allowed, this can happen and then we need to check whether some pending
-        // ops may already have enough acks and can be committed, which is what this code does.
-
-        if (hasCommitted && p.request != null && p.request.getHdr().getType() == OpCode.reconfig) {
-            long curZxid = zxid;
-            while (allowedToCommit && hasCommitted && p != null) {
-                curZxid++;
-                p = outstandingProposals.get(curZxid);
-                if (p != null) {
-                    hasCommitted = tryToCommit(p, curZxid, null);
-                }
+        long curZxid = zxid;
+        while (allowedToCommit && hasCommitted) {
+            curZxid++;
+            p = outstandingProposals.get(curZxid);
+            if (p == null) {
+                break;
             }
+            hasCommitted = tryToCommit(p, curZxid, null);
         }
     }
 
@@ -1156,7 +1297,7 @@ void sendObserverPacket(QuorumPacket qp) {
         }
     }
 
-    long lastCommitted = -1;
+    volatile long lastCommitted = -1;
 
     /**
      * Create a commit packet and send it to all the members of the quorum
@@ -1167,7 +1308,7 @@ public void commit(long zxid) {
         synchronized (this) {
             lastCommitted = zxid;
         }
-        QuorumPacket qp = new QuorumPacket(Leader.COMMIT, zxid, null, null);
+        QuorumPacket qp = new BroadcastPacket(Leader.COMMIT, zxid, null, null);
         sendPacket(qp);
         ServerMetrics.getMetrics().COMMIT_COUNT.add(1);
     }
@@ -1190,7 +1331,7 @@ public void commitAndActivate(long zxid, long designatedLeader) {
      * Create an inform packet and send it to all observers.
      */
     public void inform(Proposal proposal) {
-        QuorumPacket qp = new QuorumPacket(Leader.INFORM, proposal.request.zxid, proposal.packet.getData(), null);
+        QuorumPacket qp = new BroadcastPacket(Leader.INFORM, proposal.request.zxid, proposal.packet.getData(), null);
         sendObserverPacket(qp);
     }
 
@@ -1203,6 +1344,74 @@ public static QuorumPacket buildInformAndActivePacket(long zxid, long designated
         return new QuorumPacket(Leader.INFORMANDACTIVATE, zxid, data, null);
     }
 
+    /**
+     * The PROPOSALS packets last built for the learner handlers, along with
+     * the zxids of their first proposals, so that the handlers of the synced
+     * followers, which mostly drain the same proposals at the same time,
+     * build and serialize a batch once.
+     */
+    private final BroadcastPacket[] proposalsPackets = new BroadcastPacket[8];
+    private final long[] proposalsPacketsFirstZxids = new long[proposalsPackets.length];
+    private int nextProposalsPacket;
+
+    @Override
+    BroadcastPacket getProposalsPacket(List<QuorumPacket> proposals) {
+        long firstZxid = proposals.get(0).getZxid();
+        long lastZxid = proposals.get(proposals.size() - 1).getZxid();
+        synchronized (proposalsPackets) {
+            for (int i = 0; i < proposalsPackets.length; i++) {
+                BroadcastPacket packet = proposalsPackets[i];
+                if (packet != null && packet.getZxid() == lastZxid && proposalsPacketsFirstZxids[i] == firstZxid) {
+                    return packet;
+                }
+            }
+        }
+        BroadcastPacket packet = buildProposalsPacket(proposals);
+        synchronized (proposalsPackets) {
+            proposalsPackets[nextProposalsPacket] = packet;
+            proposalsPacketsFirstZxids[nextProposalsPacket] = firstZxid;
+            nextProposalsPacket = (nextProposalsPacket + 1) % proposalsPackets.length;
+        }
+        return packet;
+    }
+
+    /**
+     * Build a packet carrying consecutive proposals: their count, then the
+     * zxid, the length and the data of each of them.
+     */
+    static BroadcastPacket buildProposalsPacket(List<QuorumPacket> proposals) {
+        int size = 4;
+        for (QuorumPacket proposal : proposals) {
+            size += 8 + 4 + proposal.getData().length;
+        }
+        byte[] data = new byte[size];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.putInt(proposals.size());
+        for (QuorumPacket proposal : proposals) {
+            buffer.putLong(proposal.getZxid());
+            buffer.putInt(proposal.getData().length);
+            buffer.put(proposal.getData());
+        }
+        return new BroadcastPacket(Leader.PROPOSALS, proposals.get(proposals.size() - 1).getZxid(), data, null);
+    }
+
+    /**
+     * Split a packet built by {@link #buildProposalsPacket(List)} into its
+     * proposals.
+     */
+    static List<QuorumPacket> splitProposalsPacket(QuorumPacket packet) {
+        ByteBuffer buffer = ByteBuffer.wrap(packet.getData());
+        int count = buffer.getInt();
+        List<QuorumPacket> proposals = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long zxid = buffer.getLong();
+            byte[] data = new byte[buffer.getInt()];
+            buffer.get(data);
+            proposals.add(new QuorumPacket(Leader.PROPOSAL, zxid, data, null));
+        }
+        return proposals;
+    }
+
     /**
      * Create an inform and activate packet and send it to all observers.
      */
@@ -1210,7 +1419,7 @@ public void informAndActivate(Proposal proposal, long designatedLeader) {
         sendObserverPacket(buildInformAndActivePacket(proposal.request.zxid, designatedLeader, proposal.packet.getData()));
     }
 
-    long lastProposed;
+    volatile long lastProposed;
 
     @Override
     public synchronized long getLastProposed() {
@@ -1256,7 +1465,7 @@ public Proposal propose(Request request) throws XidRolloverException {
 
         byte[] data = request.getSerializeData();
         proposalStats.setLastBufferSize(data.length);
-        QuorumPacket pp = new QuorumPacket(Leader.PROPOSAL, request.zxid, data, null);
+        QuorumPacket pp = new BroadcastPacket(Leader.PROPOSAL, request.zxid, data, null);
 
         Proposal p = new Proposal();
         p.packet = pp;
@@ -1329,13 +1538,8 @@ public synchronized long startForwarding(LearnerHandler handler, long lastSeenZx
             }
             // Only participant need to get outstanding proposals
             if (handler.getLearnerType() == LearnerType.PARTICIPANT) {
-                List<Long> zxids = new ArrayList<>(outstandingProposals.keySet());
-                Collections.sort(zxids);
-                for (Long zxid : zxids) {
-                    if (zxid <= lastSeenZxid) {
-                        continue;
-                    }
-                    handler.queuePacket(outstandingProposals.get(zxid).packet);
+                for (Proposal p : outstandingProposals.tailMap(lastSeenZxid, false).values()) {
+                    handler.queuePacket(p.packet);
                 }
             }
         }
@@ -1653,6 +1857,8 @@ public static String getPacketType(int packetType) {
             return "INFORM";
         case INFORMANDACTIVATE:
             return "INFORMANDACTIVATE";
+        case PROPOSALS:
+            return "PROPOSALS";
         default:
             return "UNKNOWN";
         }
@@ -30,7 +30,10 @@
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -41,7 +44,10 @@
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CheckedInputStream;
 import javax.net.ssl.SSLSocket;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.BinaryOutputArchive;
 import org.apache.jute.InputArchive;
@@ -56,6 +62,8 @@
 import org.apache.zookeeper.server.ServerMetrics;
 import org.apache.zookeeper.server.TxnLogEntry;
 import org.apache.zookeeper.server.ZooTrace;
+import org.apache.zookeeper.server.persistence.ChecksumType;
+import org.apache.zookeeper.server.persistence.SnapStream;
 import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
 import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
 import org.apache.zookeeper.server.util.ConfigUtils;
@@ -87,6 +95,7 @@ static class PacketInFlight {
     QuorumPeer self;
     LearnerZooKeeperServer zk;
 
+    protected BufferedInputStream bufferedInput;
     protected BufferedOutputStream bufferedOutput;
 
     protected Socket sock;
@@ -101,10 +110,26 @@ public Socket getSocket() {
     }
 
     LearnerSender sender = null;
+    LearnerReceiver receiver = null;
     protected InputArchive leaderIs;
     protected OutputArchive leaderOs;
     /** the protocol version of the leader */
     protected int leaderProtocolVersion = 0x01;
+    /**
+     * the ids of the learner masters relaying the txns from the leader to
+     * this learner, see {@link LearnerMaster#getRelayChain()}
+     */
+    protected List<Long> relayChain = Collections.emptyList();
+
+    /**
+     * Whether the leader and this server batch the Zab messages: the leader
+     * may send consecutive proposals as one message, and commit up to a zxid
+     * at once, and this server acks up to a zxid at once, see
+     * {@link Leader#ZAB_BATCH_SIZE}.
+     */
+    boolean isBatching() {
+        return leaderProtocolVersion >= Leader.BATCHING_PROTOCOL_VERSION && Leader.getZabBatchSize() > 1;
+    }
 
     private static final int BUFFERED_MESSAGE_SIZE = 10;
     protected final MessageTracker messageTracker = new MessageTracker(BUFFERED_MESSAGE_SIZE);
@@ -125,12 +150,17 @@ public Socket getSocket() {
     public static final String LEARNER_CLOSE_SOCKET_ASYNC = "zookeeper.learner.closeSocketAsync";
     public static final boolean closeSocketAsync = Boolean
         .parseBoolean(ConfigUtils.getPropertyBackwardCompatibleWay(LEARNER_CLOSE_SOCKET_ASYNC));
+    // read and decode the packets from the leader on a separate thread once synced, through a queue
+    // of this size, and send the packets to the leader asynchronously. If <=0, disable pipelining.
+    public static final String LEARNER_RECEIVE_QUEUE_SIZE = "zookeeper.learner.receiveQueueSize";
+    private static int receiveQueueSize = Integer.getInteger(LEARNER_RECEIVE_QUEUE_SIZE, 0);
 
     static {
         LOG.info("leaderConnectDelayDuringRetryMs: {}", leaderConnectDelayDuringRetryMs);
         LOG.info("TCP NoDelay set to: {}", nodelay);
         LOG.info("{} = {}", LEARNER_ASYNC_SENDING, asyncSending);
         LOG.info("{} = {}", LEARNER_CLOSE_SOCKET_ASYNC, closeSocketAsync);
+        LOG.info("{} = {}", LEARNER_RECEIVE_QUEUE_SIZE, receiveQueueSize);
     }
 
     final ConcurrentHashMap<Long, ServerCnxn> pendingRevalidations = new ConcurrentHashMap<>();
@@ -148,6 +178,21 @@ protected static void setAsyncSending(boolean newMode) {
     protected static boolean getAsyncSending() {
         return asyncSending;
     }
+
+    // for testing
+    protected static void setReceiveQueueSize(int queueSize) {
+        receiveQueueSize = queueSize;
+        LOG.info("{} = {}", LEARNER_RECEIVE_QUEUE_SIZE, receiveQueueSize);
+    }
+
+    /**
+     * Whether the packets are sent to the leader by the {@link LearnerSender},
+     * which is always the case when pipelining.
+     */
+    private static boolean isSendingAsync() {
+        return asyncSending || receiveQueueSize > 0;
+    }
+
     /**
      * validate a session for a client
      *
@@ -189,7 +234,7 @@ void validateSession(ServerCnxn cnxn, long clientId, int timeout) throws IOExcep
      * @throws IOException
      */
     void writePacket(QuorumPacket pp, boolean flush) throws IOException {
-        if (asyncSending) {
+        if (isSendingAsync()) {
             sender.queuePacket(pp);
         } else {
             writePacketNow(pp, flush);
@@ -237,6 +282,38 @@ void readPacket(QuorumPacket pp) throws IOException {
         }
     }
 
+    /**
+     * Read the next packet from the leader once synced with it: from the
+     * {@link LearnerReceiver} when pipelining, which may return a new packet
+     * rather than the one given.
+     *
+     * @param pp
+     *                the packet to be instantiated when not pipelining
+     * @return the packet read
+     * @throws IOException
+     */
+    QuorumPacket receivePacket(QuorumPacket pp) throws IOException, InterruptedException {
+        if (receiveQueueSize <= 0) {
+            readPacket(pp);
+            return pp;
+        }
+        if (receiver == null) {
+            receiver = new LearnerReceiver(this, receiveQueueSize);
+            receiver.start();
+        }
+        return receiver.take();
+    }
+
+    /**
+     * Stop the thread reading the packets from the leader, if any.
+     */
+    void stopReceivingThread() {
+        if (receiver != null) {
+            receiver.shutdown();
+            receiver = null;
+        }
+    }
+
     /**
      * send a request packet to the leader
      *
@@ -349,10 +426,11 @@ protected void connectToLeader(MultipleAddresses multiAddr, String hostname) thr
 
         self.authLearner.authenticate(sock, hostname);
 
-        leaderIs = BinaryInputArchive.getArchive(new BufferedInputStream(sock.getInputStream()));
+        bufferedInput = new BufferedInputStream(sock.getInputStream());
+        leaderIs = BinaryInputArchive.getArchive(bufferedInput);
         bufferedOutput = new BufferedOutputStream(sock.getOutputStream());
         leaderOs = BinaryOutputArchive.getArchive(bufferedOutput);
-        if (asyncSending) {
+        if (isSendingAsync()) {
             startSendingThread();
         }
     }
@@ -472,6 +550,32 @@ protected Socket createSocket() throws X509Exception, IOException {
         return sock;
     }
 
+    /**
+     * Read the relay chain following the protocol version in the LEADERINFO
+     * of an observer master, and check that this learner may be fed by it.
+     */
+    private List<Long> readRelayChain(ByteBuffer leaderInfo) throws IOException {
+        if (leaderInfo.remaining() < 4) {
+            return Collections.emptyList();
+        }
+        int length = leaderInfo.getInt();
+        if (length < 0 || length > leaderInfo.remaining() / 8) {
+            throw new IOException("Invalid relay chain length " + length + " in LEADERINFO");
+        }
+        List<Long> chain = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            chain.add(leaderInfo.getLong());
+        }
+        if (chain.contains(self.getMyId())) {
+            throw new IOException("Learner master relays the txns through this server, which would form a loop: " + chain);
+        }
+        if (chain.size() > Observer.getMaxRelayDepth()) {
+            throw new IOException("Learner master relays the txns through " + chain.size() + " learner masters, more than "
+                                  + Observer.OBSERVER_MAX_RELAY_DEPTH + "=" + Observer.getMaxRelayDepth() + ": " + chain);
+        }
+        return chain;
+    }
+
     /**
      * Once connected to the leader or learner master, perform the handshake
      * protocol to establish a following / observing connection.
@@ -491,10 +595,14 @@ protected long registerWithLeader(int pktType) throws IOException {
         /*
          * Add sid to payload
          */
-        LearnerInfo li = new LearnerInfo(self.getMyId(), 0x10000, self.getQuorumVerifier().getVersion());
+        LearnerInfo li = new LearnerInfo(self.getMyId(), Leader.getProtocolVersion(), self.getQuorumVerifier().getVersion());
         ByteArrayOutputStream bsid = new ByteArrayOutputStream();
         BinaryOutputArchive boa = BinaryOutputArchive.getArchive(bsid);
         boa.writeRecord(li, "LearnerInfo");
+        // The snapshot files this learner can read when synced from one
+        boa.writeInt(Leader.SNAPSHOT_FILE_SYNC_VERSION, "snapshotFileSyncVersion");
+        boa.writeInt(SnapStream.getReadableStreamModes(), "streamModes");
+        boa.writeInt(ChecksumType.getAvailableFileVersions(), "checksumVersions");
         qp.setData(bsid.toByteArray());
 
         writePacket(qp, true);
@@ -502,7 +610,9 @@ protected long registerWithLeader(int pktType) throws IOException {
         final long newEpoch = ZxidUtils.getEpochFromZxid(qp.getZxid());
         if (qp.getType() == Leader.LEADERINFO) {
             // we are connected to a 1.0 server so accept the new epoch and read the next packet
-            leaderProtocolVersion = ByteBuffer.wrap(qp.getData()).getInt();
+            ByteBuffer leaderInfo = ByteBuffer.wrap(qp.getData());
+            leaderProtocolVersion = leaderInfo.getInt();
+            relayChain = readRelayChain(leaderInfo);
             byte[] epochBytes = new byte[4];
             final ByteBuffer wrappedEpochBytes = ByteBuffer.wrap(epochBytes);
             if (newEpoch > self.getAcceptedEpoch()) {
@@ -535,6 +645,27 @@ protected long registerWithLeader(int pktType) throws IOException {
         }
     }
 
+    /**
+     * Read a snapshot file sent by the leader: its size, followed by its
+     * content as stored on the leader. The transactions committed after
+     * the snapshot was taken follow as proposals.
+     *
+     * @param name the name of the snapshot file, which tells its stream mode
+     * @param snapZxid the zxid of the snapshot file
+     * @throws IOException
+     */
+    private void deserializeSnapshotFile(String name, long snapZxid) throws IOException {
+        long size = leaderIs.readLong("size");
+        LOG.info("Reading snapshot file {} of {} bytes from leader", name, size);
+        BoundedInputStream content = new BoundedInputStream(bufferedInput, size);
+        content.setPropagateClose(false);
+        CheckedInputStream is = SnapStream.getInputStream(content, SnapStream.getStreamMode(name));
+        zk.getZKDatabase().deserializeSnapshot(BinaryInputArchive.getArchive(is), is, snapZxid);
+        // skip whatever the snapshot stream did not need to read, such as
+        // the trailer of a compressed stream
+        IOUtils.skip(content, size);
+    }
+
     /**
      * Finally, synchronize our history with the Leader (if Follower)
      * or the LearnerMaster (if Observer).
@@ -570,9 +701,14 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
             } else if (qp.getType() == Leader.SNAP) {
                 self.setSyncMode(QuorumPeer.SyncMode.SNAP);
                 LOG.info("Getting a snapshot from leader 0x{}", Long.toHexString(qp.getZxid()));
-                // The leader is going to dump the database
+                // The leader is going to dump the database, or to send its
+                // most recent snapshot file when the packet names one
                 // db is clear as part of deserializeSnapshot()
-                zk.getZKDatabase().deserializeSnapshot(leaderIs);
+                if (qp.getData() != null) {
+                    deserializeSnapshotFile(new String(qp.getData(), UTF_8), qp.getZxid());
+                } else {
+                    zk.getZKDatabase().deserializeSnapshot(leaderIs);
+                }
                 // ZOOKEEPER-2819: overwrite config node content extracted
                 // from leader snapshot with local config, to avoid potential
                 // inconsistency of config node content during rolling restart.
@@ -858,6 +994,7 @@ public void shutdown() {
         if (sender != null) {
             sender.shutdown();
         }
+        stopReceivingThread();
 
         closeSocket();
         // shutdown previous zookeeper
@@ -18,16 +18,24 @@
 
 package org.apache.zookeeper.server.quorum;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
@@ -37,6 +45,7 @@
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
+import javax.net.ssl.SSLSocket;
 import javax.security.sasl.SaslException;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.BinaryOutputArchive;
@@ -49,6 +58,9 @@
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.ZooKeeperThread;
 import org.apache.zookeeper.server.ZooTrace;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.SnapStream;
+import org.apache.zookeeper.server.persistence.Util;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
 import org.apache.zookeeper.server.quorum.QuorumPeer.LearnerType;
 import org.apache.zookeeper.server.quorum.auth.QuorumAuthServer;
@@ -111,6 +123,15 @@ int getVersion() {
         return version;
     }
 
+    /**
+     * The version of the snapshot file sync supported by the learner, 0 for
+     * the older learners, with the snapshot stream modes and the checksum
+     * versions it can read, see {@link Leader#SNAPSHOT_FILE_SYNC_VERSION}
+     */
+    private int snapshotFileSyncVersion;
+    private int readableStreamModes;
+    private int readableChecksumVersions;
+
     /**
      * The packets to be sent to the learner
      */
@@ -191,6 +212,24 @@ public synchronized void updateAck(long zxid) {
             }
         }
 
+        /**
+         * Ack all the proposals up to the zxid at once.
+         */
+        public synchronized void updateAcksUpTo(long zxid) {
+            if (currentTime == 0 || zxid < currentZxid) {
+                return;
+            }
+            if (nextTime != 0 && zxid < nextZxid) {
+                currentTime = nextTime;
+                currentZxid = nextZxid;
+            } else {
+                currentTime = 0;
+                currentZxid = 0;
+            }
+            nextTime = 0;
+            nextZxid = 0;
+        }
+
         public synchronized boolean check(long time) {
             if (currentTime == 0) {
                 return true;
@@ -204,6 +243,12 @@ public synchronized boolean check(long time) {
 
     private SyncLimitCheck syncLimitCheck = new SyncLimitCheck();
 
+    /**
+     * Whether the proposals and commits are batched, once the learner is
+     * synced, only used by the sending thread.
+     */
+    private boolean batching;
+
     private static class MarkerQuorumPacket extends QuorumPacket {
 
         long time;
@@ -230,6 +275,62 @@ public boolean equals(Object o) {
 
     }
 
+    /**
+     * Stands in the packet queue for the committed proposals of the on-disk
+     * txnlog, which are read as they are sent instead of being queued ahead.
+     */
+    private static class TxnLogProposalsPacket extends QuorumPacket {
+
+        private final TxnLogProposalIterator itr;
+        private final long maxZxid;
+        private long lastZxid;
+
+        /**
+         * @param itr the proposals of the txnlog
+         * @param lastZxid the zxid of the last proposal already queued
+         * @param maxZxid the zxid of the last proposal to send
+         */
+        TxnLogProposalsPacket(TxnLogProposalIterator itr, long lastZxid, long maxZxid) {
+            this.itr = itr;
+            this.lastZxid = lastZxid;
+            this.maxZxid = maxZxid;
+        }
+
+        /**
+         * @return the next proposal to send, or null after the last one
+         */
+        Proposal next() {
+            while (itr.hasNext()) {
+                Proposal p = itr.next();
+                long zxid = p.packet.getZxid();
+                if (zxid > maxZxid) {
+                    break;
+                }
+                // skip the proposals already queued and duplicate txns
+                if (zxid > lastZxid) {
+                    lastZxid = zxid;
+                    return p;
+                }
+            }
+            return null;
+        }
+
+        void close() {
+            itr.close();
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o;
+        }
+
+    }
+
     private BinaryInputArchive ia;
 
     private BinaryOutputArchive oa;
@@ -258,6 +359,32 @@ protected void setBufferedOutput(BufferedOutputStream bufferedOutput) {
     public static final String FORCE_SNAP_SYNC = "zookeeper.forceSnapshotSync";
     private boolean forceSnapSync = false;
 
+    /**
+     * Read the proposals of the on-disk txnlog as they are sent to a learner
+     * syncing with a DIFF, instead of queueing all of them ahead
+     */
+    public static final String STREAM_TXN_LOG_SYNC = "zookeeper.leader.streamTxnLogSync";
+    private boolean streamTxnLogSync = false;
+
+    /**
+     * The proposals of the txnlog being sent, closed on shutdown
+     */
+    private volatile TxnLogProposalsPacket txnLogProposals;
+
+    /**
+     * Send the most recent snapshot file followed by the txns committed
+     * since, instead of serializing the data tree, when a learner needs a
+     * snapshot
+     */
+    public static final String SNAPSHOT_FILE_SYNC = "zookeeper.leader.snapshotFileSync";
+    private boolean snapshotFileSync = false;
+
+    /**
+     * The snapshot file to send, opened by syncFollower
+     */
+    private File snapshotFile;
+    private FileChannel snapshotChannel;
+
     /**
      * Keep track of whether we need to queue TRUNC or DIFF into packet queue
      * that we are going to blast it to the learner
@@ -284,6 +411,12 @@ protected void setBufferedOutput(BufferedOutputStream bufferedOutput) {
             forceSnapSync = true;
             LOG.info("Forcing snapshot sync is enabled");
         }
+        if (Boolean.getBoolean(SNAPSHOT_FILE_SYNC)) {
+            snapshotFileSync = true;
+        }
+        if (Boolean.getBoolean(STREAM_TXN_LOG_SYNC)) {
+            streamTxnLogSync = true;
+        }
 
         try {
             QuorumAuthServer authServer = learnerMaster.getQuorumAuthServer();
@@ -351,6 +484,16 @@ private void sendPackets() throws InterruptedException {
                     break;
                 }
 
+                if (p instanceof TxnLogProposalsPacket) {
+                    sendTxnLogProposals((TxnLogProposalsPacket) p);
+                    continue;
+                }
+
+                if (batching && isBatchable(p)) {
+                    sendBatch(p);
+                    continue;
+                }
+
                 if (p.getType() == Leader.PROPOSAL) {
                     syncLimitCheck.updateProposal(p.getZxid(), System.nanoTime());
                 }
@@ -366,9 +509,14 @@ private void sendPackets() throws InterruptedException {
                 if (p.getZxid() > 0) {
                     lastZxid = p.getZxid();
                 }
-                oa.writeRecord(p, "packet");
+                writePacket(p);
                 packetsSent.incrementAndGet();
                 messageTracker.trackSent(p.getType());
+                if (p.getType() == Leader.UPTODATE) {
+                    // The learner is done syncing, and processes the
+                    // batched messages from now on
+                    batching = isBatching();
+                }
             } catch (IOException e) {
                 LOG.error("Exception while sending packets in LearnerHandler", e);
                 // this will cause everything to shutdown on
@@ -380,6 +528,108 @@ private void sendPackets() throws InterruptedException {
         }
     }
 
+    /**
+     * Whether the learner and this server batch the Zab messages, see
+     * {@link Leader#ZAB_BATCH_SIZE}.
+     */
+    boolean isBatching() {
+        return getVersion() >= Leader.BATCHING_PROTOCOL_VERSION && Leader.getZabBatchSize() > 1;
+    }
+
+    private static boolean isBatchable(QuorumPacket p) {
+        return (p.getType() == Leader.PROPOSAL || p.getType() == Leader.COMMIT)
+            && !(p instanceof MarkerQuorumPacket)
+            && !(p instanceof TxnLogProposalsPacket);
+    }
+
+    /**
+     * Send the proposals and the commits queued in a row at once: the
+     * proposals as one message, then a commit of the last committed zxid,
+     * which commits the ones before as well. The proposals are sent ahead of
+     * the commits they were queued after, which only delays the commits.
+     */
+    private void sendBatch(QuorumPacket first) throws IOException {
+        int batchSize = Leader.getZabBatchSize();
+        List<QuorumPacket> proposals = new ArrayList<>();
+        QuorumPacket commit = null;
+        int count = 0;
+        QuorumPacket p = first;
+        while (true) {
+            if (p.getType() == Leader.PROPOSAL) {
+                syncLimitCheck.updateProposal(p.getZxid(), System.nanoTime());
+                proposals.add(p);
+            } else {
+                commit = p;
+            }
+            if (p.getZxid() > 0) {
+                lastZxid = p.getZxid();
+            }
+            count++;
+            QuorumPacket next = queuedPackets.peek();
+            if (proposals.size() >= batchSize || count >= 2 * batchSize || next == null || !isBatchable(next)) {
+                break;
+            }
+            // This thread is the only one taking the packets off the queue
+            p = queuedPackets.poll();
+            queuedPacketsSize.addAndGet(-packetSize(p));
+        }
+        if (proposals.size() == 1) {
+            writePacket(proposals.get(0));
+            packetsSent.incrementAndGet();
+            messageTracker.trackSent(Leader.PROPOSAL);
+        } else if (proposals.size() > 1) {
+            writePacket(learnerMaster.getProposalsPacket(proposals));
+            packetsSent.incrementAndGet();
+            messageTracker.trackSent(Leader.PROPOSALS);
+            ServerMetrics.getMetrics().PROPOSALS_PER_BATCH.add(proposals.size());
+        }
+        if (commit != null) {
+            writePacket(commit);
+            packetsSent.incrementAndGet();
+            messageTracker.trackSent(Leader.COMMIT);
+        }
+    }
+
+    /**
+     * Write a packet, as is if it has been serialized already for another
+     * learner.
+     */
+    private void writePacket(QuorumPacket p) throws IOException {
+        if (p instanceof BroadcastPacket) {
+            bufferedOutput.write(((BroadcastPacket) p).getBytes());
+        } else {
+            oa.writeRecord(p, "packet");
+        }
+    }
+
+    /**
+     * Send the committed proposals of the txnlog stood for by the packet,
+     * each followed by its commit.
+     */
+    private void sendTxnLogProposals(TxnLogProposalsPacket p) throws IOException {
+        // The proposals are read for this learner only, so a single commit
+        // packet is reused for all of them
+        QuorumPacket commit = new QuorumPacket(Leader.COMMIT, 0, null, null);
+        try {
+            for (Proposal propose = p.next(); propose != null; propose = p.next()) {
+                writePacket(propose.packet);
+                messageTracker.trackSent(Leader.PROPOSAL);
+                commit.setZxid(propose.packet.getZxid());
+                oa.writeRecord(commit, "packet");
+                messageTracker.trackSent(Leader.COMMIT);
+                packetsSent.addAndGet(2);
+            }
+            if (p.lastZxid < p.maxZxid) {
+                throw new IOException("Txnlog ended at 0x" + Long.toHexString(p.lastZxid)
+                    + " before 0x" + Long.toHexString(p.maxZxid));
+            }
+            lastZxid = p.lastZxid;
+        } finally {
+            p.close();
+            txnLogProposals = null;
+        }
+    }
+
     public static String packetToString(QuorumPacket p) {
         String type;
         String mess = null;
@@ -445,6 +695,9 @@ public static String packetToString(QuorumPacket p) {
         case Leader.INFORMANDACTIVATE:
             type = "INFORMANDACTIVATE";
             break;
+        case Leader.PROPOSALS:
+            type = "PROPOSALS";
+            break;
         default:
             type = "UNKNOWN" + p.getType();
         }
@@ -497,6 +750,11 @@ public void run() {
                         throw new IOException("Follower is ahead of the leader (has a later activated configuration)");
                     }
                 }
+                if (learnerInfoData.length >= 32) {
+                    snapshotFileSyncVersion = bbsid.getInt();
+                    readableStreamModes = bbsid.getInt();
+                    readableChecksumVersions = bbsid.getInt();
+                }
             } else {
                 this.sid = learnerMaster.getAndDecrementFollowerCounter();
             }
@@ -532,8 +790,18 @@ public void run() {
                 // fake the message
                 learnerMaster.waitForEpochAck(this.getSid(), ss);
             } else {
-                byte[] ver = new byte[4];
-                ByteBuffer.wrap(ver).putInt(0x10000);
+                // The protocol version, followed by the relay chain of an
+                // observer master, which the older learners ignore
+                List<Long> relayChain = learnerMaster.getRelayChain();
+                byte[] ver = new byte[relayChain.isEmpty() ? 4 : 4 + 4 + 8 * relayChain.size()];
+                ByteBuffer verBuffer = ByteBuffer.wrap(ver);
+                verBuffer.putInt(Leader.getProtocolVersion());
+                if (!relayChain.isEmpty()) {
+                    verBuffer.putInt(relayChain.size());
+                    for (long sid : relayChain) {
+                        verBuffer.putLong(sid);
+                    }
+                }
                 QuorumPacket newEpochPacket = new QuorumPacket(Leader.LEADERINFO, newLeaderZxid, ver, null);
                 oa.writeRecord(newEpochPacket, "packet");
                 messageTracker.trackSent(Leader.LEADERINFO);
@@ -565,8 +833,17 @@ public void run() {
                 syncThrottler.beginSync(exemptFromThrottle);
                 ServerMetrics.getMetrics().INFLIGHT_SNAP_COUNT.add(syncThrottler.getSyncInProgress());
                 try {
-                    long zxidToSend = learnerMaster.getZKDatabase().getDataTreeLastProcessedZxid();
-                    oa.writeRecord(new QuorumPacket(Leader.SNAP, zxidToSend, null, null), "packet");
+                    long zxidToSend;
+                    byte[] snapshotName = null;
+                    if (snapshotFile != null) {
+                        // the learner gets the txns committed since the
+                        // snapshot file was taken as proposals
+                        zxidToSend = Util.getZxidFromName(snapshotFile.getName(), FileSnap.SNAPSHOT_FILE_PREFIX);
+                        snapshotName = snapshotFile.getName().getBytes(UTF_8);
+                    } else {
+                        zxidToSend = learnerMaster.getZKDatabase().getDataTreeLastProcessedZxid();
+                    }
+                    oa.writeRecord(new QuorumPacket(Leader.SNAP, zxidToSend, snapshotName, null), "packet");
                     messageTracker.trackSent(Leader.SNAP);
                     bufferedOutput.flush();
 
@@ -579,11 +856,16 @@ public void run() {
                         Long.toHexString(zxidToSend),
                         syncThrottler.getSyncInProgress(),
                         exemptFromThrottle ? "exempt" : "not exempt");
-                    // Dump data to peer
-                    learnerMaster.getZKDatabase().serializeSnapshot(oa);
+                    if (snapshotFile != null) {
+                        sendSnapshotFile();
+                    } else {
+                        // Dump data to peer
+                        learnerMaster.getZKDatabase().serializeSnapshot(oa);
+                    }
                     oa.writeString("BenWasHere", "signature");
                     bufferedOutput.flush();
                 } finally {
+                    closeSnapshotFile();
                     ServerMetrics.getMetrics().SNAP_COUNT.add(1);
                 }
             } else {
@@ -678,8 +960,13 @@ public void run() {
                     if (this.learnerType == LearnerType.OBSERVER) {
                         LOG.debug("Received ACK from Observer {}", this.sid);
                     }
-                    syncLimitCheck.updateAck(qp.getZxid());
-                    learnerMaster.processAck(this.sid, qp.getZxid(), sock.getLocalSocketAddress());
+                    if (isBatching()) {
+                        syncLimitCheck.updateAcksUpTo(qp.getZxid());
+                        learnerMaster.processAcksUpTo(this.sid, qp.getZxid(), sock.getLocalSocketAddress());
+                    } else {
+                        syncLimitCheck.updateAck(qp.getZxid());
+                        learnerMaster.processAck(this.sid, qp.getZxid(), sock.getLocalSocketAddress());
+                    }
                     break;
                 case Leader.PING:
                     // Process the touches
@@ -881,7 +1168,12 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
                 Iterator<Proposal> txnLogItr = db.getProposalsFromTxnLog(peerLastZxid, sizeLimit);
                 if (txnLogItr.hasNext()) {
                     LOG.info("Use txnlog and committedLog for peer sid: {}", getSid());
-                    currentZxid = queueCommittedProposals(txnLogItr, peerLastZxid, minCommittedLog, maxCommittedLog);
+                    if (streamTxnLogSync && txnLogReaches(db, minCommittedLog)) {
+                        currentZxid = queueTxnLogProposals(
+                            (TxnLogProposalIterator) txnLogItr, peerLastZxid, minCommittedLog, maxCommittedLog);
+                    } else {
+                        currentZxid = queueCommittedProposals(txnLogItr, peerLastZxid, minCommittedLog, maxCommittedLog);
+                    }
 
                     if (currentZxid < minCommittedLog) {
                         LOG.info(
@@ -900,8 +1192,8 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
                         needSnap = false;
                     }
                 }
-                // closing the resources
-                if (txnLogItr instanceof TxnLogProposalIterator) {
+                // closing the resources, unless they are being sent
+                if (txnLogItr instanceof TxnLogProposalIterator && txnLogProposals == null) {
                     TxnLogProposalIterator txnProposalItr = (TxnLogProposalIterator) txnLogItr;
                     txnProposalItr.close();
                 }
@@ -919,6 +1211,12 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
             }
             if (needSnap) {
                 currentZxid = db.getDataTreeLastProcessedZxid();
+                if (snapshotFileSync && snapshotFileSyncVersion >= Leader.SNAPSHOT_FILE_SYNC_VERSION) {
+                    long queuedZxid = queueProposalsSinceSnapshotFile(db, minCommittedLog, maxCommittedLog);
+                    if (queuedZxid >= 0) {
+                        currentZxid = queuedZxid;
+                    }
+                }
             }
 
             LOG.debug("Start forwarding 0x{} for peer sid: {}", Long.toHexString(currentZxid), getSid());
@@ -937,6 +1235,201 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
         return needSnap;
     }
 
+    /**
+     * Whether the on-disk txnlog has the txn of the given zxid, which is found
+     * without reading the whole txnlog it is in when the txnlog is indexed.
+     */
+    private boolean txnLogReaches(ZKDatabase db, long zxid) {
+        Iterator<Proposal> itr = db.getProposalsFromTxnLog(zxid, 0);
+        try {
+            while (itr.hasNext()) {
+                long packetZxid = itr.next().packet.getZxid();
+                if (packetZxid >= zxid) {
+                    return packetZxid == zxid;
+                }
+            }
+            return false;
+        } finally {
+            if (itr instanceof TxnLogProposalIterator) {
+                ((TxnLogProposalIterator) itr).close();
+            }
+        }
+    }
+
+    /**
+     * Queue the DIFF or TRUNC packet and the first proposal of the on-disk
+     * txnlog, then a packet standing for the rest of the proposals up to
+     * maxZxid, which are only read from the txnlog as they are sent. The
+     * txnlog must reach maxZxid.
+     *
+     * @return last zxid of the proposals to send
+     * @see #queueCommittedProposals(Iterator, long, Long, Long)
+     */
+    private long queueTxnLogProposals(TxnLogProposalIterator itr, long peerLastZxid, long maxZxid, long lastCommittedZxid) {
+        // The op packet only depends on the last proposal the peer may have
+        // and the next one, which are close to the start of the iterator when
+        // the txnlog is indexed
+        List<Proposal> head = new ArrayList<>(2);
+        Proposal prev = null;
+        while (itr.hasNext()) {
+            Proposal propose = itr.next();
+            if (propose.packet.getZxid() > peerLastZxid) {
+                if (prev != null) {
+                    head.add(prev);
+                }
+                head.add(propose);
+                break;
+            }
+            prev = propose;
+        }
+        long queuedZxid = queueCommittedProposals(head.iterator(), peerLastZxid, maxZxid, lastCommittedZxid);
+        if (needOpPacket || queuedZxid == peerLastZxid || queuedZxid >= maxZxid) {
+            return queuedZxid;
+        }
+        txnLogProposals = new TxnLogProposalsPacket(itr, queuedZxid, maxZxid);
+        queuePacket(txnLogProposals);
+        return maxZxid;
+    }
+
+    /**
+     * Open the most recent snapshot file to send it to the learner, and queue
+     * the proposals committed since it was taken, from the on-disk txnlog
+     * and the committedLog.
+     *
+     * @return last zxid of the queued proposal, or -1 if the snapshot file
+     *         cannot be used and the data tree has to be serialized instead
+     */
+    private long queueProposalsSinceSnapshotFile(ZKDatabase db, long minCommittedLog, long maxCommittedLog) {
+        File snapshot;
+        try {
+            snapshot = db.findMostRecentSnapshot();
+        } catch (IOException e) {
+            LOG.warn("Unable to find the most recent snapshot for peer sid: {}", getSid(), e);
+            return -1;
+        }
+        if (snapshot == null) {
+            return -1;
+        }
+        if (!isReadableByLearner(snapshot)) {
+            return -1;
+        }
+        long snapZxid = Util.getZxidFromName(snapshot.getName(), FileSnap.SNAPSHOT_FILE_PREFIX);
+
+        // The learner gets a SNAP, not a DIFF or TRUNC
+        needOpPacket = false;
+        long queuedZxid = snapZxid;
+        if (snapZxid < minCommittedLog) {
+            Iterator<Proposal> txnLogItr = db.getProposalsFromTxnLog(snapZxid, 0);
+            queuedZxid = queueCommittedProposals(txnLogItr, snapZxid, minCommittedLog, maxCommittedLog);
+            if (txnLogItr instanceof TxnLogProposalIterator) {
+                ((TxnLogProposalIterator) txnLogItr).close();
+            }
+        }
+        if (queuedZxid < minCommittedLog) {
+            LOG.info(
+                "Unable to find the txns between snapshot 0x{} and start of committedLog: 0x{}, "
+                    + "serializing the snapshot for peer sid: {}",
+                Long.toHexString(snapZxid),
+                Long.toHexString(minCommittedLog),
+                getSid());
+            queuedPackets.clear();
+            needOpPacket = true;
+            return -1;
+        }
+        Iterator<Proposal> committedLogItr = db.getCommittedLog().iterator();
+        queuedZxid = queueCommittedProposals(committedLogItr, queuedZxid, null, maxCommittedLog);
+
+        try {
+            // Keep the file open, so that it can still be sent if it gets
+            // purged in the meantime
+            snapshotChannel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            LOG.warn("Unable to open snapshot {} for peer sid: {}", snapshot, getSid(), e);
+            queuedPackets.clear();
+            needOpPacket = true;
+            return -1;
+        }
+        snapshotFile = snapshot;
+        LOG.info(
+            "Sending snapshot file {} and txns up to 0x{} for peer sid: {}",
+            snapshot.getName(),
+            Long.toHexString(queuedZxid),
+            getSid());
+        return queuedZxid;
+    }
+
+    /**
+     * Whether the learner can read the snapshot file as it is: the learner
+     * must have the codec of its stream mode, and the checksum algorithm
+     * given by the version of its file header.
+     */
+    private boolean isReadableByLearner(File snapshot) {
+        SnapStream.StreamMode mode = SnapStream.getStreamMode(snapshot.getName());
+        if ((readableStreamModes & (1 << mode.ordinal())) == 0) {
+            LOG.info(
+                "Peer sid: {} cannot read {} snapshots, serializing the snapshot instead of sending {}",
+                getSid(),
+                mode,
+                snapshot.getName());
+            return false;
+        }
+        int headerVersion;
+        try {
+            headerVersion = SnapStream.getFileHeaderVersion(snapshot);
+        } catch (IOException e) {
+            LOG.warn("Unable to read the header of snapshot {} for peer sid: {}", snapshot, getSid(), e);
+            return false;
+        }
+        if (headerVersion < 0 || headerVersion >= Integer.SIZE
+            || (readableChecksumVersions & (1 << headerVersion)) == 0) {
+            LOG.info(
+                "Peer sid: {} cannot check the checksums of file version {}, serializing the snapshot instead of sending {}",
+                getSid(),
+                headerVersion,
+                snapshot.getName());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Send the size of the snapshot file, then its content. Without TLS, the
+     * content goes from the file straight to the socket when it has a
+     * channel, otherwise it is copied through the socket stream.
+     */
+    private void sendSnapshotFile() throws IOException {
+        long size = snapshotChannel.size();
+        oa.writeLong(size, "size");
+        bufferedOutput.flush();
+
+        WritableByteChannel target;
+        if (sock.getChannel() != null && !(sock instanceof SSLSocket)) {
+            target = sock.getChannel();
+        } else {
+            target = Channels.newChannel(sock.getOutputStream());
+        }
+        long position = 0;
+        while (position < size) {
+            long sent = snapshotChannel.transferTo(position, size - position, target);
+            if (sent <= 0) {
+                throw new IOException("Snapshot " + snapshotFile + " ended at " + position + " of " + size + " bytes");
+            }
+            position += sent;
+        }
+    }
+
+    private void closeSnapshotFile() {
+        if (snapshotChannel != null) {
+            try {
+                snapshotChannel.close();
+            } catch (IOException e) {
+                LOG.warn("Ignoring error closing snapshot {}", snapshotFile, e);
+            }
+            snapshotChannel = null;
+            snapshotFile = null;
+        }
+    }
+
     /**
      * Queue committed proposals into packet queue. The range of packets which
      * is going to be queued are (peerLaxtZxid, maxZxid]
@@ -1021,7 +1514,7 @@ protected long queueCommittedProposals(Iterator<Proposal> itr, long peerLastZxid
             // Since this is already a committed proposal, we need to follow
             // it by a commit packet
             queuePacket(propose.packet);
-            queueOpPacket(Leader.COMMIT, packetZxid);
+            queuePacket(propose.getCommitPacket());
             queuedZxid = packetZxid;
 
         }
@@ -1049,6 +1542,10 @@ public void shutdown() {
         } catch (InterruptedException e) {
             LOG.warn("Ignoring unexpected exception", e);
         }
+        TxnLogProposalsPacket proposals = txnLogProposals;
+        if (proposals != null) {
+            proposals.close();
+        }
 
         closeSocket();
 
@@ -1144,6 +1641,23 @@ public Queue<QuorumPacket> getQueuedPackets() {
         return queuedPackets;
     }
 
+    /**
+     * For testing, set the snapshot files the learner can read, as sent in
+     * its LearnerInfo
+     */
+    void setReadableSnapshotFiles(int snapshotFileSyncVersion, int streamModes, int checksumVersions) {
+        this.snapshotFileSyncVersion = snapshotFileSyncVersion;
+        this.readableStreamModes = streamModes;
+        this.readableChecksumVersions = checksumVersions;
+    }
+
+    /**
+     * For testing, return the snapshot file to be sent
+     */
+    File getSnapshotFile() {
+        return snapshotFile;
+    }
+
     /**
      * For testing, we need to reset this value
      */
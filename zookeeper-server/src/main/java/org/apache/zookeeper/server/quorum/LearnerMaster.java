@@ -21,6 +21,8 @@
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.List;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.quorum.auth.QuorumAuthServer;
@@ -188,6 +190,38 @@ public LearnerSyncThrottler getLearnerDiffSyncThrottler() {
      */
     abstract void processAck(long sid, long zxid, SocketAddress localSocketAddress);
 
+    /**
+     * process the ack of a learner batching the Zab messages, which acks all
+     * the proposals up to the zxid at once
+     * @param sid
+     * @param zxid
+     * @param localSocketAddress
+     */
+    void processAcksUpTo(long sid, long zxid, SocketAddress localSocketAddress) {
+        processAck(sid, zxid, localSocketAddress);
+    }
+
+    /**
+     * the packet carrying consecutive proposals to a learner batching the Zab
+     * messages, which may be shared by the learner handlers sending the same
+     * proposals
+     * @param proposals
+     * @return the packet, see {@link Leader#buildProposalsPacket(List)}
+     */
+    BroadcastPacket getProposalsPacket(List<QuorumPacket> proposals) {
+        return Leader.buildProposalsPacket(proposals);
+    }
+
+    /**
+     * the ids of the learner masters relaying the txns from the leader to the
+     * learners of this one, this one included, empty for the leader. Sent to
+     * the learners with the LEADERINFO, so that they do not form a loop.
+     * @return the relay chain, from the leader side
+     */
+    List<Long> getRelayChain() {
+        return Collections.emptyList();
+    }
+
     /**
      * mark session as alive
      * @param sess session id
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.apache.zookeeper.common.Time;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.TxnLogEntry;
+import org.apache.zookeeper.server.ZooKeeperThread;
+import org.apache.zookeeper.server.util.SerializeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the packets from the leader, and decodes the txns of the proposals,
+ * on its own thread, ahead of the learner processing them: the learner logs
+ * a proposal while the next ones are being read, and the txn log appends
+ * while the acks are being sent by the {@link LearnerSender}.
+ * <p>
+ * The packets are handed to the learner through a bounded queue, so that
+ * the receiver stops reading from the leader when the learner falls behind.
+ * The proposals batched in one message are handed one by one.
+ */
+class LearnerReceiver extends ZooKeeperThread {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LearnerReceiver.class);
+
+    /**
+     * A proposal whose txn was decoded by the receiver.
+     */
+    static class DecodedProposal extends QuorumPacket {
+
+        final TxnLogEntry logEntry;
+
+        DecodedProposal(QuorumPacket qp, TxnLogEntry logEntry) {
+            super(qp.getType(), qp.getZxid(), qp.getData(), qp.getAuthinfo());
+            this.logEntry = logEntry;
+        }
+
+    }
+
+    private static class ReceivedPacket {
+
+        final QuorumPacket qp;
+        final long receiveTime;
+
+        ReceivedPacket(QuorumPacket qp, long receiveTime) {
+            this.qp = qp;
+            this.receiveTime = receiveTime;
+        }
+
+    }
+
+    private final Learner learner;
+    private final BlockingQueue<ReceivedPacket> queuedPackets;
+    private final ReceivedPacket packetOfDeath = new ReceivedPacket(null, 0);
+    /** the failure which stopped the receiver, thrown to the learner */
+    private volatile IOException failure;
+
+    LearnerReceiver(Learner learner, int queueSize) {
+        super("LearnerReceiver:" + learner.zk.getServerId());
+        this.learner = learner;
+        this.queuedPackets = new ArrayBlockingQueue<>(queueSize);
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                QuorumPacket qp = new QuorumPacket();
+                learner.readPacket(qp);
+                if (qp.getType() == Leader.PROPOSALS) {
+                    for (QuorumPacket proposal : Leader.splitProposalsPacket(qp)) {
+                        queue(decode(proposal));
+                    }
+                } else if (qp.getType() == Leader.PROPOSAL) {
+                    queue(decode(qp));
+                } else {
+                    queue(qp);
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            LOG.debug("LearnerReceiver interrupted");
+            interrupted = true;
+        } catch (Throwable t) {
+            // e.g. a malformed message from the leader
+            failure = new IOException("Failed to receive a packet from the leader", t);
+        } finally {
+            // The packets queued are processed before the failure is thrown,
+            // unless the receiver is shut down, and nothing takes them anymore
+            if (interrupted) {
+                queuedPackets.clear();
+            }
+            while (true) {
+                try {
+                    queuedPackets.put(packetOfDeath);
+                    break;
+                } catch (InterruptedException e) {
+                    LOG.debug("LearnerReceiver interrupted");
+                    queuedPackets.clear();
+                }
+            }
+        }
+    }
+
+    private QuorumPacket decode(QuorumPacket qp) throws IOException {
+        long startTime = Time.currentElapsedTime();
+        TxnLogEntry logEntry = SerializeUtils.deserializeTxn(qp.getData());
+        ServerMetrics.getMetrics().LEARNER_RECEIVE_DECODE_TIME.add(Time.currentElapsedTime() - startTime);
+        return new DecodedProposal(qp, logEntry);
+    }
+
+    private void queue(QuorumPacket qp) throws InterruptedException {
+        queuedPackets.put(new ReceivedPacket(qp, Time.currentElapsedTime()));
+        ServerMetrics.getMetrics().LEARNER_RECEIVE_QUEUE_SIZE.add(queuedPackets.size());
+    }
+
+    /**
+     * The next packet received from the leader, waiting for it if needed.
+     *
+     * @throws IOException if the receiver failed to read or decode it
+     */
+    QuorumPacket take() throws IOException, InterruptedException {
+        ReceivedPacket received = queuedPackets.take();
+        if (received == packetOfDeath) {
+            // Let the next calls fail as well
+            queuedPackets.offer(packetOfDeath);
+            throw failure != null ? failure : new EOFException("LearnerReceiver stopped");
+        }
+        ServerMetrics.getMetrics().LEARNER_RECEIVE_QUEUE_TIME.add(Time.currentElapsedTime() - received.receiveTime);
+        return received.qp;
+    }
+
+    /**
+     * Stop the receiver, which is also stopped by closing the socket.
+     */
+    void shutdown() {
+        LOG.info("Shutting down LearnerReceiver");
+        interrupt();
+    }
+
+}
@@ -20,6 +20,7 @@
 
 import java.io.IOException;
 import java.util.concurrent.LinkedBlockingQueue;
+import org.apache.zookeeper.server.ServerMetrics;
 import org.apache.zookeeper.server.ZooKeeperCriticalThread;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -71,6 +72,7 @@ public void queuePacket(QuorumPacket pp) throws IOException {
             learner.bufferedOutput.flush();
         } else {
             queuedPackets.add(pp);
+            ServerMetrics.getMetrics().LEARNER_SEND_QUEUE_SIZE.add(queuedPackets.size());
         }
     }
 
@@ -21,8 +21,10 @@
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
+import javax.management.JMException;
 import org.apache.zookeeper.jmx.MBeanRegistry;
 import org.apache.zookeeper.server.DataTreeBean;
+import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.ServerCnxn;
 import org.apache.zookeeper.server.SyncRequestProcessor;
 import org.apache.zookeeper.server.ZKDatabase;
@@ -52,6 +54,22 @@ public LearnerZooKeeperServer(FileTxnSnapLog logFactory, int tickTime, int minSe
      */
     public abstract Learner getLearner();
 
+    /**
+     * Process a request received from an observer hosted by the
+     * {@link ObserverMaster} of this server, forwarding it to the leader.
+     */
+    abstract void processObserverRequest(Request request);
+
+    boolean registerJMX(LearnerHandlerBean handlerBean) {
+        try {
+            MBeanRegistry.getInstance().register(handlerBean, jmxServerBean);
+            return true;
+        } catch (JMException e) {
+            LOG.warn("Could not register connection", e);
+        }
+        return false;
+    }
+
     /**
      * Returns the current state of the session tracker. This is only currently
      * used by a Learner to build a ping response packet.
@@ -20,6 +20,8 @@
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicReference;
 import org.apache.jute.Record;
@@ -65,17 +67,75 @@ public class Observer extends Learner {
      */
     public static final String OBSERVER_ELECTION_DELAY_MS = "zookeeper.observer.election.DelayMs";
 
+    /**
+     * Let the observer host other observers once synced, relaying the txns to
+     * them through an ObserverMaster on the observerMasterPort, so that the
+     * observers form a tree rather than all connecting to the voting members.
+     * Default value is false.
+     */
+    public static final String OBSERVER_RELAY = "zookeeper.observer.relay";
+
+    /**
+     * The comma separated ids of the servers the observer connects to as
+     * learner masters on their observerMasterPort, e.g. relaying observers,
+     * instead of the voting members. Default value is unset.
+     */
+    public static final String OBSERVER_LEARNER_MASTERS = "zookeeper.observer.learnerMasters";
+
+    /**
+     * The maximum number of learner masters relaying the txns from the leader
+     * to the observer. Default value is 3.
+     */
+    public static final String OBSERVER_MAX_RELAY_DEPTH = "zookeeper.observer.maxRelayDepth";
+
     private static final long reconnectDelayMs;
 
     private static volatile long observerElectionDelayMs;
 
+    private static final boolean relay;
+
+    private static final List<Long> learnerMasterIds;
+
+    private static final int maxRelayDepth;
+
     static {
         reconnectDelayMs = Long.getLong(OBSERVER_RECONNECT_DELAY_MS, 0);
         LOG.info("{} = {}", OBSERVER_RECONNECT_DELAY_MS, reconnectDelayMs);
         observerElectionDelayMs = Long.getLong(OBSERVER_ELECTION_DELAY_MS, 200);
         LOG.info("{} = {}", OBSERVER_ELECTION_DELAY_MS , observerElectionDelayMs);
+        relay = Boolean.getBoolean(OBSERVER_RELAY);
+        LOG.info("{} = {}", OBSERVER_RELAY, relay);
+        learnerMasterIds = parseLearnerMasterIds(System.getProperty(OBSERVER_LEARNER_MASTERS));
+        LOG.info("{} = {}", OBSERVER_LEARNER_MASTERS, learnerMasterIds);
+        maxRelayDepth = Integer.getInteger(OBSERVER_MAX_RELAY_DEPTH, 3);
+        LOG.info("{} = {}", OBSERVER_MAX_RELAY_DEPTH, maxRelayDepth);
+    }
+
+    static List<Long> parseLearnerMasterIds(String spec) {
+        List<Long> ids = new ArrayList<>();
+        if (spec == null) {
+            return ids;
+        }
+        for (String id : spec.split(",")) {
+            id = id.trim();
+            if (id.isEmpty()) {
+                continue;
+            }
+            try {
+                ids.add(Long.parseLong(id));
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring invalid learner master id {} in {}", id, OBSERVER_LEARNER_MASTERS);
+            }
+        }
+        return ids;
     }
 
+    /**
+     * The ObserverMaster hosting the downstream observers when relaying, once
+     * synced with the learner master.
+     */
+    ObserverMaster om;
+
     /**
      * next learner master to try, when specified
      */
@@ -123,10 +183,15 @@ void observeLeader() throws Exception {
                 completedSync = true;
                 final long syncTime = Time.currentElapsedTime() - startTime;
                 ServerMetrics.getMetrics().OBSERVER_SYNC_TIME.add(syncTime);
+                if (relay && self.getObserverMasterPort() > 0) {
+                    LOG.info("Starting ObserverMaster relaying to downstream observers");
+
+                    om = new ObserverMaster(self, (ObserverZooKeeperServer) zk, self.getObserverMasterPort());
+                    om.start();
+                }
                 QuorumPacket qp = new QuorumPacket();
                 while (this.isRunning() && nextLearnerMaster.get() == null) {
-                    readPacket(qp);
-                    processPacket(qp);
+                    processPacket(receivePacket(qp));
                 }
             } catch (Exception e) {
                 LOG.warn("Exception when observing the leader", e);
@@ -136,6 +201,11 @@ void observeLeader() throws Exception {
                 pendingRevalidations.clear();
             }
         } finally {
+            stopReceivingThread();
+            if (om != null) {
+                om.stop();
+                om = null;
+            }
             currentLearnerMaster = null;
             zk.unregisterJMX(this);
             if (connectTime != 0) {
@@ -194,7 +264,9 @@ protected void processPacket(QuorumPacket qp) throws Exception {
             LOG.error("Received an UPTODATE message after Observer started");
             break;
         case Leader.REVALIDATE:
-            revalidate(qp);
+            if (om == null || !om.revalidateLearnerSession(qp)) {
+                revalidate(qp);
+            }
             break;
         case Leader.SYNC:
             ((ObserverZooKeeperServer) zk).sync();
@@ -210,6 +282,9 @@ protected void processPacket(QuorumPacket qp) throws Exception {
             request.setTxnDigest(digest);
             ObserverZooKeeperServer obs = (ObserverZooKeeperServer) zk;
             obs.commitRequest(request);
+            if (om != null) {
+                om.informReceived(qp);
+            }
             break;
         case Leader.INFORMANDACTIVATE:
             // get new designated leader from (current) leader's message
@@ -231,6 +306,9 @@ protected void processPacket(QuorumPacket qp) throws Exception {
             boolean majorChange = self.processReconfig(qv, suggestedLeaderId, qp.getZxid(), true);
 
             obs.commitRequest(request);
+            if (om != null) {
+                om.informReceived(qp);
+            }
 
             if (majorChange) {
                 throw new Exception("changes proposed in reconfig");
@@ -298,6 +376,14 @@ public QuorumPeer.QuorumServer getCurrentLearnerMaster() {
         return currentLearnerMaster;
     }
 
+    static List<Long> getLearnerMasterIds() {
+        return learnerMasterIds;
+    }
+
+    static int getMaxRelayDepth() {
+        return maxRelayDepth;
+    }
+
     public static long getObserverElectionDelayMs() {
         return observerElectionDelayMs;
     }
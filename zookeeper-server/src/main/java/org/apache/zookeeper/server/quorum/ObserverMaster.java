@@ -32,6 +32,7 @@
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -62,6 +63,10 @@
  * to be brought up to date.
  *
  * The logic is quite a bit simpler than the corresponding logic in Leader because it only hosts observers.
+ *
+ * Observers may host other observers as well, relaying the INFORMs they receive, so that the observers form a tree.
+ * Each ObserverMaster sends the chain of learner masters from the leader down to itself to the observers connecting
+ * to it, which refuse to connect to a chain they are part of, or deeper than the maximum relay depth.
  */
 public class ObserverMaster extends LearnerMaster implements Runnable {
 
@@ -71,8 +76,9 @@ public class ObserverMaster extends LearnerMaster implements Runnable {
     private final AtomicLong followerCounter = new AtomicLong(-1);
 
     private QuorumPeer self;
-    private FollowerZooKeeperServer zks;
+    private LearnerZooKeeperServer zks;
     private int port;
+    private final List<Long> relayChain;
 
     private Set<LearnerHandler> activeObservers = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
@@ -145,10 +151,14 @@ public void run() {
         }
     };
 
-    ObserverMaster(QuorumPeer self, FollowerZooKeeperServer zks, int port) {
+    ObserverMaster(QuorumPeer self, LearnerZooKeeperServer zks, int port) {
         this.self = self;
         this.zks = zks;
         this.port = port;
+        Learner learner = zks.getLearner();
+        List<Long> chain = learner == null ? new ArrayList<>() : new ArrayList<>(learner.relayChain);
+        chain.add(self.getMyId());
+        this.relayChain = Collections.unmodifiableList(chain);
     }
 
     @Override
@@ -200,9 +210,17 @@ public synchronized long getLastProposed() {
 
     @Override
     public long getEpochToPropose(long sid, long lastAcceptedEpoch) throws InterruptedException, IOException {
+        if (relayChain.contains(sid)) {
+            throw new IOException("Observer " + sid + " relays the txns to this server, hosting it would form a loop: " + relayChain);
+        }
         return self.getCurrentEpoch();
     }
 
+    @Override
+    List<Long> getRelayChain() {
+        return relayChain;
+    }
+
     @Override
     public ZKDatabase getZKDatabase() {
         return zks.getZKDatabase();
@@ -353,7 +371,18 @@ public QuorumAuthServer getQuorumAuthServer() {
     }
 
     void proposalReceived(QuorumPacket qp) {
-        proposedPkts.add(new QuorumPacket(Leader.INFORM, qp.getZxid(), qp.getData(), null));
+        proposedPkts.add(new BroadcastPacket(Leader.INFORM, qp.getZxid(), qp.getData(), null));
+    }
+
+    /**
+     * Relay an INFORM or an INFORMANDACTIVATE received by the observer
+     * hosting this ObserverMaster to the downstream observers, serialized once
+     * for all of them.
+     */
+    synchronized void informReceived(QuorumPacket qp) {
+        QuorumPacket pkt = new BroadcastPacket(qp.getType(), qp.getZxid(), qp.getData(), null);
+        cacheCommittedPacket(pkt);
+        sendPacket(pkt);
     }
 
     private synchronized QuorumPacket removeProposedPacket(long zxid) {
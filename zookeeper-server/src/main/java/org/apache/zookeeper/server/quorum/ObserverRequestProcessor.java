@@ -132,22 +132,28 @@ public void run() {
      * Simply queue the request, which will be processed in FIFO order.
      */
     public void processRequest(Request request) {
+        processRequest(request, true);
+    }
+
+    void processRequest(Request request, boolean checkForUpgrade) {
         if (!finished) {
-            Request upgradeRequest = null;
-            try {
-                upgradeRequest = zks.checkUpgradeSession(request);
-            } catch (KeeperException ke) {
-                if (request.getHdr() != null) {
-                    request.getHdr().setType(OpCode.error);
-                    request.setTxn(new ErrorTxn(ke.code().intValue()));
+            if (checkForUpgrade) {
+                Request upgradeRequest = null;
+                try {
+                    upgradeRequest = zks.checkUpgradeSession(request);
+                } catch (KeeperException ke) {
+                    if (request.getHdr() != null) {
+                        request.getHdr().setType(OpCode.error);
+                        request.setTxn(new ErrorTxn(ke.code().intValue()));
+                    }
+                    request.setException(ke);
+                    LOG.info("Error creating upgrade request", ke);
+                } catch (IOException ie) {
+                    LOG.error("Unexpected error in upgrade", ie);
+                }
+                if (upgradeRequest != null) {
+                    queuedRequests.add(upgradeRequest);
                 }
-                request.setException(ke);
-                LOG.info("Error creating upgrade request", ke);
-            } catch (IOException ie) {
-                LOG.error("Unexpected error in upgrade", ie);
-            }
-            if (upgradeRequest != null) {
-                queuedRequests.add(upgradeRequest);
             }
             queuedRequests.add(request);
         }
@@ -80,6 +80,17 @@ public void commitRequest(Request request) {
         commitProcessor.commit(request);
     }
 
+    /**
+     * Process a request received from a downstream observer, when this
+     * observer relays the txns to other observers.
+     *
+     * @param request received from external Learner
+     */
+    @Override
+    void processObserverRequest(Request request) {
+        ((ObserverRequestProcessor) firstProcessor).processRequest(request, false);
+    }
+
     /**
      * Set up the request processors for an Observer:
      * firstProcesor-&gt;commitProcessor-&gt;finalProcessor
@@ -91,6 +102,7 @@ protected void setupRequestProcessors() {
         // Currently, they behave almost exactly the same as followers.
         RequestProcessor finalProcessor = new FinalRequestProcessor(this);
         commitProcessor = new CommitProcessor(finalProcessor, Long.toString(getServerId()), true, getZooKeeperServerListener());
+        commitProcessor.setZKDatabase(getZKDatabase());
         commitProcessor.start();
         firstProcessor = new ObserverRequestProcessor(this, commitProcessor);
         ((ObserverRequestProcessor) firstProcessor).start();
@@ -119,6 +131,11 @@ public synchronized void sync() {
         }
 
         Request r = pendingSyncs.remove();
+        if (r instanceof LearnerSyncRequest) {
+            // A sync of a downstream observer, when relaying
+            LearnerSyncRequest lsr = (LearnerSyncRequest) r;
+            lsr.fh.queuePacket(new QuorumPacket(Leader.SYNC, 0, null, null));
+        }
         commitProcessor.commit(r);
     }
 
@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.apache.jute.Record;
+import org.apache.zookeeper.Quotas;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.ByteBufferInputStream;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.WorkerService;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.txn.CheckVersionTxn;
+import org.apache.zookeeper.txn.CreateContainerTxn;
+import org.apache.zookeeper.txn.CreateTTLTxn;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.MultiTxn;
+import org.apache.zookeeper.txn.SetACLTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.Txn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the committed txns of a batch of the CommitProcessor to the tree
+ * ahead of their turn, in parallel for the txns touching different top level
+ * subtrees, and in zxid order for the txns of a subtree. The txns are then
+ * completed in zxid order by the rest of the pipeline, which triggers their
+ * watches and records them as processed, so that the clients see the same
+ * order as when the txns are applied one at a time.
+ * <p>
+ * Only the txns confined to a top level subtree are applied ahead: the
+ * creation or deletion of a top level node changes the root, the session
+ * txns change the ephemerals of the session across the subtrees, and the
+ * txns under /zookeeper change the quotas or the config. Such a txn ends the
+ * run of txns applied ahead, and is applied in its turn.
+ */
+class ParallelTxnApplier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelTxnApplier.class);
+
+    /** the subtree of the txns which do not change the tree */
+    private static final String ANY_SUBTREE = "";
+
+    private final int numThreads;
+    private final WorkerService workers;
+
+    ParallelTxnApplier(int numThreads) {
+        this.numThreads = numThreads;
+        workers = new WorkerService("CommitProcApply", numThreads, true);
+    }
+
+    /**
+     * The top level subtree the txn of a request is confined to, or null if
+     * it has to be applied in its turn.
+     */
+    static String subtreeOf(Request request) {
+        if (request.getHdr() == null || request.getTxn() == null || request.isThrottled()) {
+            return null;
+        }
+        return subtreeOf(request.getHdr().getType(), request.getTxn());
+    }
+
+    private static String subtreeOf(int type, Record txn) {
+        switch (type) {
+        case OpCode.create:
+        case OpCode.create2:
+            return subtreeOf(((CreateTxn) txn).getPath(), true);
+        case OpCode.createTTL:
+            return subtreeOf(((CreateTTLTxn) txn).getPath(), true);
+        case OpCode.createContainer:
+            return subtreeOf(((CreateContainerTxn) txn).getPath(), true);
+        case OpCode.delete:
+        case OpCode.deleteContainer:
+            return subtreeOf(((DeleteTxn) txn).getPath(), true);
+        case OpCode.setData:
+            return subtreeOf(((SetDataTxn) txn).getPath(), false);
+        case OpCode.setACL:
+            return subtreeOf(((SetACLTxn) txn).getPath(), false);
+        case OpCode.check:
+            return subtreeOf(((CheckVersionTxn) txn).getPath(), false);
+        case OpCode.error:
+            return ANY_SUBTREE;
+        case OpCode.multi:
+            return subtreeOf((MultiTxn) txn);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @param changesParent whether the txn changes the parent of the node
+     *                      as well
+     */
+    private static String subtreeOf(String path, boolean changesParent) {
+        if (path == null || path.length() <= 1
+            || path.equals(Quotas.procZookeeper)
+            || path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
+            return null;
+        }
+        int end = path.indexOf('/', 1);
+        if (end < 0) {
+            // A top level node, whose parent is the root
+            return changesParent ? null : path;
+        }
+        return path.substring(0, end);
+    }
+
+    private static String subtreeOf(MultiTxn multiTxn) {
+        String subtree = ANY_SUBTREE;
+        for (Txn subtxn : multiTxn.getTxns()) {
+            Record record;
+            switch (subtxn.getType()) {
+            case OpCode.create:
+            case OpCode.create2:
+                record = new CreateTxn();
+                break;
+            case OpCode.createTTL:
+                record = new CreateTTLTxn();
+                break;
+            case OpCode.createContainer:
+                record = new CreateContainerTxn();
+                break;
+            case OpCode.delete:
+            case OpCode.deleteContainer:
+                record = new DeleteTxn();
+                break;
+            case OpCode.setData:
+                record = new SetDataTxn();
+                break;
+            case OpCode.check:
+                record = new CheckVersionTxn();
+                break;
+            case OpCode.error:
+                continue;
+            default:
+                return null;
+            }
+            try {
+                ByteBufferInputStream.byteBuffer2Record(ByteBuffer.wrap(subtxn.getData()), record);
+            } catch (IOException e) {
+                return null;
+            }
+            String subSubtree = subtreeOf(subtxn.getType(), record);
+            if (subSubtree == null) {
+                return null;
+            }
+            if (subtree.equals(ANY_SUBTREE)) {
+                subtree = subSubtree;
+            } else if (!subSubtree.equals(ANY_SUBTREE) && !subSubtree.equals(subtree)) {
+                return null;
+            }
+        }
+        return subtree;
+    }
+
+    /**
+     * Apply the txns of the requests to the tree ahead of their turn, and
+     * wait for them to be applied. All the txns must be confined to a
+     * subtree, see {@link #subtreeOf(Request)}.
+     */
+    void applyAhead(ZKDatabase zkDb, List<Request> requests, List<String> subtrees) throws InterruptedException {
+        Map<Integer, List<Request>> lanes = new HashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            int lane = Math.floorMod(subtrees.get(i).hashCode(), numThreads);
+            lanes.computeIfAbsent(lane, k -> new ArrayList<>()).add(requests.get(i));
+        }
+        Request last = requests.get(requests.size() - 1);
+        CountDownLatch applied = new CountDownLatch(lanes.size());
+        for (Map.Entry<Integer, List<Request>> lane : lanes.entrySet()) {
+            workers.schedule(new WorkerService.WorkRequest() {
+                private boolean done;
+
+                @Override
+                public void doWork() {
+                    List<Request> laneRequests = lane.getValue();
+                    int next = 0;
+                    try {
+                        for (; next < laneRequests.size(); next++) {
+                            Request request = laneRequests.get(next);
+                            request.setAppliedTxn(zkDb.applyTxnAhead(
+                                request.getHdr(),
+                                request.getTxn(),
+                                request.getTxnDigest(),
+                                request == last));
+                        }
+                    } catch (RuntimeException e) {
+                        // Apply the failed txn and the ones after it in the
+                        // lane in their turn, so they stay in zxid order and
+                        // the failure surfaces as when applying one at a time
+                        LOG.error(
+                            "Failed to apply txn 0x{} ahead, applying it and the {} next txns of its lane in their turn",
+                            Long.toHexString(laneRequests.get(next).zxid),
+                            laneRequests.size() - next - 1,
+                            e);
+                        for (Request request : laneRequests.subList(next, laneRequests.size())) {
+                            request.setAppliedTxn(null);
+                        }
+                    } finally {
+                        done();
+                    }
+                }
+
+                @Override
+                public void cleanup() {
+                    // The txns left are applied in their turn
+                    done();
+                }
+
+                private void done() {
+                    if (!done) {
+                        done = true;
+                        applied.countDown();
+                    }
+                }
+            }, lane.getKey());
+        }
+        applied.await();
+        LOG.debug("Applied {} txns ahead in {} lanes", requests.size(), lanes.size());
+    }
+
+    void shutdown() {
+        workers.stop();
+    }
+
+}
@@ -33,6 +33,7 @@
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -2363,7 +2364,20 @@ private void updateObserverMasterList() {
         }
         observerMasters.clear();
         StringBuilder sb = new StringBuilder();
-        for (QuorumServer server : quorumVerifier.getVotingMembers().values()) {
+        Collection<QuorumServer> masters = quorumVerifier.getVotingMembers().values();
+        if (!Observer.getLearnerMasterIds().isEmpty()) {
+            // The servers relaying the txns to this server when observing
+            masters = new ArrayList<>();
+            for (long sid : Observer.getLearnerMasterIds()) {
+                QuorumServer server = quorumVerifier.getAllMembers().get(sid);
+                if (server == null || sid == getMyId()) {
+                    LOG.warn("Ignoring learner master {}, which is not another member of the ensemble", sid);
+                } else {
+                    masters.add(server);
+                }
+            }
+        }
+        for (QuorumServer server : masters) {
             InetAddress address = server.addr.getReachableOrOne().getAddress();
             InetSocketAddress addr = new InetSocketAddress(address, observerMasterPort);
             observerMasters.add(new QuorumServer(server.id, addr));
@@ -20,6 +20,7 @@
 
 import java.io.Flushable;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.server.Request;
 import org.apache.zookeeper.server.RequestProcessor;
@@ -33,16 +34,26 @@ public class SendAckRequestProcessor implements RequestProcessor, Flushable {
 
     Learner learner;
 
+    /**
+     * The zxid of the last txn logged since the last flush, acked at once
+     * with the ones before on flush when batching, or -1. Taken atomically
+     * on flush, as the txns and the flushes may not come from one thread.
+     */
+    private final AtomicLong zxidToAck = new AtomicLong(-1);
+
     SendAckRequestProcessor(Learner peer) {
         this.learner = peer;
     }
 
     public void processRequest(Request si) {
         if (si.type != OpCode.sync) {
+            si.logLatency(ServerMetrics.getMetrics().PROPOSAL_ACK_CREATION_LATENCY);
+            if (learner.isBatching()) {
+                zxidToAck.set(si.getHdr().getZxid());
+                return;
+            }
             QuorumPacket qp = new QuorumPacket(Leader.ACK, si.getHdr().getZxid(), null, null);
             try {
-                si.logLatency(ServerMetrics.getMetrics().PROPOSAL_ACK_CREATION_LATENCY);
-
                 learner.writePacket(qp, false);
             } catch (IOException e) {
                 LOG.warn("Closing connection to leader, exception during packet send", e);
@@ -60,6 +71,11 @@ public void processRequest(Request si) {
 
     public void flush() throws IOException {
         try {
+            long zxid = zxidToAck.getAndSet(-1);
+            if (zxid != -1) {
+                QuorumPacket qp = new QuorumPacket(Leader.ACK, zxid, null, null);
+                learner.writePacket(qp, false);
+            }
             learner.writePacket(null, true);
         } catch (IOException e) {
             LOG.warn("Closing connection to leader, exception during packet send", e);
@@ -26,7 +26,6 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.Adler32;
 import java.util.zip.Checksum;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.BinaryOutputArchive;
@@ -34,6 +33,7 @@
 import org.apache.yetus.audience.InterfaceAudience;
 import org.apache.zookeeper.server.ExitCode;
 import org.apache.zookeeper.server.TxnLogEntry;
+import org.apache.zookeeper.server.persistence.ChecksumType;
 import org.apache.zookeeper.server.persistence.FileHeader;
 import org.apache.zookeeper.server.persistence.FileTxnLog;
 import org.apache.zookeeper.txn.TxnHeader;
@@ -83,6 +83,8 @@ public static boolean chop(InputStream is, OutputStream os, long zxid) throws IO
                            + " txnlog format version "
                            + fhdr.getVersion());
 
+        ChecksumType checksumType = ChecksumType.fromFileVersion(fhdr.getVersion());
+
         fhdr.serialize(choppedStream, "fileheader");
         int count = 0;
         boolean hasZxid = false;
@@ -107,7 +109,7 @@ public static boolean chop(InputStream is, OutputStream os, long zxid) throws IO
                 return false;
             }
 
-            Checksum crc = new Adler32();
+            Checksum crc = checksumType.newChecksum();
             crc.update(bytes, 0, bytes.length);
             if (crcValue != crc.getValue()) {
                 throw new IOException("CRC doesn't match " + crcValue + " vs " + crc.getValue());
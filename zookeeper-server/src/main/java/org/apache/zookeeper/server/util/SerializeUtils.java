@@ -24,6 +24,7 @@
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.function.LongConsumer;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
@@ -143,6 +144,11 @@ public static TxnLogEntry deserializeTxn(byte[] txnBytes) throws IOException {
     }
 
     public static void deserializeSnapshot(DataTree dt, InputArchive ia, Map<Long, Integer> sessions) throws IOException {
+        deserializeSessions(ia, sessions);
+        dt.deserialize(ia, "tree");
+    }
+
+    public static void deserializeSessions(InputArchive ia, Map<Long, Integer> sessions) throws IOException {
         int count = ia.readInt("count");
         while (count > 0) {
             long id = ia.readLong("id");
@@ -156,16 +162,35 @@ public static void deserializeSnapshot(DataTree dt, InputArchive ia, Map<Long, I
             }
             count--;
         }
-        dt.deserialize(ia, "tree");
     }
 
     public static void serializeSnapshot(DataTree dt, OutputArchive oa, Map<Long, Integer> sessions) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serialize(oa, "tree");
+    }
+
+    /**
+     * Serialize the snapshot, reporting the offset of every node record
+     * to nodeOffsets.
+     *
+     * @see DataTree#serializeNodes(OutputArchive, LongConsumer)
+     */
+    public static void serializeSnapshot(
+        DataTree dt,
+        OutputArchive oa,
+        Map<Long, Integer> sessions,
+        LongConsumer nodeOffsets) throws IOException {
+        serializeSessions(oa, sessions);
+        dt.serializeAcls(oa);
+        dt.serializeNodes(oa, nodeOffsets);
+    }
+
+    private static void serializeSessions(OutputArchive oa, Map<Long, Integer> sessions) throws IOException {
         HashMap<Long, Integer> sessSnap = new HashMap<>(sessions);
         oa.writeInt(sessSnap.size(), "count");
         for (Entry<Long, Integer> entry : sessSnap.entrySet()) {
             oa.writeLong(entry.getKey().longValue(), "id");
             oa.writeInt(entry.getValue().intValue(), "timeout");
         }
-        dt.serialize(oa, "tree");
     }
 }
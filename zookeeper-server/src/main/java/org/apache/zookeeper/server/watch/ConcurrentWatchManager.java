@@ -0,0 +1,409 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.server.NotificationEvent;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.ZooTrace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A watch manager without a global lock, for workloads where many threads
+ * add and trigger watches at the same time.
+ *
+ * Changes made compared to WatchManager:
+ *
+ * - The watches of every path are guarded by their own lock, so that only
+ *   the operations on the same path contend
+ * - The paths watched by every watcher are kept in concurrent sets, which
+ *   are only used to remove the watches of a closed connection and for the
+ *   reports
+ * - The number of recursive watches, which tells whether the parent paths
+ *   need to be looked up when triggering, is an atomic counter
+ *
+ * The reports are built without stopping the updates, so they may not
+ * reflect a single point in time.
+ */
+public class ConcurrentWatchManager implements IWatchManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrentWatchManager.class);
+
+    private final ConcurrentHashMap<String, PathWatches> watchTable = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Watcher, Set<String>> watch2Paths = new ConcurrentHashMap<>();
+
+    private final AtomicInteger recursiveWatchQty = new AtomicInteger();
+
+    /**
+     * The watchers of a path and their modes. Once removed from the watch
+     * table when it gets empty, it is never used again.
+     */
+    private static class PathWatches {
+
+        final Map<Watcher, WatchStats> watchers = new HashMap<>(4);
+        boolean removed;
+
+    }
+
+    @Override
+    public int size() {
+        int result = 0;
+        for (PathWatches watches : watchTable.values()) {
+            synchronized (watches) {
+                result += watches.watchers.size();
+            }
+        }
+        return result;
+    }
+
+    private boolean isDeadWatcher(Watcher watcher) {
+        return watcher instanceof ServerCnxn && ((ServerCnxn) watcher).isStale();
+    }
+
+    @Override
+    public boolean addWatch(String path, Watcher watcher) {
+        return addWatch(path, watcher, WatcherMode.DEFAULT_WATCHER_MODE);
+    }
+
+    @Override
+    public boolean addWatch(String path, Watcher watcher, WatcherMode watcherMode) {
+        if (isDeadWatcher(watcher)) {
+            LOG.debug("Ignoring addWatch with closed cnxn");
+            return false;
+        }
+
+        boolean added = false;
+        while (true) {
+            PathWatches watches = watchTable.computeIfAbsent(path, p -> new PathWatches());
+            synchronized (watches) {
+                if (watches.removed) {
+                    // emptied and dropped meanwhile, retry with a new one
+                    continue;
+                }
+                WatchStats stats = watches.watchers.getOrDefault(watcher, WatchStats.NONE);
+                WatchStats newStats = stats.addMode(watcherMode);
+                if (newStats != stats) {
+                    watches.watchers.put(watcher, newStats);
+                    if (stats == WatchStats.NONE) {
+                        addPath(watcher, path);
+                    }
+                    if (watcherMode.isRecursive()) {
+                        recursiveWatchQty.incrementAndGet();
+                    }
+                    added = true;
+                }
+            }
+            break;
+        }
+
+        // The connection may have been closed, and its watches removed,
+        // since it was checked above
+        if (added && isDeadWatcher(watcher)) {
+            removeWatcher(path, watcher, null);
+            return false;
+        }
+        return added;
+    }
+
+    private void addPath(Watcher watcher, String path) {
+        watch2Paths.compute(watcher, (w, paths) -> {
+            if (paths == null) {
+                paths = ConcurrentHashMap.newKeySet();
+            }
+            paths.add(path);
+            return paths;
+        });
+    }
+
+    private void removePath(Watcher watcher, String path) {
+        watch2Paths.computeIfPresent(watcher, (w, paths) -> {
+            paths.remove(path);
+            return paths.isEmpty() ? null : paths;
+        });
+    }
+
+    /**
+     * Drop the watches of a path from the watch table if it has no watcher
+     * left. Must be called holding the lock of the watches.
+     */
+    private void removeIfEmpty(String path, PathWatches watches) {
+        if (watches.watchers.isEmpty()) {
+            watches.removed = true;
+            watchTable.remove(path, watches);
+        }
+    }
+
+    @Override
+    public void removeWatcher(Watcher watcher) {
+        Set<String> paths = watch2Paths.remove(watcher);
+        if (paths == null) {
+            return;
+        }
+        for (String path : paths) {
+            PathWatches watches = watchTable.get(path);
+            if (watches == null) {
+                continue;
+            }
+            synchronized (watches) {
+                WatchStats stats = watches.watchers.remove(watcher);
+                if (stats != null && stats.hasMode(WatcherMode.PERSISTENT_RECURSIVE)) {
+                    recursiveWatchQty.decrementAndGet();
+                }
+                removeIfEmpty(path, watches);
+            }
+        }
+    }
+
+    @Override
+    public WatcherOrBitSet triggerWatch(String path, EventType type, long zxid) {
+        return triggerWatch(path, type, zxid, null);
+    }
+
+    @Override
+    public WatcherOrBitSet triggerWatch(String path, EventType type, long zxid, WatcherOrBitSet supress) {
+        WatchedEvent e = new NotificationEvent(type, KeeperState.SyncConnected, path, zxid);
+        Set<Watcher> watchers = new HashSet<>();
+        PathParentIterator pathParentIterator = getPathParentIterator(path);
+        for (String localPath : pathParentIterator.asIterable()) {
+            PathWatches watches = watchTable.get(localPath);
+            if (watches == null) {
+                continue;
+            }
+            synchronized (watches) {
+                Iterator<Entry<Watcher, WatchStats>> iterator = watches.watchers.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Entry<Watcher, WatchStats> entry = iterator.next();
+                    Watcher watcher = entry.getKey();
+                    WatchStats stats = entry.getValue();
+                    if (!pathParentIterator.atParentPath()) {
+                        watchers.add(watcher);
+                        WatchStats newStats = stats.removeMode(WatcherMode.STANDARD);
+                        if (newStats == WatchStats.NONE) {
+                            iterator.remove();
+                            removePath(watcher, localPath);
+                        } else if (newStats != stats) {
+                            entry.setValue(newStats);
+                        }
+                    } else if (stats.hasMode(WatcherMode.PERSISTENT_RECURSIVE)) {
+                        watchers.add(watcher);
+                    }
+                }
+                removeIfEmpty(localPath, watches);
+            }
+        }
+        if (watchers.isEmpty()) {
+            if (LOG.isTraceEnabled()) {
+                ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK, "No watchers for " + path);
+            }
+            return null;
+        }
+
+        for (Watcher w : watchers) {
+            if (supress != null && supress.contains(w)) {
+                continue;
+            }
+            w.process(e);
+        }
+
+        switch (type) {
+            case NodeCreated:
+                ServerMetrics.getMetrics().NODE_CREATED_WATCHER.add(watchers.size());
+                break;
+
+            case NodeDeleted:
+                ServerMetrics.getMetrics().NODE_DELETED_WATCHER.add(watchers.size());
+                break;
+
+            case NodeDataChanged:
+                ServerMetrics.getMetrics().NODE_CHANGED_WATCHER.add(watchers.size());
+                break;
+
+            case NodeChildrenChanged:
+                ServerMetrics.getMetrics().NODE_CHILDREN_WATCHER.add(watchers.size());
+                break;
+            default:
+                // Other types not logged.
+                break;
+        }
+
+        return new WatcherOrBitSet(watchers);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(watch2Paths.size()).append(" connections watching ").append(watchTable.size()).append(" paths\n");
+
+        int total = 0;
+        for (Set<String> paths : watch2Paths.values()) {
+            total += paths.size();
+        }
+        sb.append("Total watches:").append(total);
+
+        return sb.toString();
+    }
+
+    @Override
+    public void dumpWatches(PrintWriter pwriter, boolean byPath) {
+        if (byPath) {
+            for (Entry<String, PathWatches> e : watchTable.entrySet()) {
+                List<Watcher> watchers;
+                synchronized (e.getValue()) {
+                    watchers = new ArrayList<>(e.getValue().watchers.keySet());
+                }
+                pwriter.println(e.getKey());
+                for (Watcher w : watchers) {
+                    pwriter.print("\t0x");
+                    pwriter.print(Long.toHexString(((ServerCnxn) w).getSessionId()));
+                    pwriter.print("\n");
+                }
+            }
+        } else {
+            for (Entry<Watcher, Set<String>> e : watch2Paths.entrySet()) {
+                pwriter.print("0x");
+                pwriter.println(Long.toHexString(((ServerCnxn) e.getKey()).getSessionId()));
+                for (String path : e.getValue()) {
+                    pwriter.print("\t");
+                    pwriter.println(path);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean containsWatcher(String path, Watcher watcher) {
+        return containsWatcher(path, watcher, null);
+    }
+
+    @Override
+    public boolean containsWatcher(String path, Watcher watcher, WatcherMode watcherMode) {
+        PathWatches watches = watchTable.get(path);
+        if (watches == null) {
+            return false;
+        }
+        WatchStats stats;
+        synchronized (watches) {
+            stats = watches.watchers.get(watcher);
+        }
+        return stats != null && (watcherMode == null || stats.hasMode(watcherMode));
+    }
+
+    @Override
+    public boolean removeWatcher(String path, Watcher watcher, WatcherMode watcherMode) {
+        PathWatches watches = watchTable.get(path);
+        if (watches == null) {
+            return false;
+        }
+
+        WatchStats oldStats;
+        WatchStats newStats;
+        synchronized (watches) {
+            oldStats = watches.watchers.getOrDefault(watcher, WatchStats.NONE);
+            newStats = watcherMode != null ? oldStats.removeMode(watcherMode) : WatchStats.NONE;
+            if (newStats == WatchStats.NONE) {
+                if (oldStats != WatchStats.NONE) {
+                    watches.watchers.remove(watcher);
+                    removePath(watcher, path);
+                    removeIfEmpty(path, watches);
+                }
+            } else if (newStats != oldStats) {
+                watches.watchers.put(watcher, newStats);
+            }
+            if (oldStats.hasMode(WatcherMode.PERSISTENT_RECURSIVE) && !newStats.hasMode(WatcherMode.PERSISTENT_RECURSIVE)) {
+                recursiveWatchQty.decrementAndGet();
+            }
+        }
+
+        return oldStats != newStats;
+    }
+
+    @Override
+    public boolean removeWatcher(String path, Watcher watcher) {
+        return removeWatcher(path, watcher, null);
+    }
+
+    @Override
+    public WatchesReport getWatches() {
+        Map<Long, Set<String>> id2paths = new HashMap<>();
+        for (Entry<Watcher, Set<String>> e : watch2Paths.entrySet()) {
+            Long id = ((ServerCnxn) e.getKey()).getSessionId();
+            Set<String> paths = new HashSet<>(e.getValue());
+            id2paths.put(id, paths);
+        }
+        return new WatchesReport(id2paths);
+    }
+
+    @Override
+    public WatchesPathReport getWatchesByPath() {
+        Map<String, Set<Long>> path2ids = new HashMap<>();
+        for (Entry<String, PathWatches> e : watchTable.entrySet()) {
+            Set<Long> ids;
+            synchronized (e.getValue()) {
+                ids = new HashSet<>(e.getValue().watchers.size());
+                for (Watcher watcher : e.getValue().watchers.keySet()) {
+                    ids.add(((ServerCnxn) watcher).getSessionId());
+                }
+            }
+            path2ids.put(e.getKey(), ids);
+        }
+        return new WatchesPathReport(path2ids);
+    }
+
+    @Override
+    public WatchesSummary getWatchesSummary() {
+        int totalWatches = 0;
+        for (Set<String> paths : watch2Paths.values()) {
+            totalWatches += paths.size();
+        }
+        return new WatchesSummary(watch2Paths.size(), watchTable.size(), totalWatches);
+    }
+
+    @Override
+    public void shutdown() { /* do nothing */ }
+
+    // VisibleForTesting
+    int getRecursiveWatchQty() {
+        return recursiveWatchQty.get();
+    }
+
+    private PathParentIterator getPathParentIterator(String path) {
+        if (getRecursiveWatchQty() == 0) {
+            return PathParentIterator.forPathOnly(path);
+        }
+        return PathParentIterator.forAll(path);
+    }
+}
@@ -0,0 +1,194 @@
+package org.apache.zookeeper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.client.ZKClientConfig;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the delivery of the watch events and the callbacks of a client by
+ * several event threads
+ */
+public class EventDispatcherTest extends ClientBase {
+
+    private static final int PATHS = 4;
+    private static final int WRITES = 100;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty(ZKClientConfig.ZOOKEEPER_EVENT_THREADS, "4");
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty(ZKClientConfig.ZOOKEEPER_EVENT_THREADS);
+    }
+
+    private static String path(int i) {
+        return "/p" + i;
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        assertTrue(latch.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * The events of a path are delivered in order, while a slow callback of
+     * a path does not hold up the events of the other paths
+     */
+    @Test(timeout=60000)
+    public void perPathOrderingTest() throws Exception {
+        ZooKeeper zk = createClient();
+        List<List<Long>> callbacks = new ArrayList<>();
+        List<List<Long>> events = new ArrayList<>();
+        for (int i = 0; i < PATHS; i++) {
+            zk.create(path(i), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            callbacks.add(Collections.synchronizedList(new ArrayList<>()));
+            List<Long> pathEvents = Collections.synchronizedList(new ArrayList<>());
+            events.add(pathEvents);
+            zk.addWatch(path(i), event -> {
+                if (event.getType() == EventType.NodeDataChanged) {
+                    pathEvents.add(event.getZxid());
+                }
+            }, AddWatchMode.PERSISTENT);
+        }
+
+        CountDownLatch done = new CountDownLatch(PATHS * WRITES);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int w = 0; w < WRITES; w++) {
+            for (int i = 0; i < PATHS; i++) {
+                List<Long> pathCallbacks = callbacks.get(i);
+                long seed = w * PATHS + i;
+                zk.setData(path(i), new byte[] {(byte) w}, -1, (rc, p, ctx, stat) -> {
+                    if (rc != KeeperException.Code.OK.intValue()) {
+                        failure.compareAndSet(null, KeeperException.create(KeeperException.Code.get(rc), p));
+                    } else {
+                        pathCallbacks.add(stat.getMzxid());
+                    }
+                    if (seed % 7 == 0) {
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                    done.countDown();
+                }, null);
+            }
+        }
+        await(done);
+        assertNull(failure.get());
+
+        for (int i = 0; i < PATHS; i++) {
+            List<Long> pathCallbacks = callbacks.get(i);
+            assertEquals(WRITES, pathCallbacks.size());
+            List<Long> sorted = new ArrayList<>(pathCallbacks);
+            Collections.sort(sorted);
+            assertEquals(path(i), sorted, pathCallbacks);
+        }
+        // The notification of a write is received before its response, and
+        // delivered in the same lane as its callback
+        for (int i = 0; i < PATHS; i++) {
+            assertEquals(path(i), callbacks.get(i), events.get(i));
+        }
+
+        // A callback waiting for the callback of another path doesn't hold it
+        CountDownLatch second = new CountDownLatch(1);
+        CountDownLatch both = new CountDownLatch(2);
+        zk.exists(path(0), false, (rc, p, ctx, stat) -> {
+            try {
+                if (second.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    both.countDown();
+                }
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, e);
+            }
+        }, null);
+        zk.exists(path(1), false, (rc, p, ctx, stat) -> {
+            second.countDown();
+            both.countDown();
+        }, null);
+        await(both);
+        assertNull(failure.get());
+    }
+
+    private static <T> KeeperException failure(CompletableFuture<T> future) throws Exception {
+        try {
+            future.get(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("the future was expected to fail");
+            return null;
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof KeeperException);
+            assertTrue(future.isCompletedExceptionally());
+            return (KeeperException) e.getCause();
+        }
+    }
+
+    @Test(timeout=60000)
+    public void asyncFuturesTest() throws Exception {
+        ZooKeeper zk = createClient();
+        OpResult.CreateResult created = zk.createAsync(
+            "/a", "a".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT).get();
+        assertEquals("/a", created.getPath());
+
+        KeeperException e = failure(zk.createAsync("/a", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+        assertEquals(KeeperException.Code.NODEEXISTS, e.code());
+        assertEquals("/a", e.getPath());
+
+        e = failure(zk.getDataAsync("/missing", null));
+        assertEquals(KeeperException.Code.NONODE, e.code());
+        assertEquals("/missing", e.getPath());
+        assertEquals(KeeperException.Code.NONODE, failure(zk.getChildrenAsync("/missing", null)).code());
+        assertEquals(KeeperException.Code.NONODE, failure(zk.deleteAsync("/missing", -1)).code());
+        assertNull(zk.existsAsync("/missing", null).get());
+
+        e = failure(zk.setDataAsync("/a", "b".getBytes(), 5));
+        assertEquals(KeeperException.Code.BADVERSION, e.code());
+        Stat stat = zk.setDataAsync("/a", "b".getBytes(), 0).get();
+        assertEquals(1, stat.getVersion());
+        OpResult.GetDataResult data = zk.getDataAsync("/a", null).get();
+        assertArrayEquals("b".getBytes(), data.getData());
+        assertEquals(stat, data.getStat());
+        assertEquals(stat, zk.existsAsync("/a", null).get());
+        assertEquals(Collections.emptyList(), zk.getChildrenAsync("/a", null).get());
+
+        // A failed multi carries the results of its operations
+        e = failure(zk.multiAsync(Arrays.asList(
+            Op.create("/a/b", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT),
+            Op.delete("/missing", -1))));
+        assertEquals(KeeperException.Code.NONODE, e.code());
+        List<OpResult> results = e.getResults();
+        assertEquals(2, results.size());
+        assertTrue(results.get(1) instanceof OpResult.ErrorResult);
+        assertNull(zk.exists("/a/b", false));
+
+        assertEquals(2, zk.multiAsync(Arrays.asList(
+            Op.create("/a/b", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT),
+            Op.delete("/a/b", -1))).get().size());
+        zk.deleteAsync("/a", -1).get();
+        assertNull(zk.exists("/a", false));
+    }
+
+}
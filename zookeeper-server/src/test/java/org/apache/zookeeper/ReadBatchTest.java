@@ -0,0 +1,220 @@
+package org.apache.zookeeper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.client.ZKClientConfig;
+import org.apache.zookeeper.server.NIOServerCnxn;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the reads queued one after the other, which the client sends as a
+ * single multiRead
+ */
+public class ReadBatchTest extends ClientBase {
+
+    private final List<String> results = Collections.synchronizedList(new ArrayList<>());
+    private CountDownLatch pending;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty(ZKClientConfig.ZOOKEEPER_READ_BATCH_MAX_OPS, "16");
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty(ZKClientConfig.ZOOKEEPER_READ_BATCH_MAX_OPS);
+    }
+
+    private void expect(int count) {
+        pending = new CountDownLatch(count);
+    }
+
+    private void awaitResults() throws InterruptedException {
+        assertTrue(pending.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private void getData(ZooKeeper zk, String path) {
+        zk.getData(path, false, (rc, p, ctx, data, stat) -> {
+            results.add("getData " + p + " " + Code.get(rc) + (data == null ? "" : " " + new String(data)));
+            pending.countDown();
+        }, null);
+    }
+
+    private void getChildren(ZooKeeper zk, String path) {
+        zk.getChildren(path, false, (rc, p, ctx, children) -> {
+            results.add("getChildren " + p + " " + Code.get(rc) + (children == null ? "" : " " + children));
+            pending.countDown();
+        }, null);
+    }
+
+    private void setData(ZooKeeper zk, String path, String data) {
+        zk.setData(path, data.getBytes(), -1, (rc, p, ctx, stat) -> {
+            results.add("setData " + p + " " + Code.get(rc));
+            pending.countDown();
+        }, null);
+    }
+
+    /**
+     * Send a read, and queue the requests submitted by the given task
+     * behind it while the send thread is held right after sending the read,
+     * so that the reads among them are batched
+     */
+    private void queueBehindRead(TestableZooKeeper zk, String path, Runnable task) throws InterruptedException {
+        Queue<ClientCnxn.Packet> pendingQueue = zk.cnxn.getPendingQueue();
+        synchronized (pendingQueue) {
+            int xid = zk.checkXid();
+            getData(zk, path);
+            // Sent, and waiting to be added to the pending queue
+            while (zk.checkXid() == xid || zk.cnxn.sendThread.getState() != Thread.State.BLOCKED) {
+                Thread.sleep(1);
+            }
+            task.run();
+        }
+    }
+
+    @Test(timeout=60000)
+    public void perReadErrorsTest() throws Exception {
+        ZooKeeper writer = createClient();
+        writer.addAuthInfo("digest", "user:password".getBytes());
+        writer.create("/a", "a".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        writer.create("/a/b", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        writer.create("/secret", null, ZooDefs.Ids.CREATOR_ALL_ACL, CreateMode.PERSISTENT);
+
+        TestableZooKeeper zk = createClient();
+        int xid = zk.checkXid();
+        expect(8);
+        queueBehindRead(zk, "/a", () -> {
+            getData(zk, "/a");
+            getData(zk, "/missing");
+            getChildren(zk, "/a");
+            getChildren(zk, "/missing");
+            getData(zk, "/secret");
+            getChildren(zk, "/secret");
+            getData(zk, "/a");
+        });
+        awaitResults();
+        // The read sent first, then a single batch of the other ones
+        assertEquals(xid + 2, zk.checkXid());
+        assertEquals(Arrays.asList(
+            "getData /a OK a",
+            "getData /a OK a",
+            "getData /missing NONODE",
+            "getChildren /a OK [b]",
+            "getChildren /missing NONODE",
+            "getData /secret NOAUTH",
+            "getChildren /secret NOAUTH",
+            "getData /a OK a"), results);
+
+        // The reads sent alone fail the same way
+        try {
+            zk.getData("/missing", false, null);
+            fail("the node does not exist");
+        } catch (KeeperException.NoNodeException e) {
+            // expected
+        }
+        try {
+            zk.getChildren("/secret", false);
+            fail("the node is not readable");
+        } catch (KeeperException.NoAuthException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout=60000)
+    public void orderedWithWritesTest() throws Exception {
+        TestableZooKeeper zk = createClient();
+        zk.create("/n", "0".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        int xid = zk.checkXid();
+        expect(6);
+        queueBehindRead(zk, "/n", () -> {
+            getData(zk, "/n");
+            getData(zk, "/n");
+            setData(zk, "/n", "1");
+            getData(zk, "/n");
+            getData(zk, "/n");
+        });
+        awaitResults();
+        // The write splits the reads queued around it into two batches
+        assertEquals(xid + 4, zk.checkXid());
+        assertEquals(Arrays.asList(
+            "getData /n OK 0",
+            "getData /n OK 0",
+            "getData /n OK 0",
+            "setData /n OK",
+            "getData /n OK 1",
+            "getData /n OK 1"), results);
+    }
+
+    private static boolean isBatchPending(TestableZooKeeper zk) {
+        Queue<ClientCnxn.Packet> pendingQueue = zk.cnxn.getPendingQueue();
+        synchronized (pendingQueue) {
+            for (ClientCnxn.Packet packet : pendingQueue) {
+                if (packet instanceof ClientCnxn.ReadBatch) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Test(timeout=60000)
+    public void connectionLossMidBatchTest() throws Exception {
+        CountdownWatcher watcher = new CountdownWatcher();
+        TestableZooKeeper zk = createClient(watcher);
+        zk.create("/n", "0".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        NIOServerCnxn serverCnxn = null;
+        for (ServerCnxn cnxn : serverFactory.getConnections()) {
+            if (cnxn.getSessionId() == zk.getSessionId()) {
+                serverCnxn = (NIOServerCnxn) cnxn;
+            }
+        }
+
+        int xid = zk.checkXid();
+        expect(6);
+        // The server answers none of the requests of the session while its
+        // connection is locked, as it updates the stats of the connection
+        // before sending a response
+        synchronized (serverCnxn) {
+            queueBehindRead(zk, "/n", () -> {
+                for (int i = 0; i < 5; i++) {
+                    getData(zk, "/n");
+                }
+            });
+            while (!isBatchPending(zk)) {
+                Thread.sleep(1);
+            }
+            assertEquals(xid + 2, zk.checkXid());
+
+            // Every read of the batch fails with the connection
+            watcher.reset();
+            serverCnxn.close(ServerCnxn.DisconnectReason.CONNECTION_CLOSE_FORCED);
+        }
+        awaitResults();
+        assertEquals(Collections.nCopies(6, "getData /n CONNECTIONLOSS"), results);
+
+        watcher.waitForConnected(CONNECTION_TIMEOUT);
+        assertArrayEquals("0".getBytes(), zk.getData("/n", false, null));
+    }
+
+}
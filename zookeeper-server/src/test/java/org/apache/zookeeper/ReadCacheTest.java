@@ -0,0 +1,165 @@
+package org.apache.zookeeper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.Test;
+
+/**
+ * Test the client cache of the reads of the subtrees added with
+ * ZooKeeper.addReadCache
+ */
+public class ReadCacheTest extends ClientBase {
+
+    private static byte[] bytes(String data) {
+        return data.getBytes();
+    }
+
+    private static ReadCache cacheOf(ZooKeeper zk) {
+        return zk.cnxn.getReadCache();
+    }
+
+    private static boolean isCached(ZooKeeper zk, String path) {
+        return cacheOf(zk).getData(path, null) != null;
+    }
+
+    private static void sync(ZooKeeper zk, String path) throws InterruptedException {
+        CountDownLatch synced = new CountDownLatch(1);
+        zk.sync(path, (rc, p, ctx) -> synced.countDown(), null);
+        assertTrue(synced.await(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private ZooKeeper createCachingClient() throws Exception {
+        ZooKeeper zk = createClient();
+        zk.addReadCache("/c");
+        return zk;
+    }
+
+    @Test(timeout=60000)
+    public void cachedReadTest() throws Exception {
+        ZooKeeper zk = createCachingClient();
+        zk.create("/c", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk.create("/c/a", bytes("1"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk.create("/b", bytes("1"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        Stat stat = new Stat();
+        assertArrayEquals(bytes("1"), zk.getData("/c/a", false, stat));
+        zk.getData("/b", false, null);
+        assertTrue(isCached(zk, "/c/a"));
+        // Only the nodes of the subtree are cached
+        assertFalse(isCached(zk, "/b"));
+
+        Stat cachedStat = new Stat();
+        assertArrayEquals(bytes("1"), zk.getData("/c/a", false, cachedStat));
+        assertEquals(stat, cachedStat);
+        assertEquals(stat, zk.exists("/c/a", false));
+
+        // A copy of the cached data is returned
+        zk.getData("/c/a", false, null)[0] = 0;
+        assertArrayEquals(bytes("1"), zk.getData("/c/a", false, null));
+
+        zk.removeReadCache("/c");
+        assertFalse(isCached(zk, "/c/a"));
+        zk.getData("/c/a", false, null);
+        assertFalse(isCached(zk, "/c/a"));
+    }
+
+    @Test(timeout=60000)
+    public void invalidatedByOtherSessionTest() throws Exception {
+        ZooKeeper writer = createClient();
+        writer.create("/c", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        writer.create("/c/a", bytes("1"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        ZooKeeper zk = createCachingClient();
+        assertArrayEquals(bytes("1"), zk.getData("/c/a", false, null));
+        assertTrue(isCached(zk, "/c/a"));
+
+        for (int i = 2; i < 10; i++) {
+            Stat written = writer.setData("/c/a", bytes(Integer.toString(i)), -1);
+            // The notification of the write is read before the response to
+            // a later request of the session
+            sync(zk, "/c/a");
+            assertFalse(isCached(zk, "/c/a"));
+            Stat stat = new Stat();
+            assertArrayEquals(bytes(Integer.toString(i)), zk.getData("/c/a", false, stat));
+            assertEquals(written, stat);
+            assertTrue(isCached(zk, "/c/a"));
+        }
+
+        writer.delete("/c/a", -1);
+        sync(zk, "/c/a");
+        assertNull(zk.exists("/c/a", false));
+        try {
+            zk.getData("/c/a", false, null);
+            fail("the node was deleted");
+        } catch (KeeperException.NoNodeException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout=60000)
+    public void readYourWritesTest() throws Exception {
+        ZooKeeper zk = createCachingClient();
+        zk.create("/c", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk.create("/c/a", bytes("0"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+        for (int i = 1; i < 20; i++) {
+            zk.getData("/c/a", false, null);
+            assertTrue(isCached(zk, "/c/a"));
+            // The write is seen by the next read, with no sync
+            Stat written = zk.setData("/c/a", bytes(Integer.toString(i)), -1);
+            Stat stat = new Stat();
+            assertArrayEquals(bytes(Integer.toString(i)), zk.getData("/c/a", false, stat));
+            assertEquals(written, stat);
+        }
+
+        zk.delete("/c/a", -1);
+        assertNull(zk.exists("/c/a", false));
+        zk.create("/c/a", bytes("new"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        assertArrayEquals(bytes("new"), zk.getData("/c/a", false, null));
+    }
+
+    @Test(timeout=60000)
+    public void clearedOnDisconnectTest() throws Exception {
+        CountdownWatcher watcher = new CountdownWatcher();
+        ZooKeeper zk = createClient(watcher);
+        zk.addReadCache("/c");
+        zk.create("/c", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk.create("/c/a", bytes("1"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        zk.getData("/c/a", false, null);
+        assertTrue(isCached(zk, "/c/a"));
+
+        stopServer();
+        watcher.waitForDisconnected(CONNECTION_TIMEOUT);
+        // Nothing is read from the cache while the notifications may be
+        // missed
+        assertFalse(isCached(zk, "/c/a"));
+        assertNull(cacheOf(zk).exists("/c/a"));
+
+        watcher.reset();
+        startServer();
+        watcher.waitForConnected(CONNECTION_TIMEOUT);
+        ZooKeeper writer = createClient();
+        writer.setData("/c/a", bytes("2"), -1);
+        sync(zk, "/c/a");
+
+        // The watches are set again, so the cache is used again, and kept up
+        // to date
+        assertArrayEquals(bytes("2"), zk.getData("/c/a", false, null));
+        assertTrue(isCached(zk, "/c/a"));
+        writer.setData("/c/a", bytes("3"), -1);
+        sync(zk, "/c/a");
+        assertFalse(isCached(zk, "/c/a"));
+        assertArrayEquals(bytes("3"), zk.getData("/c/a", false, null));
+        assertNotNull(zk.exists("/c/a", false));
+    }
+
+}
@@ -5,20 +5,34 @@
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
+import org.apache.jute.Record;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.NodeExistsException;
 import org.apache.zookeeper.Quotas;
 import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.data.StatPersisted;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
@@ -364,6 +378,391 @@ public void deleteNodeTest(){
 	    	}
 	    }	
 	}
+    public static class CompactNodeHashMapTest {
+
+        @After
+        public void tearDown() {
+            System.clearProperty(DataTree.NODE_HASH_MAP_IMPL);
+        }
+
+        @Test(timeout=1000)
+        public void putGetRemoveTest() {
+            CompactNodeHashMap map = new CompactNodeHashMap(new DigestCalculator());
+            DataNode a = new DataNode(new byte[1], -1L, new StatPersisted());
+            DataNode ab = new DataNode(new byte[2], -1L, new StatPersisted());
+            DataNode ac = new DataNode(new byte[3], -1L, new StatPersisted());
+
+            assertNull(map.put("/a", a));
+            assertNull(map.put("/a/b", ab));
+            assertNull(map.put("/a/c", ac));
+            assertEquals(3, map.size());
+            assertSame(a, map.get("/a"));
+            assertSame(ab, map.get("/a/b"));
+            assertNull(map.get("/a/d"));
+            assertNull(map.get("/a/b/c"));
+            assertNull(map.get("a"));
+
+            assertSame(ab, map.put("/a/b", ac));
+            assertSame(ac, map.get("/a/b"));
+            assertEquals(3, map.size());
+
+            assertSame(ac, map.remove("/a/c"));
+            assertNull(map.remove("/a/c"));
+            assertNull(map.get("/a/c"));
+            assertSame(a, map.get("/a"));
+            assertEquals(2, map.size());
+
+            assertSame(ac, map.remove("/a/b"));
+            assertSame(a, map.remove("/a"));
+            assertEquals(0, map.size());
+            assertFalse(map.entrySet().iterator().hasNext());
+        }
+
+        @Test(timeout=1000)
+        public void iterationTest() {
+            CompactNodeHashMap map = new CompactNodeHashMap(new DigestCalculator());
+            Map<String, DataNode> expected = new HashMap<>();
+            expected.put("", new DataNode(new byte[0], -1L, new StatPersisted()));
+            expected.put("/", expected.get(""));
+            // enough children to switch the children of /wide to a map
+            for (int i = 0; i < CompactNodeHashMap.ARRAY_CHILDREN_LIMIT * 2; i++) {
+                expected.put("/wide/" + i, new DataNode(new byte[0], -1L, new StatPersisted()));
+            }
+            expected.put("/wide", new DataNode(new byte[0], -1L, new StatPersisted()));
+            expected.put("/deep/a/b/c", new DataNode(new byte[0], -1L, new StatPersisted()));
+            for (Map.Entry<String, DataNode> entry : expected.entrySet()) {
+                map.put(entry.getKey(), entry.getValue());
+            }
+            assertEquals(expected.size(), map.size());
+
+            Map<String, DataNode> iterated = new HashMap<>();
+            for (Map.Entry<String, DataNode> entry : map.entrySet()) {
+                assertNull(iterated.put(entry.getKey(), entry.getValue()));
+            }
+            assertEquals(expected, iterated);
+
+            // the empty trie nodes above /deep/a/b/c are pruned with it
+            map.remove("/deep/a/b/c");
+            for (int i = 0; i < CompactNodeHashMap.ARRAY_CHILDREN_LIMIT * 2; i++) {
+                assertNotNull(map.remove("/wide/" + i));
+            }
+            iterated.clear();
+            for (Map.Entry<String, DataNode> entry : map.entrySet()) {
+                iterated.put(entry.getKey(), entry.getValue());
+            }
+            assertEquals(new HashSet<>(Arrays.asList("", "/", "/wide")), iterated.keySet());
+        }
+
+        @Test(timeout=5000)
+        public void dataTreeTest() throws Exception {
+            DataTree expected = new DataTree();
+            System.setProperty(DataTree.NODE_HASH_MAP_IMPL, CompactNodeHashMap.class.getName());
+            DataTree dataTree = new DataTree();
+
+            for (DataTree tree : Arrays.asList(expected, dataTree)) {
+                tree.createNode("/a", new byte[10], null, 0, 0, 1, 1);
+                tree.createNode("/a/b", new byte[10], null, 0, 1, 2, 1);
+                for (int i = 0; i < CompactNodeHashMap.ARRAY_CHILDREN_LIMIT + 1; i++) {
+                    tree.createNode("/a/b/" + i, new byte[i], null, 0, i + 1, 3 + i, 1);
+                }
+                tree.setData("/a/b/7", new byte[3], 1, 100, 2);
+                tree.deleteNode("/a/b/3", 101);
+            }
+
+            assertEquals(expected.getNodeCount(), dataTree.getNodeCount());
+            assertEquals(expected.getTreeDigest(), dataTree.getTreeDigest());
+            assertEquals(new HashSet<>(expected.getChildren("/a/b", null, null)),
+                    new HashSet<>(dataTree.getChildren("/a/b", null, null)));
+            assertNull(dataTree.getNode("/a/b/3"));
+            assertEquals(3, dataTree.getNode("/a/b/7").getData().length);
+
+            dataTree.deleteNode("/a/b/7", 102);
+            expected.deleteNode("/a/b/7", 102);
+            assertEquals(expected.getTreeDigest(), dataTree.getTreeDigest());
+        }
+    }
+
+    @RunWith(Parameterized.class)
+    public static class SubtreeDigestTest {
+
+        private final String nodeHashMapImpl;
+        private final DigestCalculator digestCalculator = new DigestCalculator();
+        private boolean oldSubtreeDigestEnabled;
+        private DataTree dataTree;
+
+        public SubtreeDigestTest(String nodeHashMapImpl) {
+            this.nodeHashMapImpl = nodeHashMapImpl;
+        }
+
+        @Parameters
+        public static Collection<Object[]> getParameters() {
+            return Arrays.asList(new Object[][] {
+                {NodeHashMapImpl.class.getName()},
+                {CompactNodeHashMap.class.getName()},
+            });
+        }
+
+        @Before
+        public void setUp() {
+            oldSubtreeDigestEnabled = ZooKeeperServer.isSubtreeDigestEnabled();
+            ZooKeeperServer.setSubtreeDigestEnabled(true);
+            System.setProperty(DataTree.NODE_HASH_MAP_IMPL, nodeHashMapImpl);
+            dataTree = new DataTree();
+        }
+
+        @After
+        public void tearDown() {
+            System.clearProperty(DataTree.NODE_HASH_MAP_IMPL);
+            ZooKeeperServer.setSubtreeDigestEnabled(oldSubtreeDigestEnabled);
+        }
+
+        /**
+         * The digest of the subtree of a node, summed up node by node.
+         */
+        private long expectedDigest(String path) throws Exception {
+            if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
+                return 0;
+            }
+            long digest = digestCalculator.calculateDigest(path, dataTree.getNode(path));
+            String prefix = path.equals("/") ? "/" : path + "/";
+            for (String child : dataTree.getChildren(path, null, null)) {
+                digest += expectedDigest(prefix + child);
+            }
+            return digest;
+        }
+
+        private void assertSubtreeDigests(String... paths) throws Exception {
+            for (String path : paths) {
+                assertEquals(path, Long.valueOf(expectedDigest(path)), dataTree.getSubtreeDigest(path));
+                Map<String, Long> children = dataTree.getChildrenSubtreeDigests(path);
+                assertEquals(dataTree.getNode(path).getChildren().size(), children.size());
+                for (Map.Entry<String, Long> child : children.entrySet()) {
+                    String childPath = (path.equals("/") ? "/" : path + "/") + child.getKey();
+                    assertEquals(childPath, Long.valueOf(expectedDigest(childPath)), child.getValue());
+                }
+            }
+        }
+
+        @Test(timeout=5000)
+        public void nestedNodesTest() throws Exception {
+            dataTree.createNode("/a", new byte[1], null, 0, 0, 1, 1);
+            dataTree.createNode("/a/b", new byte[2], null, 0, 0, 2, 1);
+            dataTree.createNode("/a/b/c", new byte[3], null, 0, 0, 3, 1);
+            dataTree.createNode("/a/d", new byte[4], null, 0, 1, 4, 1);
+            dataTree.createNode("/e", new byte[5], null, 0, 1, 5, 1);
+            assertSubtreeDigests("/", "/a", "/a/b", "/a/b/c", "/a/d", "/e");
+            assertEquals(dataTree.getTreeDigest(), (long) dataTree.getSubtreeDigest(""));
+            long eDigest = dataTree.getSubtreeDigest("/e");
+
+            dataTree.setData("/a/b/c", new byte[30], 1, 6, 2);
+            assertSubtreeDigests("/", "/a", "/a/b", "/a/b/c");
+            assertEquals(eDigest, (long) dataTree.getSubtreeDigest("/e"));
+
+            dataTree.deleteNode("/a/b/c", 7);
+            assertNull(dataTree.getSubtreeDigest("/a/b/c"));
+            assertSubtreeDigests("/", "/a", "/a/b", "/a/d");
+            assertEquals(Long.valueOf(digestCalculator.calculateDigest("/a/b", dataTree.getNode("/a/b"))),
+                    dataTree.getSubtreeDigest("/a/b"));
+
+            dataTree.deleteNode("/a/b", 8);
+            dataTree.deleteNode("/a/d", 9);
+            assertSubtreeDigests("/", "/a");
+            assertEquals(Long.valueOf(digestCalculator.calculateDigest("/a", dataTree.getNode("/a"))),
+                    dataTree.getSubtreeDigest("/a"));
+            assertEquals(dataTree.getTreeDigest(), (long) dataTree.getSubtreeDigest(""));
+        }
+    }
+
+    public static class ParallelApplyTest {
+
+        private static final int SUBTREES = 4;
+        private static final int LANES = 2;
+
+        private long zxid = 0;
+
+        /**
+         * The header, the txn and the subtree of the next txn
+         */
+        private Object[] txn(int subtree, int type, Record record) {
+            zxid++;
+            return new Object[] {new TxnHeader(1, (int) zxid, zxid, zxid, type), record, subtree};
+        }
+
+        /**
+         * Interleaved txns of several subtrees, as a batch of the CommitProcessor
+         */
+        private List<Object[]> createTxns() {
+            List<Object[]> txns = new ArrayList<>();
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < SUBTREES; i++) {
+                    String path = "/s" + i + "/c" + round;
+                    txns.add(txn(i, OpCode.create, new CreateTxn(path, new byte[round], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, round)));
+                    txns.add(txn(i, OpCode.setData, new SetDataTxn("/s" + i, new byte[i + round], round)));
+                    if (round % 3 == 2) {
+                        txns.add(txn(i, OpCode.delete, new DeleteTxn("/s" + i + "/c" + (round - 1))));
+                    }
+                }
+            }
+            return txns;
+        }
+
+        private DataTree createTree() {
+            DataTree tree = new DataTree();
+            zxid = 0;
+            for (int i = 0; i < SUBTREES; i++) {
+                Object[] txn = txn(i, OpCode.create, new CreateTxn("/s" + i, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, i));
+                tree.processTxn((TxnHeader) txn[0], (Record) txn[1]);
+            }
+            return tree;
+        }
+
+        @Test(timeout=10000)
+        public void parallelLanesTest() throws Exception {
+            DataTree serial = createTree();
+            List<Object[]> txns = createTxns();
+            for (Object[] txn : txns) {
+                assertEquals(0, serial.processTxn((TxnHeader) txn[0], (Record) txn[1]).err);
+            }
+
+            DataTree parallel = createTree();
+            // the lanes of the txns, by the subtree they touch
+            List<List<Integer>> lanes = new ArrayList<>();
+            for (int lane = 0; lane < LANES; lane++) {
+                lanes.add(new ArrayList<>());
+            }
+            for (int i = 0; i < txns.size(); i++) {
+                lanes.get((int) txns.get(i)[2] % LANES).add(i);
+            }
+            DataTree.AppliedTxn[] applied = new DataTree.AppliedTxn[txns.size()];
+            List<Thread> threads = new ArrayList<>();
+            for (List<Integer> lane : lanes) {
+                Thread thread = new Thread(() -> {
+                    for (int i : lane) {
+                        applied[i] = parallel.applyTxnAhead(
+                                (TxnHeader) txns.get(i)[0], (Record) txns.get(i)[1], null, i == txns.size() - 1);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            for (DataTree.AppliedTxn appliedTxn : applied) {
+                assertEquals(0, parallel.completeTxn(appliedTxn).err);
+            }
+
+            assertEquals(serial.getTreeDigest(), parallel.getTreeDigest());
+            assertEquals(serial.lastProcessedZxid, parallel.lastProcessedZxid);
+            assertEquals(SUBTREES + txns.size(), parallel.lastProcessedZxid);
+            assertEquals(serial.getLastProcessedZxidDigest().zxid, parallel.getLastProcessedZxidDigest().zxid);
+            assertEquals(serial.getLastProcessedZxidDigest().digest, parallel.getLastProcessedZxidDigest().digest);
+            assertEquals(serial.getNodeCount(), parallel.getNodeCount());
+            for (int i = 0; i < SUBTREES; i++) {
+                String path = "/s" + i;
+                assertEquals(new HashSet<>(serial.getChildren(path, null, null)),
+                        new HashSet<>(parallel.getChildren(path, null, null)));
+                assertEquals(serial.getNode(path).stat, parallel.getNode(path).stat);
+                assertArrayEquals(serial.getNode(path).getData(), parallel.getNode(path).getData());
+            }
+        }
+    }
+
+    public static class ChildrenPageTest {
+
+        private static final int CHILDREN = 10;
+
+        private DataTree createTree() throws Exception {
+            DataTree tree = new DataTree();
+            tree.createNode("/parent", new byte[0], null, 0, 0, 1, 1);
+            for (int i = 0; i < CHILDREN; i++) {
+                tree.createNode("/parent/c" + i, new byte[0], null, 0, i + 1, 2 + i, 1);
+            }
+            return tree;
+        }
+
+        private DataNode.SortedChildSet createSortedChildSet() {
+            DataNode.SortedChildSet children = new DataNode.SortedChildSet();
+            for (int i = CHILDREN - 1; i >= 0; i--) {
+                children.add("c" + i);
+            }
+            return children;
+        }
+
+        @Test(timeout=1000)
+        public void pagesTest() throws Exception {
+            DataTree tree = createTree();
+            Stat stat = new Stat();
+            List<String> all = new ArrayList<>();
+            String after = null;
+            int pages = 0;
+            while (true) {
+                List<String> page = tree.getChildrenPage("/parent", after, 3, stat);
+                assertTrue(page.size() <= 3);
+                if (page.isEmpty()) {
+                    break;
+                }
+                all.addAll(page);
+                after = page.get(page.size() - 1);
+                pages++;
+            }
+            assertEquals(4, pages);
+            assertEquals(CHILDREN, stat.getNumChildren());
+            List<String> expected = new ArrayList<>(tree.getChildren("/parent", null, null));
+            expected.sort(null);
+            assertEquals(expected, all);
+
+            DataNode.SortedChildSet children = createSortedChildSet();
+            assertEquals(Arrays.asList("c0", "c1", "c2"), children.page(null, 3));
+            assertEquals(Arrays.asList("c3", "c4", "c5"), children.page("c2", 3));
+            assertEquals(Arrays.asList("c9"), children.page("c8", 3));
+            assertEquals(expected, children.page(null, Integer.MAX_VALUE));
+        }
+
+        @Test(timeout=1000)
+        public void cursorDeletedTest() throws Exception {
+            DataTree tree = createTree();
+            List<String> page = tree.getChildrenPage("/parent", null, 3, null);
+            assertEquals(Arrays.asList("c0", "c1", "c2"), page);
+            tree.deleteNode("/parent/c2", 100);
+            assertEquals(Arrays.asList("c3", "c4", "c5"), tree.getChildrenPage("/parent", "c2", 3, null));
+
+            DataNode.SortedChildSet children = createSortedChildSet();
+            children.remove("c2");
+            assertEquals(Arrays.asList("c3", "c4", "c5"), children.page("c2", 3));
+            // a cursor between two children
+            assertEquals(Arrays.asList("c3", "c4"), children.page("c2a", 2));
+        }
+
+        @Test(timeout=1000)
+        public void emptyLastPageTest() throws Exception {
+            DataTree tree = createTree();
+            assertEquals(Arrays.asList("c8", "c9"), tree.getChildrenPage("/parent", "c7", 2, null));
+            assertTrue(tree.getChildrenPage("/parent", "c9", 2, null).isEmpty());
+            assertTrue(tree.getChildrenPage("/parent", "d", 2, null).isEmpty());
+            assertTrue(tree.getChildrenPage("/parent/c0", null, 2, null).isEmpty());
+
+            DataNode.SortedChildSet children = createSortedChildSet();
+            assertTrue(children.page("c9", 2).isEmpty());
+            assertTrue(children.page("d", 2).isEmpty());
+            assertTrue(new DataNode.SortedChildSet().page(null, 2).isEmpty());
+        }
+
+        @Test(timeout=1000)
+        public void badPageSizeTest() throws Exception {
+            DataTree tree = createTree();
+            assertTrue(tree.getChildrenPage("/parent", null, 0, null).isEmpty());
+            assertTrue(tree.getChildrenPage("/parent", "c2", -1, null).isEmpty());
+            assertTrue(tree.getNode("/parent").getChildrenPage(null, Integer.MIN_VALUE).isEmpty());
+            try {
+                tree.getChildrenPage("/missing", null, 3, null);
+                fail("Expected NoNodeException");
+            } catch (KeeperException.NoNodeException e) {
+                // expected
+            }
+        }
+    }
+
     static String getParentString(String path){
         String[] pathNodes = path.split("/");  
         int n = pathNodes.length;
@@ -0,0 +1,140 @@
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.zookeeper.ClientCnxn;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.apache.zookeeper.proto.WatcherEvent;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Test the delivery of the watch notifications, serialized once for all the
+ * connections they are sent to
+ */
+@RunWith(Parameterized.class)
+public class NotificationDeliveryTest extends ClientBase {
+
+    private static final int WATCHERS = 3;
+    private static final int ITERATIONS = 50;
+
+    private final String serverCnxnFactory;
+
+    public NotificationDeliveryTest(String serverCnxnFactory) {
+        this.serverCnxnFactory = serverCnxnFactory;
+    }
+
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] {
+            {NIOServerCnxnFactory.class.getName()},
+            {NettyServerCnxnFactory.class.getName()}});
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        System.setProperty(ServerCnxnFactory.ZOOKEEPER_SERVER_CNXN_FACTORY, serverCnxnFactory);
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty(ServerCnxnFactory.ZOOKEEPER_SERVER_CNXN_FACTORY);
+    }
+
+    @Test(timeout=10000)
+    public void sharedPacketTest() throws Exception {
+        NotificationEvent event = new NotificationEvent(EventType.NodeDataChanged, KeeperState.SyncConnected, "/a", 7);
+        byte[] packet = event.getPacket();
+        assertSame(packet, event.getPacket());
+        assertArrayEquals(NotificationEvent.serialize(
+            new WatchedEvent(EventType.NodeDataChanged, KeeperState.SyncConnected, "/a", 7)), packet);
+
+        ByteBuffer bb = ByteBuffer.wrap(packet);
+        assertEquals(packet.length - 4, bb.getInt());
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(packet, 4, packet.length - 4));
+        ReplyHeader header = new ReplyHeader();
+        ia.readRecord(header, "header");
+        assertEquals(ClientCnxn.NOTIFICATION_XID, header.getXid());
+        assertEquals(7, header.getZxid());
+        WatcherEvent watcherEvent = new WatcherEvent();
+        ia.readRecord(watcherEvent, "event");
+        assertEquals("/a", watcherEvent.getPath());
+        assertEquals(EventType.NodeDataChanged.getIntValue(), watcherEvent.getType());
+    }
+
+    /**
+     * A client reading a node after it was changed gets the notification of
+     * its watch before the response of the read
+     */
+    @Test(timeout=60000)
+    public void notificationBeforeLaterResponseTest() throws Exception {
+        ZooKeeper writer = createClient();
+        writer.create("/n", new byte[] {0}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        ZooKeeper[] readers = new ZooKeeper[WATCHERS];
+        List<List<String>> delivered = new ArrayList<>();
+        for (int r = 0; r < WATCHERS; r++) {
+            readers[r] = createClient();
+            delivered.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        for (int i = 1; i <= ITERATIONS; i++) {
+            for (int r = 0; r < WATCHERS; r++) {
+                List<String> events = delivered.get(r);
+                readers[r].getData("/n", event -> events.add("event " + event.getType()), null);
+            }
+            writer.setData("/n", new byte[] {(byte) i}, -1);
+
+            // Read after the change, with the notifications of the watches
+            // already on their way
+            CountDownLatch responses = new CountDownLatch(WATCHERS);
+            for (int r = 0; r < WATCHERS; r++) {
+                List<String> events = delivered.get(r);
+                readers[r].getData("/n", false, (rc, path, ctx, data, stat) -> {
+                    events.add("response " + data[0]);
+                    responses.countDown();
+                }, null);
+            }
+            assertTrue(responses.await(10, TimeUnit.SECONDS));
+
+            for (int r = 0; r < WATCHERS; r++) {
+                List<String> events = delivered.get(r);
+                assertEquals(
+                    "reader " + r,
+                    Arrays.asList("event " + EventType.NodeDataChanged, "response " + i),
+                    events.subList(events.size() - 2, events.size()));
+            }
+        }
+        for (List<String> events : delivered) {
+            assertEquals(2 * ITERATIONS, events.size());
+        }
+    }
+
+}
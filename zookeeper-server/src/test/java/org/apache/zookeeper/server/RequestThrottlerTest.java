@@ -0,0 +1,127 @@
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.zookeeper.common.Time;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the adjustment of the adaptive limit of the RequestThrottler
+ */
+public class RequestThrottlerTest {
+
+    private static final int TARGET_LATENCY = 100;
+
+    private int oldMaxRequests;
+    private int oldTargetLatency;
+    private int oldMinRequests;
+
+    private RequestThrottler throttler;
+    private long now;
+
+    @Before
+    public void setup() {
+        oldMaxRequests = RequestThrottler.getMaxRequests();
+        oldTargetLatency = RequestThrottler.getTargetLatency();
+        oldMinRequests = RequestThrottler.getMinRequests();
+        RequestThrottler.setMaxRequests(0);
+        RequestThrottler.setTargetLatency(TARGET_LATENCY);
+        RequestThrottler.setMinRequests(10);
+        throttler = new RequestThrottler(new ZooKeeperServer());
+        now = Time.currentElapsedTime();
+    }
+
+    @After
+    public void tearDown() {
+        RequestThrottler.setMaxRequests(oldMaxRequests);
+        RequestThrottler.setTargetLatency(oldTargetLatency);
+        RequestThrottler.setMinRequests(oldMinRequests);
+    }
+
+    private void record(int fast, int slow) {
+        for (int i = 0; i < fast; i++) {
+            throttler.recordLatency(TARGET_LATENCY);
+        }
+        for (int i = 0; i < slow; i++) {
+            throttler.recordLatency(TARGET_LATENCY + 1);
+        }
+    }
+
+    private void adjustAfterInterval() {
+        now += 1000;
+        throttler.adjustLimit(now);
+    }
+
+    @Test(timeout=1000)
+    public void decreaseTest() {
+        assertEquals(1000, throttler.getLimit());
+        // 2% of the requests over the target
+        record(98, 2);
+        adjustAfterInterval();
+        assertEquals(900, throttler.getLimit());
+        record(98, 2);
+        adjustAfterInterval();
+        assertEquals(810, throttler.getLimit());
+    }
+
+    @Test(timeout=1000)
+    public void increaseTest() {
+        // 1% of the requests over the target, while throttled
+        record(99, 1);
+        throttler.saturated = true;
+        adjustAfterInterval();
+        assertEquals(1010, throttler.getLimit());
+
+        // The limit does not grow when it was not reached
+        record(100, 0);
+        adjustAfterInterval();
+        assertEquals(1010, throttler.getLimit());
+    }
+
+    @Test(timeout=1000)
+    public void waitForSamplesTest() {
+        // Too few latencies
+        record(0, 99);
+        adjustAfterInterval();
+        assertEquals(1000, throttler.getLimit());
+        record(0, 1);
+        adjustAfterInterval();
+        assertEquals(900, throttler.getLimit());
+
+        // Too early since the last adjustment
+        record(0, 100);
+        throttler.adjustLimit(now + 999);
+        assertEquals(900, throttler.getLimit());
+        adjustAfterInterval();
+        assertEquals(810, throttler.getLimit());
+    }
+
+    @Test(timeout=1000)
+    public void clampTest() {
+        RequestThrottler.setMinRequests(950);
+        record(0, 100);
+        adjustAfterInterval();
+        assertEquals(950, throttler.getLimit());
+        record(0, 100);
+        adjustAfterInterval();
+        assertEquals(950, throttler.getLimit());
+
+        RequestThrottler.setMaxRequests(955);
+        record(100, 0);
+        throttler.saturated = true;
+        adjustAfterInterval();
+        assertEquals(955, throttler.getLimit());
+
+        // The limit never gets to 0
+        RequestThrottler.setMaxRequests(0);
+        RequestThrottler.setMinRequests(0);
+        for (int i = 0; i < 100; i++) {
+            record(0, 100);
+            adjustAfterInterval();
+        }
+        assertEquals(1, throttler.getLimit());
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.metric.SimpleCounter;
+import org.junit.Test;
+
+/**
+ * Test the eviction of the entries of the ResponseCache
+ */
+public class ResponseCacheTest {
+
+    private final SimpleCounter evictions = new SimpleCounter("evictions");
+
+    private static Stat stat(long mzxid) {
+        Stat stat = new Stat();
+        stat.setMzxid(mzxid);
+        return stat;
+    }
+
+    private static String path(int i) {
+        return "/p" + i;
+    }
+
+    private ResponseCache createCache(int cacheSize, long maxBytes) {
+        return new ResponseCache(cacheSize, maxBytes, "test", () -> evictions);
+    }
+
+    private static void put(ResponseCache cache, int i, int dataSize) {
+        cache.put(path(i), new byte[dataSize], stat(i));
+    }
+
+    private static void hit(ResponseCache cache, int i) {
+        assertArrayEquals(new byte[1], cache.get(path(i), stat(i)));
+    }
+
+    /**
+     * Check the size in bytes of the cache is the one of its entries
+     */
+    private static void assertBytes(ResponseCache cache, int count, int weight) {
+        int cached = 0;
+        for (int i = 0; i < count; i++) {
+            if (cache.contains(path(i))) {
+                cached++;
+            }
+        }
+        assertEquals(cached, cache.size());
+        assertEquals((long) cached * weight, cache.getBytes());
+    }
+
+    @Test(timeout=10000)
+    public void clockEvictionTest() {
+        // Holds up to 4 entries
+        ResponseCache cache = createCache(5, 0);
+        for (int i = 0; i < 4; i++) {
+            put(cache, i, 1);
+        }
+        hit(cache, 0);
+        hit(cache, 1);
+        assertEquals(0, evictions.get());
+
+        // An entry not hit is evicted, the ones hit get a second chance
+        put(cache, 4, 1);
+        assertEquals(1, evictions.get());
+        assertEquals(4, cache.size());
+        assertTrue(cache.contains(path(0)));
+        assertTrue(cache.contains(path(1)));
+
+        // An entry kept being hit stays, the one not hit anymore goes once
+        // it has had its second chance
+        for (int i = 5; i < 20; i++) {
+            hit(cache, 0);
+            put(cache, i, 1);
+            assertEquals(4, cache.size());
+            assertTrue(cache.contains(path(0)));
+        }
+        assertFalse(cache.contains(path(1)));
+        assertEquals(16, evictions.get());
+
+        // When all the entries have been hit, one of them is still evicted
+        for (int i = 0; i < 20; i++) {
+            if (cache.contains(path(i))) {
+                hit(cache, i);
+            }
+        }
+        put(cache, 20, 1);
+        assertEquals(4, cache.size());
+        assertEquals(17, evictions.get());
+    }
+
+    @Test(timeout=10000)
+    public void byteBoundTest() {
+        // 3 bytes of path and 20 bytes of data per entry
+        ResponseCache cache = createCache(100, 100);
+        for (int i = 0; i < 4; i++) {
+            put(cache, i, 20);
+        }
+        assertEquals(0, evictions.get());
+        assertBytes(cache, 4, 23);
+
+        put(cache, 4, 20);
+        assertEquals(1, evictions.get());
+        assertBytes(cache, 5, 23);
+
+        // Replacing an entry by a larger one evicts as many as needed
+        int replaced = cache.contains(path(0)) ? 0 : 1;
+        put(cache, replaced, 77);
+        assertTrue(cache.getBytes() <= 100);
+        long evicted = evictions.get();
+        assertTrue(evicted >= 2);
+
+        // An entry larger than the cache doesn't stay in it
+        put(cache, 9, 200);
+        assertFalse(cache.contains(path(9)));
+        assertTrue(cache.getBytes() <= 100);
+        assertTrue(evictions.get() > evicted);
+        // Every entry put but the ones left was evicted
+        assertEquals(6 - cache.size(), evictions.get());
+    }
+
+    @Test(timeout=10000)
+    public void invalidatedEntryTest() {
+        ResponseCache cache = createCache(100, 100);
+        for (int i = 0; i < 4; i++) {
+            put(cache, i, 20);
+        }
+        // A modified node drops its entry, and the bytes it took, without
+        // counting it as evicted
+        assertNull(cache.get(path(0), stat(100)));
+        assertFalse(cache.contains(path(0)));
+        assertBytes(cache, 4, 23);
+
+        put(cache, 4, 20);
+        assertEquals(0, evictions.get());
+        assertBytes(cache, 5, 23);
+        assertEquals(4, cache.size());
+    }
+
+    @Test(timeout=10000)
+    public void noEvictionCounterTest() {
+        ResponseCache cache = new ResponseCache(3, "test");
+        for (int i = 0; i < 10; i++) {
+            put(cache, i, 1);
+        }
+        assertEquals(2, cache.size());
+        assertEquals(0, cache.getMaxBytes());
+    }
+
+}
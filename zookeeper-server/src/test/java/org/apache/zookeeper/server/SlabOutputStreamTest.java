@@ -0,0 +1,253 @@
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.GetDataResponse;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.junit.Test;
+
+/**
+ * Test the serialization of the response packets into the slabs of a thread
+ */
+public class SlabOutputStreamTest {
+
+    private final SlabOutputStream out = new SlabOutputStream();
+
+    /**
+     * Write a packet made of its length prefix and the given number of bytes
+     * of value fill
+     */
+    private static ByteBuffer writePacket(SlabOutputStream out, int dataSize, int fill, boolean copy) {
+        out.startPacket();
+        out.write(new byte[4], 0, 4);
+        byte[] data = new byte[dataSize];
+        Arrays.fill(data, (byte) fill);
+        out.write(data, 0, dataSize);
+        assertEquals(dataSize + 4, out.size());
+        out.setLength(dataSize);
+        return out.finishPacket(copy);
+    }
+
+    private static void assertPacket(ByteBuffer packet, int dataSize, int fill) {
+        assertEquals(dataSize + 4, packet.remaining());
+        ByteBuffer bb = packet.duplicate();
+        assertEquals(dataSize, bb.getInt());
+        while (bb.hasRemaining()) {
+            assertEquals(fill, bb.get());
+        }
+    }
+
+    @Test(timeout=10000)
+    public void consecutivePacketsTest() throws Exception {
+        ByteBuffer first = writePacket(out, 100, 1, false);
+        ByteBuffer second = writePacket(out, 200, 2, false);
+        // Both are slices of the same slab, one after the other
+        assertSame(first.array(), second.array());
+        assertEquals(first.arrayOffset() + first.remaining(), second.arrayOffset());
+
+        // A packet discarded before it is finished doesn't touch them
+        out.startPacket();
+        out.write(new byte[50], 0, 50);
+        out.startPacket();
+        ByteBuffer third = writePacket(out, 10, 3, false);
+        assertEquals(second.arrayOffset() + second.remaining(), third.arrayOffset());
+        assertPacket(first, 100, 1);
+        assertPacket(second, 200, 2);
+        assertPacket(third, 10, 3);
+    }
+
+    @Test(timeout=10000)
+    public void oversizedPacketTest() throws Exception {
+        ByteBuffer before = writePacket(out, 100, 1, false);
+        int dataSize = 3 * SlabOutputStream.SLAB_SIZE;
+        ByteBuffer large = writePacket(out, dataSize, 5, false);
+        assertPacket(large, dataSize, 5);
+        assertNotSame(before.array(), large.array());
+        assertPacket(before, 100, 1);
+
+        // The next packets go into a slab of the usual size, and don't
+        // overwrite the large one
+        ByteBuffer after = writePacket(out, 100, 6, false);
+        assertNotSame(large.array(), after.array());
+        assertEquals(SlabOutputStream.SLAB_SIZE, after.array().length);
+        assertEquals(0, after.arrayOffset());
+        assertPacket(large, dataSize, 5);
+        assertPacket(after, 100, 6);
+
+        // Copied out, an oversized packet doesn't keep the slab grown either
+        ByteBuffer copied = writePacket(out, dataSize, 7, true);
+        assertPacket(copied, dataSize, 7);
+        ByteBuffer last = writePacket(out, 100, 8, false);
+        assertEquals(SlabOutputStream.SLAB_SIZE, last.array().length);
+        assertPacket(copied, dataSize, 7);
+        assertPacket(after, 100, 6);
+    }
+
+    @Test(timeout=10000)
+    public void rollOverMidPacketTest() throws Exception {
+        // Fill the slab up to 6 bytes from its end
+        ByteBuffer first = writePacket(out, SlabOutputStream.SLAB_SIZE - 14 - 100, 1, false);
+        ByteBuffer second = writePacket(out, 100, 2, false);
+        assertSame(first.array(), second.array());
+
+        // The packet started at the end of the slab is moved to a new one
+        // with the bytes written so far
+        out.startPacket();
+        out.write(new byte[4], 0, 4);
+        for (int i = 0; i < 5; i++) {
+            out.write(9);
+        }
+        byte[] data = new byte[1000];
+        Arrays.fill(data, (byte) 9);
+        out.write(data, 0, data.length);
+        assertEquals(1009, out.size());
+        out.setLength(1005);
+        byte[] copy = out.copyOf(4);
+        assertEquals(1005, copy.length);
+        ByteBuffer third = out.finishPacket();
+
+        assertNotSame(first.array(), third.array());
+        assertEquals(0, third.arrayOffset());
+        assertPacket(third, 1005, 9);
+        for (byte b : copy) {
+            assertEquals(9, b);
+        }
+        // The packets finished before are left as they were
+        assertPacket(first, SlabOutputStream.SLAB_SIZE - 114, 1);
+        assertPacket(second, 100, 2);
+
+        // The next packet follows in the new slab
+        ByteBuffer fourth = writePacket(out, 10, 4, false);
+        assertSame(third.array(), fourth.array());
+        assertEquals(third.remaining(), fourth.arrayOffset());
+        assertPacket(third, 1005, 9);
+    }
+
+    @Test(timeout=10000)
+    public void copyOutTest() throws Exception {
+        ByteBuffer first = writePacket(out, 100, 1, false);
+        // A packet copied out has an array of its own, and the next packet
+        // reuses its space in the slab
+        ByteBuffer copied = writePacket(out, 200, 2, true);
+        assertNotSame(first.array(), copied.array());
+        assertEquals(204, copied.array().length);
+        ByteBuffer next = writePacket(out, 300, 3, false);
+        assertSame(first.array(), next.array());
+        assertEquals(104, next.arrayOffset());
+
+        assertPacket(first, 100, 1);
+        assertPacket(copied, 200, 2);
+        assertPacket(next, 300, 3);
+    }
+
+    /**
+     * A response serialized in place is the same as the one serialized
+     * into an array of its own, whether it is copied out of the slab or not
+     */
+    @Test(timeout=10000)
+    public void archiveTest() throws Exception {
+        ReplyHeader header = new ReplyHeader(7, 42, 0);
+        GetDataResponse response = new GetDataResponse(new byte[] {1, 2, 3}, new Stat());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive boa = BinaryOutputArchive.getArchive(baos);
+        boa.writeInt(-1, "len");
+        boa.writeRecord(header, null);
+        boa.writeRecord(response, null);
+        byte[] expected = baos.toByteArray();
+        ByteBuffer.wrap(expected).putInt(expected.length - 4);
+
+        for (boolean copy : new boolean[] {false, true}) {
+            out.startPacket();
+            out.write(new byte[4], 0, 4);
+            out.getArchive().writeRecord(header, null);
+            int dataStart = out.size();
+            assertEquals(20, dataStart);
+            out.getArchive().writeRecord(response, null);
+            out.setLength(out.size() - 4);
+            byte[] data = out.copyOf(dataStart);
+            ByteBuffer packet = out.finishPacket(copy);
+
+            byte[] actual = new byte[packet.remaining()];
+            packet.duplicate().get(actual);
+            assertArrayEquals(expected, actual);
+            assertArrayEquals(Arrays.copyOfRange(expected, dataStart, expected.length), data);
+            assertTrue(copy == (packet.arrayOffset() == 0 && packet.array().length == expected.length));
+            assertFalse(packet.isReadOnly());
+        }
+    }
+
+    private static List<ByteBuffer> packets(NIOServerCnxn cnxn) {
+        List<ByteBuffer> packets = new ArrayList<>();
+        for (ByteBuffer buffer : cnxn.getOutgoingBuffers()) {
+            // skip the sentinels marking the end of each packet
+            if (buffer.hasRemaining()) {
+                packets.add(buffer);
+            }
+        }
+        return packets;
+    }
+
+    /**
+     * The response sent right away by a connection is a slice of the slab,
+     * the ones queued behind it are copied out of the slab
+     */
+    @Test(timeout=10000)
+    public void queuedResponseTest() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (SocketChannel client = SocketChannel.open(server.getLocalAddress());
+                 SocketChannel sock = server.accept()) {
+                ZooKeeperServer zks = mock(ZooKeeperServer.class, withSettings().stubOnly());
+                SelectionKey sk = mock(SelectionKey.class, withSettings().stubOnly());
+                NIOServerCnxn cnxn = new NIOServerCnxn(zks, sock, sk, new NIOServerCnxnFactory(), null);
+
+                byte[] data = new byte[100];
+                cnxn.sendResponse(new ReplyHeader(0, 1, 0), new GetDataResponse(data, new Stat()), null);
+                cnxn.sendResponse(new ReplyHeader(0, 2, 0), new GetDataResponse(data, new Stat()), null);
+                cnxn.sendResponse(new ReplyHeader(0, 3, 0), new GetDataResponse(data, new Stat()), null);
+
+                List<ByteBuffer> packets = packets(cnxn);
+                assertEquals(3, packets.size());
+                ByteBuffer first = packets.get(0);
+                assertEquals(SlabOutputStream.SLAB_SIZE, first.array().length);
+                for (int i = 0; i < 3; i++) {
+                    ByteBuffer packet = packets.get(i).duplicate();
+                    if (i > 0) {
+                        assertEquals(packet.remaining(), packet.array().length);
+                    }
+                    assertEquals(packet.remaining() - 4, packet.getInt());
+                    ReplyHeader header = new ReplyHeader();
+                    header.deserialize(BinaryInputArchive.getArchive(new ByteBufferInputStream(packet)), null);
+                    assertEquals(i + 1, header.getZxid());
+                }
+
+                // The next responses of the thread reuse the space of the
+                // copied ones
+                ByteBuffer next = writePacket(SlabOutputStream.get(), 10, 1, false);
+                assertSame(first.array(), next.array());
+                assertEquals(first.arrayOffset() + first.remaining(), next.arrayOffset());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,235 @@
+package org.apache.zookeeper.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.persistence.TxnLog;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the group commit of the SyncRequestProcessor
+ */
+public class SyncRequestProcessorTest {
+
+    private static final int MAX_BATCH_SIZE = 4;
+
+    private File dataDir;
+    private FileTxnSnapLog snapLog;
+    private GatedZKDatabase zkDb;
+    private ZooKeeperServer zks;
+    private RecordingProcessor nextProcessor;
+    private SyncRequestProcessor syncProcessor;
+    private int oldMaxBatchSize;
+
+    /**
+     * Records the zxid synced by each commit, and holds the commits back
+     * while its gate is closed.
+     */
+    private static class GatedZKDatabase extends ZKDatabase {
+
+        final AtomicInteger appends = new AtomicInteger();
+        final AtomicInteger commits = new AtomicInteger();
+        volatile long appendedZxid = -1;
+        volatile long syncedZxid = -1;
+        volatile CountDownLatch gate = new CountDownLatch(0);
+        final CountDownLatch commitStarted = new CountDownLatch(1);
+
+        GatedZKDatabase(FileTxnSnapLog snapLog) {
+            super(snapLog);
+        }
+
+        @Override
+        public boolean append(Request si) throws IOException {
+            boolean appended = super.append(si);
+            if (appended) {
+                appendedZxid = si.getHdr().getZxid();
+                appends.incrementAndGet();
+            }
+            return appended;
+        }
+
+        @Override
+        public TxnLog.PendingCommit startCommit() throws IOException {
+            // Anything appended after this point is not covered by the commit
+            long zxid = appendedZxid;
+            TxnLog.PendingCommit commit = super.startCommit();
+            commits.incrementAndGet();
+            commitStarted.countDown();
+            CountDownLatch commitGate = gate;
+            return () -> {
+                try {
+                    commitGate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                commit.complete();
+                syncedZxid = zxid;
+            };
+        }
+
+    }
+
+    private static class RecordingProcessor implements RequestProcessor {
+
+        final GatedZKDatabase zkDb;
+        final List<Request> released = Collections.synchronizedList(new ArrayList<>());
+        final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean shutdown;
+
+        RecordingProcessor(GatedZKDatabase zkDb) {
+            this.zkDb = zkDb;
+        }
+
+        @Override
+        public void processRequest(Request request) {
+            if (request.getHdr() != null && request.getHdr().getZxid() > zkDb.syncedZxid) {
+                errors.add("0x" + Long.toHexString(request.getHdr().getZxid()) + " released before its sync");
+            }
+            released.add(request);
+            threads.add(Thread.currentThread().getName());
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dataDir = ClientBase.createEmptyTestDir();
+        snapLog = new FileTxnSnapLog(dataDir, dataDir);
+        zkDb = new GatedZKDatabase(snapLog);
+        ZooKeeperServer.setGroupCommit(true);
+        zks = new ZooKeeperServer(snapLog, 3000, -1, -1, -1, zkDb, "");
+        oldMaxBatchSize = zks.getMaxBatchSize();
+        ZooKeeperServer.setMaxBatchSize(MAX_BATCH_SIZE);
+        nextProcessor = new RecordingProcessor(zkDb);
+        syncProcessor = new SyncRequestProcessor(zks, nextProcessor);
+        syncProcessor.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        zkDb.gate.countDown();
+        syncProcessor.shutdown();
+        ZooKeeperServer.setGroupCommit(false);
+        ZooKeeperServer.setMaxBatchSize(oldMaxBatchSize);
+        snapLog.close();
+        ClientBase.recursiveDelete(dataDir);
+    }
+
+    private static Request write(long zxid) {
+        TxnHeader hdr = new TxnHeader(1, (int) zxid, zxid, zxid, OpCode.create);
+        CreateTxn txn = new CreateTxn("/n" + zxid, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0);
+        return new Request(1, (int) zxid, OpCode.create, hdr, txn, zxid);
+    }
+
+    private static Request read(int cxid) {
+        return new Request(null, 1, cxid, OpCode.getData, null, null);
+    }
+
+    private void waitForReleased(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (nextProcessor.released.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, nextProcessor.released.size());
+    }
+
+    @Test(timeout=30000)
+    public void releasedAfterOwnSyncTest() throws Exception {
+        zkDb.gate = new CountDownLatch(1);
+        for (long zxid = 1; zxid <= 3 * MAX_BATCH_SIZE; zxid++) {
+            syncProcessor.processRequest(write(zxid));
+            if (zxid == 1) {
+                assertTrue(zkDb.commitStarted.await(10, TimeUnit.SECONDS));
+            }
+        }
+        Thread.sleep(100);
+        assertEquals(0, nextProcessor.released.size());
+
+        zkDb.gate.countDown();
+        waitForReleased(3 * MAX_BATCH_SIZE);
+        assertEquals(Collections.emptyList(), nextProcessor.errors);
+        for (int i = 0; i < nextProcessor.released.size(); i++) {
+            assertEquals(i + 1, nextProcessor.released.get(i).getHdr().getZxid());
+        }
+        // The first commit only covers the first request
+        assertTrue(zkDb.commits.get() >= 2);
+    }
+
+    @Test(timeout=30000)
+    public void batchBoundTest() throws Exception {
+        zkDb.gate = new CountDownLatch(1);
+        int requests = 5 * MAX_BATCH_SIZE;
+        for (long zxid = 1; zxid <= requests; zxid++) {
+            syncProcessor.processRequest(write(zxid));
+        }
+        assertTrue(zkDb.commitStarted.await(10, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        // At most a full batch being synced, a full next batch and the
+        // request waiting for room in it
+        assertTrue("appended " + zkDb.appends.get(), zkDb.appends.get() <= 2 * MAX_BATCH_SIZE + 1);
+
+        zkDb.gate.countDown();
+        waitForReleased(requests);
+        assertEquals(requests, zkDb.appends.get());
+        assertEquals(Collections.emptyList(), nextProcessor.errors);
+    }
+
+    @Test(timeout=30000)
+    public void shutdownDrainsTest() throws Exception {
+        int requests = 3 * MAX_BATCH_SIZE;
+        for (long zxid = 1; zxid <= requests; zxid++) {
+            syncProcessor.processRequest(write(zxid));
+        }
+        syncProcessor.shutdown();
+        assertEquals(requests, nextProcessor.released.size());
+        assertEquals(requests, zkDb.syncedZxid);
+        assertEquals(Collections.emptyList(), nextProcessor.errors);
+        assertTrue(nextProcessor.shutdown);
+    }
+
+    @Test(timeout=30000)
+    public void readsTest() throws Exception {
+        // Nothing pending, the read is passed on right away
+        syncProcessor.processRequest(read(1));
+        waitForReleased(1);
+        assertEquals(0, zkDb.commits.get());
+        assertTrue(nextProcessor.threads.get(0).startsWith("SyncThread"));
+
+        // A read doesn't overtake a write waiting for its sync
+        zkDb.gate = new CountDownLatch(1);
+        syncProcessor.processRequest(write(1));
+        syncProcessor.processRequest(read(2));
+        assertTrue(zkDb.commitStarted.await(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, nextProcessor.released.size());
+
+        zkDb.gate.countDown();
+        waitForReleased(3);
+        assertEquals(1, nextProcessor.released.get(1).getHdr().getZxid());
+        assertEquals(2, nextProcessor.released.get(2).cxid);
+        assertEquals(Collections.emptyList(), nextProcessor.errors);
+    }
+
+}
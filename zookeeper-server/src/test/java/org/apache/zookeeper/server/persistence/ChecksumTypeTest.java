@@ -0,0 +1,155 @@
+package org.apache.zookeeper.server.persistence;
+
+import static org.apache.zookeeper.server.persistence.FileTxnLogTest.assertLogged;
+import static org.apache.zookeeper.server.persistence.FileTxnLogTest.txn;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the checksum algorithms of the transaction logs and snapshots
+ */
+public class ChecksumTypeTest {
+
+    // the version in the file header, after the magic
+    private static final int VERSION_OFFSET = 4;
+
+    private File dataDir;
+
+    @Before
+    public void setUp() throws IOException {
+        dataDir = ClientBase.createEmptyTestDir();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(ChecksumType.CHECKSUM_ALGORITHM);
+        SnapStream.setChecksumType(ChecksumType.ADLER32);
+        ClientBase.recursiveDelete(dataDir);
+    }
+
+    private static int readVersion(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(VERSION_OFFSET);
+            return raf.readInt();
+        }
+    }
+
+    private static void writeVersion(File file, int version) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(VERSION_OFFSET);
+            raf.writeInt(version);
+        }
+    }
+
+    private File writeLog() throws IOException {
+        try (FileTxnLog log = new FileTxnLog(dataDir)) {
+            for (long zxid = 1; zxid <= 20; zxid++) {
+                log.append(txn(zxid));
+            }
+            log.commit();
+        }
+        return FileTxnLog.getLogFiles(dataDir.listFiles(), 0)[0];
+    }
+
+    private File writeSnapshot(DataTree dt) throws IOException {
+        File snap = new File(dataDir, Util.makeSnapshotName(1));
+        new FileSnap(dataDir).serialize(dt, new HashMap<>(), snap, false);
+        return snap;
+    }
+
+    private static DataTree createTree() throws Exception {
+        DataTree dt = new DataTree();
+        for (int i = 0; i < 20; i++) {
+            dt.createNode("/n" + i, new byte[i], ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, i + 1, i);
+        }
+        return dt;
+    }
+
+    private void assertSnapshotRoundTrip() throws Exception {
+        DataTree dt = createTree();
+        writeSnapshot(dt);
+        DataTree loaded = new DataTree();
+        Map<Long, Integer> sessions = new HashMap<>();
+        assertEquals(1, new FileSnap(dataDir).deserialize(loaded, sessions));
+        assertEquals(dt.getNodeCount(), loaded.getNodeCount());
+        assertEquals(dt.getTreeDigest(), loaded.getTreeDigest());
+    }
+
+    @Test
+    public void fromFileVersionTest() throws Exception {
+        assertEquals(ChecksumType.ADLER32, ChecksumType.fromFileVersion(2));
+        if (ChecksumType.CRC32C.isAvailable()) {
+            assertEquals(ChecksumType.CRC32C, ChecksumType.fromFileVersion(3));
+        }
+        for (int version : new int[] {-1, 0, 1, 4}) {
+            try {
+                ChecksumType.fromFileVersion(version);
+                fail("Version " + version + " should not be supported");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("version " + version));
+            }
+        }
+    }
+
+    @Test(timeout=10000)
+    public void adler32DefaultTest() throws Exception {
+        assertEquals(ChecksumType.ADLER32, ChecksumType.getConfigured());
+        System.setProperty(ChecksumType.CHECKSUM_ALGORITHM, "md5");
+        assertEquals(ChecksumType.ADLER32, ChecksumType.getConfigured());
+        System.clearProperty(ChecksumType.CHECKSUM_ALGORITHM);
+
+        assertEquals(2, readVersion(writeLog()));
+        assertLogged(new FileTxnLog(dataDir), 1, 20);
+        assertEquals(2, readVersion(writeSnapshot(createTree())));
+        assertSnapshotRoundTrip();
+    }
+
+    @Test(timeout=10000)
+    public void crc32cRoundTripTest() throws Exception {
+        if (!ChecksumType.CRC32C.isAvailable()) {
+            return;
+        }
+        System.setProperty(ChecksumType.CHECKSUM_ALGORITHM, "crc32c");
+        assertEquals(3, readVersion(writeLog()));
+        assertLogged(new FileTxnLog(dataDir), 1, 20);
+
+        SnapStream.setChecksumType(ChecksumType.CRC32C);
+        assertEquals(3, readVersion(writeSnapshot(createTree())));
+        assertEquals(3, SnapStream.getFileHeaderVersion(new File(dataDir, Util.makeSnapshotName(1))));
+        assertSnapshotRoundTrip();
+    }
+
+    @Test(timeout=10000)
+    public void unsupportedVersionTest() throws Exception {
+        writeVersion(writeLog(), 7);
+        try {
+            new FileTxnLog(dataDir).read(1).close();
+            fail("A log of an unknown version should not be read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("version 7"));
+        }
+
+        File snap = writeSnapshot(createTree());
+        writeVersion(snap, 7);
+        try {
+            SnapStream.getInputStream(snap).close();
+            fail("A snapshot of an unknown version should not be read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("version 7"));
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Checksum;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataNode;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test loading snapshots with their index
+ */
+public class FileSnapTest {
+
+    private static final int NODES = 500;
+
+    private File snapDir;
+
+    @Before
+    public void setUp() throws IOException {
+        snapDir = ClientBase.createEmptyTestDir();
+        System.setProperty(SnapshotIndex.SNAPSHOT_INDEX_ENABLED, "true");
+        System.setProperty(SnapshotIndex.SNAPSHOT_INDEX_CHUNK_SIZE, "16");
+        System.setProperty(FileSnap.SNAPSHOT_LOAD_THREADS, "4");
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(SnapshotIndex.SNAPSHOT_INDEX_ENABLED);
+        System.clearProperty(SnapshotIndex.SNAPSHOT_INDEX_CHUNK_SIZE);
+        System.clearProperty(FileSnap.SNAPSHOT_LOAD_THREADS);
+        SnapStream.setStreamMode(SnapStream.StreamMode.DEFAULT_MODE);
+        SnapStream.setChecksumType(ChecksumType.ADLER32);
+        ClientBase.recursiveDelete(snapDir);
+    }
+
+    private static DataTree createTree(int seed) throws Exception {
+        DataTree dt = new DataTree();
+        for (int i = 0; i < NODES; i++) {
+            String parent = i < 10 ? "" : "/n" + (i % 10);
+            byte[] data = new byte[(i * 7 + seed) % 50];
+            long ephemeralOwner = i >= 10 && i % 3 == 0 ? 0x1000 + i % 5 : 0;
+            dt.createNode(parent + "/n" + i, data, i % 2 == 0 ? ZooDefs.Ids.OPEN_ACL_UNSAFE : ZooDefs.Ids.READ_ACL_UNSAFE,
+                ephemeralOwner, -1, i + 1, i);
+        }
+        return dt;
+    }
+
+    private static Map<Long, Integer> createSessions() {
+        Map<Long, Integer> sessions = new HashMap<>();
+        for (long i = 0; i < 5; i++) {
+            sessions.put(0x1000 + i, 30000);
+        }
+        return sessions;
+    }
+
+    private File writeSnapshot(File dir, DataTree dt, long zxid) throws IOException {
+        File snap = new File(dir, Util.makeSnapshotName(zxid));
+        new FileSnap(dir).serialize(dt, createSessions(), snap, false);
+        return snap;
+    }
+
+    private static DataTree load(File dir, Map<Long, Integer> sessions) throws IOException {
+        DataTree dt = new DataTree();
+        new FileSnap(dir).deserialize(dt, sessions);
+        return dt;
+    }
+
+    private static DataTree loadSerially(File dir) throws IOException {
+        System.setProperty(FileSnap.SNAPSHOT_LOAD_THREADS, "1");
+        try {
+            return load(dir, new HashMap<>());
+        } finally {
+            System.setProperty(FileSnap.SNAPSHOT_LOAD_THREADS, "4");
+        }
+    }
+
+    private static DataTree loadWithIndex(File snap, SnapshotIndex index) throws IOException {
+        DataTree dt = new DataTree();
+        FileSnap.deserialize(dt, new HashMap<>(), snap, index).close();
+        return dt;
+    }
+
+    private static void assertSameTree(DataTree expected, DataTree actual) throws Exception {
+        assertEquals(expected.getNodeCount(), actual.getNodeCount());
+        assertEquals(expected.getTreeDigest(), actual.getTreeDigest());
+        assertEquals(expected.getEphemeralsCount(), actual.getEphemeralsCount());
+        assertEquals(expected.aclCacheSize(), actual.aclCacheSize());
+        for (int i = 0; i < NODES; i++) {
+            String path = (i < 10 ? "" : "/n" + (i % 10)) + "/n" + i;
+            DataNode node = actual.getNode(path);
+            assertNotNull(path, node);
+            assertArrayEquals(expected.getNode(path).getData(), node.getData());
+            Stat expectedStat = new Stat();
+            Stat stat = new Stat();
+            expected.getNode(path).copyStat(expectedStat);
+            node.copyStat(stat);
+            assertEquals(expectedStat, stat);
+            assertEquals(expected.getACL(path, null), actual.getACL(path, null));
+        }
+    }
+
+    private void assertIndexedLoad(ChecksumType checksumType) throws Exception {
+        SnapStream.setChecksumType(checksumType);
+        DataTree dt = createTree(0);
+        File snap = writeSnapshot(snapDir, dt, 1);
+        SnapshotIndex index = SnapshotIndex.read(SnapshotIndex.makeIndexFile(snapDir, 1));
+        assertNotNull(index);
+        assertTrue(index.getChunkCount() > 1);
+
+        DataTree serial = loadSerially(snapDir);
+        assertSameTree(dt, serial);
+        assertSameTree(serial, loadWithIndex(snap, index));
+
+        Map<Long, Integer> sessions = new HashMap<>();
+        DataTree loaded = load(snapDir, sessions);
+        assertSameTree(serial, loaded);
+        assertEquals(createSessions(), sessions);
+        assertEquals(1, loaded.lastProcessedZxid);
+    }
+
+    @Test(timeout=30000)
+    public void indexedLoadTest() throws Exception {
+        assertIndexedLoad(ChecksumType.ADLER32);
+    }
+
+    @Test(timeout=30000)
+    public void indexedLoadCrc32cTest() throws Exception {
+        if (!ChecksumType.CRC32C.isAvailable()) {
+            return;
+        }
+        assertIndexedLoad(ChecksumType.CRC32C);
+    }
+
+    @Test(timeout=30000)
+    public void missingIndexTest() throws Exception {
+        DataTree dt = createTree(0);
+        writeSnapshot(snapDir, dt, 1);
+        File indexFile = SnapshotIndex.makeIndexFile(snapDir, 1);
+        assertTrue(indexFile.delete());
+        assertNull(SnapshotIndex.read(indexFile));
+        assertSameTree(dt, load(snapDir, new HashMap<>()));
+    }
+
+    @Test(timeout=30000)
+    public void staleIndexTest() throws Exception {
+        File otherDir = ClientBase.createEmptyTestDir();
+        try {
+            DataTree dt = createTree(0);
+            File snap = writeSnapshot(snapDir, dt, 1);
+            // The index of a snapshot of another tree, with the same zxid
+            writeSnapshot(otherDir, createTree(1), 1);
+            File indexFile = SnapshotIndex.makeIndexFile(snapDir, 1);
+            Files.copy(SnapshotIndex.makeIndexFile(otherDir, 1).toPath(), indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+
+            SnapshotIndex index = SnapshotIndex.read(indexFile);
+            assertNotNull(index);
+            try {
+                loadWithIndex(snap, index);
+                fail("A stale index should not be used");
+            } catch (IOException e) {
+                // expected
+            }
+            assertSameTree(dt, load(snapDir, new HashMap<>()));
+        } finally {
+            ClientBase.recursiveDelete(otherDir);
+        }
+    }
+
+    @Test(timeout=30000)
+    public void corruptIndexTest() throws Exception {
+        DataTree dt = createTree(0);
+        File snap = writeSnapshot(snapDir, dt, 1);
+        File indexFile = SnapshotIndex.makeIndexFile(snapDir, 1);
+        SnapshotIndex index = SnapshotIndex.read(indexFile);
+
+        // Chunks which don't start where the index says
+        long[] offsets = new long[index.getChunkCount()];
+        long nodeCount = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = index.getChunkOffset(i) + (i == 1 ? 1 : 0);
+            nodeCount += index.getChunkNodeCount(i);
+        }
+        try {
+            loadWithIndex(snap, new SnapshotIndex(index.getSnapshotChecksum(), nodeCount, 16, offsets));
+            fail("A misaligned index should not be used");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // A damaged index file
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+            raf.seek(raf.length() - 12);
+            raf.write(raf.read() ^ 0xff);
+        }
+        assertNull(SnapshotIndex.read(indexFile));
+        assertSameTree(dt, load(snapDir, new HashMap<>()));
+    }
+
+    @Test(timeout=30000)
+    public void compressedSnapshotTest() throws Exception {
+        SnapStream.setStreamMode(SnapStream.StreamMode.GZIP);
+        DataTree dt = createTree(0);
+        writeSnapshot(snapDir, dt, 1);
+        File indexFile = SnapshotIndex.makeIndexFile(snapDir, 1);
+        assertFalse(indexFile.exists());
+
+        // An index left next to a compressed snapshot is not used
+        File otherDir = ClientBase.createEmptyTestDir();
+        try {
+            SnapStream.setStreamMode(SnapStream.StreamMode.CHECKED);
+            writeSnapshot(otherDir, dt, 1);
+            Files.copy(SnapshotIndex.makeIndexFile(otherDir, 1).toPath(), indexFile.toPath());
+        } finally {
+            ClientBase.recursiveDelete(otherDir);
+        }
+        assertSameTree(dt, load(snapDir, new HashMap<>()));
+    }
+
+    @Test
+    public void combineTest() {
+        byte[] bytes = new byte[70000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31 + i / 7);
+        }
+        for (ChecksumType type : ChecksumType.values()) {
+            if (!type.isAvailable()) {
+                continue;
+            }
+            Checksum whole = type.newChecksum();
+            whole.update(bytes, 0, bytes.length);
+            for (int split : new int[] {0, 1, 5552, 65521, bytes.length}) {
+                Checksum first = type.newChecksum();
+                first.update(bytes, 0, split);
+                Checksum second = type.newChecksum();
+                second.update(bytes, split, bytes.length - split);
+                assertEquals(type + " split at " + split, whole.getValue(),
+                    type.combine(first.getValue(), second.getValue(), bytes.length - split));
+            }
+        }
+    }
+
+}
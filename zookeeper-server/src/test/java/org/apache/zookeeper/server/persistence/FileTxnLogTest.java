@@ -0,0 +1,96 @@
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the commits of the transaction log started with startCommit
+ */
+public class FileTxnLogTest {
+
+    private File logDir;
+
+    @Before
+    public void setUp() throws IOException {
+        logDir = ClientBase.createEmptyTestDir();
+    }
+
+    @After
+    public void tearDown() {
+        ClientBase.recursiveDelete(logDir);
+    }
+
+    static Request txn(long zxid) {
+        TxnHeader hdr = new TxnHeader(1, (int) zxid, zxid, zxid, OpCode.create);
+        CreateTxn txn = new CreateTxn("/n" + zxid, new byte[(int) zxid % 100], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0);
+        return new Request(1, (int) zxid, OpCode.create, hdr, txn, zxid);
+    }
+
+    static void assertLogged(TxnLog log, long fromZxid, long toZxid) throws IOException {
+        try (TxnLog.TxnIterator itr = log.read(fromZxid)) {
+            // the iterator starts at the first txn
+            for (long zxid = fromZxid; zxid <= toZxid; zxid++) {
+                assertNotNull("missing 0x" + Long.toHexString(zxid), itr.getHeader());
+                assertEquals(zxid, itr.getHeader().getZxid());
+                assertEquals("/n" + zxid, ((CreateTxn) itr.getTxn()).getPath());
+                assertEquals(zxid < toZxid, itr.next());
+            }
+        }
+    }
+
+    @Test(timeout=10000)
+    public void rollLogDuringCommitTest() throws Exception {
+        try (FileTxnLog log = new FileTxnLog(logDir)) {
+            for (long zxid = 1; zxid <= 10; zxid++) {
+                log.append(txn(zxid));
+            }
+            TxnLog.PendingCommit first = log.startCommit();
+
+            // Roll over to a new log and keep appending while the first
+            // commit is still in flight
+            log.rollLog();
+            for (long zxid = 11; zxid <= 20; zxid++) {
+                log.append(txn(zxid));
+            }
+            first.complete();
+            assertLogged(new FileTxnLog(logDir), 1, 10);
+
+            // The next commit syncs and closes the log rolled over
+            TxnLog.PendingCommit second = log.startCommit();
+            second.complete();
+            for (long zxid = 21; zxid <= 25; zxid++) {
+                log.append(txn(zxid));
+            }
+            log.commit();
+        }
+        assertEquals(2, FileTxnLog.getLogFiles(logDir.listFiles(), 0).length);
+        assertLogged(new FileTxnLog(logDir), 1, 25);
+    }
+
+    @Test(timeout=10000)
+    public void appendDuringCommitTest() throws Exception {
+        try (FileTxnLog log = new FileTxnLog(logDir)) {
+            log.append(txn(1));
+            TxnLog.PendingCommit commit = log.startCommit();
+            log.append(txn(2));
+            commit.complete();
+            // Only written out by the next commit
+            assertLogged(new FileTxnLog(logDir), 1, 1);
+            log.startCommit().complete();
+        }
+        assertLogged(new FileTxnLog(logDir), 1, 2);
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.apache.zookeeper.server.persistence;
+
+import static org.apache.zookeeper.server.persistence.FileTxnLogTest.assertLogged;
+import static org.apache.zookeeper.server.persistence.FileTxnLogTest.txn;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the memory-mapped transaction log
+ */
+public class MappedFileTxnLogTest {
+
+    // small segments, so that the records cross their boundaries
+    private static final int SEGMENT_SIZE = 4096;
+
+    private File logDir;
+    private long oldPreAllocSize;
+
+    @Before
+    public void setUp() throws IOException {
+        logDir = ClientBase.createEmptyTestDir();
+        oldPreAllocSize = FilePadding.getPreAllocSize();
+        FilePadding.setPreallocSize(SEGMENT_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        FilePadding.setPreallocSize(oldPreAllocSize);
+        ClientBase.recursiveDelete(logDir);
+    }
+
+    private static void append(TxnLog log, long fromZxid, long toZxid) throws IOException {
+        for (long zxid = fromZxid; zxid <= toZxid; zxid++) {
+            assertTrue(log.append(txn(zxid)));
+        }
+    }
+
+    @Test(timeout=10000)
+    public void segmentBoundaryTest() throws Exception {
+        try (MappedFileTxnLog log = new MappedFileTxnLog(logDir)) {
+            append(log, 1, 100);
+            assertTrue(log.getCurrentLogSize() > 2 * SEGMENT_SIZE);
+            log.startCommit().complete();
+            // Read back by both implementations while the log is open
+            assertLogged(log, 1, 100);
+            assertLogged(new FileTxnLog(logDir), 1, 100);
+
+            append(log, 101, 200);
+            log.commit();
+            assertLogged(log, 1, 200);
+        }
+        assertEquals(1, FileTxnLog.getLogFiles(logDir.listFiles(), 0).length);
+        assertLogged(new FileTxnLog(logDir), 1, 200);
+        assertLogged(new MappedFileTxnLog(logDir), 50, 200);
+    }
+
+    @Test(timeout=10000)
+    public void rollLogTest() throws Exception {
+        try (MappedFileTxnLog log = new MappedFileTxnLog(logDir)) {
+            append(log, 1, 60);
+            log.rollLog();
+            assertEquals(0, log.getCurrentLogSize());
+            append(log, 61, 120);
+            log.commit();
+        }
+        assertEquals(2, FileTxnLog.getLogFiles(logDir.listFiles(), 0).length);
+        assertLogged(new MappedFileTxnLog(logDir), 1, 120);
+    }
+
+    @Test(timeout=10000)
+    public void truncateTest() throws Exception {
+        try (MappedFileTxnLog log = new MappedFileTxnLog(logDir)) {
+            append(log, 1, 100);
+            log.commit();
+        }
+        try (MappedFileTxnLog log = new MappedFileTxnLog(logDir)) {
+            assertTrue(log.truncate(70));
+            assertLogged(log, 1, 70);
+        }
+        try (MappedFileTxnLog log = new MappedFileTxnLog(logDir)) {
+            append(log, 71, 80);
+            log.commit();
+        }
+        assertLogged(new FileTxnLog(logDir), 1, 80);
+    }
+
+    @Test(timeout=10000)
+    public void closeWaitsForCommitTest() throws Exception {
+        MappedFileTxnLog log = new MappedFileTxnLog(logDir);
+        append(log, 1, 100);
+        TxnLog.PendingCommit commit = log.startCommit();
+        append(log, 101, 110);
+
+        AtomicReference<Throwable> closeFailure = new AtomicReference<>();
+        Thread closer = new Thread(() -> {
+            try {
+                log.close();
+            } catch (Throwable t) {
+                closeFailure.set(t);
+            }
+        });
+        closer.start();
+        closer.join(200);
+        assertTrue("close should wait for the commit in progress", closer.isAlive());
+
+        commit.complete();
+        closer.join();
+        assertNull(closeFailure.get());
+        assertFalse(closer.isAlive());
+        // close syncs what was appended after the commit started
+        assertLogged(new FileTxnLog(logDir), 1, 110);
+    }
+
+}
@@ -0,0 +1,145 @@
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.SnappyInputStream;
+
+@RunWith(Enclosed.class)
+public class SnapStreamTest {
+
+    /**
+     * Test writing and reading back snapshots compressed by blocks
+     */
+    @RunWith(Parameterized.class)
+    public static class RoundTripTest {
+
+        private final SnapStream.StreamMode mode;
+        private final int threads;
+        private File snapDir;
+
+        public RoundTripTest(SnapStream.StreamMode mode, int threads) {
+            this.mode = mode;
+            this.threads = threads;
+        }
+
+        @Parameters(name = "{0} with {1} threads")
+        public static Collection<Object[]> data() {
+            return Arrays.asList(new Object[][] {
+                {SnapStream.StreamMode.ZSTD, 1},
+                {SnapStream.StreamMode.ZSTD, 4},
+                {SnapStream.StreamMode.LZ4, 1},
+                {SnapStream.StreamMode.LZ4, 4},
+                {SnapStream.StreamMode.GZIP, 4}});
+        }
+
+        @Before
+        public void setUp() throws IOException {
+            snapDir = ClientBase.createEmptyTestDir();
+            SnapStream.setStreamMode(mode);
+            SnapStream.setCompressionThreads(threads);
+        }
+
+        @After
+        public void tearDown() {
+            SnapStream.setStreamMode(SnapStream.StreamMode.DEFAULT_MODE);
+            SnapStream.setCompressionThreads(1);
+            ClientBase.recursiveDelete(snapDir);
+        }
+
+        @Test(timeout=60000)
+        public void roundTripTest() throws Exception {
+            assertEquals(mode, SnapStream.getStreamMode());
+            // Several compression blocks worth of nodes
+            DataTree dt = new DataTree();
+            int nodes = 4 * SnapStream.COMPRESSION_BLOCK_SIZE / 1000;
+            for (int i = 0; i < nodes; i++) {
+                byte[] data = new byte[1000];
+                Arrays.fill(data, 0, i % 1000, (byte) i);
+                dt.createNode("/n" + i, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, i + 1, i);
+            }
+            Map<Long, Integer> sessions = new HashMap<>();
+            sessions.put(1L, 30000);
+
+            File snap = new File(snapDir, Util.makeSnapshotName(nodes));
+            assertTrue(snap.getName().endsWith(mode.getFileExtension()));
+            new FileSnap(snapDir).serialize(dt, sessions, snap, false);
+            assertTrue(snap.length() < SnapStream.COMPRESSION_BLOCK_SIZE * 4L);
+            assertTrue(SnapStream.isValidSnapshot(snap));
+
+            DataTree loaded = new DataTree();
+            Map<Long, Integer> loadedSessions = new HashMap<>();
+            assertEquals(nodes, new FileSnap(snapDir).deserialize(loaded, loadedSessions));
+            assertEquals(dt.getNodeCount(), loaded.getNodeCount());
+            assertEquals(dt.getTreeDigest(), loaded.getTreeDigest());
+            assertEquals(sessions, loadedSessions);
+            for (int i = 0; i < nodes; i += 97) {
+                assertArrayEquals(dt.getNode("/n" + i).getData(), loaded.getNode("/n" + i).getData());
+            }
+        }
+
+    }
+
+    /**
+     * Test a server missing the optional libraries of the zstd and lz4 modes
+     */
+    public static class MissingLibraryTest {
+
+        private static URL getLocation(Class<?> clazz) {
+            return clazz.getProtectionDomain().getCodeSource().getLocation();
+        }
+
+        @Test(timeout=10000)
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public void missingLibraryTest() throws Exception {
+            // Only the server, jute, slf4j and snappy classes, not zstd-jni and lz4-java
+            URL[] urls = {
+                getLocation(SnapStream.class),
+                getLocation(Record.class),
+                getLocation(LoggerFactory.class),
+                getLocation(SnappyInputStream.class)};
+            try (URLClassLoader loader = new URLClassLoader(urls, null)) {
+                Class<?> snapStream = loader.loadClass(SnapStream.class.getName());
+                Class modeClass = loader.loadClass(SnapStream.StreamMode.class.getName());
+                for (String name : new String[] {"ZSTD", "LZ4"}) {
+                    Object mode = Enum.valueOf(modeClass, name);
+                    assertFalse((Boolean) snapStream.getMethod("isReadable", modeClass).invoke(null, mode));
+                    int readableModes = (Integer) snapStream.getMethod("getReadableStreamModes").invoke(null);
+                    assertEquals(0, readableModes & (1 << ((Enum) mode).ordinal()));
+
+                    // Falls back to writing uncompressed snapshots
+                    snapStream.getMethod("setStreamMode", modeClass).invoke(null, mode);
+                    Object writtenMode = snapStream.getMethod("getStreamMode").invoke(null);
+                    assertEquals("CHECKED", ((Enum) writtenMode).name());
+                }
+                Object gzip = Enum.valueOf(modeClass, "GZIP");
+                snapStream.getMethod("setStreamMode", modeClass).invoke(null, gzip);
+                assertEquals(gzip, snapStream.getMethod("getStreamMode").invoke(null));
+            }
+        }
+
+    }
+
+}
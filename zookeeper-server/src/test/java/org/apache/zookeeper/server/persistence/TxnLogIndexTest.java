@@ -0,0 +1,149 @@
+package org.apache.zookeeper.server.persistence;
+
+import static org.apache.zookeeper.server.persistence.FileTxnLogTest.assertLogged;
+import static org.apache.zookeeper.server.persistence.FileTxnLogTest.txn;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test reading the transaction logs from the records of their index
+ */
+public class TxnLogIndexTest {
+
+    private static final long INTERVAL = 512;
+
+    // No record is smaller than this, so there are at most this many
+    // records from an entry of the index to the next one
+    private static final long MAX_RECORDS_PER_ENTRY = INTERVAL / 64 + 1;
+
+    private File logDir;
+
+    @Before
+    public void setUp() throws IOException {
+        logDir = ClientBase.createEmptyTestDir();
+    }
+
+    @After
+    public void tearDown() {
+        ClientBase.recursiveDelete(logDir);
+    }
+
+    private void writeLog(TxnLogIndex index, long rollAtZxid, long lastZxid) throws IOException {
+        try (FileTxnLog log = new FileTxnLog(logDir)) {
+            log.setIndex(index);
+            for (long zxid = 1; zxid <= lastZxid; zxid++) {
+                if (zxid == rollAtZxid) {
+                    log.commit();
+                    log.rollLog();
+                }
+                log.append(txn(zxid));
+            }
+            log.commit();
+        }
+    }
+
+    private FileTxnLog createReader(TxnLogIndex index) {
+        FileTxnLog log = new FileTxnLog(logDir);
+        log.setIndex(index);
+        return log;
+    }
+
+    /**
+     * The zxid of the first record read to get to the given one
+     */
+    private static long readStart(FileTxnLog log, long zxid) throws IOException {
+        try (TxnLog.TxnIterator itr = log.read(zxid, false)) {
+            return itr.getHeader().getZxid();
+        }
+    }
+
+    private static void readAll(FileTxnLog log) throws IOException {
+        try (TxnLog.TxnIterator itr = log.read(1)) {
+            while (itr.next()) {
+                // the records are indexed as they are read
+            }
+        }
+    }
+
+    @Test
+    public void floorOffsetTest() {
+        TxnLogIndex index = new TxnLogIndex(100);
+        File logFile = new File(logDir, Util.makeLogName(1));
+        index.add(logFile, 1, 16);
+        // too close to the previous entry
+        index.add(logFile, 2, 50);
+        index.add(logFile, 3, 116);
+        // not after the previous entry
+        index.add(logFile, 3, 300);
+        index.add(logFile, 10, 400);
+
+        assertEquals(-1, index.floorOffset(logFile, 0));
+        assertEquals(16, index.floorOffset(logFile, 1));
+        assertEquals(16, index.floorOffset(logFile, 2));
+        assertEquals(116, index.floorOffset(logFile, 3));
+        assertEquals(116, index.floorOffset(logFile, 9));
+        assertEquals(400, index.floorOffset(logFile, 10));
+        assertEquals(400, index.floorOffset(logFile, 1000));
+
+        File otherLogFile = new File(logDir, Util.makeLogName(1001));
+        assertEquals(-1, index.floorOffset(otherLogFile, 1000));
+        index.retain(Collections.singletonList(otherLogFile));
+        assertEquals(-1, index.floorOffset(logFile, 10));
+    }
+
+    @Test(timeout=30000)
+    public void seekTest() throws Exception {
+        TxnLogIndex index = new TxnLogIndex(INTERVAL);
+        writeLog(index, -1, 300);
+        FileTxnLog log = createReader(index);
+
+        int indexed = 0;
+        for (long zxid = 1; zxid <= 300; zxid++) {
+            long start = readStart(log, zxid);
+            assertTrue("0x" + Long.toHexString(zxid) + " read from 0x" + Long.toHexString(start),
+                start <= zxid && zxid - start < MAX_RECORDS_PER_ENTRY);
+            if (start == zxid) {
+                indexed++;
+            }
+        }
+        assertTrue("indexed " + indexed, indexed >= 300 / MAX_RECORDS_PER_ENTRY);
+
+        // The records at, between and after the entries are found
+        for (long zxid = 1; zxid <= 300; zxid += 7) {
+            assertLogged(log, zxid, 300);
+        }
+    }
+
+    @Test(timeout=30000)
+    public void indexOnReadTest() throws Exception {
+        // Logs written before a restart, not indexed
+        writeLog(null, 151, 300);
+        TxnLogIndex index = new TxnLogIndex(INTERVAL);
+        FileTxnLog log = createReader(index);
+        assertEquals(151, readStart(log, 250));
+        assertEquals(1, readStart(log, 100));
+
+        readAll(log);
+        assertTrue(250 - readStart(log, 250) < MAX_RECORDS_PER_ENTRY);
+        assertTrue(100 - readStart(log, 100) < MAX_RECORDS_PER_ENTRY);
+        assertLogged(log, 100, 300);
+
+        // The entries of a purged log are dropped
+        File[] logFiles = FileTxnLog.getLogFiles(logDir.listFiles(), 0);
+        Arrays.sort(logFiles);
+        assertTrue(logFiles[0].delete());
+        assertTrue(200 - readStart(log, 200) < MAX_RECORDS_PER_ENTRY);
+        assertEquals(-1, index.floorOffset(logFiles[0], 100));
+        assertTrue(index.floorOffset(logFiles[1], 250) > 0);
+    }
+
+}
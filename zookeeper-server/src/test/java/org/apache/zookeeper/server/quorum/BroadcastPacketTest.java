@@ -0,0 +1,74 @@
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.data.Id;
+import org.junit.Test;
+
+/**
+ * Test the packets serialized once for all the learners
+ */
+public class BroadcastPacketTest {
+
+    private static byte[] serialize(QuorumPacket packet) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryOutputArchive.getArchive(out).writeRecord(packet, "packet");
+        return out.toByteArray();
+    }
+
+    private static void assertSerializedAsQuorumPacket(BroadcastPacket packet) throws IOException {
+        QuorumPacket expected = new QuorumPacket(
+            packet.getType(), packet.getZxid(), packet.getData(), packet.getAuthinfo());
+        byte[] bytes = packet.getBytes();
+        assertArrayEquals(serialize(expected), bytes);
+        // Serialized only once
+        assertSame(bytes, packet.getBytes());
+
+        QuorumPacket read = new QuorumPacket();
+        BinaryInputArchive.getArchive(new ByteArrayInputStream(bytes)).readRecord(read, "packet");
+        assertEquals(packet.getType(), read.getType());
+        assertEquals(packet.getZxid(), read.getZxid());
+        assertArrayEquals(bytes, serialize(read));
+    }
+
+    @Test
+    public void serializationTest() throws IOException {
+        assertSerializedAsQuorumPacket(new BroadcastPacket(Leader.COMMIT, 0x100000005L, null, null));
+        assertSerializedAsQuorumPacket(new BroadcastPacket(Leader.PROPOSAL, 7, new byte[0], null));
+        byte[] data = new byte[1000];
+        Arrays.fill(data, (byte) 0x5a);
+        assertSerializedAsQuorumPacket(new BroadcastPacket(Leader.INFORM, -1, data, null));
+        assertSerializedAsQuorumPacket(new BroadcastPacket(
+            Leader.PROPOSALS, Long.MAX_VALUE, data, Collections.singletonList(new Id("digest", "user"))));
+    }
+
+    @Test
+    public void proposalsPacketTest() throws IOException {
+        BroadcastPacket packet = Leader.buildProposalsPacket(Arrays.asList(
+            new QuorumPacket(Leader.PROPOSAL, 1, new byte[] {1}, null),
+            new QuorumPacket(Leader.PROPOSAL, 2, new byte[] {2, 2}, null)));
+        assertEquals(2, packet.getZxid());
+        assertSerializedAsQuorumPacket(packet);
+    }
+
+    @Test
+    public void commitPacketTest() throws IOException {
+        Leader.Proposal proposal = new Leader.Proposal();
+        proposal.packet = new QuorumPacket(Leader.PROPOSAL, 42, new byte[] {1}, null);
+        BroadcastPacket commit = proposal.getCommitPacket();
+        assertSame(commit, proposal.getCommitPacket());
+        assertEquals(Leader.COMMIT, commit.getType());
+        assertEquals(42, commit.getZxid());
+        assertSerializedAsQuorumPacket(commit);
+    }
+
+}
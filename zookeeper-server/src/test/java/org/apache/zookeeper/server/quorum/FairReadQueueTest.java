@@ -0,0 +1,273 @@
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.RequestProcessor;
+import org.apache.zookeeper.server.ZooKeeperServerListener;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test the fair queuing of the reads of the CommitProcessor
+ */
+public class FairReadQueueTest {
+
+    private CommitProcessor processor;
+
+    @After
+    public void tearDown() {
+        if (processor != null) {
+            processor.shutdown();
+        }
+        System.clearProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_NUM_WORKER_THREADS);
+        System.clearProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_FAIR_READ_QUEUING);
+        System.clearProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_MAX_FAIR_READS_IN_PROCESS);
+    }
+
+    private static Request read(long sessionId, int cxid, String identity) {
+        List<Id> authInfo = new ArrayList<>();
+        authInfo.add(new Id("ip", "127.0.0.1"));
+        if (identity != null) {
+            authInfo.add(new Id("sasl", identity));
+        }
+        return new Request(null, sessionId, cxid, OpCode.getData, null, authInfo);
+    }
+
+    private static Request write(long sessionId, int cxid) {
+        return new Request(null, sessionId, cxid, OpCode.setData, null, Collections.emptyList());
+    }
+
+    private static List<String> pollAll(FairReadQueue queue) {
+        List<String> polled = new ArrayList<>();
+        Request request;
+        while ((request = queue.poll()) != null) {
+            polled.add(request.sessionId + ":" + request.cxid);
+        }
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+        assertTrue(queue.depths(10).isEmpty());
+        return polled;
+    }
+
+    @Test
+    public void parseWeightsTest() {
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("sasl:batch", 1);
+        expected.put("sasl:web", 4);
+        assertEquals(expected, FairReadQueue.parseWeights("sasl:batch=1, sasl:web=4,bad,sasl:zero=0,=3,sasl:x=y"));
+        assertTrue(FairReadQueue.parseWeights(null).isEmpty());
+    }
+
+    @Test
+    public void weightedRoundRobinTest() {
+        FairReadQueue queue = new FairReadQueue(FairReadQueue.Mode.IDENTITY, FairReadQueue.parseWeights("sasl:a=3"));
+        // Two sessions of identity a, which has a weight of 3, and one of
+        // identity b
+        for (int i = 1; i <= 6; i++) {
+            queue.add(read(i % 2 + 1, i, "a"));
+        }
+        for (int i = 1; i <= 4; i++) {
+            queue.add(read(3, i, "b"));
+        }
+        assertEquals(10, queue.size());
+        Map<String, Number> depths = queue.depths(10);
+        assertEquals(Arrays.asList("sasl:a", "sasl:b"), new ArrayList<>(depths.keySet()));
+        assertEquals(6, depths.get("sasl:a"));
+        assertEquals(4, depths.get("sasl:b"));
+        assertEquals(Collections.singleton("sasl:a"), queue.depths(1).keySet());
+
+        assertEquals(
+            Arrays.asList("2:1", "1:2", "2:3", "3:1", "1:4", "2:5", "1:6", "3:2", "3:3", "3:4"),
+            pollAll(queue));
+    }
+
+    @Test
+    public void sessionRoundRobinTest() {
+        // The weights only apply to the identities
+        FairReadQueue queue = new FairReadQueue(FairReadQueue.Mode.SESSION, FairReadQueue.parseWeights("sasl:a=3"));
+        for (int i = 1; i <= 3; i++) {
+            queue.add(read(1, i, "a"));
+        }
+        queue.add(read(2, 1, "a"));
+        queue.add(read(3, 1, null));
+        assertEquals(3, queue.depths(10).get("0x1"));
+        assertEquals(Arrays.asList("1:1", "2:1", "3:1", "1:2", "1:3"), pollAll(queue));
+    }
+
+    @Test
+    public void sessionAuthenticatedWhileQueuedTest() {
+        FairReadQueue queue = new FairReadQueue(FairReadQueue.Mode.IDENTITY, new HashMap<>());
+        // Without a connection nor an identity, a session is its own tenant
+        queue.add(read(1, 1, null));
+        queue.add(read(2, 1, "a"));
+        // Its reads stay with it once it authenticates
+        queue.add(read(1, 2, "a"));
+        queue.add(read(2, 2, "a"));
+        assertEquals(2, queue.depths(10).get("0x1"));
+        assertEquals(2, queue.depths(10).get("sasl:a"));
+        assertEquals(Arrays.asList("1:1", "2:1", "1:2", "2:2"), pollAll(queue));
+
+        // Once they are dispatched, it joins its identity
+        queue.add(read(1, 3, "a"));
+        queue.add(read(2, 3, "a"));
+        assertEquals(Collections.singletonMap("sasl:a", 2), queue.depths(10));
+    }
+
+    @Test
+    public void drainSessionTest() {
+        FairReadQueue queue = new FairReadQueue(FairReadQueue.Mode.IDENTITY, new HashMap<>());
+        for (int i = 1; i <= 6; i++) {
+            queue.add(read(i % 2 + 1, i, "a"));
+        }
+        queue.add(read(3, 1, "b"));
+
+        List<Integer> drained = new ArrayList<>();
+        queue.drainSession(1, request -> {
+            assertEquals(1, request.sessionId);
+            drained.add(request.cxid);
+        });
+        assertEquals(Arrays.asList(2, 4, 6), drained);
+        assertEquals(4, queue.size());
+        queue.drainSession(1, request -> drained.add(request.cxid));
+        assertEquals(3, drained.size());
+
+        // Draining the last reads of a tenant takes it out of the rotation
+        queue.drainSession(3, request -> drained.add(request.cxid));
+        assertEquals(4, drained.size());
+        assertEquals(Arrays.asList("2:1", "2:3", "2:5"), pollAll(queue));
+    }
+
+    /**
+     * Records the requests reaching the next processor, holding the reads
+     * of the given sessions until they are released
+     */
+    private static class RecordingProcessor implements RequestProcessor {
+
+        final List<String> processed = Collections.synchronizedList(new ArrayList<>());
+        final Semaphore released = new Semaphore(0);
+        final AtomicInteger inProcess = new AtomicInteger();
+        final AtomicInteger maxInProcess = new AtomicInteger();
+        final long[] heldSessions;
+
+        RecordingProcessor(long... heldSessions) {
+            this.heldSessions = heldSessions;
+        }
+
+        @Override
+        public void processRequest(Request request) {
+            int current = inProcess.incrementAndGet();
+            maxInProcess.accumulateAndGet(current, Math::max);
+            processed.add(request.sessionId + ":" + request.cxid);
+            try {
+                for (long sessionId : heldSessions) {
+                    if (request.sessionId == sessionId) {
+                        released.acquireUninterruptibly();
+                    }
+                }
+            } finally {
+                inProcess.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        List<String> processedBy(long sessionId) {
+            List<String> requests = new ArrayList<>();
+            synchronized (processed) {
+                for (String request : processed) {
+                    if (request.startsWith(sessionId + ":")) {
+                        requests.add(request);
+                    }
+                }
+            }
+            return requests;
+        }
+
+        void waitForProcessed(int count) throws InterruptedException {
+            while (processed.size() < count) {
+                Thread.sleep(10);
+            }
+        }
+
+    }
+
+    private void startProcessor(RequestProcessor next, int workers, int maxFairReadsInProcess) {
+        System.setProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_NUM_WORKER_THREADS, Integer.toString(workers));
+        System.setProperty(CommitProcessor.ZOOKEEPER_COMMIT_PROC_FAIR_READ_QUEUING, "session");
+        System.setProperty(
+            CommitProcessor.ZOOKEEPER_COMMIT_PROC_MAX_FAIR_READS_IN_PROCESS,
+            Integer.toString(maxFairReadsInProcess));
+        processor = new CommitProcessor(next, "test", true, mock(ZooKeeperServerListener.class));
+        processor.start();
+    }
+
+    /**
+     * The reads of a session queued before one of its writes get ahead of
+     * the other tenants to be processed before it, and the ones queued after
+     * it wait for it
+     */
+    @Test(timeout=30000)
+    public void readsOrderedAroundWritesTest() throws Exception {
+        RecordingProcessor next = new RecordingProcessor(2);
+        startProcessor(next, 2, 1);
+
+        // The reads of session 2 hold the only slot for the fair reads
+        for (int i = 1; i <= 3; i++) {
+            processor.processRequest(read(2, i, null));
+        }
+        next.waitForProcessed(1);
+        processor.processRequest(read(1, 1, null));
+        Request write = write(1, 2);
+        processor.processRequest(write);
+        processor.processRequest(read(1, 3, null));
+
+        // The read queued before the write is not held back by the cap
+        next.waitForProcessed(2);
+        assertEquals(Collections.singletonList("1:1"), next.processedBy(1));
+
+        processor.commit(write);
+        next.released.release(3);
+        next.waitForProcessed(6);
+        assertEquals(Arrays.asList("1:1", "1:2", "1:3"), next.processedBy(1));
+        assertEquals(Arrays.asList("2:1", "2:2", "2:3"), next.processedBy(2));
+    }
+
+    @Test(timeout=30000)
+    public void maxFairReadsInProcessTest() throws Exception {
+        long[] sessions = {0, 1, 2, 3, 4, 5, 6, 7};
+        RecordingProcessor next = new RecordingProcessor(sessions);
+        // A worker per session, so that only the cap holds the reads back
+        startProcessor(next, sessions.length, 2);
+        for (long sessionId : sessions) {
+            processor.processRequest(read(sessionId, 1, null));
+        }
+
+        next.waitForProcessed(2);
+        Thread.sleep(100);
+        assertEquals(2, next.processed.size());
+        for (int processed = 3; processed <= sessions.length; processed++) {
+            next.released.release();
+            next.waitForProcessed(processed);
+            Thread.sleep(10);
+            assertEquals(processed, next.processed.size());
+        }
+        next.released.release(2);
+        assertEquals(2, next.maxInProcess.get());
+    }
+
+}
@@ -0,0 +1,203 @@
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
+import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
+import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
+import org.apache.zookeeper.server.util.ZxidUtils;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test the acks of the learners processed by the leader concurrently
+ */
+public class LeaderAckTest {
+
+    private static final long LEADER_SID = 1;
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 0);
+
+    private final List<Long> committed = Collections.synchronizedList(new ArrayList<>());
+    private QuorumPeer self;
+    private Leader leader;
+
+    @After
+    public void tearDown() {
+        if (leader != null) {
+            leader.closeSockets();
+        }
+    }
+
+    private static long zxid(int counter) {
+        return ZxidUtils.makeZxid(1, counter);
+    }
+
+    private void createLeader() throws IOException {
+        self = mock(QuorumPeer.class);
+        when(self.getQuorumAddress()).thenReturn(new MultipleAddresses(ADDRESS));
+        when(self.getMyId()).thenReturn(LEADER_SID);
+        LeaderZooKeeperServer zk = mock(LeaderZooKeeperServer.class);
+        zk.commitProcessor = mock(CommitProcessor.class);
+        doAnswer(invocation -> {
+            committed.add(((Request) invocation.getArgument(0)).zxid);
+            return null;
+        }).when(zk.commitProcessor).commit(any(Request.class));
+        leader = new Leader(self, zk);
+        leader.lastCommitted = zxid(0);
+    }
+
+    private static QuorumVerifier quorumVerifier(long fromSid, long toSid) {
+        Map<Long, QuorumServer> members = new HashMap<>();
+        for (long sid = fromSid; sid <= toSid; sid++) {
+            members.put(sid, new QuorumServer(sid, ADDRESS));
+        }
+        return new QuorumMaj(members);
+    }
+
+    /**
+     * Make a proposal outstanding, acked by the leader, which has to be
+     * acked by a quorum of each of the given configurations
+     */
+    private void propose(long zxid, boolean reconfig, QuorumVerifier... qvs) {
+        TxnHeader hdr = new TxnHeader(1, (int) zxid, zxid, zxid, reconfig ? OpCode.reconfig : OpCode.create);
+        Record txn = reconfig
+            ? new SetDataTxn(ZooDefs.CONFIG_NODE, new byte[0], -1)
+            : new CreateTxn("/n" + zxid, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0);
+        Leader.Proposal p = new Leader.Proposal();
+        p.request = new Request(1, (int) zxid, hdr.getType(), hdr, txn, zxid);
+        p.packet = new QuorumPacket(Leader.PROPOSAL, zxid, p.request.getSerializeData(), null);
+        for (QuorumVerifier qv : qvs) {
+            p.addQuorumVerifier(qv);
+        }
+        p.addAck(LEADER_SID);
+        leader.outstandingProposals.put(zxid, p);
+        leader.lastProposed = zxid;
+    }
+
+    /**
+     * The learners acking concurrently, some of them one proposal at a time
+     * and the others several at once, get the proposals committed strictly
+     * in zxid order, across a reconfiguration keeping the leader
+     */
+    @Test(timeout=60000)
+    public void concurrentAcksTest() throws Exception {
+        createLeader();
+        final int count = 2000;
+        final int reconfigCounter = 1000;
+        QuorumVerifier oldQv = quorumVerifier(1, 5);
+        QuorumVerifier newQv = quorumVerifier(1, 6);
+        for (int counter = 1; counter <= count; counter++) {
+            if (counter < reconfigCounter) {
+                propose(zxid(counter), false, oldQv);
+            } else {
+                propose(zxid(counter), counter == reconfigCounter, oldQv, newQv);
+            }
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> learners = new ArrayList<>();
+        for (long sid = 2; sid <= 5; sid++) {
+            final long learnerSid = sid;
+            // The learners acking several proposals at once do it every
+            // few of them
+            final int batch = sid <= 3 ? 1 : (int) sid + 2;
+            Thread learner = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int counter = batch; counter < count + batch; counter += batch) {
+                        int acked = Math.min(counter, count);
+                        if (batch == 1) {
+                            leader.processAck(learnerSid, zxid(acked), null);
+                        } else {
+                            leader.processAcksUpTo(learnerSid, zxid(acked), null);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }, "learner-" + sid);
+            learner.start();
+            learners.add(learner);
+        }
+        start.countDown();
+        for (Thread learner : learners) {
+            learner.join();
+        }
+        assertNull(failure.get());
+
+        assertEquals(count, committed.size());
+        for (int counter = 1; counter <= count; counter++) {
+            assertEquals(zxid(counter), (long) committed.get(counter - 1));
+        }
+        assertTrue(leader.outstandingProposals.isEmpty());
+        assertEquals(zxid(count), leader.lastCommitted);
+        // The leader is in the new configuration, and stays the leader
+        verify(self).processReconfig(any(), eq(LEADER_SID), anyLong(), eq(true));
+        assertTrue(leader.allowedToCommit);
+    }
+
+    /**
+     * The acks following the one getting a proposal acked by a quorum are
+     * recorded, for the leader designated by a reconfiguration to be the
+     * learner which acked the most of the proposals following it
+     */
+    @Test(timeout=30000)
+    public void lateAcksDesignateLeaderTest() throws Exception {
+        createLeader();
+        // The leader is not in the new configuration
+        QuorumVerifier oldQv = quorumVerifier(1, 5);
+        QuorumVerifier newQv = quorumVerifier(2, 6);
+        propose(zxid(1), true, oldQv, newQv);
+        propose(zxid(2), false, oldQv, newQv);
+        propose(zxid(3), false, oldQv, newQv);
+
+        // Acked by a quorum of both configurations by the ack of 6, then by 4
+        leader.processAck(2, zxid(2), null);
+        leader.processAck(3, zxid(2), null);
+        leader.processAck(6, zxid(2), null);
+        leader.processAck(4, zxid(2), null);
+        leader.processAck(2, zxid(3), null);
+        leader.processAck(4, zxid(3), null);
+        leader.processAck(6, zxid(3), null);
+        // Waiting for the reconfiguration
+        assertTrue(committed.isEmpty());
+
+        leader.processAck(3, zxid(1), null);
+        leader.processAck(4, zxid(1), null);
+        leader.processAck(5, zxid(1), null);
+
+        // Of the learners of the new configuration which acked the
+        // reconfiguration, 4 acked the proposals following it
+        verify(self).processReconfig(any(), eq(4L), anyLong(), eq(true));
+        assertFalse(leader.allowedToCommit);
+        assertEquals(Collections.singletonList(zxid(1)), committed);
+    }
+
+}
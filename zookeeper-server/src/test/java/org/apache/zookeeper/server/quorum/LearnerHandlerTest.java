@@ -0,0 +1,432 @@
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CheckedInputStream;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.TxnLogEntry;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.persistence.ChecksumType;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.persistence.SnapStream;
+import org.apache.zookeeper.server.persistence.Util;
+import org.apache.zookeeper.server.util.SerializeUtils;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the sync of a learner from the snapshot file and from the on-disk
+ * txnlog
+ */
+public class LearnerHandlerTest {
+
+    // The snapshot is named after this zxid, but holds the txns up to
+    // FUZZY_ZXID, as if they were applied while it was being taken
+    private static final long SNAP_ZXID = 10;
+    private static final long PEER_ZXID = 5;
+    private static final long FUZZY_ZXID = 15;
+    private static final long MIN_COMMITTED_ZXID = 21;
+    private static final long LAST_ZXID = 30;
+    // Large enough for the txnlog not to be read at once
+    private static final int DATA_SIZE = 1000;
+
+    private File dataDir;
+    private FileTxnSnapLog snapLog;
+    private ZKDatabase db;
+    private LearnerMaster learnerMaster;
+    private Socket socket;
+    private LearnerHandler learnerHandler;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty(LearnerHandler.SNAPSHOT_FILE_SYNC, "true");
+        // No limit on the size of the txnlog to sync from
+        System.setProperty(ZKDatabase.SNAPSHOT_SIZE_FACTOR, "0");
+        dataDir = ClientBase.createEmptyTestDir();
+        snapLog = new FileTxnSnapLog(dataDir, dataDir);
+        db = new ZKDatabase(snapLog);
+        learnerMaster = mock(LearnerMaster.class);
+        when(learnerMaster.getZKDatabase()).thenReturn(db);
+        when(learnerMaster.startForwarding(any(LearnerHandler.class), anyLong())).thenReturn(LAST_ZXID);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        System.clearProperty(LearnerHandler.SNAPSHOT_FILE_SYNC);
+        System.clearProperty(LearnerHandler.STREAM_TXN_LOG_SYNC);
+        System.clearProperty(ZKDatabase.SNAPSHOT_SIZE_FACTOR);
+        Leader.setZabBatchSize(0);
+        snapLog.close();
+        ClientBase.recursiveDelete(dataDir);
+    }
+
+    private static Request txn(long zxid) {
+        TxnHeader hdr = new TxnHeader(1, (int) zxid, zxid, zxid, OpCode.create);
+        CreateTxn txn = new CreateTxn("/n" + zxid, new byte[DATA_SIZE], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0);
+        return new Request(1, (int) zxid, OpCode.create, hdr, txn, zxid);
+    }
+
+    /**
+     * Fill the database up to LAST_ZXID, with a fuzzy snapshot file, the
+     * txnlog from logFromZxid and the committedLog from MIN_COMMITTED_ZXID
+     */
+    private void createDatabase(long logFromZxid) throws IOException {
+        for (long zxid = 1; zxid <= LAST_ZXID; zxid++) {
+            Request request = txn(zxid);
+            db.processTxn(request.getHdr(), request.getTxn(), null);
+            if (zxid >= logFromZxid) {
+                db.append(request);
+            }
+            if (zxid >= MIN_COMMITTED_ZXID) {
+                db.addCommittedProposal(request);
+            }
+            if (zxid == FUZZY_ZXID) {
+                File snap = new File(snapLog.getSnapDir(), Util.makeSnapshotName(SNAP_ZXID));
+                new FileSnap(snapLog.getSnapDir()).serialize(db.getDataTree(), new HashMap<>(), snap, false);
+            }
+        }
+        db.commit();
+    }
+
+    private LearnerHandler createLearnerHandler(int snapshotFileSyncVersion, int streamModes, int checksumVersions)
+        throws IOException {
+        socket = mock(Socket.class);
+        LearnerHandler handler = new LearnerHandler(
+            socket,
+            new BufferedInputStream(new ByteArrayInputStream(new byte[0])),
+            learnerMaster) {
+            @Override
+            protected boolean shouldSendMarkerPacketForLogging() {
+                return false;
+            }
+        };
+        handler.setReadableSnapshotFiles(snapshotFileSyncVersion, streamModes, checksumVersions);
+        return handler;
+    }
+
+    private LearnerHandler createLearnerHandler() throws IOException {
+        return createLearnerHandler(
+            Leader.SNAPSHOT_FILE_SYNC_VERSION,
+            SnapStream.getReadableStreamModes(),
+            ChecksumType.getAvailableFileVersions());
+    }
+
+    /**
+     * Start sending the queued packets
+     *
+     * @return the stream the packets are written to
+     */
+    private static ByteArrayOutputStream startSending(LearnerHandler handler) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BufferedOutputStream bufferedOutput = new BufferedOutputStream(out);
+        handler.setBufferedOutput(bufferedOutput);
+        handler.setOutputArchive(BinaryOutputArchive.getArchive(bufferedOutput));
+        handler.startSendingPackets();
+        return out;
+    }
+
+    private static List<QuorumPacket> waitForPackets(ByteArrayOutputStream out, int count) throws InterruptedException {
+        List<QuorumPacket> packets = readPackets(out.toByteArray());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (packets.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            packets = readPackets(out.toByteArray());
+        }
+        return packets;
+    }
+
+    private static List<QuorumPacket> readPackets(byte[] bytes) {
+        List<QuorumPacket> packets = new ArrayList<>();
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(bytes));
+        try {
+            while (true) {
+                QuorumPacket packet = new QuorumPacket();
+                ia.readRecord(packet, "packet");
+                packets.add(packet);
+            }
+        } catch (IOException e) {
+            // the end of what was written so far
+        }
+        return packets;
+    }
+
+    /**
+     * Assert the packets are the proposals from fromZxid to toZxid, each
+     * followed by its commit
+     */
+    private static void assertProposals(List<QuorumPacket> packets, long fromZxid, long toZxid) {
+        assertEquals(2 * (toZxid - fromZxid + 1), packets.size());
+        for (int i = 0; i < packets.size(); i += 2) {
+            long zxid = fromZxid + i / 2;
+            assertEquals(Leader.PROPOSAL, packets.get(i).getType());
+            assertEquals(zxid, packets.get(i).getZxid());
+            assertEquals(Leader.COMMIT, packets.get(i + 1).getType());
+            assertEquals(zxid, packets.get(i + 1).getZxid());
+        }
+    }
+
+    private void assertSerializing(LearnerHandler handler) {
+        assertTrue(handler.syncFollower(0, learnerMaster));
+        assertNull(handler.getSnapshotFile());
+        assertEquals(0, handler.getQueuedPackets().size());
+        verify(learnerMaster).startForwarding(handler, LAST_ZXID);
+    }
+
+    @Test(timeout=30000)
+    public void snapshotFileSyncTest() throws Exception {
+        createDatabase(1);
+        learnerHandler = createLearnerHandler();
+        assertTrue(learnerHandler.syncFollower(0, learnerMaster));
+        assertEquals(Util.makeSnapshotName(SNAP_ZXID), learnerHandler.getSnapshotFile().getName());
+        verify(learnerMaster).startForwarding(learnerHandler, LAST_ZXID);
+
+        // The txns since the snapshot, from the txnlog then the committedLog,
+        // and no DIFF or TRUNC
+        assertProposals(new ArrayList<>(learnerHandler.getQueuedPackets()), SNAP_ZXID + 1, LAST_ZXID);
+    }
+
+    @Test(timeout=30000)
+    public void fuzzySnapshotReplayTest() throws Exception {
+        createDatabase(1);
+        learnerHandler = createLearnerHandler();
+        assertTrue(learnerHandler.syncFollower(0, learnerMaster));
+        File snapshot = learnerHandler.getSnapshotFile();
+        assertNotNull(snapshot);
+
+        // Load the snapshot file as the learner does, then apply the
+        // proposals, the first of which are already in the snapshot
+        ZKDatabase learnerDb = new ZKDatabase(null);
+        List<Long> mismatches = new ArrayList<>();
+        learnerDb.getDataTree().addDigestWatcher(mismatches::add);
+        try (CheckedInputStream is = SnapStream.getInputStream(snapshot)) {
+            learnerDb.deserializeSnapshot(BinaryInputArchive.getArchive(is), is, SNAP_ZXID);
+        }
+        assertEquals(FUZZY_ZXID, learnerDb.getDataTree().getDigestFromLoadedSnapshot().getZxid());
+        for (QuorumPacket packet : learnerHandler.getQueuedPackets()) {
+            if (packet.getType() == Leader.PROPOSAL) {
+                TxnLogEntry entry = SerializeUtils.deserializeTxn(packet.getData());
+                learnerDb.processTxn(entry.getHeader(), entry.getTxn(), entry.getDigest());
+            }
+        }
+
+        // The digest of the snapshot was compared once the tree got to it
+        assertNull(learnerDb.getDataTree().getDigestFromLoadedSnapshot());
+        assertEquals(new ArrayList<Long>(), mismatches);
+        assertEquals(LAST_ZXID, learnerDb.getDataTreeLastProcessedZxid());
+        assertEquals(db.getDataTree().getNodeCount(), learnerDb.getDataTree().getNodeCount());
+        assertEquals(db.getDataTree().getTreeDigest(), learnerDb.getDataTree().getTreeDigest());
+    }
+
+    @Test(timeout=30000)
+    public void oldLearnerTest() throws Exception {
+        createDatabase(1);
+        assertSerializing(createLearnerHandler(0, 0, 0));
+    }
+
+    @Test(timeout=30000)
+    public void snapshotFileSyncDisabledTest() throws Exception {
+        System.clearProperty(LearnerHandler.SNAPSHOT_FILE_SYNC);
+        createDatabase(1);
+        assertSerializing(createLearnerHandler());
+    }
+
+    @Test(timeout=30000)
+    public void unreadableStreamModeTest() throws Exception {
+        createDatabase(1);
+        int streamModes = SnapStream.getReadableStreamModes() & ~(1 << SnapStream.getStreamMode().ordinal());
+        assertSerializing(createLearnerHandler(
+            Leader.SNAPSHOT_FILE_SYNC_VERSION,
+            streamModes,
+            ChecksumType.getAvailableFileVersions()));
+    }
+
+    @Test(timeout=30000)
+    public void unreadableChecksumVersionTest() throws Exception {
+        createDatabase(1);
+        int version = SnapStream.getFileHeaderVersion(db.findMostRecentSnapshot());
+        assertSerializing(createLearnerHandler(
+            Leader.SNAPSHOT_FILE_SYNC_VERSION,
+            SnapStream.getReadableStreamModes(),
+            ChecksumType.getAvailableFileVersions() & ~(1 << version)));
+    }
+
+    @Test(timeout=30000)
+    public void txnLogGapTest() throws Exception {
+        // The txnlog doesn't have the txns between the snapshot and the
+        // committedLog
+        createDatabase(MIN_COMMITTED_ZXID);
+        assertSerializing(createLearnerHandler());
+    }
+
+    @Test(timeout=30000)
+    public void committedLogDiffTest() throws Exception {
+        createDatabase(MIN_COMMITTED_ZXID);
+        long peerZxid = MIN_COMMITTED_ZXID + 2;
+        learnerHandler = createLearnerHandler();
+        LearnerHandler other = createLearnerHandler();
+        assertFalse(learnerHandler.syncFollower(peerZxid, learnerMaster));
+        assertFalse(other.syncFollower(peerZxid, learnerMaster));
+
+        // The learners synced from the committedLog share its proposals and
+        // their commits
+        List<QuorumPacket> queued = new ArrayList<>(learnerHandler.getQueuedPackets());
+        List<QuorumPacket> otherQueued = new ArrayList<>(other.getQueuedPackets());
+        assertEquals(1 + 2 * (LAST_ZXID - peerZxid), queued.size());
+        assertEquals(Leader.DIFF, queued.get(0).getType());
+        assertProposals(queued.subList(1, queued.size()), peerZxid + 1, LAST_ZXID);
+        for (int i = 1; i < queued.size(); i++) {
+            assertSame(queued.get(i), otherQueued.get(i));
+        }
+
+        int count = queued.size();
+        List<QuorumPacket> packets = waitForPackets(startSending(learnerHandler), count);
+        assertEquals(count, packets.size());
+        assertProposals(packets.subList(1, count), peerZxid + 1, LAST_ZXID);
+        learnerHandler.shutdown();
+        other.shutdown();
+    }
+
+    /**
+     * Queue the UPTODATE ending the sync of the learner, then the proposals
+     * from fromZxid to toZxid, then their commits
+     */
+    private static void queueBroadcast(LearnerHandler handler, long fromZxid, long toZxid) {
+        handler.queuePacket(new QuorumPacket(Leader.UPTODATE, -1, null, null));
+        for (long zxid = fromZxid; zxid <= toZxid; zxid++) {
+            handler.queuePacket(new QuorumPacket(Leader.PROPOSAL, zxid, new byte[] {(byte) zxid}, null));
+        }
+        for (long zxid = fromZxid; zxid <= toZxid; zxid++) {
+            handler.queuePacket(new QuorumPacket(Leader.COMMIT, zxid, null, null));
+        }
+    }
+
+    private static void assertProposalsPacket(QuorumPacket packet, long fromZxid, long toZxid) {
+        assertEquals(Leader.PROPOSALS, packet.getType());
+        assertEquals(toZxid, packet.getZxid());
+        List<QuorumPacket> proposals = Leader.splitProposalsPacket(packet);
+        assertEquals(toZxid - fromZxid + 1, proposals.size());
+        for (int i = 0; i < proposals.size(); i++) {
+            assertEquals(fromZxid + i, proposals.get(i).getZxid());
+            assertArrayEquals(new byte[] {(byte) (fromZxid + i)}, proposals.get(i).getData());
+        }
+    }
+
+    @Test(timeout=30000)
+    public void batchingTest() throws Exception {
+        Leader.setZabBatchSize(4);
+        when(learnerMaster.getProposalsPacket(any()))
+            .thenAnswer(invocation -> Leader.buildProposalsPacket(invocation.getArgument(0)));
+        learnerHandler = createLearnerHandler();
+        learnerHandler.version = Leader.BATCHING_PROTOCOL_VERSION;
+        assertTrue(learnerHandler.isBatching());
+        queueBroadcast(learnerHandler, 1, 6);
+
+        // Once synced, the learner gets up to 4 proposals per message, then
+        // a single commit of the last zxid
+        List<QuorumPacket> packets = waitForPackets(startSending(learnerHandler), 4);
+        assertEquals(4, packets.size());
+        assertEquals(Leader.UPTODATE, packets.get(0).getType());
+        assertProposalsPacket(packets.get(1), 1, 4);
+        assertProposalsPacket(packets.get(2), 5, 6);
+        assertEquals(Leader.COMMIT, packets.get(3).getType());
+        assertEquals(6, packets.get(3).getZxid());
+        learnerHandler.shutdown();
+    }
+
+    @Test(timeout=30000)
+    public void oldLearnerNotBatchedTest() throws Exception {
+        Leader.setZabBatchSize(4);
+        learnerHandler = createLearnerHandler();
+        // The protocol version of a learner predating the batching
+        learnerHandler.version = 0x1;
+        assertFalse(learnerHandler.isBatching());
+        queueBroadcast(learnerHandler, 1, 6);
+
+        List<QuorumPacket> packets = waitForPackets(startSending(learnerHandler), 13);
+        assertEquals(13, packets.size());
+        assertEquals(Leader.UPTODATE, packets.get(0).getType());
+        for (int i = 1; i <= 6; i++) {
+            assertEquals(Leader.PROPOSAL, packets.get(i).getType());
+            assertEquals(i, packets.get(i).getZxid());
+            assertEquals(Leader.COMMIT, packets.get(i + 6).getType());
+            assertEquals(i, packets.get(i + 6).getZxid());
+        }
+        learnerHandler.shutdown();
+    }
+
+    @Test(timeout=30000)
+    public void streamedDiffTest() throws Exception {
+        System.setProperty(LearnerHandler.STREAM_TXN_LOG_SYNC, "true");
+        createDatabase(1);
+        learnerHandler = createLearnerHandler();
+        assertFalse(learnerHandler.syncFollower(PEER_ZXID, learnerMaster));
+        verify(learnerMaster).startForwarding(learnerHandler, LAST_ZXID);
+        // The DIFF, the first proposal and its commit, a packet standing for
+        // the rest of the txnlog, then the committedLog
+        assertEquals(4 + 2 * (LAST_ZXID - MIN_COMMITTED_ZXID), learnerHandler.getQueuedPackets().size());
+
+        int count = 1 + 2 * (int) (LAST_ZXID - PEER_ZXID);
+        List<QuorumPacket> packets = waitForPackets(startSending(learnerHandler), count);
+        assertEquals(count, packets.size());
+        assertEquals(Leader.DIFF, packets.get(0).getType());
+        assertEquals(LAST_ZXID, packets.get(0).getZxid());
+        assertProposals(packets.subList(1, count), PEER_ZXID + 1, LAST_ZXID);
+        learnerHandler.shutdown();
+    }
+
+    @Test(timeout=30000)
+    public void streamedDiffTxnLogEndsEarlyTest() throws Exception {
+        System.setProperty(LearnerHandler.STREAM_TXN_LOG_SYNC, "true");
+        createDatabase(1);
+        learnerHandler = createLearnerHandler();
+        assertFalse(learnerHandler.syncFollower(PEER_ZXID, learnerMaster));
+
+        // The txnlog loses its end before it is sent
+        File logFile = FileTxnLog.getLogFiles(snapLog.getDataDir().listFiles(), 0)[0];
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+            raf.setLength(16 * DATA_SIZE);
+        }
+
+        ByteArrayOutputStream out = startSending(learnerHandler);
+        // The learner is disconnected, without being sent the committedLog
+        verify(socket, timeout(10000)).close();
+        for (QuorumPacket packet : readPackets(out.toByteArray())) {
+            assertTrue(LearnerHandler.packetToString(packet), packet.getZxid() < MIN_COMMITTED_ZXID
+                || packet.getType() == Leader.DIFF);
+        }
+    }
+
+}
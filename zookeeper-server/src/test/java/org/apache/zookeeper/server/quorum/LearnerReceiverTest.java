@@ -0,0 +1,134 @@
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test the packets read from the leader and decoded ahead of the learner
+ */
+public class LearnerReceiverTest {
+
+    private Learner learner;
+
+    @After
+    public void tearDown() {
+        Learner.setReceiveQueueSize(0);
+        if (learner != null) {
+            learner.stopReceivingThread();
+        }
+    }
+
+    private static QuorumPacket proposal(long zxid) {
+        TxnHeader hdr = new TxnHeader(1, (int) zxid, zxid, zxid, OpCode.create);
+        CreateTxn txn = new CreateTxn("/n" + zxid, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0);
+        Request request = new Request(1, (int) zxid, OpCode.create, hdr, txn, zxid);
+        return new QuorumPacket(Leader.PROPOSAL, zxid, request.getSerializeData(), null);
+    }
+
+    private static byte[] serialize(QuorumPacket... packets) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(out);
+        for (QuorumPacket packet : packets) {
+            oa.writeRecord(packet, "packet");
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A learner reading the given stream from the leader, through a receive
+     * queue of the given size
+     */
+    private Learner createLearner(ByteArrayInputStream leaderStream, int queueSize) {
+        Learner.setReceiveQueueSize(queueSize);
+        Learner learner = new Learner();
+        learner.zk = mock(LearnerZooKeeperServer.class);
+        learner.leaderIs = BinaryInputArchive.getArchive(leaderStream);
+        return learner;
+    }
+
+    private static void assertDecodedProposal(QuorumPacket expected, QuorumPacket received) {
+        assertTrue(received instanceof LearnerReceiver.DecodedProposal);
+        assertEquals(Leader.PROPOSAL, received.getType());
+        assertEquals(expected.getZxid(), received.getZxid());
+        assertArrayEquals(expected.getData(), received.getData());
+        assertEquals(expected.getZxid(), ((LearnerReceiver.DecodedProposal) received).logEntry.getHeader().getZxid());
+    }
+
+    @Test(timeout=30000)
+    public void pipeliningTest() throws Exception {
+        QuorumPacket ping = new QuorumPacket(Leader.PING, 0, null, null);
+        QuorumPacket commit = new QuorumPacket(Leader.COMMIT, 3, null, null);
+        byte[] head = serialize(ping, Leader.buildProposalsPacket(Arrays.asList(proposal(1), proposal(2))), proposal(3));
+        byte[] tail = serialize(commit);
+        ByteArrayInputStream leaderStream = new ByteArrayInputStream(
+            ByteBuffer.allocate(head.length + tail.length).put(head).put(tail).array());
+        learner = createLearner(leaderStream, 2);
+
+        assertEquals(Leader.PING, learner.receivePacket(new QuorumPacket()).getType());
+        // The receiver stops reading from the leader with the queue full
+        // of the proposals batched, and the next proposal waiting
+        LearnerReceiver receiver = learner.receiver;
+        while (leaderStream.available() != tail.length || receiver.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(100);
+        assertEquals(tail.length, leaderStream.available());
+
+        // The proposals batched are handed one by one, decoded
+        assertDecodedProposal(proposal(1), learner.receivePacket(new QuorumPacket()));
+        assertDecodedProposal(proposal(2), learner.receivePacket(new QuorumPacket()));
+        assertDecodedProposal(proposal(3), learner.receivePacket(new QuorumPacket()));
+        QuorumPacket received = learner.receivePacket(new QuorumPacket());
+        assertEquals(Leader.COMMIT, received.getType());
+        assertEquals(3, received.getZxid());
+
+        // The end of the stream, once the packets read are processed
+        try {
+            learner.receivePacket(new QuorumPacket());
+            fail("the stream ended");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout=30000)
+    public void malformedProposalsTest() throws Exception {
+        // Two proposals announced, and only the start of the first one
+        byte[] data = ByteBuffer.allocate(4 + 8 + 2).putInt(2).putLong(1).putShort((short) 0).array();
+        QuorumPacket malformed = new QuorumPacket(Leader.PROPOSALS, 2, data, null);
+        QuorumPacket ping = new QuorumPacket(Leader.PING, 0, null, null);
+        learner = createLearner(new ByteArrayInputStream(serialize(ping, malformed, ping)), 4);
+
+        assertEquals(Leader.PING, learner.receivePacket(new QuorumPacket()).getType());
+        // The learner fails, rather than waiting for the next packet
+        for (int i = 0; i < 2; i++) {
+            try {
+                learner.receivePacket(new QuorumPacket());
+                fail("the packet is malformed");
+            } catch (IOException e) {
+                assertTrue(e.getCause() instanceof BufferUnderflowException);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
+import org.apache.zookeeper.server.util.ZxidUtils;
+import org.junit.Test;
+
+/**
+ * Test the relay chain of the observers relaying the txns to other observers
+ */
+public class ObserverRelayTest {
+
+    private static QuorumPeer peer(long sid) throws IOException {
+        QuorumPeer self = mock(QuorumPeer.class);
+        when(self.getMyId()).thenReturn(sid);
+        when(self.getCurrentEpoch()).thenReturn(1L);
+        when(self.getAcceptedEpoch()).thenReturn(1L);
+        when(self.getQuorumVerifier()).thenReturn(mock(QuorumVerifier.class));
+        return self;
+    }
+
+    private static Observer observer(long sid) throws IOException {
+        ObserverZooKeeperServer zk = mock(ObserverZooKeeperServer.class);
+        Observer observer = new Observer(peer(sid), zk);
+        when(zk.getLearner()).thenReturn(observer);
+        return observer;
+    }
+
+    /**
+     * The LEADERINFO sent by a learner master relaying the txns through the
+     * given chain, as the learner handler sends it
+     */
+    private static byte[] leaderInfo(List<Long> relayChain) throws IOException {
+        ByteBuffer ver = ByteBuffer.allocate(relayChain.isEmpty() ? 4 : 4 + 4 + 8 * relayChain.size());
+        ver.putInt(Leader.getProtocolVersion());
+        if (!relayChain.isEmpty()) {
+            ver.putInt(relayChain.size());
+            for (long sid : relayChain) {
+                ver.putLong(sid);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        QuorumPacket packet = new QuorumPacket(Leader.LEADERINFO, ZxidUtils.makeZxid(1, 0), ver.array(), null);
+        BinaryOutputArchive.getArchive(out).writeRecord(packet, "packet");
+        return out.toByteArray();
+    }
+
+    /**
+     * Register the observer with a learner master relaying the txns through
+     * the given chain
+     */
+    private static void register(Observer observer, Long... relayChain) throws IOException {
+        observer.leaderIs = BinaryInputArchive.getArchive(new ByteArrayInputStream(leaderInfo(Arrays.asList(relayChain))));
+        observer.bufferedOutput = new BufferedOutputStream(new ByteArrayOutputStream());
+        observer.leaderOs = BinaryOutputArchive.getArchive(observer.bufferedOutput);
+        observer.registerWithLeader(Leader.OBSERVERINFO);
+    }
+
+    private static void assertRefused(Observer observer, Long... relayChain) {
+        try {
+            register(observer, relayChain);
+            fail("learner master relaying through " + Arrays.asList(relayChain) + " accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static void assertNotHosted(ObserverMaster om, long sid) throws Exception {
+        try {
+            om.getEpochToPropose(sid, 1);
+            fail("observer " + sid + " hosted by " + om.getRelayChain());
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout=30000)
+    public void relayLoopTest() throws Exception {
+        // Observers 4 -> 5 -> 6 relaying the txns of follower 2
+        Observer observer = observer(4);
+        register(observer, 2L);
+        assertEquals(Arrays.asList(2L), observer.relayChain);
+        ObserverMaster om = new ObserverMaster(observer.self, (ObserverZooKeeperServer) observer.zk, 0);
+        assertEquals(Arrays.asList(2L, 4L), om.getRelayChain());
+        // The observer may not connect to itself, or to an observer it
+        // relays the txns to
+        assertRefused(observer(4), 2L, 4L);
+        assertRefused(observer(4), 2L, 4L, 5L);
+        assertRefused(observer(4), 2L, 4L, 5L, 6L);
+
+        // Nor may its learner master host it
+        assertNotHosted(om, 2);
+        assertNotHosted(om, 4);
+        assertEquals(1, om.getEpochToPropose(5, 1));
+    }
+
+    @Test(timeout=30000)
+    public void maxRelayDepthTest() throws Exception {
+        register(observer(5), 2L, 3L, 4L);
+        assertRefused(observer(5), 2L, 3L, 4L, 6L);
+    }
+
+    /**
+     * Observers 4 -> 5 -> 6 relay the txns of follower 2, until 4 dies: 5
+     * resyncs with 2, and 6 with 5, each with the chain without 4
+     */
+    @Test(timeout=30000)
+    public void middleRelayDiesTest() throws Exception {
+        Observer observer5 = observer(5);
+        register(observer5, 2L, 4L);
+        ObserverMaster om5 = new ObserverMaster(observer5.self, (ObserverZooKeeperServer) observer5.zk, 0);
+        assertEquals(Arrays.asList(2L, 4L, 5L), om5.getRelayChain());
+        assertNotHosted(om5, 4);
+        Observer observer6 = observer(6);
+        register(observer6, 2L, 4L, 5L);
+        assertEquals(Arrays.asList(2L, 4L, 5L), observer6.relayChain);
+
+        // 5 resyncs with 2, and hosts 6 again, with the chain without 4
+        register(observer5, 2L);
+        assertEquals(Arrays.asList(2L), observer5.relayChain);
+        om5 = new ObserverMaster(observer5.self, (ObserverZooKeeperServer) observer5.zk, 0);
+        assertEquals(Arrays.asList(2L, 5L), om5.getRelayChain());
+        register(observer6, 2L, 5L);
+        assertEquals(Arrays.asList(2L, 5L), observer6.relayChain);
+
+        // 4 back, may now be hosted by 5
+        assertEquals(1, om5.getEpochToPropose(4, 1));
+        Observer observer4 = observer(4);
+        register(observer4, 2L, 5L);
+        assertEquals(Arrays.asList(2L, 5L), observer4.relayChain);
+
+        // 5 resyncing with the leader, which sends no chain
+        register(observer5);
+        assertTrue(observer5.relayChain.isEmpty());
+        assertEquals(Collections.singletonList(5L),
+            new ObserverMaster(observer5.self, (ObserverZooKeeperServer) observer5.zk, 0).getRelayChain());
+    }
+
+}
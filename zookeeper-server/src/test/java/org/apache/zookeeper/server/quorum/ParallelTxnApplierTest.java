@@ -0,0 +1,119 @@
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test the txns of a lane failing to be applied ahead
+ */
+public class ParallelTxnApplierTest {
+
+    private final ParallelTxnApplier applier = new ParallelTxnApplier(2);
+
+    @After
+    public void tearDown() {
+        applier.shutdown();
+    }
+
+    private static Request request(long zxid, Record txn) {
+        // The header of a create with a setData txn fails to be applied
+        TxnHeader hdr = new TxnHeader(1, (int) zxid, zxid, zxid, OpCode.create);
+        return new Request(1, (int) zxid, OpCode.create, hdr, txn, zxid);
+    }
+
+    private static CreateTxn create(String path) {
+        return new CreateTxn(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0);
+    }
+
+    private static ZKDatabase createDatabase() {
+        ZKDatabase zkDb = new ZKDatabase(null);
+        zkDb.processTxn(request(1, create("/a")).getHdr(), create("/a"), null);
+        zkDb.processTxn(request(2, create("/b")).getHdr(), create("/b"), null);
+        return zkDb;
+    }
+
+    /**
+     * Complete the txns applied ahead and apply the others, in zxid order
+     */
+    private static void complete(ZKDatabase zkDb, Request request) {
+        if (request.getAppliedTxn() != null) {
+            zkDb.completeTxn(request.getAppliedTxn());
+            return;
+        }
+        try {
+            zkDb.processTxn(request.getHdr(), request.getTxn(), null);
+        } catch (ClassCastException e) {
+            // the broken txn
+        }
+    }
+
+    @Test(timeout=10000)
+    public void failedLaneTest() throws Exception {
+        List<Request> requests = Arrays.asList(
+            request(3, create("/a/x")),
+            request(4, create("/b/z")),
+            request(5, new SetDataTxn("/a", new byte[1], 1)),
+            request(6, create("/a/y")));
+        List<String> subtrees = Arrays.asList("/a", "/b", "/a", "/a");
+
+        ZKDatabase zkDb = createDatabase();
+        applier.applyAhead(zkDb, requests, subtrees);
+        assertNotNull(requests.get(0).getAppliedTxn());
+        assertNotNull(requests.get(1).getAppliedTxn());
+        // Left to be applied in their turn
+        assertNull(requests.get(2).getAppliedTxn());
+        assertNull(requests.get(3).getAppliedTxn());
+        assertNull(zkDb.getNode("/a/y"));
+
+        for (Request request : requests) {
+            complete(zkDb, request);
+        }
+
+        ZKDatabase serial = createDatabase();
+        List<Request> serialRequests = new ArrayList<>();
+        for (Request request : requests) {
+            serialRequests.add(request(request.zxid, request.getTxn()));
+        }
+        for (Request request : serialRequests) {
+            complete(serial, request);
+        }
+        assertNotNull(zkDb.getNode("/a/y"));
+        assertEquals(serial.getDataTree().getTreeDigest(), zkDb.getDataTree().getTreeDigest());
+        assertEquals(serial.getDataTree().lastProcessedZxid, zkDb.getDataTree().lastProcessedZxid);
+        assertEquals(6, zkDb.getDataTree().lastProcessedZxid);
+    }
+
+    @Test(timeout=10000)
+    public void failedLastTxnTest() throws Exception {
+        List<Request> requests = Arrays.asList(
+            request(3, create("/a/x")),
+            request(4, new SetDataTxn("/a", new byte[1], 1)));
+        ZKDatabase zkDb = createDatabase();
+        applier.applyAhead(zkDb, requests, Arrays.asList("/a", "/a"));
+        assertNotNull(requests.get(0).getAppliedTxn());
+        assertNull(requests.get(1).getAppliedTxn());
+        try {
+            zkDb.processTxn(requests.get(1).getHdr(), requests.get(1).getTxn(), null);
+            fail("The txn should fail in its turn as well");
+        } catch (ClassCastException e) {
+            // expected
+        }
+    }
+
+}
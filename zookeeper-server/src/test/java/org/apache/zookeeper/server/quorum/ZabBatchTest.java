@@ -0,0 +1,241 @@
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
+import org.apache.zookeeper.server.quorum.flexible.QuorumMaj;
+import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
+import org.apache.zookeeper.server.util.ZxidUtils;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the batching of the proposals, commits and acks between the leader
+ * and the followers
+ */
+public class ZabBatchTest {
+
+    private static final long EPOCH = 1;
+
+    private Leader leader;
+    private List<Long> committed;
+
+    @Before
+    public void setUp() {
+        Leader.setZabBatchSize(4);
+        committed = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @After
+    public void tearDown() {
+        Leader.setZabBatchSize(0);
+        if (leader != null) {
+            leader.closeSockets();
+        }
+    }
+
+    private static long zxid(int counter) {
+        return ZxidUtils.makeZxid(EPOCH, counter);
+    }
+
+    private static Request txn(long zxid) {
+        TxnHeader hdr = new TxnHeader(1, (int) zxid, zxid, zxid, OpCode.create);
+        CreateTxn txn = new CreateTxn("/n" + zxid, new byte[(int) (zxid % 7)], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0);
+        return new Request(1, (int) zxid, OpCode.create, hdr, txn, zxid);
+    }
+
+    private static QuorumPacket proposal(long zxid) {
+        return new QuorumPacket(Leader.PROPOSAL, zxid, txn(zxid).getSerializeData(), null);
+    }
+
+    @Test
+    public void splitProposalsPacketTest() throws IOException {
+        List<QuorumPacket> proposals = Arrays.asList(
+            proposal(zxid(1)),
+            new QuorumPacket(Leader.PROPOSAL, zxid(2), new byte[0], null),
+            proposal(zxid(3)));
+        BroadcastPacket packet = Leader.buildProposalsPacket(proposals);
+        assertEquals(Leader.PROPOSALS, packet.getType());
+        assertEquals(zxid(3), packet.getZxid());
+
+        // As read by the learner
+        QuorumPacket received = new QuorumPacket();
+        BinaryInputArchive.getArchive(new ByteArrayInputStream(packet.getBytes())).readRecord(received, "packet");
+        List<QuorumPacket> split = Leader.splitProposalsPacket(received);
+        assertEquals(proposals.size(), split.size());
+        for (int i = 0; i < proposals.size(); i++) {
+            assertEquals(Leader.PROPOSAL, split.get(i).getType());
+            assertEquals(proposals.get(i).getZxid(), split.get(i).getZxid());
+            assertArrayEquals(proposals.get(i).getData(), split.get(i).getData());
+        }
+    }
+
+    private Leader createLeader() throws IOException {
+        QuorumPeer self = mock(QuorumPeer.class);
+        when(self.getQuorumAddress()).thenReturn(new MultipleAddresses(new InetSocketAddress("127.0.0.1", 0)));
+        when(self.getMyId()).thenReturn(1L);
+        LeaderZooKeeperServer zk = mock(LeaderZooKeeperServer.class);
+        zk.commitProcessor = mock(CommitProcessor.class);
+        doAnswer(invocation -> {
+            committed.add(((Request) invocation.getArgument(0)).zxid);
+            return null;
+        }).when(zk.commitProcessor).commit(any(Request.class));
+        return new Leader(self, zk);
+    }
+
+    private static QuorumVerifier quorumVerifier(long... sids) {
+        Map<Long, QuorumServer> members = new HashMap<>();
+        for (long sid : sids) {
+            members.put(sid, new QuorumServer(sid, new InetSocketAddress("127.0.0.1", 0)));
+        }
+        return new QuorumMaj(members);
+    }
+
+    /**
+     * Make the proposals from fromZxid to toZxid outstanding, acked by the
+     * leader
+     */
+    private void propose(long fromZxid, long toZxid, QuorumVerifier qv) {
+        for (long zxid = fromZxid; zxid <= toZxid; zxid++) {
+            Leader.Proposal p = new Leader.Proposal();
+            p.packet = proposal(zxid);
+            p.request = txn(zxid);
+            p.addQuorumVerifier(qv);
+            p.addAck(1L);
+            leader.outstandingProposals.put(zxid, p);
+            leader.lastProposed = zxid;
+        }
+    }
+
+    @Test(timeout=30000)
+    public void proposalsPacketCacheTest() throws IOException {
+        leader = createLeader();
+        List<QuorumPacket> proposals = Arrays.asList(proposal(zxid(1)), proposal(zxid(2)));
+        BroadcastPacket packet = leader.getProposalsPacket(proposals);
+        // Shared by the learner handlers sending the same proposals
+        assertSame(packet, leader.getProposalsPacket(Arrays.asList(proposal(zxid(1)), proposal(zxid(2)))));
+        assertNotSame(packet, leader.getProposalsPacket(Collections.singletonList(proposal(zxid(2)))));
+
+        // The last 8 packets are kept
+        for (int counter = 3; counter < 9; counter++) {
+            leader.getProposalsPacket(Collections.singletonList(proposal(zxid(counter))));
+        }
+        assertSame(packet, leader.getProposalsPacket(proposals));
+        leader.getProposalsPacket(Collections.singletonList(proposal(zxid(9))));
+        BroadcastPacket rebuilt = leader.getProposalsPacket(proposals);
+        assertNotSame(packet, rebuilt);
+        assertArrayEquals(packet.getBytes(), rebuilt.getBytes());
+    }
+
+    @Test(timeout=30000)
+    public void leaderCumulativeAckTest() throws IOException {
+        leader = createLeader();
+        leader.lastCommitted = zxid(0);
+        propose(zxid(1), zxid(5), quorumVerifier(1, 2, 3));
+
+        // A single ack of a follower commits the proposals up to its zxid,
+        // in order
+        leader.processAcksUpTo(2, zxid(4), null);
+        assertEquals(Arrays.asList(zxid(1), zxid(2), zxid(3), zxid(4)), committed);
+        assertEquals(zxid(4), leader.lastCommitted);
+        assertEquals(Collections.singleton(zxid(5)), leader.outstandingProposals.keySet());
+
+        // The ones already committed are skipped
+        leader.processAcksUpTo(3, zxid(5), null);
+        assertEquals(Arrays.asList(zxid(1), zxid(2), zxid(3), zxid(4), zxid(5)), committed);
+        assertTrue(leader.outstandingProposals.isEmpty());
+    }
+
+    @Test(timeout=30000)
+    public void leaderAckOfProposalRaceTest() throws IOException {
+        leader = createLeader();
+        leader.lastCommitted = zxid(0);
+        propose(zxid(1), zxid(3), quorumVerifier(1, 2, 3));
+        // Proposed, but not yet outstanding: the ack covers the outstanding
+        // ones only
+        leader.lastProposed = zxid(4);
+        leader.processAcksUpTo(2, zxid(3), null);
+        assertEquals(Arrays.asList(zxid(1), zxid(2), zxid(3)), committed);
+    }
+
+    private Follower createFollower(int leaderProtocolVersion, List<Long> logged) {
+        FollowerZooKeeperServer fzk = mock(FollowerZooKeeperServer.class);
+        fzk.pendingTxns = new LinkedBlockingQueue<>();
+        doAnswer(invocation -> {
+            TxnHeader hdr = invocation.getArgument(0);
+            logged.add(hdr.getZxid());
+            fzk.pendingTxns.add(new Request(1, 0, hdr.getType(), hdr, invocation.getArgument(1), hdr.getZxid()));
+            return null;
+        }).when(fzk).logRequest(any(), any(), any());
+        doAnswer(invocation -> {
+            long zxid = invocation.getArgument(0);
+            assertEquals(zxid, fzk.pendingTxns.remove().zxid);
+            committed.add(zxid);
+            return null;
+        }).when(fzk).commit(anyLong());
+        Follower follower = new Follower(mock(QuorumPeer.class), fzk);
+        follower.leaderProtocolVersion = leaderProtocolVersion;
+        return follower;
+    }
+
+    @Test(timeout=30000)
+    public void followerBatchTest() throws Exception {
+        List<Long> logged = new ArrayList<>();
+        Follower follower = createFollower(Leader.BATCHING_PROTOCOL_VERSION, logged);
+        assertTrue(follower.isBatching());
+        follower.processPacket(Leader.buildProposalsPacket(
+            Arrays.asList(proposal(zxid(1)), proposal(zxid(2)), proposal(zxid(3)))));
+        follower.processPacket(proposal(zxid(4)));
+        assertEquals(Arrays.asList(zxid(1), zxid(2), zxid(3), zxid(4)), logged);
+
+        // A single commit commits the pending txns up to its zxid
+        follower.processPacket(new QuorumPacket(Leader.COMMIT, zxid(3), null, null));
+        assertEquals(Arrays.asList(zxid(1), zxid(2), zxid(3)), committed);
+        follower.processPacket(new QuorumPacket(Leader.COMMIT, zxid(4), null, null));
+        assertEquals(Arrays.asList(zxid(1), zxid(2), zxid(3), zxid(4)), committed);
+    }
+
+    @Test(timeout=30000)
+    public void followerOfOldLeaderTest() throws Exception {
+        List<Long> logged = new ArrayList<>();
+        // The protocol version of a leader predating the batching
+        Follower follower = createFollower(0x01, logged);
+        assertFalse(follower.isBatching());
+        for (int counter = 1; counter <= 3; counter++) {
+            follower.processPacket(proposal(zxid(counter)));
+        }
+        // Each commit commits its own txn only
+        follower.processPacket(new QuorumPacket(Leader.COMMIT, zxid(1), null, null));
+        assertEquals(Collections.singletonList(zxid(1)), committed);
+        follower.processPacket(new QuorumPacket(Leader.COMMIT, zxid(2), null, null));
+        assertEquals(Arrays.asList(zxid(1), zxid(2)), committed);
+    }
+
+}
@@ -0,0 +1,210 @@
+package org.apache.zookeeper.server.watch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.junit.Test;
+
+/**
+ * Test the watch manager without a global lock under concurrent updates
+ */
+public class ConcurrentWatchManagerTest {
+
+    private static final int PATHS = 8;
+    private static final int WATCHERS = 4;
+    private static final int ITERATIONS = 20000;
+
+    private final ConcurrentWatchManager manager = new ConcurrentWatchManager();
+
+    /**
+     * Counts the events of every path
+     */
+    private static class CountingWatcher implements Watcher {
+
+        final ConcurrentHashMap<String, AtomicInteger> events = new ConcurrentHashMap<>();
+
+        @Override
+        public void process(WatchedEvent event) {
+            events.computeIfAbsent(event.getPath(), p -> new AtomicInteger()).incrementAndGet();
+        }
+
+        int getEvents(String path) {
+            AtomicInteger count = events.get(path);
+            return count == null ? 0 : count.get();
+        }
+
+    }
+
+    private static String path(int i) {
+        return "/p" + i;
+    }
+
+    private static ServerCnxn createCnxn(AtomicBoolean stale) {
+        ServerCnxn cnxn = mock(ServerCnxn.class, withSettings().stubOnly());
+        when(cnxn.isStale()).thenAnswer(invocation -> stale.get());
+        return cnxn;
+    }
+
+    private static void start(List<Thread> threads, AtomicReference<Throwable> failure, Runnable task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        });
+        threads.add(thread);
+        thread.start();
+    }
+
+    @Test(timeout=60000)
+    public void noLostWatchesTest() throws Exception {
+        CountingWatcher[] watchers = new CountingWatcher[WATCHERS];
+        // The watches added and removed by each watcher on every path
+        int[][] added = new int[WATCHERS][PATHS];
+        int[][] removed = new int[WATCHERS][PATHS];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean done = new AtomicBoolean();
+        CountDownLatch adders = new CountDownLatch(WATCHERS);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int w = 0; w < WATCHERS; w++) {
+            int watcherIndex = w;
+            CountingWatcher watcher = new CountingWatcher();
+            watchers[w] = watcher;
+            start(threads, failure, () -> {
+                Random random = new Random(watcherIndex);
+                for (int i = 0; i < ITERATIONS; i++) {
+                    int p = random.nextInt(PATHS);
+                    if (random.nextInt(4) == 0) {
+                        if (manager.removeWatcher(path(p), watcher)) {
+                            removed[watcherIndex][p]++;
+                        }
+                    } else if (manager.addWatch(path(p), watcher)) {
+                        added[watcherIndex][p]++;
+                    }
+                }
+                adders.countDown();
+            });
+        }
+        for (int t = 0; t < 2; t++) {
+            int seed = WATCHERS + t;
+            start(threads, failure, () -> {
+                Random random = new Random(seed);
+                while (!done.get()) {
+                    manager.triggerWatch(path(random.nextInt(PATHS)), EventType.NodeDataChanged, 1);
+                }
+            });
+        }
+        adders.await();
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+
+        // Every watch added was either triggered once, removed, or is still
+        // there
+        int remaining = 0;
+        for (int w = 0; w < WATCHERS; w++) {
+            for (int p = 0; p < PATHS; p++) {
+                int present = manager.containsWatcher(path(p), watchers[w]) ? 1 : 0;
+                assertEquals(
+                    "watcher " + w + " of " + path(p),
+                    added[w][p],
+                    watchers[w].getEvents(path(p)) + removed[w][p] + present);
+                remaining += present;
+            }
+        }
+        assertEquals(remaining, manager.size());
+        assertEquals(remaining, manager.getWatchesSummary().getTotalWatches());
+
+        // Once triggered, no watch is left behind
+        for (int p = 0; p < PATHS; p++) {
+            manager.triggerWatch(path(p), EventType.NodeDataChanged, 2);
+        }
+        assertEquals(0, manager.size());
+        WatchesSummary summary = manager.getWatchesSummary();
+        assertEquals(0, summary.getNumConnections());
+        assertEquals(0, summary.getNumPaths());
+        assertEquals(0, summary.getTotalWatches());
+    }
+
+    @Test(timeout=10000)
+    public void staleConnectionTest() {
+        AtomicBoolean stale = new AtomicBoolean();
+        ServerCnxn cnxn = createCnxn(stale);
+        assertTrue(manager.addWatch("/a", cnxn));
+        assertTrue(manager.addWatch("/b", cnxn, WatcherMode.PERSISTENT_RECURSIVE));
+        assertEquals(1, manager.getRecursiveWatchQty());
+
+        // The connection closes
+        stale.set(true);
+        manager.removeWatcher(cnxn);
+        assertFalse(manager.containsWatcher("/a", cnxn));
+        assertFalse(manager.containsWatcher("/b", cnxn));
+        assertEquals(0, manager.size());
+        assertEquals(0, manager.getRecursiveWatchQty());
+
+        // The watches set by its requests still being processed are ignored
+        assertFalse(manager.addWatch("/a", cnxn));
+        assertEquals(0, manager.size());
+        assertEquals(0, manager.getWatchesSummary().getNumConnections());
+    }
+
+    @Test(timeout=60000)
+    public void staleConnectionRaceTest() throws Exception {
+        for (int round = 0; round < 100; round++) {
+            AtomicBoolean stale = new AtomicBoolean();
+            ServerCnxn cnxn = createCnxn(stale);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            CountDownLatch started = new CountDownLatch(2);
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 2; t++) {
+                int seed = t;
+                start(threads, failure, () -> {
+                    Random random = new Random(seed);
+                    started.countDown();
+                    for (int i = 0; i < 200; i++) {
+                        WatcherMode mode = random.nextBoolean() ? WatcherMode.STANDARD : WatcherMode.PERSISTENT_RECURSIVE;
+                        manager.addWatch(path(random.nextInt(PATHS)), cnxn, mode);
+                    }
+                });
+            }
+            started.await();
+            // Closed while its watches are being added
+            stale.set(true);
+            manager.removeWatcher(cnxn);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertNull(failure.get());
+
+            for (int p = 0; p < PATHS; p++) {
+                assertFalse(manager.containsWatcher(path(p), cnxn));
+            }
+            assertEquals(0, manager.size());
+            assertEquals(0, manager.getRecursiveWatchQty());
+            assertEquals(0, manager.getWatchesSummary().getNumConnections());
+            assertEquals(0, manager.getWatchesSummary().getNumPaths());
+        }
+    }
+
+}